@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2016-2020 Doubango AI <https://www.doubango.org>
+ * License: For non-commercial use only
+ * Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+ * WebSite: https://www.doubango.org/webapps/micr/
+ */
+package org.doubango.ultimateMicr.Utils;
+
+/**
+ * Check digit validation of the recognized lines.
+ *
+ * - E-13B: the routing number between the two transit symbols ('A') is validated using the ABA
+ *   checksum when it has 9 digits (US). Other layouts (e.g. Canadian "12345D678") have no check digit.
+ * - CMC-7: the three check digits of the Brazilian layout (3 blocks of 8, 10 and 12 digits) are
+ *   validated using the modulo 10 algorithm (DV1: bank + agency, DV2: second block, DV3: account).
+ */
+public final class MicrChecksum {
+
+    /** The line was validated. */
+    public static final int VALID = 1;
+    /** A check digit doesn't match: the line is misread. */
+    public static final int INVALID = -1;
+    /** The layout has no known check digit. */
+    public static final int UNKNOWN = 0;
+
+    private MicrChecksum() { }
+
+    /**
+     * Validates the zone's text according to its klass.
+     * @return {@link #VALID}, {@link #INVALID} or {@link #UNKNOWN}.
+     */
+    public static int validate(final MicrZone zone) {
+        switch (zone.getKlass()) {
+            case MicrResultJson.KLASS_E13B: return validateE13b(zone.getText());
+            case MicrResultJson.KLASS_CMC7: return validateCmc7(zone.getText());
+            default: return UNKNOWN;
+        }
+    }
+
+    /**
+     * Validates the routing number of an E-13B line ('A' transit, 'B' amount, 'C' on-us, 'D' dash symbols).
+     */
+    public static int validateE13b(final String text) {
+        final int begin = text.indexOf('A');
+        final int end = begin < 0 ? -1 : text.indexOf('A', begin + 1);
+        if (end < 0) {
+            return UNKNOWN;
+        }
+        if (end - begin - 1 != 9) {
+            return UNKNOWN;
+        }
+        int sum = 0;
+        for (int i = 0; i < 9; ++i) {
+            final char c = text.charAt(begin + 1 + i);
+            if (c < '0' || c > '9') {
+                return UNKNOWN;
+            }
+            final int weight = (i % 3) == 0 ? 3 : ((i % 3) == 1 ? 7 : 1);
+            sum += weight * (c - '0');
+        }
+        return (sum % 10) == 0 ? VALID : INVALID;
+    }
+
+    /**
+     * Validates a CMC-7 line (digits and 'F' to 'J' symbols). Only the Brazilian layout has check digits.
+     */
+    public static int validateCmc7(final String text) {
+        final char digits[] = new char[30];
+        int count = 0;
+        for (int i = 0; i < text.length(); ++i) {
+            final char c = text.charAt(i);
+            if (c >= '0' && c <= '9') {
+                if (count == digits.length) {
+                    return UNKNOWN;
+                }
+                digits[count++] = c;
+            }
+        }
+        if (count != digits.length) {
+            return UNKNOWN;
+        }
+        // Block 1: bank (3) + agency (4) + DV2, block 2: (10), block 3: DV1 + account (10) + DV3
+        final boolean valid = modulo10(digits, 8, 18) == digits[7] - '0'
+                && modulo10(digits, 0, 7) == digits[18] - '0'
+                && modulo10(digits, 19, 29) == digits[29] - '0';
+        return valid ? VALID : INVALID;
+    }
+
+    /**
+     * Modulo 10 check digit: weights 2, 1, 2... from the right, digits of the products summed.
+     */
+    static int modulo10(final char digits[], final int begin, final int end) {
+        int sum = 0;
+        int weight = 2;
+        for (int i = end - 1; i >= begin; --i) {
+            final int product = (digits[i] - '0') * weight;
+            sum += product > 9 ? product - 9 : product;
+            weight = 3 - weight;
+        }
+        return (10 - (sum % 10)) % 10;
+    }
+}
@@ -0,0 +1,364 @@
+/*
+ * Copyright (C) 2016-2020 Doubango AI <https://www.doubango.org>
+ * License: For non-commercial use only
+ * Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+ * WebSite: https://www.doubango.org/webapps/micr/
+ */
+package org.doubango.ultimateMicr.Utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Temporal consensus over the results of consecutive video frames.
+ *
+ * Zones are grouped into lines across frames (same klass, close centers). For each line the last
+ * {@link #setWindow(int)} texts are aligned (edit distance) on the medoid text and each character
+ * is chosen by a vote weighted by the recognition confidence. The result is declared final once
+ * {@link #setMinAgreements(int)} texts of every active line agree with the consensus. While final,
+ * {@link #shouldProcess(MicrFrame)} returns false (no need to run the inference) until the scene
+ * changes, detected using a luma thumbnail.
+ *
+ * Plain Java, no engine call. Not thread-safe.
+ */
+public final class MicrConsensus {
+
+    private static final int ALPHABET = 128; // MICR texts are ASCII
+
+    private int mWindow = 8;
+    private int mMinAgreements = 3;
+    private float mSceneChangeThreshold = 10.f;
+
+    private final List<Line> mLines = new ArrayList<Line>();
+    private long mFrameIndex;
+    private boolean mFinal;
+    private final MicrLumaThumbnail mFinalThumbnail = new MicrLumaThumbnail(8);
+    private final MicrLumaThumbnail mThumbnail = new MicrLumaThumbnail(8);
+    private long mNumProcessed;
+    private long mNumSkipped;
+    private long mNumFinals;
+
+    // Scratch buffers
+    private int mDistances[] = new int[0];
+    private int mAlignment[] = new int[0];
+    private float mVotes[] = new float[0];
+    private float mGaps[] = new float[0];
+
+    private static final class Observation {
+        final String mText;
+        final float mWeight;
+
+        Observation(final String text, final float weight) {
+            mText = text;
+            mWeight = weight;
+        }
+    }
+
+    private static final class Line {
+        final int mKlass;
+        float mCenterX;
+        float mCenterY;
+        float mHeight;
+        long mLastFrame;
+        final List<Observation> mObservations = new ArrayList<Observation>();
+        String mText = "";
+        int mAgreements;
+        float mAgreement;
+
+        Line(final int klass) {
+            mKlass = klass;
+        }
+    }
+
+    /**
+     * Number of texts per line used for the vote. Default: 8.
+     */
+    public MicrConsensus setWindow(final int window) {
+        if (window < 1) {
+            throw new IllegalArgumentException("window must be >= 1");
+        }
+        mWindow = window;
+        return this;
+    }
+
+    /**
+     * Number of texts equal to the consensus required to declare it final. Default: 3.
+     */
+    public MicrConsensus setMinAgreements(final int minAgreements) {
+        if (minAgreements < 1) {
+            throw new IllegalArgumentException("minAgreements must be >= 1");
+        }
+        mMinAgreements = minAgreements;
+        return this;
+    }
+
+    /**
+     * Mean luma difference (levels, [0, 255]) with the frame the consensus was declared final on
+     * above which the scene is considered changed. Default: 10.
+     */
+    public MicrConsensus setSceneChangeThreshold(final float sceneChangeThreshold) {
+        mSceneChangeThreshold = sceneChangeThreshold;
+        return this;
+    }
+
+    /**
+     * Whether the frame must be processed. Always true until the consensus is final, then
+     * false until the scene changes (the consensus is reset).
+     */
+    public boolean shouldProcess(final MicrFrame frame) {
+        if (!mFinal) {
+            return true;
+        }
+        if (mThumbnail.compute(frame).distance(mFinalThumbnail) > mSceneChangeThreshold) {
+            reset();
+            return true;
+        }
+        ++mNumSkipped;
+        return false;
+    }
+
+    /**
+     * Adds the result of a processed frame.
+     * @param frame The processed frame, used to capture the scene when the consensus becomes final.
+     * @param result The parsed result.
+     * @return true if the consensus is final.
+     */
+    public boolean update(final MicrFrame frame, final MicrResultParser result) {
+        ++mFrameIndex;
+        ++mNumProcessed;
+        final int numZones = result.getNumZones();
+        for (int i = 0; i < numZones; ++i) {
+            final MicrZone zone = result.getZone(i);
+            final String text = zone.getText();
+            if (text.isEmpty()) {
+                continue;
+            }
+            final float box[] = zone.getWarpedBox();
+            final float centerX = (box[0] + box[2] + box[4] + box[6]) * 0.25f;
+            final float centerY = (box[1] + box[3] + box[5] + box[7]) * 0.25f;
+            final float height = Math.max(1.f, Math.abs(((box[5] + box[7]) - (box[1] + box[3])) * 0.5f));
+            final Line line = match(zone.getKlass(), centerX, centerY, height);
+            line.mCenterX = centerX;
+            line.mCenterY = centerY;
+            line.mHeight = height;
+            line.mLastFrame = mFrameIndex;
+            line.mObservations.add(new Observation(text, Math.max(0.01f, zone.getRecognitionConfidence() / 100.f)));
+            if (line.mObservations.size() > mWindow) {
+                line.mObservations.remove(0);
+            }
+            vote(line);
+        }
+
+        // Forget the lines not seen for a while. Final if all the lines seen recently agree
+        boolean active = false;
+        boolean agree = true;
+        for (int i = mLines.size() - 1; i >= 0; --i) {
+            final Line line = mLines.get(i);
+            if (mFrameIndex - line.mLastFrame >= mWindow) {
+                mLines.remove(i);
+            }
+            else if (mFrameIndex - line.mLastFrame < mMinAgreements) {
+                active = true;
+                agree &= line.mAgreements >= mMinAgreements;
+            }
+        }
+        final boolean isFinal = active && agree;
+        if (isFinal && !mFinal) {
+            mFinalThumbnail.compute(frame);
+            ++mNumFinals;
+        }
+        mFinal = isFinal;
+        return mFinal;
+    }
+
+    /**
+     * Forgets everything (e.g. new document).
+     */
+    public void reset() {
+        mLines.clear();
+        mFinal = false;
+        mFinalThumbnail.clear();
+    }
+
+    public boolean isFinal() { return mFinal; }
+
+    public int getNumLines() { return mLines.size(); }
+
+    /**
+     * Consensus text of the line.
+     */
+    public String getText(final int line) { return mLines.get(line).mText; }
+
+    public int getKlass(final int line) { return mLines.get(line).mKlass; }
+
+    /**
+     * Number of texts in the window equal to the consensus.
+     */
+    public int getNumAgreements(final int line) { return mLines.get(line).mAgreements; }
+
+    /**
+     * Mean share of the votes won by the chosen characters, [0, 1].
+     */
+    public float getAgreement(final int line) { return mLines.get(line).mAgreement; }
+
+    public long getNumProcessed() { return mNumProcessed; }
+    /** Number of frames for which {@link #shouldProcess(MicrFrame)} returned false. */
+    public long getNumSkipped() { return mNumSkipped; }
+    /** Number of times the consensus became final. */
+    public long getNumFinals() { return mNumFinals; }
+
+    private Line match(final int klass, final float centerX, final float centerY, final float height) {
+        Line best = null;
+        float bestDistance = Float.MAX_VALUE;
+        for (int i = 0; i < mLines.size(); ++i) {
+            final Line line = mLines.get(i);
+            if (line.mKlass != klass || line.mLastFrame == mFrameIndex) {
+                continue;
+            }
+            final float distance = Math.abs(line.mCenterY - centerY) + (Math.abs(line.mCenterX - centerX) * 0.25f);
+            if (distance < (2.f * Math.max(height, line.mHeight)) && distance < bestDistance) {
+                best = line;
+                bestDistance = distance;
+            }
+        }
+        if (best == null) {
+            best = new Line(klass);
+            mLines.add(best);
+        }
+        return best;
+    }
+
+    /**
+     * Aligns the texts on the medoid and votes for each character.
+     */
+    private void vote(final Line line) {
+        final List<Observation> observations = line.mObservations;
+        final int count = observations.size();
+
+        // Medoid: the text with the lowest weighted edit distance to the others
+        Observation reference = null;
+        float referenceCost = Float.MAX_VALUE;
+        for (int i = 0; i < count; ++i) {
+            final Observation candidate = observations.get(i);
+            float cost = 0.f;
+            for (int j = 0; j < count; ++j) {
+                if (i != j) {
+                    cost += observations.get(j).mWeight * distance(candidate.mText, observations.get(j).mText);
+                }
+            }
+            if (cost < referenceCost || (cost == referenceCost && candidate.mWeight > reference.mWeight)) {
+                reference = candidate;
+                referenceCost = cost;
+            }
+        }
+
+        // Weighted votes, per position of the reference
+        final String ref = reference.mText;
+        final int length = ref.length();
+        if (mVotes.length < length * ALPHABET) {
+            mVotes = new float[length * ALPHABET];
+            mGaps = new float[length];
+        }
+        Arrays.fill(mVotes, 0, length * ALPHABET, 0.f);
+        Arrays.fill(mGaps, 0, length, 0.f);
+        for (int j = 0; j < count; ++j) {
+            final Observation observation = observations.get(j);
+            align(ref, observation.mText);
+            for (int p = 0; p < length; ++p) {
+                final int index = mAlignment[p];
+                final char c = index < 0 ? 0 : observation.mText.charAt(index);
+                if (index < 0 || c >= ALPHABET) {
+                    mGaps[p] += observation.mWeight;
+                }
+                else {
+                    mVotes[(p * ALPHABET) + c] += observation.mWeight;
+                }
+            }
+        }
+        final StringBuilder text = new StringBuilder(length);
+        float agreement = 0.f;
+        for (int p = 0; p < length; ++p) {
+            int best = 0;
+            float total = mGaps[p];
+            for (int c = 1; c < ALPHABET; ++c) {
+                final float weight = mVotes[(p * ALPHABET) + c];
+                total += weight;
+                if (weight > mVotes[(p * ALPHABET) + best]) {
+                    best = c;
+                }
+            }
+            final float bestWeight = mVotes[(p * ALPHABET) + best];
+            if (bestWeight >= mGaps[p] && bestWeight > 0.f) {
+                text.append((char)best);
+                agreement += total > 0.f ? bestWeight / total : 0.f;
+            }
+            else {
+                agreement += total > 0.f ? mGaps[p] / total : 0.f;
+            }
+        }
+        line.mText = text.toString();
+        line.mAgreement = length == 0 ? 0.f : agreement / length;
+        int agreements = 0;
+        for (int j = 0; j < count; ++j) {
+            if (observations.get(j).mText.equals(line.mText)) {
+                ++agreements;
+            }
+        }
+        line.mAgreements = agreements;
+    }
+
+    /**
+     * Levenshtein distance.
+     */
+    private int distance(final String a, final String b) {
+        fillDistances(a, b);
+        return mDistances[(a.length() * (b.length() + 1)) + b.length()];
+    }
+
+    /**
+     * For each char of "ref", index of the aligned char in "text" or -1 (deletion), into mAlignment.
+     */
+    private void align(final String ref, final String text) {
+        fillDistances(ref, text);
+        if (mAlignment.length < ref.length()) {
+            mAlignment = new int[ref.length()];
+        }
+        final int columns = text.length() + 1;
+        int i = ref.length();
+        int j = text.length();
+        while (i > 0) {
+            final int current = mDistances[(i * columns) + j];
+            if (j > 0 && current == mDistances[((i - 1) * columns) + j - 1] + (ref.charAt(i - 1) == text.charAt(j - 1) ? 0 : 1)) {
+                mAlignment[--i] = --j; // Match or substitution
+            }
+            else if (current == mDistances[((i - 1) * columns) + j] + 1) {
+                mAlignment[--i] = -1; // Missing in text
+            }
+            else {
+                --j; // Extra char in text
+            }
+        }
+    }
+
+    private void fillDistances(final String a, final String b) {
+        final int columns = b.length() + 1;
+        final int size = (a.length() + 1) * columns;
+        if (mDistances.length < size) {
+            mDistances = new int[size];
+        }
+        for (int j = 0; j < columns; ++j) {
+            mDistances[j] = j;
+        }
+        for (int i = 1; i <= a.length(); ++i) {
+            mDistances[i * columns] = i;
+            final char ca = a.charAt(i - 1);
+            for (int j = 1; j < columns; ++j) {
+                final int substitution = mDistances[((i - 1) * columns) + j - 1] + (ca == b.charAt(j - 1) ? 0 : 1);
+                final int deletion = mDistances[((i - 1) * columns) + j] + 1;
+                final int insertion = mDistances[(i * columns) + j - 1] + 1;
+                mDistances[(i * columns) + j] = Math.min(substitution, Math.min(deletion, insertion));
+            }
+        }
+    }
+}
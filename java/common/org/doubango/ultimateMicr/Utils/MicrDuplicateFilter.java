@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2016-2020 Doubango AI <https://www.doubango.org>
+ * License: For non-commercial use only
+ * Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+ * WebSite: https://www.doubango.org/webapps/micr/
+ */
+package org.doubango.ultimateMicr.Utils;
+
+/**
+ * Near-duplicate frame suppression (video streams): when a document sits still under the camera the
+ * consecutive frames are almost identical and there is no need to run the inference on each of them.
+ *
+ * Usage, for each frame: {@link #lookup(MicrFrame)} returns the result of the last processed frame if
+ * its perceptual hash ({@link MicrPerceptualHash}) is within {@link #setMaxDistance(int)} bits of this
+ * frame's hash, null otherwise. On null, process the frame and call {@link #store(Object)} with the result.
+ * The result is reused at most {@link #setMaxReuses(int)} times in a row before forcing a new inference.
+ *
+ * The result must only depend on the pixels: call {@link #reset()} when the configuration or the ROI changes.
+ * Not thread-safe.
+ *
+ * @param <R> Result type
+ */
+public final class MicrDuplicateFilter<R> {
+
+    private int mMaxDistance = 4;
+    private int mMaxReuses = 30;
+
+    private final MicrPerceptualHash mHasher = new MicrPerceptualHash();
+    private long mHash; // Hash of the last frame passed to lookup()
+    private long mStoredHash;
+    private R mStoredResult;
+    private boolean mStored;
+    private int mReuses;
+    private int mLastDistance = -1;
+    private long mNumHits;
+    private long mNumMisses;
+
+    /**
+     * Maximum Hamming distance, [0, 64], between two frames' hashes to consider them identical. Default: 4.
+     */
+    public MicrDuplicateFilter<R> setMaxDistance(final int maxDistance) {
+        if (maxDistance < 0 || maxDistance > 64) {
+            throw new IllegalArgumentException("maxDistance must be within [0, 64]");
+        }
+        mMaxDistance = maxDistance;
+        return this;
+    }
+
+    /**
+     * Number of times in a row a result can be reused before forcing a new inference. Default: 30.
+     */
+    public MicrDuplicateFilter<R> setMaxReuses(final int maxReuses) {
+        if (maxReuses < 0) {
+            throw new IllegalArgumentException("maxReuses must be >= 0");
+        }
+        mMaxReuses = maxReuses;
+        return this;
+    }
+
+    /**
+     * Hashes the frame and returns the stored result if the frame is a near-duplicate of the last processed one.
+     * @return The result to reuse or null if the frame must be processed.
+     */
+    public R lookup(final MicrFrame frame) {
+        mHash = mHasher.compute(frame);
+        if (mStored) {
+            mLastDistance = MicrPerceptualHash.distance(mHash, mStoredHash);
+            if (mLastDistance <= mMaxDistance && mReuses < mMaxReuses) {
+                ++mReuses;
+                ++mNumHits;
+                return mStoredResult;
+            }
+        }
+        else {
+            mLastDistance = -1;
+        }
+        ++mNumMisses;
+        return null;
+    }
+
+    /**
+     * Stores the result of the frame passed to the last {@link #lookup(MicrFrame)} call.
+     */
+    public void store(final R result) {
+        mStoredHash = mHash;
+        mStoredResult = result;
+        mStored = true;
+        mReuses = 0;
+    }
+
+    /**
+     * Forgets the stored result. The counters are kept.
+     */
+    public void reset() {
+        mStoredResult = null;
+        mStored = false;
+        mReuses = 0;
+    }
+
+    /** Hamming distance computed by the last {@link #lookup(MicrFrame)}, -1 if there was nothing to compare to. */
+    public int getLastDistance() { return mLastDistance; }
+    public long getNumHits() { return mNumHits; }
+    public long getNumMisses() { return mNumMisses; }
+
+    /**
+     * Share of the frames for which the result was reused, [0, 1].
+     */
+    public float getHitRate() {
+        final long total = mNumHits + mNumMisses;
+        return total == 0 ? 0.f : mNumHits / (float)total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("hits=%d, misses=%d, hit rate=%.1f%%", mNumHits, mNumMisses, getHitRate() * 100.f);
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2016-2020 Doubango AI <https://www.doubango.org>
+ * License: For non-commercial use only
+ * Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+ * WebSite: https://www.doubango.org/webapps/micr/
+ */
+package org.doubango.ultimateMicr.Utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Per-client history of the recognized fonts ("klass" of the zones), used to predict the font of the next
+ * document of a client: a bank's customers mostly deposit checks printed in the same country.
+ *
+ * The last {@link #setWindow(int) window} zones of each client are kept, the least recently seen clients
+ * being forgotten beyond the maximum number of clients.
+ *
+ * Thread-safe.
+ */
+public final class MicrFormatHistory {
+
+    private final int mMaxClients;
+    private int mWindow = 32;
+    private int mMinSamples = 4;
+    private float mMinShare = 0.9f;
+    private final LinkedHashMap<String, Entry> mEntries;
+
+    /**
+     * @param maxClients Maximum number of clients to remember.
+     */
+    public MicrFormatHistory(final int maxClients) {
+        if (maxClients < 1) {
+            throw new IllegalArgumentException("maxClients must be >= 1");
+        }
+        mMaxClients = maxClients;
+        mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, Entry> eldest) {
+                return size() > mMaxClients;
+            }
+        };
+    }
+
+    /**
+     * Number of zones remembered per client. Default: 32. Only applies to the new clients.
+     */
+    public synchronized MicrFormatHistory setWindow(final int window) {
+        if (window < 1 || window > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("window must be within [1, " + Short.MAX_VALUE + "]");
+        }
+        mWindow = window;
+        return this;
+    }
+
+    /**
+     * Minimum number of zones before predicting. Default: 4.
+     */
+    public synchronized MicrFormatHistory setMinSamples(final int minSamples) {
+        if (minSamples < 1) {
+            throw new IllegalArgumentException("minSamples must be >= 1");
+        }
+        mMinSamples = minSamples;
+        return this;
+    }
+
+    /**
+     * Minimum share of the predicted font within the window, (0.5, 1]. Default: 0.9.
+     */
+    public synchronized MicrFormatHistory setMinShare(final float minShare) {
+        if (minShare <= 0.5f || minShare > 1.f) {
+            throw new IllegalArgumentException("minShare must be within (0.5, 1]");
+        }
+        mMinShare = minShare;
+        return this;
+    }
+
+    /**
+     * Records a recognized zone.
+     * @param klass {@link MicrResultJson#KLASS_E13B} or {@link MicrResultJson#KLASS_CMC7}, other values are ignored.
+     */
+    public synchronized void record(final String client, final int klass) {
+        if (klass != MicrResultJson.KLASS_E13B && klass != MicrResultJson.KLASS_CMC7) {
+            return;
+        }
+        Entry entry = mEntries.get(client);
+        if (entry == null) {
+            entry = new Entry(mWindow);
+            mEntries.put(client, entry);
+        }
+        entry.add(klass);
+    }
+
+    /**
+     * Records all the zones of a parsed result.
+     */
+    public synchronized void record(final String client, final MicrResultParser parser) {
+        for (int i = 0; i < parser.getNumZones(); ++i) {
+            record(client, parser.getZone(i).getKlass());
+        }
+    }
+
+    /**
+     * @return {@link MicrResultJson#KLASS_E13B}, {@link MicrResultJson#KLASS_CMC7} or 0 if the client is unknown or mixes both fonts.
+     */
+    public synchronized int predict(final String client) {
+        final Entry entry = mEntries.get(client);
+        if (entry == null || entry.mCount < mMinSamples) {
+            return 0;
+        }
+        if (entry.mNumCmc7 >= mMinShare * entry.mCount) {
+            return MicrResultJson.KLASS_CMC7;
+        }
+        if (entry.mCount - entry.mNumCmc7 >= mMinShare * entry.mCount) {
+            return MicrResultJson.KLASS_E13B;
+        }
+        return 0;
+    }
+
+    public synchronized void forget(final String client) {
+        mEntries.remove(client);
+    }
+
+    public synchronized int getNumClients() { return mEntries.size(); }
+
+    /**
+     * Ring of the last klass values.
+     */
+    private static final class Entry {
+        final byte mKlasses[];
+        int mIndex;
+        int mCount;
+        int mNumCmc7;
+
+        Entry(final int window) {
+            mKlasses = new byte[window];
+        }
+
+        void add(final int klass) {
+            if (mCount == mKlasses.length) {
+                if (mKlasses[mIndex] == MicrResultJson.KLASS_CMC7) {
+                    --mNumCmc7;
+                }
+            }
+            else {
+                ++mCount;
+            }
+            mKlasses[mIndex] = (byte)klass;
+            if (klass == MicrResultJson.KLASS_CMC7) {
+                ++mNumCmc7;
+            }
+            mIndex = (mIndex + 1) % mKlasses.length;
+        }
+    }
+}
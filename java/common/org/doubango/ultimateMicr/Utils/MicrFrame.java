@@ -0,0 +1,341 @@
+/*
+ * Copyright (C) 2016-2020 Doubango AI <https://www.doubango.org>
+ * License: For non-commercial use only
+ * Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+ * WebSite: https://www.doubango.org/webapps/micr/
+ */
+package org.doubango.ultimateMicr.Utils;
+
+import org.doubango.ultimateMicr.Sdk.ULTMICR_SDK_IMAGE_TYPE;
+import org.doubango.ultimateMicr.Sdk.UltMicrSdkEngine;
+import org.doubango.ultimateMicr.Sdk.UltMicrSdkResult;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Image to feed to the engine. Wraps the buffers and the layout information expected by the
+ * different "UltMicrSdkEngine.process" functions.
+ * The buffers must be direct (see {@link ByteBuffer#allocateDirect(int)}) as the native code reads
+ * them without copying. Cropping is zero-copy: the returned frame shares the same buffers.
+ */
+public final class MicrFrame {
+
+    private final ULTMICR_SDK_IMAGE_TYPE mType;
+    private final ByteBuffer mPlanes[];
+    private final int mWidth;
+    private final int mHeight;
+    private final int mStrides[]; // Same units as the SDK: samples for the packed formats, bytes for YUV planes
+    private final int mUvPixelStride;
+    private final int mExifOrientation;
+
+    // Position of this frame within the frame it was cropped from (the root frame)
+    private final int mOriginX;
+    private final int mOriginY;
+    private final int mRootWidth;
+    private final int mRootHeight;
+
+    private MicrFrame(final ULTMICR_SDK_IMAGE_TYPE type, final ByteBuffer planes[], final int width, final int height, final int strides[], final int uvPixelStride, final int exifOrientation,
+                      final int originX, final int originY, final int rootWidth, final int rootHeight) {
+        mType = type;
+        mPlanes = planes;
+        mWidth = width;
+        mHeight = height;
+        mStrides = strides;
+        mUvPixelStride = uvPixelStride;
+        mExifOrientation = exifOrientation;
+        mOriginX = originX;
+        mOriginY = originY;
+        mRootWidth = rootWidth;
+        mRootHeight = rootHeight;
+    }
+
+    /**
+     * Wraps a packed (RGB-family) or single plane (Y) image.
+     * @param stride Stride in samples (not bytes), same as "imageStrideInSamples".
+     */
+    public static MicrFrame newPacked(final ULTMICR_SDK_IMAGE_TYPE type, final ByteBuffer data, final int width, final int height, final int stride, final int exifOrientation) {
+        if (isYuv(type)) {
+            throw new IllegalArgumentException(type + " is not a packed format");
+        }
+        checkSize(width, height, stride);
+        return new MicrFrame(type, new ByteBuffer[] { data }, width, height, new int[] { stride }, 0, exifOrientation, 0, 0, width, height);
+    }
+
+    /**
+     * Wraps a 3-plane YUV image. NV12 and NV21 are wrapped by passing the interleaved chroma
+     * buffers as both "u" and "v" planes with a pixel stride equal to 2, as done with Android's YUV_420_888 images.
+     */
+    public static MicrFrame newYuv(final ULTMICR_SDK_IMAGE_TYPE type, final ByteBuffer y, final ByteBuffer u, final ByteBuffer v, final int width, final int height,
+                                   final int yStride, final int uStride, final int vStride, final int uvPixelStride, final int exifOrientation) {
+        if (!isYuv(type)) {
+            throw new IllegalArgumentException(type + " is not a YUV format");
+        }
+        checkSize(width, height, yStride);
+        return new MicrFrame(type, new ByteBuffer[] { y, u, v }, width, height, new int[] { yStride, uStride, vStride }, uvPixelStride, exifOrientation, 0, 0, width, height);
+    }
+
+    /**
+     * Zero-filled frame with tight strides, e.g. to warm up the engine for a size without a real image. NV12 and NV21 use
+     * a single interleaved chroma buffer.
+     */
+    public static MicrFrame newBlank(final ULTMICR_SDK_IMAGE_TYPE type, final int width, final int height) {
+        checkSize(width, height, width);
+        if (!isYuv(type)) {
+            return newPacked(type, ByteBuffer.allocateDirect(width * height * bytesPerPixel(type)), width, height, width, 1);
+        }
+        final ByteBuffer y = ByteBuffer.allocateDirect(width * height);
+        final int xShift = chromaShiftX(type);
+        final int yShift = chromaShiftY(type);
+        final int chromaWidth = (width + (1 << xShift) - 1) >> xShift;
+        final int chromaHeight = (height + (1 << yShift) - 1) >> yShift;
+        if (type == ULTMICR_SDK_IMAGE_TYPE.ULTMICR_SDK_IMAGE_TYPE_NV12 || type == ULTMICR_SDK_IMAGE_TYPE.ULTMICR_SDK_IMAGE_TYPE_NV21) {
+            final ByteBuffer uv = ByteBuffer.allocateDirect(chromaWidth * chromaHeight * 2);
+            return newYuv(type, y, uv, uv, width, height, width, chromaWidth * 2, chromaWidth * 2, 2, 1);
+        }
+        return newYuv(type, y, ByteBuffer.allocateDirect(chromaWidth * chromaHeight), ByteBuffer.allocateDirect(chromaWidth * chromaHeight),
+                width, height, width, chromaWidth, chromaWidth, 1, 1);
+    }
+
+    public ULTMICR_SDK_IMAGE_TYPE getType() { return mType; }
+    public int getWidth() { return mWidth; }
+    public int getHeight() { return mHeight; }
+    public int getExifOrientation() { return mExifOrientation; }
+    public int getNumPlanes() { return mPlanes.length; }
+    public ByteBuffer getPlane(final int index) { return mPlanes[index]; }
+    public int getStride(final int index) { return mStrides[index]; }
+    public int getUvPixelStride() { return mUvPixelStride; }
+    public int getOriginX() { return mOriginX; }
+    public int getOriginY() { return mOriginY; }
+    public int getRootWidth() { return mRootWidth; }
+    public int getRootHeight() { return mRootHeight; }
+    public boolean isCropped() { return mOriginX != 0 || mOriginY != 0 || mWidth != mRootWidth || mHeight != mRootHeight; }
+
+    /**
+     * Number of bytes the engine reads from the plane, from the buffer's start to the last sample.
+     */
+    public int getPlaneSize(final int index) {
+        final int size;
+        if (index == 0) {
+            final int bpp = bytesPerPixel(mType);
+            size = ((mHeight - 1) * getLumaRowStride()) + (mWidth * bpp);
+        }
+        else {
+            final int xShift = chromaShiftX(mType);
+            final int yShift = chromaShiftY(mType);
+            final int chromaWidth = (mWidth + (1 << xShift) - 1) >> xShift;
+            final int chromaHeight = (mHeight + (1 << yShift) - 1) >> yShift;
+            size = ((chromaHeight - 1) * mStrides[index]) + ((chromaWidth - 1) * Math.max(mUvPixelStride, 1)) + 1;
+        }
+        return Math.min(size, mPlanes[index].capacity());
+    }
+
+    /**
+     * Buffer holding the luma samples. For the RGB-family formats the green channel is used as luma approximation.
+     */
+    public ByteBuffer getLumaPlane() { return mPlanes[0]; }
+
+    /**
+     * Offset (in bytes) of the first luma sample within the pixel.
+     */
+    public int getLumaOffset() {
+        return bytesPerPixel(mType) > 1 ? 1 : 0; // Green channel is always at index #1 for RGB24, BGR24, RGBA32 and BGRA32
+    }
+
+    /**
+     * Distance (in bytes) between two consecutive luma samples on the same row.
+     */
+    public int getLumaPixelStride() {
+        return isYuv(mType) ? 1 : bytesPerPixel(mType);
+    }
+
+    /**
+     * Distance (in bytes) between two consecutive luma rows.
+     */
+    public int getLumaRowStride() {
+        return isYuv(mType) ? mStrides[0] : mStrides[0] * bytesPerPixel(mType);
+    }
+
+    /**
+     * Zero-copy crop. The left and top edges are aligned down to the chroma subsampling grid for the YUV formats.
+     * @param roi The region to keep, in this frame's coordinates. Clipped to the frame bounds.
+     * @return A new frame sharing the same buffers or this frame if the ROI is empty or covers the whole frame.
+     */
+    public MicrFrame crop(final MicrRoi roi) {
+        final MicrRoi clipped = roi.clip(mWidth, mHeight);
+        if (clipped.isEmpty() || (clipped.getWidth() == mWidth && clipped.getHeight() == mHeight)) {
+            return this;
+        }
+        int left = clipped.getLeft();
+        int top = clipped.getTop();
+        final ByteBuffer planes[] = new ByteBuffer[mPlanes.length];
+        if (isYuv(mType)) {
+            final int xShift = chromaShiftX(mType);
+            final int yShift = chromaShiftY(mType);
+            left = (left >> xShift) << xShift;
+            top = (top >> yShift) << yShift;
+            planes[0] = slice(mPlanes[0], (top * mStrides[0]) + left);
+            final int uvPixelStride = Math.max(mUvPixelStride, 1);
+            planes[1] = slice(mPlanes[1], ((top >> yShift) * mStrides[1]) + ((left >> xShift) * uvPixelStride));
+            planes[2] = slice(mPlanes[2], ((top >> yShift) * mStrides[2]) + ((left >> xShift) * uvPixelStride));
+        }
+        else {
+            planes[0] = slice(mPlanes[0], ((top * mStrides[0]) + left) * bytesPerPixel(mType));
+        }
+        return new MicrFrame(mType, planes, clipped.getRight() - left, clipped.getBottom() - top, mStrides, mUvPixelStride, mExifOrientation,
+                mOriginX + left, mOriginY + top, mRootWidth, mRootHeight);
+    }
+
+    /**
+     * Deep copy into new direct buffers, e.g. to process the frame later while the caller reuses its buffers.
+     * Only the bytes read by the engine are copied, the layout (strides, crop position) is kept.
+     */
+    public MicrFrame copy() {
+        final ByteBuffer planes[] = new ByteBuffer[mPlanes.length];
+        for (int i = 0; i < planes.length; ++i) {
+            final int size = getPlaneSize(i);
+            final ByteBuffer source = mPlanes[i].duplicate();
+            source.clear();
+            source.limit(size);
+            planes[i] = ByteBuffer.allocateDirect(size);
+            planes[i].put(source);
+            planes[i].rewind();
+        }
+        return new MicrFrame(mType, planes, mWidth, mHeight, mStrides, mUvPixelStride, mExifOrientation,
+                mOriginX, mOriginY, mRootWidth, mRootHeight);
+    }
+
+    /**
+     * Horizontal translation to apply to the coordinates returned by the engine for this frame to
+     * get the coordinates in the root frame. Takes the EXIF orientation into account as the engine
+     * returns coordinates in the oriented (displayed) image.
+     */
+    public int getResultOffsetX() {
+        switch (mExifOrientation) {
+            case 2: case 3: return mRootWidth - mOriginX - mWidth;
+            case 5: case 8: return mOriginY;
+            case 6: case 7: return mRootHeight - mOriginY - mHeight;
+            case 1: case 4: default: return mOriginX;
+        }
+    }
+
+    /**
+     * Vertical translation to apply to the coordinates returned by the engine for this frame to
+     * get the coordinates in the root frame.
+     */
+    public int getResultOffsetY() {
+        switch (mExifOrientation) {
+            case 3: case 4: return mRootHeight - mOriginY - mHeight;
+            case 5: case 6: return mOriginX;
+            case 7: case 8: return mRootWidth - mOriginX - mWidth;
+            case 1: case 2: default: return mOriginY;
+        }
+    }
+
+    /**
+     * Calls the right "UltMicrSdkEngine.process" function for this frame. The engine must be initialized.
+     * The coordinates in the result are relative to this frame, use {@link MicrResultJson#translateWarpedBoxes(String, float, float)}
+     * with {@link #getResultOffsetX()} and {@link #getResultOffsetY()} to map them to the root frame.
+     * @return The result. Call {@link UltMicrSdkResult#delete()} when done to release the native memory.
+     */
+    public UltMicrSdkResult process() {
+        if (mPlanes.length == 1) {
+            return UltMicrSdkEngine.process(
+                    mType,
+                    mPlanes[0],
+                    mWidth,
+                    mHeight,
+                    mStrides[0],
+                    mExifOrientation
+            );
+        }
+        return UltMicrSdkEngine.process(
+                mType,
+                mPlanes[0],
+                mPlanes[1],
+                mPlanes[2],
+                mWidth,
+                mHeight,
+                mStrides[0],
+                mStrides[1],
+                mStrides[2],
+                mUvPixelStride,
+                mExifOrientation
+        );
+    }
+
+    /**
+     * Process variant with per-call options. The ROI is applied as a zero-copy crop, the zones are
+     * filtered according to the format and min_score. See {@link MicrProcessOptions} for the limitations.
+     * The coordinates in the result are relative to the root frame.
+     * @param options The options.
+     * @return The result. Call {@link UltMicrSdkResult#delete()} when done to release the native memory.
+     */
+    public UltMicrSdkResult process(final MicrProcessOptions options) {
+        final MicrFrame frame = crop(options.getRoi());
+        final UltMicrSdkResult result = frame.process();
+        if (!result.isOK() || result.numZones() == 0 || (!frame.isCropped() && !options.hasZoneFilter())) {
+            return result;
+        }
+        String json = result.json();
+        if (options.hasZoneFilter()) {
+            json = MicrResultJson.filterZones(json, options.getKlassMask(), options.getMinScore());
+        }
+        if (frame.isCropped()) {
+            json = MicrResultJson.translateWarpedBoxes(json, frame.getResultOffsetX(), frame.getResultOffsetY());
+        }
+        final UltMicrSdkResult patched = new UltMicrSdkResult(result.code(), result.phrase(), json, MicrResultJson.countZones(json));
+        result.delete();
+        return patched;
+    }
+
+    public static boolean isYuv(final ULTMICR_SDK_IMAGE_TYPE type) {
+        switch (type) {
+            case ULTMICR_SDK_IMAGE_TYPE_NV12:
+            case ULTMICR_SDK_IMAGE_TYPE_NV21:
+            case ULTMICR_SDK_IMAGE_TYPE_YUV420P:
+            case ULTMICR_SDK_IMAGE_TYPE_YVU420P:
+            case ULTMICR_SDK_IMAGE_TYPE_YUV422P:
+            case ULTMICR_SDK_IMAGE_TYPE_YUV444P:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Number of bytes per pixel for the packed formats. Returns 1 for the YUV formats (luma plane).
+     */
+    public static int bytesPerPixel(final ULTMICR_SDK_IMAGE_TYPE type) {
+        switch (type) {
+            case ULTMICR_SDK_IMAGE_TYPE_RGB24:
+            case ULTMICR_SDK_IMAGE_TYPE_BGR24:
+                return 3;
+            case ULTMICR_SDK_IMAGE_TYPE_RGBA32:
+            case ULTMICR_SDK_IMAGE_TYPE_BGRA32:
+                return 4;
+            default:
+                return 1;
+        }
+    }
+
+    static int chromaShiftX(final ULTMICR_SDK_IMAGE_TYPE type) {
+        return type == ULTMICR_SDK_IMAGE_TYPE.ULTMICR_SDK_IMAGE_TYPE_YUV444P ? 0 : 1;
+    }
+
+    static int chromaShiftY(final ULTMICR_SDK_IMAGE_TYPE type) {
+        return (type == ULTMICR_SDK_IMAGE_TYPE.ULTMICR_SDK_IMAGE_TYPE_YUV444P || type == ULTMICR_SDK_IMAGE_TYPE.ULTMICR_SDK_IMAGE_TYPE_YUV422P) ? 0 : 1;
+    }
+
+    private static ByteBuffer slice(final ByteBuffer buffer, final int offset) {
+        final ByteBuffer dup = buffer.duplicate();
+        dup.clear();
+        dup.position(offset);
+        return dup.slice();
+    }
+
+    private static void checkSize(final int width, final int height, final int stride) {
+        if (width <= 0 || height <= 0 || stride < width) {
+            throw new IllegalArgumentException("Invalid size: " + width + "x" + height + ", stride: " + stride);
+        }
+    }
+}
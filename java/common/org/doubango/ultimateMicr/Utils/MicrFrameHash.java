@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2016-2020 Doubango AI <https://www.doubango.org>
+ * License: For non-commercial use only
+ * Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+ * WebSite: https://www.doubango.org/webapps/micr/
+ */
+package org.doubango.ultimateMicr.Utils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Fast 64-bit content hashes, to address results by the pixels they were computed from.
+ *
+ * {@link #hash(MicrFrame)} covers the type, size, orientation and the bytes the engine reads from each
+ * plane, row by row (the padding between rows is ignored, so the same image with different strides has
+ * the same hash). Not cryptographic: only use it with non-adversarial inputs.
+ */
+public final class MicrFrameHash {
+
+    private static final long PRIME1 = 0x9E3779B97F4A7C15L;
+    private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME3 = 0x165667B19E3779F9L;
+
+    private MicrFrameHash() { }
+
+    /**
+     * Hash of the frame's pixels and geometry.
+     */
+    public static long hash(final MicrFrame frame) {
+        long h = mix(PRIME3, frame.getType().swigValue());
+        h = mix(h, ((long)frame.getWidth() << 32) | frame.getHeight());
+        h = mix(h, frame.getExifOrientation());
+        final int width = frame.getWidth();
+        final int height = frame.getHeight();
+        if (frame.getNumPlanes() == 1) {
+            h = hashRows(h, frame.getPlane(0), frame.getLumaRowStride(), width * MicrFrame.bytesPerPixel(frame.getType()), height);
+        }
+        else {
+            h = hashRows(h, frame.getPlane(0), frame.getStride(0), width, height);
+            final int xShift = MicrFrame.chromaShiftX(frame.getType());
+            final int yShift = MicrFrame.chromaShiftY(frame.getType());
+            final int chromaWidth = (width + (1 << xShift) - 1) >> xShift;
+            final int chromaHeight = (height + (1 << yShift) - 1) >> yShift;
+            final int rowBytes = ((chromaWidth - 1) * Math.max(frame.getUvPixelStride(), 1)) + 1;
+            h = hashRows(h, frame.getPlane(1), frame.getStride(1), rowBytes, chromaHeight);
+            h = hashRows(h, frame.getPlane(2), frame.getStride(2), rowBytes, chromaHeight);
+        }
+        return finish(h);
+    }
+
+    /**
+     * Hash of a string (e.g. the JSON config).
+     */
+    public static long hash(final String value) {
+        long h = mix(PRIME3, value.length());
+        final int length = value.length();
+        int i = 0;
+        for (; i + 4 <= length; i += 4) {
+            h = mix(h, ((long)value.charAt(i) << 48) | ((long)value.charAt(i + 1) << 32) | ((long)value.charAt(i + 2) << 16) | value.charAt(i + 3));
+        }
+        for (; i < length; ++i) {
+            h = mix(h, value.charAt(i));
+        }
+        return finish(h);
+    }
+
+    private static long hashRows(long h, final ByteBuffer plane, final int rowStride, final int rowBytes, final int rows) {
+        final ByteBuffer buffer = plane.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        final int limit = buffer.limit();
+        for (int y = 0; y < rows; ++y) {
+            final int begin = y * rowStride;
+            final int end = Math.min(begin + rowBytes, limit);
+            int i = begin;
+            for (; i + 8 <= end; i += 8) {
+                h = mix(h, buffer.getLong(i));
+            }
+            long tail = 0;
+            for (int shift = 0; i < end; ++i, shift += 8) {
+                tail |= (long)(buffer.get(i) & 0xff) << shift;
+            }
+            h = mix(h, tail);
+        }
+        return h;
+    }
+
+    private static long mix(final long h, final long value) {
+        return (Long.rotateLeft(h ^ (value * PRIME2), 31) * PRIME1) + PRIME3;
+    }
+
+    private static long finish(long h) {
+        h ^= h >>> 33;
+        h *= PRIME2;
+        h ^= h >>> 29;
+        h *= PRIME3;
+        h ^= h >>> 32;
+        return h;
+    }
+}
@@ -0,0 +1,378 @@
+/*
+ * Copyright (C) 2016-2020 Doubango AI <https://www.doubango.org>
+ * License: For non-commercial use only
+ * Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+ * WebSite: https://www.doubango.org/webapps/micr/
+ */
+package org.doubango.ultimateMicr.Utils;
+
+import java.util.Arrays;
+
+/**
+ * Video pipeline: capture -> inference -> result handling, each stage on its own thread.
+ *
+ * The capture thread calls {@link #offer(Object)}, which never blocks: the frame goes to a single-slot
+ * mailbox and replaces (drops) the frame waiting there, if any. The inference thread always takes the
+ * latest frame, calls {@link Handler#process(Object)} then hands the result to the result thread
+ * through another single-slot mailbox, so the result handling (parsing, drawing, logging) never delays
+ * the next inference. A result not handled yet when the next one arrives is dropped as well.
+ *
+ * Counts the dropped frames and measures the end-to-end latency (from {@link #offer(Object)} to the end of
+ * {@link Handler#onResult(Object, long)}). Plain Java, can be driven by a replay source on desktop.
+ *
+ * @param <F> Frame type (e.g. Android's Image)
+ * @param <R> Result type
+ */
+public final class MicrFramePipeline<F, R> {
+
+    /**
+     * The stages. {@link #process(Object)} is called on the inference thread and {@link #onResult(Object, long)} on the
+     * result thread, in order.
+     */
+    public static abstract class Handler<F, R> {
+        /**
+         * Inference stage. Exceptions are counted (see {@link MicrFramePipeline#getNumErrors()}) and the frame is skipped.
+         * @return The result or null if there is nothing to hand to the result stage.
+         */
+        public abstract R process(F frame);
+
+        /**
+         * Result stage.
+         * @param latencyNanos Time elapsed since the frame was offered.
+         */
+        public abstract void onResult(R result, long latencyNanos);
+
+        /**
+         * Called exactly once for each offered frame, after {@link #process(Object)} or when the frame is dropped.
+         * Called on the capture, inference or stopping thread. Default: nothing.
+         */
+        public void releaseFrame(F frame) { }
+
+        /**
+         * Called for each result dropped without going through {@link #onResult(Object, long)}. Default: nothing.
+         */
+        public void releaseResult(R result) { }
+    }
+
+    private static final int LATENCY_SAMPLES = 1024;
+
+    private final Handler<F, R> mHandler;
+    private final Object mLock = new Object();
+
+    // Guarded by mLock
+    private boolean mRunning;
+    private F mFrame;
+    private long mFrameTime;
+    private R mResult;
+    private long mResultTime;
+    private Thread mInferenceThread;
+    private Thread mResultThread;
+    private long mNumOffered;
+    private long mNumDropped;
+    private long mNumProcessed;
+    private long mNumErrors;
+    private long mNumResults;
+    private long mNumResultsDropped;
+    private long mInferenceNanos;
+    private final long mLatencies[] = new long[LATENCY_SAMPLES];
+    private int mLatencyIndex;
+    private int mLatencyCount;
+    private long mLatencySum;
+    private long mLatencyMax;
+    private long mNumLatencies;
+
+    public MicrFramePipeline(final Handler<F, R> handler) {
+        if (handler == null) {
+            throw new IllegalArgumentException("handler is null");
+        }
+        mHandler = handler;
+    }
+
+    /**
+     * Starts the inference and result threads. Does nothing if already running.
+     * @param name Prefix of the threads' name.
+     */
+    public void start(final String name) {
+        synchronized (mLock) {
+            if (mRunning) {
+                return;
+            }
+            mRunning = true;
+            mInferenceThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runInference();
+                }
+            }, name + "-inference");
+            mResultThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runResults();
+                }
+            }, name + "-result");
+            mInferenceThread.start();
+            mResultThread.start();
+        }
+    }
+
+    /**
+     * Stops the threads, waiting for the current inference and result handling to finish. The pending
+     * frame and result are dropped.
+     */
+    public void stop() {
+        final Thread inferenceThread, resultThread;
+        F frame;
+        R result;
+        synchronized (mLock) {
+            if (!mRunning) {
+                return;
+            }
+            mRunning = false;
+            frame = mFrame;
+            result = mResult;
+            mFrame = null;
+            mResult = null;
+            if (frame != null) {
+                ++mNumDropped;
+            }
+            if (result != null) {
+                ++mNumResultsDropped;
+            }
+            inferenceThread = mInferenceThread;
+            resultThread = mResultThread;
+            mInferenceThread = mResultThread = null;
+            mLock.notifyAll();
+        }
+        if (frame != null) {
+            mHandler.releaseFrame(frame);
+        }
+        if (result != null) {
+            mHandler.releaseResult(result);
+        }
+        boolean interrupted = false;
+        for (Thread thread : new Thread[] { inferenceThread, resultThread }) {
+            while (thread != Thread.currentThread()) {
+                try {
+                    thread.join();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public boolean isRunning() {
+        synchronized (mLock) {
+            return mRunning;
+        }
+    }
+
+    /**
+     * Same as {@link #offer(Object, long)} with the current time as capture time.
+     */
+    public boolean offer(final F frame) {
+        return offer(frame, System.nanoTime());
+    }
+
+    /**
+     * Hands a frame to the inference stage. Never blocks. The pipeline takes ownership of the frame,
+     * {@link Handler#releaseFrame(Object)} is always called.
+     * @param frame The frame.
+     * @param captureTimeNanos Capture time, {@link System#nanoTime()} time base, start of the end-to-end latency.
+     * @return false if the frame was dropped right away because the pipeline isn't running.
+     */
+    public boolean offer(final F frame, final long captureTimeNanos) {
+        final F dropped;
+        synchronized (mLock) {
+            ++mNumOffered;
+            if (!mRunning) {
+                ++mNumDropped;
+                dropped = frame;
+            }
+            else {
+                dropped = mFrame;
+                if (dropped != null) {
+                    ++mNumDropped;
+                }
+                mFrame = frame;
+                mFrameTime = captureTimeNanos;
+                mLock.notifyAll();
+            }
+        }
+        if (dropped != null) {
+            mHandler.releaseFrame(dropped);
+        }
+        return dropped != frame;
+    }
+
+    private void runInference() {
+        while (true) {
+            final F frame;
+            final long frameTime;
+            synchronized (mLock) {
+                while (mRunning && mFrame == null) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        // Only stop() ends the thread
+                    }
+                }
+                if (!mRunning) {
+                    return;
+                }
+                frame = mFrame;
+                frameTime = mFrameTime;
+                mFrame = null;
+            }
+            final long start = System.nanoTime();
+            R result = null;
+            boolean failed = false;
+            try {
+                result = mHandler.process(frame);
+            } catch (RuntimeException e) {
+                failed = true;
+                e.printStackTrace();
+            } finally {
+                mHandler.releaseFrame(frame);
+            }
+            final long duration = System.nanoTime() - start;
+            R dropped = null;
+            synchronized (mLock) {
+                ++mNumProcessed;
+                mInferenceNanos += duration;
+                if (failed) {
+                    ++mNumErrors;
+                }
+                if (result != null) {
+                    if (mRunning) {
+                        dropped = mResult;
+                        mResult = result;
+                        mResultTime = frameTime;
+                        mLock.notifyAll();
+                    }
+                    else {
+                        dropped = result;
+                    }
+                    if (dropped != null) {
+                        ++mNumResultsDropped;
+                    }
+                }
+            }
+            if (dropped != null) {
+                mHandler.releaseResult(dropped);
+            }
+        }
+    }
+
+    private void runResults() {
+        while (true) {
+            final R result;
+            final long frameTime;
+            synchronized (mLock) {
+                while (mRunning && mResult == null) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        // Only stop() ends the thread
+                    }
+                }
+                if (!mRunning) {
+                    return;
+                }
+                result = mResult;
+                frameTime = mResultTime;
+                mResult = null;
+            }
+            try {
+                mHandler.onResult(result, System.nanoTime() - frameTime);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+            final long latency = System.nanoTime() - frameTime;
+            synchronized (mLock) {
+                ++mNumResults;
+                mLatencies[mLatencyIndex] = latency;
+                mLatencyIndex = (mLatencyIndex + 1) % LATENCY_SAMPLES;
+                mLatencyCount = Math.min(mLatencyCount + 1, LATENCY_SAMPLES);
+                ++mNumLatencies;
+                mLatencySum += latency;
+                mLatencyMax = Math.max(mLatencyMax, latency);
+            }
+        }
+    }
+
+    /** Number of frames passed to {@link #offer(Object)}. */
+    public long getNumOffered() { synchronized (mLock) { return mNumOffered; } }
+    /** Number of frames dropped without inference (replaced by a newer frame or pipeline not running). */
+    public long getNumDropped() { synchronized (mLock) { return mNumDropped; } }
+    public long getNumProcessed() { synchronized (mLock) { return mNumProcessed; } }
+    /** Number of exceptions thrown by {@link Handler#process(Object)}. */
+    public long getNumErrors() { synchronized (mLock) { return mNumErrors; } }
+    /** Number of results handled by {@link Handler#onResult(Object, long)}. */
+    public long getNumResults() { synchronized (mLock) { return mNumResults; } }
+    /** Number of results replaced by a newer one before being handled. */
+    public long getNumResultsDropped() { synchronized (mLock) { return mNumResultsDropped; } }
+
+    /**
+     * Share of the offered frames dropped without inference, [0, 1].
+     */
+    public float getDropRate() {
+        synchronized (mLock) {
+            return mNumOffered == 0 ? 0.f : mNumDropped / (float)mNumOffered;
+        }
+    }
+
+    public long getMeanInferenceNanos() {
+        synchronized (mLock) {
+            return mNumProcessed == 0 ? 0 : mInferenceNanos / mNumProcessed;
+        }
+    }
+
+    public long getMeanLatencyNanos() {
+        synchronized (mLock) {
+            return mNumLatencies == 0 ? 0 : mLatencySum / mNumLatencies;
+        }
+    }
+
+    public long getMaxLatencyNanos() {
+        synchronized (mLock) {
+            return mLatencyMax;
+        }
+    }
+
+    /**
+     * End-to-end latency percentile over the last 1024 results.
+     * @param p Percentile, [0, 1].
+     */
+    public long getLatencyPercentileNanos(final float p) {
+        final long sorted[];
+        synchronized (mLock) {
+            sorted = Arrays.copyOf(mLatencies, mLatencyCount);
+        }
+        if (sorted.length == 0) {
+            return 0;
+        }
+        Arrays.sort(sorted);
+        return sorted[Math.max(0, Math.min(sorted.length - 1, (int)Math.ceil(p * sorted.length) - 1))];
+    }
+
+    public void resetStats() {
+        synchronized (mLock) {
+            mNumOffered = mNumDropped = mNumProcessed = mNumErrors = mNumResults = mNumResultsDropped = 0;
+            mInferenceNanos = 0;
+            mLatencyIndex = mLatencyCount = 0;
+            mLatencySum = mLatencyMax = mNumLatencies = 0;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("offered=%d, dropped=%d (%.1f%%), processed=%d, errors=%d, results=%d (dropped=%d), inference=%.2f millis, latency mean=%.2f p95=%.2f max=%.2f millis",
+                getNumOffered(), getNumDropped(), getDropRate() * 100.f, getNumProcessed(), getNumErrors(), getNumResults(), getNumResultsDropped(),
+                getMeanInferenceNanos() / 1e6, getMeanLatencyNanos() / 1e6, getLatencyPercentileNanos(0.95f) / 1e6, getMaxLatencyNanos() / 1e6);
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2016-2020 Doubango AI <https://www.doubango.org>
+ * License: For non-commercial use only
+ * Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+ * WebSite: https://www.doubango.org/webapps/micr/
+ */
+package org.doubango.ultimateMicr.Utils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Cheap guess of the MICR font from the glyph shapes, used to route a frame to a single-format engine.
+ *
+ * A CMC-7 glyph is made of 7 thin vertical bars while an E-13B glyph has 1 or 2 thick strokes per row,
+ * the character pitch being close to the text height for both fonts. Each row of the MICR band
+ * ({@link MicrBandDetector}) is binarized at mid-contrast and the short ink runs (strokes) are counted:
+ * the number of strokes per character pitch (text height) is ~1.0 for E-13B and ~2.5 for CMC-7 (1.01 and
+ * 2.55 on the 720p sample images).
+ * Blurry or low resolution CMC-7 lines merge the bars, which is why there is an uncertainty band.
+ *
+ * An instance reuses its internal buffers and must not be shared between threads.
+ */
+public class MicrGlyphClassifier {
+
+    /** The font couldn't be guessed. */
+    public static final int UNCERTAIN = 0;
+
+    private static final int MIN_ROW_CONTRAST = 48;
+
+    private final MicrBandDetector mBandDetector = new MicrBandDetector();
+    private float mE13bMaxStrokes = 1.7f;
+    private float mCmc7MinStrokes = 2.1f;
+    private int mMinTextHeight = 8;
+    private float mLastScore;
+
+    private int mRowRuns[] = new int[0];
+    private int mRowSpans[] = new int[0];
+
+    /**
+     * Strokes per character pitch below which the line is E-13B. Default: 1.7.
+     */
+    public MicrGlyphClassifier setE13bMaxStrokes(final float e13bMaxStrokes) {
+        if (e13bMaxStrokes <= 0.f) {
+            throw new IllegalArgumentException("e13bMaxStrokes must be > 0");
+        }
+        mE13bMaxStrokes = e13bMaxStrokes;
+        return this;
+    }
+
+    /**
+     * Strokes per character pitch above which the line is CMC-7. Default: 2.1.
+     */
+    public MicrGlyphClassifier setCmc7MinStrokes(final float cmc7MinStrokes) {
+        if (cmc7MinStrokes <= 0.f) {
+            throw new IllegalArgumentException("cmc7MinStrokes must be > 0");
+        }
+        mCmc7MinStrokes = cmc7MinStrokes;
+        return this;
+    }
+
+    /**
+     * Minimum text height (pixels). Smaller lines are too blurry to tell the CMC-7 bars apart. Default: 8.
+     */
+    public MicrGlyphClassifier setMinTextHeight(final int minTextHeight) {
+        if (minTextHeight < 1) {
+            throw new IllegalArgumentException("minTextHeight must be >= 1");
+        }
+        mMinTextHeight = minTextHeight;
+        return this;
+    }
+
+    /**
+     * Strokes per character pitch measured by the last call, 0 if there was no line.
+     */
+    public float getLastScore() { return mLastScore; }
+
+    /**
+     * Guesses the font of the MICR line, located using {@link MicrBandDetector}.
+     * @return {@link MicrResultJson#KLASS_E13B}, {@link MicrResultJson#KLASS_CMC7} or {@link #UNCERTAIN}.
+     */
+    public int classify(final MicrFrame frame) {
+        final MicrRoi band = mBandDetector.detect(frame);
+        if (band.isEmpty() || band.getBottom() - band.getTop() > frame.getHeight() / 4) { // No band or not a check
+            mLastScore = 0.f;
+            return UNCERTAIN;
+        }
+        return classify(frame, band);
+    }
+
+    /**
+     * Guesses the font of the MICR line within the band.
+     * @param band The band, in frame coordinates. Must be within the frame.
+     * @return {@link MicrResultJson#KLASS_E13B}, {@link MicrResultJson#KLASS_CMC7} or {@link #UNCERTAIN}.
+     */
+    public int classify(final MicrFrame frame, final MicrRoi band) {
+        mLastScore = 0.f;
+        final ByteBuffer luma = frame.getLumaPlane();
+        final int offset = frame.getLumaOffset();
+        final int pixelStride = frame.getLumaPixelStride();
+        final int rowStride = frame.getLumaRowStride();
+        final int left = band.getLeft();
+        final int right = band.getRight();
+        final int height = band.getBottom() - band.getTop();
+        if (right - left < 16 || height < mMinTextHeight) {
+            return UNCERTAIN;
+        }
+        // At most ~48 rows are visited, the ratio doesn't depend on the vertical sampling
+        final int rowStep = Math.max(1, height / 48);
+        final int numRows = height / rowStep;
+        if (mRowRuns.length < numRows) {
+            mRowRuns = new int[numRows];
+            mRowSpans = new int[numRows];
+        }
+        // The band is padded by ~1 text height on each side: longer runs are lines, borders or backgrounds
+        final int maxStroke = Math.max(2, height / 2);
+
+        int maxRuns = 0;
+        for (int row = 0; row < numRows; ++row) {
+            final int base = offset + ((band.getTop() + (row * rowStep)) * rowStride);
+            int min = 255;
+            int max = 0;
+            for (int x = left, index = base + (left * pixelStride); x < right; x += 2, index += (pixelStride << 1)) {
+                final int value = luma.get(index) & 0xFF;
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+            mRowRuns[row] = 0;
+            mRowSpans[row] = 0;
+            if (max - min < MIN_ROW_CONTRAST) {
+                continue;
+            }
+            // Binarization with hysteresis (+/-10% of the contrast) to ignore the noise on the edges
+            final int hysteresis = (max - min) / 10;
+            final int inkBelow = ((min + max) >> 1) - hysteresis;
+            final int paperAbove = ((min + max) >> 1) + hysteresis;
+            int runs = 0;
+            int first = -1;
+            int last = -1;
+            int runStart = -1;
+            for (int x = left, index = base + (left * pixelStride); x < right; ++x, index += pixelStride) {
+                final int value = luma.get(index) & 0xFF;
+                if (runStart < 0) {
+                    if (value < inkBelow) {
+                        runStart = x;
+                    }
+                }
+                else if (value > paperAbove) {
+                    if (x - runStart <= maxStroke) {
+                        ++runs;
+                        if (first < 0) {
+                            first = runStart;
+                        }
+                        last = x;
+                    }
+                    runStart = -1;
+                }
+            }
+            mRowRuns[row] = runs;
+            mRowSpans[row] = runs > 0 ? last - first : 0;
+            maxRuns = Math.max(maxRuns, runs);
+        }
+        if (maxRuns < 8) {
+            return UNCERTAIN;
+        }
+
+        // Text rows: at least half the strokes of the busiest row
+        int textRows = 0;
+        long runs = 0;
+        long spans = 0;
+        for (int row = 0; row < numRows; ++row) {
+            if (mRowRuns[row] * 2 >= maxRuns) {
+                ++textRows;
+                runs += mRowRuns[row];
+                spans += mRowSpans[row];
+            }
+        }
+        final int textHeight = textRows * rowStep;
+        if (textHeight < mMinTextHeight || spans < 4L * textHeight * textRows) {
+            return UNCERTAIN; // Too small or too short to be a MICR line
+        }
+        // (runs / textRows) strokes per row over (spans / textRows) / textHeight character pitches
+        mLastScore = (runs * textHeight) / (float)spans;
+        if (mLastScore <= mE13bMaxStrokes) {
+            return MicrResultJson.KLASS_E13B;
+        }
+        if (mLastScore >= mCmc7MinStrokes) {
+            return MicrResultJson.KLASS_CMC7;
+        }
+        return UNCERTAIN;
+    }
+}
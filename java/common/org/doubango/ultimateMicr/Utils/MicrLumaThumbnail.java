@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2016-2020 Doubango AI <https://www.doubango.org>
+ * License: For non-commercial use only
+ * Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+ * WebSite: https://www.doubango.org/webapps/micr/
+ */
+package org.doubango.ultimateMicr.Utils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Tiny grayscale thumbnail of a frame: mean luma of each cell of a GxG grid, computed on a
+ * subsampled set of pixels (at most 8x8 samples per cell). Works on all the image types (luma
+ * plane or green channel) and honors the strides. Used to detect scene changes cheaply.
+ */
+public final class MicrLumaThumbnail {
+
+    static final int SAMPLES_PER_CELL = 8;
+
+    private final int mGrid;
+    private final int mCells[];
+    private boolean mValid;
+
+    /**
+     * @param grid Number of cells per row and column (e.g. 8 for 8x8).
+     */
+    public MicrLumaThumbnail(final int grid) {
+        if (grid < 1) {
+            throw new IllegalArgumentException("grid must be >= 1");
+        }
+        mGrid = grid;
+        mCells = new int[grid * grid];
+    }
+
+    /**
+     * Computes the thumbnail of the frame, overwriting the previous one. Doesn't allocate.
+     * @return This thumbnail.
+     */
+    public MicrLumaThumbnail compute(final MicrFrame frame) {
+        final ByteBuffer luma = frame.getLumaPlane();
+        final int offset = frame.getLumaOffset();
+        final int pixelStride = frame.getLumaPixelStride();
+        final int rowStride = frame.getLumaRowStride();
+        final int width = frame.getWidth();
+        final int height = frame.getHeight();
+        for (int cy = 0; cy < mGrid; ++cy) {
+            final int y0 = (cy * height) / mGrid;
+            final int y1 = Math.max(y0 + 1, ((cy + 1) * height) / mGrid);
+            final int stepY = Math.max(1, (y1 - y0) / SAMPLES_PER_CELL);
+            for (int cx = 0; cx < mGrid; ++cx) {
+                final int x0 = (cx * width) / mGrid;
+                final int x1 = Math.max(x0 + 1, ((cx + 1) * width) / mGrid);
+                final int stepX = Math.max(1, (x1 - x0) / SAMPLES_PER_CELL);
+                int sum = 0;
+                int count = 0;
+                for (int y = y0; y < y1 && y < height; y += stepY) {
+                    final int row = offset + (y * rowStride);
+                    for (int x = x0; x < x1 && x < width; x += stepX) {
+                        sum += luma.get(row + (x * pixelStride)) & 0xff;
+                        ++count;
+                    }
+                }
+                mCells[(cy * mGrid) + cx] = count == 0 ? 0 : sum / count;
+            }
+        }
+        mValid = true;
+        return this;
+    }
+
+    /**
+     * Mean absolute difference between the cells, in luma levels [0, 255].
+     * Returns 255 if one of the thumbnails wasn't computed or the grids differ.
+     */
+    public float distance(final MicrLumaThumbnail other) {
+        if (!mValid || !other.mValid || other.mGrid != mGrid) {
+            return 255.f;
+        }
+        int sum = 0;
+        for (int i = 0; i < mCells.length; ++i) {
+            sum += Math.abs(mCells[i] - other.mCells[i]);
+        }
+        return sum / (float)mCells.length;
+    }
+
+    public MicrLumaThumbnail copyFrom(final MicrLumaThumbnail other) {
+        if (other.mGrid != mGrid) {
+            throw new IllegalArgumentException("Grid mismatch: " + other.mGrid + " != " + mGrid);
+        }
+        System.arraycopy(other.mCells, 0, mCells, 0, mCells.length);
+        mValid = other.mValid;
+        return this;
+    }
+
+    public void clear() {
+        mValid = false;
+    }
+
+    public boolean isValid() { return mValid; }
+    public int getGrid() { return mGrid; }
+
+    /**
+     * Mean luma of the cell (row-major index).
+     */
+    public int getCell(final int index) { return mCells[index]; }
+}
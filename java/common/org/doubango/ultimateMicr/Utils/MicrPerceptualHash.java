@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2016-2020 Doubango AI <https://www.doubango.org>
+ * License: For non-commercial use only
+ * Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+ * WebSite: https://www.doubango.org/webapps/micr/
+ */
+package org.doubango.ultimateMicr.Utils;
+
+import java.util.Arrays;
+
+/**
+ * 64-bit perceptual hash (DCT hash) of the luma plane: the frame is reduced to a 32x32 mean luma
+ * thumbnail ({@link MicrLumaThumbnail}, subsampled and stride aware), the 8x8 lowest frequencies of its
+ * DCT are kept and each bit tells whether a coefficient is above their median. Near-identical frames
+ * (sensor noise, small exposure changes) have hashes within a few bits, use {@link #distance(long, long)}.
+ *
+ * Doesn't allocate after construction. Not thread-safe.
+ */
+public final class MicrPerceptualHash {
+
+    private static final int SIZE = 32; // Thumbnail size
+    private static final int FREQS = 8; // Kept frequencies per axis
+
+    private static final float COSINES[] = new float[FREQS * SIZE];
+    static {
+        for (int u = 0; u < FREQS; ++u) {
+            for (int x = 0; x < SIZE; ++x) {
+                COSINES[(u * SIZE) + x] = (float)Math.cos(((2 * x + 1) * u * Math.PI) / (2 * SIZE));
+            }
+        }
+    }
+
+    private final MicrLumaThumbnail mThumbnail = new MicrLumaThumbnail(SIZE);
+    private final float mRows[] = new float[SIZE * FREQS];
+    private final float mCoefficients[] = new float[FREQS * FREQS];
+    private final float mSorted[] = new float[(FREQS * FREQS) - 1];
+
+    /**
+     * Computes the hash of the frame.
+     */
+    public long compute(final MicrFrame frame) {
+        mThumbnail.compute(frame);
+
+        // Separable DCT-II, only the low frequencies
+        for (int y = 0; y < SIZE; ++y) {
+            for (int u = 0; u < FREQS; ++u) {
+                float sum = 0.f;
+                for (int x = 0; x < SIZE; ++x) {
+                    sum += mThumbnail.getCell((y * SIZE) + x) * COSINES[(u * SIZE) + x];
+                }
+                mRows[(y * FREQS) + u] = sum;
+            }
+        }
+        for (int v = 0; v < FREQS; ++v) {
+            for (int u = 0; u < FREQS; ++u) {
+                float sum = 0.f;
+                for (int y = 0; y < SIZE; ++y) {
+                    sum += mRows[(y * FREQS) + u] * COSINES[(v * SIZE) + y];
+                }
+                mCoefficients[(v * FREQS) + u] = sum;
+            }
+        }
+
+        // Median of the AC coefficients (the DC term is the mean luma, it would dominate)
+        System.arraycopy(mCoefficients, 1, mSorted, 0, mSorted.length);
+        Arrays.sort(mSorted);
+        final float median = mSorted[mSorted.length >> 1];
+        long hash = 0;
+        for (int i = 0; i < mCoefficients.length; ++i) {
+            if (mCoefficients[i] > median) {
+                hash |= 1L << i;
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Hamming distance between two hashes, [0, 64].
+     */
+    public static int distance(final long hash1, final long hash2) {
+        return Long.bitCount(hash1 ^ hash2);
+    }
+}
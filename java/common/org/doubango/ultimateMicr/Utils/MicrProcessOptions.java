@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2016-2020 Doubango AI <https://www.doubango.org>
+ * License: For non-commercial use only
+ * Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+ * WebSite: https://www.doubango.org/webapps/micr/
+ */
+package org.doubango.ultimateMicr.Utils;
+
+/**
+ * Per-call options overriding the "roi", "format" and "min_score" entries of the JSON config passed to "init".
+ * Use with {@link MicrFrame#process(MicrProcessOptions)}.
+ *
+ * The ROI is applied as a zero-copy crop before calling the engine: pixels outside the ROI are never
+ * processed, which is where the time is saved. The engine's detectors are selected at "init" time and
+ * cannot be changed per call: "format" and "min_score" filter the returned zones and can only be
+ * narrower/stricter than the values used at init. To only pay for the detectors a request needs,
+ * initialize the engine with the narrowest format you can.
+ */
+public final class MicrProcessOptions {
+
+    public static final String FORMAT_E13B = "e13b";
+    public static final String FORMAT_CMC7 = "cmc7";
+    public static final String FORMAT_E13B_CMC7 = "e13b+cmc7";
+
+    private MicrRoi mRoi = MicrRoi.EMPTY;
+    private String mFormat = null;
+    private float mMinScore = 0.f;
+
+    /**
+     * ROI in frame coordinates. Default: {@link MicrRoi#EMPTY} (full frame).
+     */
+    public MicrProcessOptions setRoi(final MicrRoi roi) {
+        mRoi = roi == null ? MicrRoi.EMPTY : roi;
+        return this;
+    }
+
+    /**
+     * Formats to keep: "e13b", "cmc7" or "e13b+cmc7". Default: null (keep whatever the engine returns).
+     */
+    public MicrProcessOptions setFormat(final String format) {
+        if (format != null && klassMask(format) == 0) {
+            throw new IllegalArgumentException("Invalid format: " + format);
+        }
+        mFormat = format;
+        return this;
+    }
+
+    /**
+     * Minimum recognition score within ]0.f, 1.f]. Default: 0.f (keep whatever the engine returns).
+     */
+    public MicrProcessOptions setMinScore(final float minScore) {
+        if (minScore < 0.f || minScore > 1.f) {
+            throw new IllegalArgumentException("min_score must be within [0.f, 1.f]: " + minScore);
+        }
+        mMinScore = minScore;
+        return this;
+    }
+
+    public MicrRoi getRoi() { return mRoi; }
+    public String getFormat() { return mFormat; }
+    public float getMinScore() { return mMinScore; }
+
+    /**
+     * Whether the zones returned by the engine have to be filtered.
+     */
+    public boolean hasZoneFilter() {
+        return (mFormat != null && !FORMAT_E13B_CMC7.equals(mFormat)) || mMinScore > 0.f;
+    }
+
+    /**
+     * Bitmask of {@link MicrResultJson#KLASS_E13B} and {@link MicrResultJson#KLASS_CMC7} values to keep.
+     */
+    public int getKlassMask() {
+        return mFormat == null ? (MicrResultJson.KLASS_E13B | MicrResultJson.KLASS_CMC7) : klassMask(mFormat);
+    }
+
+    static int klassMask(final String format) {
+        if (FORMAT_E13B.equals(format)) {
+            return MicrResultJson.KLASS_E13B;
+        }
+        if (FORMAT_CMC7.equals(format)) {
+            return MicrResultJson.KLASS_CMC7;
+        }
+        if (FORMAT_E13B_CMC7.equals(format)) {
+            return MicrResultJson.KLASS_E13B | MicrResultJson.KLASS_CMC7;
+        }
+        return 0;
+    }
+
+    @Override
+    public String toString() {
+        return "roi: " + mRoi + ", format: " + mFormat + ", min_score: " + mMinScore;
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2016-2020 Doubango AI <https://www.doubango.org>
+ * License: For non-commercial use only
+ * Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+ * WebSite: https://www.doubango.org/webapps/micr/
+ */
+package org.doubango.ultimateMicr.Utils;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Cheap pre-filter rejecting the blurry and badly exposed frames before the inference (video streams).
+ *
+ * The scores are computed on the luma plane (green channel for the RGB formats), honoring the strides,
+ * on a subsampled grid inside the ROI: sharpness is the variance of the 4-neighbor Laplacian and exposure
+ * is the mean luma plus the shares of dark and saturated samples. The sharpness threshold is adaptive:
+ * a frame is rejected when its sharpness is below {@link #setSharpnessRatio(float)} times the
+ * {@link #setSharpnessPercentile(float)} of the last frames (and always below {@link #setMinSharpness(float)}),
+ * which follows the camera, the lighting and the document. After {@link #setMaxConsecutiveSkips(int)}
+ * rejections in a row a frame is accepted anyway to never starve the engine.
+ *
+ * Plain Java, no engine call, doesn't allocate. Not thread-safe.
+ */
+public final class MicrQualityGate {
+
+    private int mMaxSamples = 96; // per axis
+    private float mMinSharpness = 20.f;
+    private float mSharpnessRatio = 0.6f;
+    private float mSharpnessPercentile = 0.75f;
+    private int mMinMean = 40;
+    private int mMaxMean = 220;
+    private float mMaxDarkFraction = 0.5f;
+    private float mMaxBrightFraction = 0.2f;
+    private int mMaxConsecutiveSkips = 15;
+
+    private static final int DARK_LEVEL = 16;
+    private static final int BRIGHT_LEVEL = 245;
+    private static final int MIN_HISTORY = 5; // Frames before the adaptive threshold kicks in
+
+    private final float mHistory[];
+    private final float mSorted[];
+    private int mHistoryCount;
+    private int mHistoryIndex;
+
+    private float mSharpness;
+    private float mSharpnessThreshold;
+    private float mMean;
+    private float mDarkFraction;
+    private float mBrightFraction;
+    private int mConsecutiveSkips;
+    private long mNumSubmitted;
+    private long mNumSkippedBlur;
+    private long mNumSkippedExposure;
+    private long mNumForced;
+
+    public MicrQualityGate() {
+        this(30);
+    }
+
+    /**
+     * @param history Number of recent frames used to compute the adaptive sharpness threshold.
+     */
+    public MicrQualityGate(final int history) {
+        if (history < 1) {
+            throw new IllegalArgumentException("history must be >= 1");
+        }
+        mHistory = new float[history];
+        mSorted = new float[history];
+    }
+
+    /**
+     * Maximum number of samples per axis inside the ROI. Default: 96.
+     */
+    public MicrQualityGate setMaxSamples(final int maxSamples) {
+        if (maxSamples < 3) {
+            throw new IllegalArgumentException("maxSamples must be >= 3");
+        }
+        mMaxSamples = maxSamples;
+        return this;
+    }
+
+    /**
+     * Absolute sharpness (variance of the Laplacian) below which the frames are always rejected. Default: 20.
+     */
+    public MicrQualityGate setMinSharpness(final float minSharpness) {
+        if (minSharpness < 0.f) {
+            throw new IllegalArgumentException("minSharpness must be >= 0");
+        }
+        mMinSharpness = minSharpness;
+        return this;
+    }
+
+    /**
+     * Share of the recent sharpness (see {@link #setSharpnessPercentile(float)}) a frame must reach. Default: 0.6.
+     */
+    public MicrQualityGate setSharpnessRatio(final float sharpnessRatio) {
+        if (sharpnessRatio < 0.f) {
+            throw new IllegalArgumentException("sharpnessRatio must be >= 0");
+        }
+        mSharpnessRatio = sharpnessRatio;
+        return this;
+    }
+
+    /**
+     * Percentile, [0, 1], of the recent sharpness scores used as reference. Default: 0.75.
+     */
+    public MicrQualityGate setSharpnessPercentile(final float sharpnessPercentile) {
+        if (sharpnessPercentile < 0.f || sharpnessPercentile > 1.f) {
+            throw new IllegalArgumentException("sharpnessPercentile must be within [0, 1]");
+        }
+        mSharpnessPercentile = sharpnessPercentile;
+        return this;
+    }
+
+    /**
+     * Accepted mean luma range. Default: [40, 220].
+     */
+    public MicrQualityGate setMeanRange(final int minMean, final int maxMean) {
+        if (minMean < 0 || maxMean > 255 || minMean > maxMean) {
+            throw new IllegalArgumentException("Invalid mean range: [" + minMean + ", " + maxMean + "]");
+        }
+        mMinMean = minMean;
+        mMaxMean = maxMean;
+        return this;
+    }
+
+    /**
+     * Maximum shares, [0, 1], of dark (<= 16) and saturated (>= 245) samples. Default: 0.5 and 0.2.
+     */
+    public MicrQualityGate setMaxClipping(final float maxDarkFraction, final float maxBrightFraction) {
+        if (maxDarkFraction < 0.f || maxDarkFraction > 1.f || maxBrightFraction < 0.f || maxBrightFraction > 1.f) {
+            throw new IllegalArgumentException("Clipping fractions must be within [0, 1]");
+        }
+        mMaxDarkFraction = maxDarkFraction;
+        mMaxBrightFraction = maxBrightFraction;
+        return this;
+    }
+
+    /**
+     * Number of rejections in a row after which the next frame is accepted anyway. Default: 15.
+     */
+    public MicrQualityGate setMaxConsecutiveSkips(final int maxConsecutiveSkips) {
+        if (maxConsecutiveSkips < 1) {
+            throw new IllegalArgumentException("maxConsecutiveSkips must be >= 1");
+        }
+        mMaxConsecutiveSkips = maxConsecutiveSkips;
+        return this;
+    }
+
+    /**
+     * Scores the frame and decides whether to submit it to the engine.
+     * @param frame The frame.
+     * @param roi The region to score in the frame's coordinates, {@link MicrRoi#EMPTY} for the full frame.
+     * @return true if the frame must be processed.
+     */
+    public boolean accept(final MicrFrame frame, final MicrRoi roi) {
+        score(frame, roi);
+
+        // Adaptive threshold, from the frames seen before this one
+        mSharpnessThreshold = mMinSharpness;
+        if (mHistoryCount >= MIN_HISTORY) {
+            System.arraycopy(mHistory, 0, mSorted, 0, mHistoryCount);
+            Arrays.sort(mSorted, 0, mHistoryCount);
+            final float reference = mSorted[Math.min(mHistoryCount - 1, (int)(mSharpnessPercentile * mHistoryCount))];
+            mSharpnessThreshold = Math.max(mMinSharpness, reference * mSharpnessRatio);
+        }
+        mHistory[mHistoryIndex] = mSharpness;
+        mHistoryIndex = (mHistoryIndex + 1) % mHistory.length;
+        mHistoryCount = Math.min(mHistoryCount + 1, mHistory.length);
+
+        final boolean exposed = mMean >= mMinMean && mMean <= mMaxMean
+                && mDarkFraction <= mMaxDarkFraction && mBrightFraction <= mMaxBrightFraction;
+        final boolean sharp = mSharpness >= mSharpnessThreshold;
+        if ((exposed && sharp) || mConsecutiveSkips >= mMaxConsecutiveSkips) {
+            if (!(exposed && sharp)) {
+                ++mNumForced;
+            }
+            mConsecutiveSkips = 0;
+            ++mNumSubmitted;
+            return true;
+        }
+        ++mConsecutiveSkips;
+        if (!exposed) {
+            ++mNumSkippedExposure;
+        }
+        else {
+            ++mNumSkippedBlur;
+        }
+        return false;
+    }
+
+    /**
+     * Computes the scores without deciding (see the getters).
+     */
+    public void score(final MicrFrame frame, final MicrRoi roi) {
+        final MicrRoi region = roi.isEmpty() ? MicrRoi.EMPTY : roi.clip(frame.getWidth(), frame.getHeight());
+        final int left = region.isEmpty() ? 0 : region.getLeft();
+        final int top = region.isEmpty() ? 0 : region.getTop();
+        final int right = region.isEmpty() ? frame.getWidth() : region.getRight();
+        final int bottom = region.isEmpty() ? frame.getHeight() : region.getBottom();
+        final ByteBuffer luma = frame.getLumaPlane();
+        final int offset = frame.getLumaOffset();
+        final int pixelStride = frame.getLumaPixelStride();
+        final int rowStride = frame.getLumaRowStride();
+
+        // Samples on a grid, the Laplacian uses the direct neighbors (full resolution) so the edges aren't missed
+        final int stepX = Math.max(1, (right - left) / mMaxSamples);
+        final int stepY = Math.max(1, (bottom - top) / mMaxSamples);
+        long sum = 0, count = 0, dark = 0, bright = 0;
+        double lapSum = 0.0, lapSum2 = 0.0;
+        long lapCount = 0;
+        for (int y = top; y < bottom; y += stepY) {
+            final int row = offset + (y * rowStride);
+            final boolean inner = y > 0 && y < frame.getHeight() - 1;
+            for (int x = left; x < right; x += stepX) {
+                final int index = row + (x * pixelStride);
+                final int c = luma.get(index) & 0xff;
+                sum += c;
+                ++count;
+                if (c <= DARK_LEVEL) {
+                    ++dark;
+                }
+                else if (c >= BRIGHT_LEVEL) {
+                    ++bright;
+                }
+                if (inner && x > 0 && x < frame.getWidth() - 1) {
+                    final int laplacian = (c << 2)
+                            - (luma.get(index - pixelStride) & 0xff) - (luma.get(index + pixelStride) & 0xff)
+                            - (luma.get(index - rowStride) & 0xff) - (luma.get(index + rowStride) & 0xff);
+                    lapSum += laplacian;
+                    lapSum2 += laplacian * laplacian;
+                    ++lapCount;
+                }
+            }
+        }
+        mMean = count == 0 ? 0.f : sum / (float)count;
+        mDarkFraction = count == 0 ? 0.f : dark / (float)count;
+        mBrightFraction = count == 0 ? 0.f : bright / (float)count;
+        if (lapCount == 0) {
+            mSharpness = 0.f;
+        }
+        else {
+            final double mean = lapSum / lapCount;
+            mSharpness = (float)Math.max(0.0, (lapSum2 / lapCount) - (mean * mean));
+        }
+    }
+
+    /**
+     * Forgets the sharpness history (e.g. camera switched). The counters are kept.
+     */
+    public void reset() {
+        mHistoryCount = 0;
+        mHistoryIndex = 0;
+        mConsecutiveSkips = 0;
+    }
+
+    /** Variance of the Laplacian of the last scored frame. */
+    public float getSharpness() { return mSharpness; }
+    /** Sharpness threshold used for the last frame. */
+    public float getSharpnessThreshold() { return mSharpnessThreshold; }
+    /** Mean luma of the last scored frame, [0, 255]. */
+    public float getMean() { return mMean; }
+    public float getDarkFraction() { return mDarkFraction; }
+    public float getBrightFraction() { return mBrightFraction; }
+
+    public long getNumSubmitted() { return mNumSubmitted; }
+    public long getNumSkipped() { return mNumSkippedBlur + mNumSkippedExposure; }
+    public long getNumSkippedBlur() { return mNumSkippedBlur; }
+    public long getNumSkippedExposure() { return mNumSkippedExposure; }
+    /** Number of frames submitted despite low scores, see {@link #setMaxConsecutiveSkips(int)}. */
+    public long getNumForced() { return mNumForced; }
+
+    @Override
+    public String toString() {
+        return "submitted=" + mNumSubmitted + ", skipped(blur)=" + mNumSkippedBlur + ", skipped(exposure)=" + mNumSkippedExposure
+                + ", forced=" + mNumForced + ", sharpness=" + mSharpness + "/" + mSharpnessThreshold + ", mean=" + mMean;
+    }
+}
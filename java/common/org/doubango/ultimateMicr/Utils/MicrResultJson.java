@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2016-2020 Doubango AI <https://www.doubango.org>
+ * License: For non-commercial use only
+ * Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+ * WebSite: https://www.doubango.org/webapps/micr/
+ */
+package org.doubango.ultimateMicr.Utils;
+
+/**
+ * Helpers to patch the JSON documents returned by the engine without building a full object tree.
+ * Plain Java (no org.json) to work on both Android and desktop JVMs.
+ */
+public final class MicrResultJson {
+
+    public static final int KLASS_E13B = 1; // Same as C++ code "kUltMicrDetectorResultKlassE13B"
+    public static final int KLASS_CMC7 = 2; // Same as C++ code "kUltMicrDetectorResultKlassCMC7"
+
+    static final String KEY_WARPED_BOX = "\"warpedBox\"";
+    static final String KEY_ZONES = "\"zones\"";
+    static final String KEY_KLASS = "\"klass\"";
+    static final String KEY_CONFIDENCES = "\"confidences\"";
+
+    private static final char HEX_DIGITS[] = "0123456789abcdef".toCharArray();
+
+    private MicrResultJson() { }
+
+    /**
+     * Translates all "warpedBox" coordinates. Used to map the result of a cropped frame
+     * back to the coordinates of the full frame.
+     * @param json The JSON result returned by the engine.
+     * @param dx Value to add to the x-coordinates (even indices).
+     * @param dy Value to add to the y-coordinates (odd indices).
+     * @return The patched JSON or the same string if there is nothing to translate.
+     */
+    public static String translateWarpedBoxes(final String json, final float dx, final float dy) {
+        if (json == null || (dx == 0.f && dy == 0.f) || json.indexOf(KEY_WARPED_BOX) < 0) {
+            return json;
+        }
+        final StringBuilder builder = new StringBuilder(json.length() + 64);
+        int index = 0;
+        int keyIndex;
+        while ((keyIndex = json.indexOf(KEY_WARPED_BOX, index)) >= 0) {
+            final int begin = json.indexOf('[', keyIndex);
+            final int end = begin < 0 ? -1 : json.indexOf(']', begin);
+            if (end < 0) {
+                break; // Malformed, copy as is
+            }
+            builder.append(json, index, begin + 1);
+            int start = begin + 1;
+            int coord = 0;
+            while (start < end) {
+                int comma = json.indexOf(',', start);
+                if (comma < 0 || comma > end) {
+                    comma = end;
+                }
+                final float value = Float.parseFloat(json.substring(start, comma).trim());
+                if (coord > 0) {
+                    builder.append(',');
+                }
+                appendNumber(builder, value + (((coord & 1) == 0) ? dx : dy));
+                ++coord;
+                start = comma + 1;
+            }
+            builder.append(']');
+            index = end + 1;
+        }
+        builder.append(json, index, json.length());
+        return builder.toString();
+    }
+
+    /**
+     * Removes the zones not matching the klass mask or with a recognition score below the minimum.
+     * @param json The JSON result returned by the engine.
+     * @param klassMask Bitmask of {@link #KLASS_E13B} and {@link #KLASS_CMC7} values to keep.
+     * @param minScore Minimum recognition score within [0.f, 1.f]. The recognition confidence is
+     *                 the first element of the "confidences" array, in percent.
+     * @return The patched JSON or the same string if all zones are kept.
+     */
+    public static String filterZones(final String json, final int klassMask, final float minScore) {
+        final int zonesBegin = zonesArrayBegin(json);
+        if (zonesBegin < 0) {
+            return json;
+        }
+        final int zonesEnd = matchingBracket(json, zonesBegin);
+        if (zonesEnd < 0) {
+            return json; // Malformed, return as is
+        }
+        final StringBuilder kept = new StringBuilder(zonesEnd - zonesBegin + 1);
+        boolean removed = false;
+        int index = zonesBegin + 1;
+        while ((index = json.indexOf('{', index)) >= 0 && index < zonesEnd) {
+            final int end = matchingBracket(json, index);
+            if (end < 0) {
+                return json;
+            }
+            final int klass = (int)readNumber(json, index, end, KEY_KLASS);
+            final float recognition = readNumber(json, index, end, KEY_CONFIDENCES);
+            if ((klass & klassMask) != 0 && (Float.isNaN(recognition) || recognition >= minScore * 100.f)) {
+                if (kept.length() > 0) {
+                    kept.append(',');
+                }
+                kept.append(json, index, end + 1);
+            }
+            else {
+                removed = true;
+            }
+            index = end + 1;
+        }
+        if (!removed) {
+            return json;
+        }
+        return json.substring(0, zonesBegin + 1) + kept + json.substring(zonesEnd);
+    }
+
+    /**
+     * Adds a string member at the beginning of the root object (e.g. to tag a result with the configuration used).
+     * The key must not already exist.
+     * @param json The JSON result returned by the engine.
+     * @param key The member name, not escaped.
+     * @param value The value, escaped.
+     * @return The patched JSON or the same string if it's not an object.
+     */
+    public static String addString(final String json, final String key, final String value) {
+        final int begin = json == null ? -1 : json.indexOf('{');
+        if (begin < 0) {
+            return json;
+        }
+        final StringBuilder builder = new StringBuilder(json.length() + key.length() + value.length() + 8);
+        builder.append(json, 0, begin + 1).append('"');
+        appendEscaped(builder, key);
+        builder.append("\":\"");
+        appendEscaped(builder, value);
+        builder.append('"');
+        int next = begin + 1;
+        while (next < json.length() && Character.isWhitespace(json.charAt(next))) {
+            ++next;
+        }
+        if (next < json.length() && json.charAt(next) != '}') {
+            builder.append(',');
+        }
+        builder.append(json, begin + 1, json.length());
+        return builder.toString();
+    }
+
+    /**
+     * Appends the string escaped for a JSON string literal: quote, backslash and the control characters (U+0000
+     * to U+001F, as unicode escapes).
+     */
+    private static void appendEscaped(final StringBuilder builder, final String value) {
+        for (int i = 0; i < value.length(); ++i) {
+            final char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                builder.append('\\').append(c);
+            }
+            else if (c < 0x20) {
+                builder.append("\\u00").append(HEX_DIGITS[c >> 4]).append(HEX_DIGITS[c & 0xF]);
+            }
+            else {
+                builder.append(c);
+            }
+        }
+    }
+
+    /**
+     * Counts the zones without parsing them.
+     * @param json The JSON result returned by the engine.
+     * @return The number of zones.
+     */
+    public static int countZones(final String json) {
+        final int zonesBegin = zonesArrayBegin(json);
+        if (zonesBegin < 0) {
+            return 0;
+        }
+        int count = 0;
+        int index = zonesBegin + 1;
+        while (index < json.length()) {
+            final char c = json.charAt(index);
+            if (c == ']') {
+                break;
+            }
+            if (c == '{') {
+                final int end = matchingBracket(json, index);
+                if (end < 0) {
+                    break;
+                }
+                ++count;
+                index = end;
+            }
+            ++index;
+        }
+        return count;
+    }
+
+    /**
+     * Index of the '[' opening the "zones" array or -1.
+     */
+    static int zonesArrayBegin(final String json) {
+        if (json == null) {
+            return -1;
+        }
+        final int key = json.indexOf(KEY_ZONES);
+        if (key < 0) {
+            return -1;
+        }
+        int index = key + KEY_ZONES.length();
+        while (index < json.length() && (json.charAt(index) == ':' || Character.isWhitespace(json.charAt(index)))) {
+            ++index;
+        }
+        return (index < json.length() && json.charAt(index) == '[') ? index : -1;
+    }
+
+    /**
+     * Index of the bracket closing the one at "open". Skips string literals. Returns -1 if not found.
+     */
+    static int matchingBracket(final String json, final int open) {
+        int depth = 0;
+        boolean inString = false;
+        for (int i = open; i < json.length(); ++i) {
+            final char c = json.charAt(i);
+            if (inString) {
+                if (c == '\\') {
+                    ++i;
+                }
+                else if (c == '"') {
+                    inString = false;
+                }
+            }
+            else if (c == '"') {
+                inString = true;
+            }
+            else if (c == '{' || c == '[') {
+                ++depth;
+            }
+            else if (c == '}' || c == ']') {
+                if (--depth == 0) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Reads the number following the key (first element if the value is an array) within [begin, end].
+     * The key is looked up as a direct member of the object: nested objects are skipped.
+     * Returns NaN if not found.
+     */
+    static float readNumber(final String json, final int begin, final int end, final String key) {
+        int index = begin + 1;
+        while (index < end) {
+            final char c = json.charAt(index);
+            if (c == '{' || c == '[') {
+                index = matchingBracket(json, index);
+                if (index < 0) {
+                    return Float.NaN;
+                }
+            }
+            else if (c == '"') {
+                if (json.startsWith(key, index)) {
+                    int start = index + key.length();
+                    while (start < end && (json.charAt(start) == ':' || json.charAt(start) == '[' || Character.isWhitespace(json.charAt(start)))) {
+                        ++start;
+                    }
+                    int stop = start;
+                    while (stop < end && "+-.eE0123456789".indexOf(json.charAt(stop)) >= 0) {
+                        ++stop;
+                    }
+                    return stop > start ? Float.parseFloat(json.substring(start, stop)) : Float.NaN;
+                }
+                index = matchingQuote(json, index);
+                if (index < 0) {
+                    return Float.NaN;
+                }
+            }
+            ++index;
+        }
+        return Float.NaN;
+    }
+
+    static int matchingQuote(final String json, final int open) {
+        for (int i = open + 1; i < json.length(); ++i) {
+            final char c = json.charAt(i);
+            if (c == '\\') {
+                ++i;
+            }
+            else if (c == '"') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    static void appendNumber(final StringBuilder builder, final float value) {
+        if (value == (int)value) {
+            builder.append((int)value);
+        }
+        else {
+            builder.append(value);
+        }
+    }
+}
@@ -0,0 +1,485 @@
+/*
+ * Copyright (C) 2016-2020 Doubango AI <https://www.doubango.org>
+ * License: For non-commercial use only
+ * Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+ * WebSite: https://www.doubango.org/webapps/micr/
+ */
+package org.doubango.ultimateMicr.Utils;
+
+/**
+ * Streaming parser for the JSON result returned by the engine. No object tree is built: the numbers
+ * are parsed in place, the strings are kept as offsets and the zones are pooled ({@link MicrZone}).
+ * Once the pool is large enough, parsing doesn't allocate.
+ *
+ * Parsing is lazy: {@link #parse(String)} only reads the top-level members, the zones are parsed on
+ * the first call to {@link #getNumZones()} or {@link #getZone(int)}.
+ * Plain Java (no org.json) to work on both Android and desktop JVMs. Not thread-safe.
+ */
+public final class MicrResultParser {
+
+    private static final double POW10[] = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private String mJson;
+    private int mPos;
+    private int mEnd;
+    private long mFrameId;
+    private double mDuration;
+    private int mZonesBegin;
+    private boolean mZonesParsed;
+    private boolean mMalformed;
+    private MicrZone mZones[] = new MicrZone[0];
+    private int mNumZones;
+
+    /**
+     * Parses the top-level members of the document. The previous zones are invalidated.
+     * @param json The JSON result returned by the engine. Null or empty is accepted (no zone).
+     * @return This parser.
+     */
+    public MicrResultParser parse(final String json) {
+        mJson = json;
+        mPos = 0;
+        mEnd = json == null ? 0 : json.length();
+        mFrameId = 0;
+        mDuration = 0;
+        mZonesBegin = -1;
+        mZonesParsed = false;
+        mMalformed = false;
+        mNumZones = 0;
+        if (mEnd == 0) {
+            return this;
+        }
+        try {
+            skipSpaces();
+            expect('{');
+            skipSpaces();
+            if (!consume('}')) {
+                do {
+                    skipSpaces();
+                    final int keyBegin = readString();
+                    final int keyEnd = mPos - 1;
+                    skipSpaces();
+                    expect(':');
+                    skipSpaces();
+                    if (keyEquals(keyBegin, keyEnd, "frame_id")) {
+                        mFrameId = (long)readNumber();
+                    }
+                    else if (keyEquals(keyBegin, keyEnd, "duration")) {
+                        mDuration = readNumber();
+                    }
+                    else if (keyEquals(keyBegin, keyEnd, "zones")) {
+                        mZonesBegin = mPos;
+                        skipValue();
+                    }
+                    else {
+                        skipValue();
+                    }
+                    skipSpaces();
+                } while (consume(','));
+                expect('}');
+            }
+        }
+        catch (final IllegalArgumentException e) {
+            mMalformed = true;
+        }
+        return this;
+    }
+
+    /**
+     * The "frame_id" member or 0 if missing.
+     */
+    public long getFrameId() { return mFrameId; }
+
+    /**
+     * The "duration" member (millis) or 0 if missing.
+     */
+    public double getDuration() { return mDuration; }
+
+    /**
+     * Whether the document (or the zones once parsed) is not valid JSON. What could be parsed
+     * before the error is kept.
+     */
+    public boolean isMalformed() {
+        ensureZones();
+        return mMalformed;
+    }
+
+    public int getNumZones() {
+        ensureZones();
+        return mNumZones;
+    }
+
+    /**
+     * The zone at index. Valid until the next call to {@link #parse(String)}.
+     */
+    public MicrZone getZone(final int index) {
+        ensureZones();
+        if (index < 0 || index >= mNumZones) {
+            throw new IndexOutOfBoundsException("Zone index: " + index + ", count: " + mNumZones);
+        }
+        return mZones[index];
+    }
+
+    private void ensureZones() {
+        if (mZonesParsed) {
+            return;
+        }
+        mZonesParsed = true;
+        if (mZonesBegin < 0) {
+            return;
+        }
+        mPos = mZonesBegin;
+        try {
+            if (consumeNull()) {
+                return;
+            }
+            expect('[');
+            skipSpaces();
+            if (consume(']')) {
+                return;
+            }
+            do {
+                skipSpaces();
+                readZone(nextZone());
+                skipSpaces();
+            } while (consume(','));
+            expect(']');
+        }
+        catch (final IllegalArgumentException e) {
+            mMalformed = true;
+        }
+    }
+
+    private MicrZone nextZone() {
+        if (mNumZones == mZones.length) {
+            final MicrZone zones[] = new MicrZone[Math.max(4, mZones.length << 1)];
+            System.arraycopy(mZones, 0, zones, 0, mZones.length);
+            for (int i = mZones.length; i < zones.length; ++i) {
+                zones[i] = new MicrZone();
+            }
+            mZones = zones;
+        }
+        final MicrZone zone = mZones[mNumZones++];
+        zone.reset(mJson);
+        return zone;
+    }
+
+    private void readZone(final MicrZone zone) {
+        expect('{');
+        skipSpaces();
+        if (consume('}')) {
+            return;
+        }
+        do {
+            skipSpaces();
+            final int keyBegin = readString();
+            final int keyEnd = mPos - 1;
+            skipSpaces();
+            expect(':');
+            skipSpaces();
+            if (keyEquals(keyBegin, keyEnd, "warpedBox")) {
+                readNumbers(zone.mWarpedBox);
+            }
+            else if (keyEquals(keyBegin, keyEnd, "confidences")) {
+                expect('[');
+                skipSpaces();
+                for (int i = 0; !consume(']'); ++i) {
+                    if (i > 0) {
+                        expect(',');
+                        skipSpaces();
+                    }
+                    final float value = (float)readNumber();
+                    if (i == 0) {
+                        zone.mRecognitionConfidence = value;
+                    }
+                    else if (i == 1) {
+                        zone.mDetectionConfidence = value;
+                    }
+                    skipSpaces();
+                }
+            }
+            else if (keyEquals(keyBegin, keyEnd, "klass")) {
+                zone.mKlass = (int)readNumber();
+            }
+            else if (keyEquals(keyBegin, keyEnd, "skew")) {
+                zone.mSkew = (float)readNumber();
+            }
+            else if (keyEquals(keyBegin, keyEnd, "text")) {
+                zone.mTextBegin = readString();
+                zone.mTextEnd = mPos - 1;
+            }
+            else if (keyEquals(keyBegin, keyEnd, "description")) {
+                zone.mDescriptionBegin = readString();
+                zone.mDescriptionEnd = mPos - 1;
+            }
+            else if (keyEquals(keyBegin, keyEnd, "fields")) {
+                readFields(zone);
+            }
+            else {
+                skipValue();
+            }
+            skipSpaces();
+        } while (consume(','));
+        expect('}');
+    }
+
+    /**
+     * Array of objects, each with one or more "name": "value" members.
+     */
+    private void readFields(final MicrZone zone) {
+        if (consumeNull()) {
+            return;
+        }
+        expect('[');
+        skipSpaces();
+        if (consume(']')) {
+            return;
+        }
+        do {
+            skipSpaces();
+            expect('{');
+            skipSpaces();
+            if (!consume('}')) {
+                do {
+                    skipSpaces();
+                    final int nameBegin = readString();
+                    final int nameEnd = mPos - 1;
+                    skipSpaces();
+                    expect(':');
+                    skipSpaces();
+                    if (peek() == '"') {
+                        final int valueBegin = readString();
+                        zone.addField(nameBegin, nameEnd, valueBegin, mPos - 1);
+                    }
+                    else {
+                        final int valueBegin = mPos;
+                        skipValue();
+                        zone.addField(nameBegin, nameEnd, valueBegin, mPos);
+                    }
+                    skipSpaces();
+                } while (consume(','));
+                expect('}');
+            }
+            skipSpaces();
+        } while (consume(','));
+        expect(']');
+    }
+
+    private void readNumbers(final float values[]) {
+        expect('[');
+        skipSpaces();
+        for (int i = 0; !consume(']'); ++i) {
+            if (i > 0) {
+                expect(',');
+                skipSpaces();
+            }
+            final double value = readNumber();
+            if (i < values.length) {
+                values[i] = (float)value;
+            }
+            skipSpaces();
+        }
+    }
+
+    /**
+     * Reads a string and returns the index of its first char. mPos is moved after the closing quote.
+     */
+    private int readString() {
+        expect('"');
+        final int begin = mPos;
+        while (mPos < mEnd) {
+            final char c = mJson.charAt(mPos++);
+            if (c == '"') {
+                return begin;
+            }
+            if (c == '\\') {
+                ++mPos;
+            }
+        }
+        throw new IllegalArgumentException("Unterminated string");
+    }
+
+    /**
+     * Reads a number without allocating. "null" is read as NaN.
+     */
+    private double readNumber() {
+        if (consumeNull()) {
+            return Double.NaN;
+        }
+        boolean negative = false;
+        if (mPos < mEnd && (mJson.charAt(mPos) == '-' || mJson.charAt(mPos) == '+')) {
+            negative = mJson.charAt(mPos++) == '-';
+        }
+        long mantissa = 0;
+        int exponent = 0;
+        int digits = 0;
+        char c;
+        while (mPos < mEnd && (c = mJson.charAt(mPos)) >= '0' && c <= '9') {
+            if (mantissa < 100000000000000000L) {
+                mantissa = mantissa * 10 + (c - '0');
+            }
+            else {
+                ++exponent;
+            }
+            ++digits;
+            ++mPos;
+        }
+        if (mPos < mEnd && mJson.charAt(mPos) == '.') {
+            ++mPos;
+            while (mPos < mEnd && (c = mJson.charAt(mPos)) >= '0' && c <= '9') {
+                if (mantissa < 100000000000000000L) {
+                    mantissa = mantissa * 10 + (c - '0');
+                    --exponent;
+                }
+                ++digits;
+                ++mPos;
+            }
+        }
+        if (digits == 0) {
+            throw new IllegalArgumentException("Number expected at " + mPos);
+        }
+        if (mPos < mEnd && ((c = mJson.charAt(mPos)) == 'e' || c == 'E')) {
+            ++mPos;
+            boolean negativeExponent = false;
+            if (mPos < mEnd && ((c = mJson.charAt(mPos)) == '-' || c == '+')) {
+                negativeExponent = c == '-';
+                ++mPos;
+            }
+            int value = 0;
+            while (mPos < mEnd && (c = mJson.charAt(mPos)) >= '0' && c <= '9') {
+                value = Math.min(value * 10 + (c - '0'), 1000);
+                ++mPos;
+            }
+            exponent += negativeExponent ? -value : value;
+        }
+        double result = mantissa;
+        if (exponent < 0) {
+            result = (-exponent < POW10.length) ? result / POW10[-exponent] : result / Math.pow(10, -exponent);
+        }
+        else if (exponent > 0) {
+            result = (exponent < POW10.length) ? result * POW10[exponent] : result * Math.pow(10, exponent);
+        }
+        return negative ? -result : result;
+    }
+
+    private void skipValue() {
+        final char c = peek();
+        if (c == '"') {
+            readString();
+        }
+        else if (c == '{' || c == '[') {
+            int depth = 0;
+            while (mPos < mEnd) {
+                final char d = mJson.charAt(mPos);
+                if (d == '"') {
+                    readString();
+                    continue;
+                }
+                ++mPos;
+                if (d == '{' || d == '[') {
+                    ++depth;
+                }
+                else if ((d == '}' || d == ']') && --depth == 0) {
+                    return;
+                }
+            }
+            throw new IllegalArgumentException("Unterminated " + c);
+        }
+        else {
+            // Number, true, false or null
+            final int begin = mPos;
+            while (mPos < mEnd) {
+                final char d = mJson.charAt(mPos);
+                if (d == ',' || d == '}' || d == ']' || d <= ' ') {
+                    break;
+                }
+                ++mPos;
+            }
+            if (mPos == begin) {
+                throw new IllegalArgumentException("Value expected at " + mPos);
+            }
+        }
+    }
+
+    private boolean keyEquals(final int begin, final int end, final String key) {
+        return end - begin == key.length() && mJson.regionMatches(begin, key, 0, key.length());
+    }
+
+    private void skipSpaces() {
+        while (mPos < mEnd && mJson.charAt(mPos) <= ' ') {
+            ++mPos;
+        }
+    }
+
+    private char peek() {
+        if (mPos >= mEnd) {
+            throw new IllegalArgumentException("Unexpected end");
+        }
+        return mJson.charAt(mPos);
+    }
+
+    private boolean consume(final char c) {
+        if (mPos < mEnd && mJson.charAt(mPos) == c) {
+            ++mPos;
+            return true;
+        }
+        return false;
+    }
+
+    private boolean consumeNull() {
+        if (mJson.startsWith("null", mPos)) {
+            mPos += 4;
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(final char c) {
+        if (!consume(c)) {
+            throw new IllegalArgumentException("'" + c + "' expected at " + mPos);
+        }
+    }
+
+    /**
+     * Unescaped content of a JSON string (quotes excluded).
+     */
+    static String decode(final String json, final int begin, final int end) {
+        if (json == null || begin >= end) {
+            return "";
+        }
+        if (json.indexOf('\\', begin) < 0 || json.indexOf('\\', begin) >= end) {
+            return json.substring(begin, end);
+        }
+        return appendDecoded(new StringBuilder(end - begin), json, begin, end).toString();
+    }
+
+    static StringBuilder appendDecoded(final StringBuilder builder, final String json, final int begin, final int end) {
+        if (json == null) {
+            return builder;
+        }
+        for (int i = begin; i < end; ++i) {
+            char c = json.charAt(i);
+            if (c == '\\' && i + 1 < end) {
+                c = json.charAt(++i);
+                switch (c) {
+                    case 'b': c = '\b'; break;
+                    case 'f': c = '\f'; break;
+                    case 'n': c = '\n'; break;
+                    case 'r': c = '\r'; break;
+                    case 't': c = '\t'; break;
+                    case 'u':
+                        if (i + 4 < end) {
+                            c = (char)Integer.parseInt(json.substring(i + 1, i + 5), 16);
+                            i += 4;
+                        }
+                        break;
+                    default: break; // '"', '\\', '/'
+                }
+            }
+            builder.append(c);
+        }
+        return builder;
+    }
+}
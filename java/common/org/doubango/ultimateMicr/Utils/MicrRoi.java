@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2016-2020 Doubango AI <https://www.doubango.org>
+ * License: For non-commercial use only
+ * Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+ * WebSite: https://www.doubango.org/webapps/micr/
+ */
+package org.doubango.ultimateMicr.Utils;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Region Of Interest in image pixels. Uses the same [left, right, top, bottom] layout as the
+ * "roi" configuration entry: https://www.doubango.org/SDKs/micr/docs/Configuration_options.html#roi
+ * Right and bottom are exclusive.
+ */
+public final class MicrRoi {
+
+    /**
+     * Empty ROI. Same as [0.f, 0.f, 0.f, 0.f] in the JSON config which means "full image".
+     */
+    public static final MicrRoi EMPTY = new MicrRoi(0, 0, 0, 0);
+
+    private final int mLeft;
+    private final int mRight;
+    private final int mTop;
+    private final int mBottom;
+
+    public MicrRoi(final int left, final int right, final int top, final int bottom) {
+        if (left < 0 || top < 0 || right < left || bottom < top) {
+            throw new IllegalArgumentException("Invalid ROI: [" + left + ", " + right + ", " + top + ", " + bottom + "]");
+        }
+        mLeft = left;
+        mRight = right;
+        mTop = top;
+        mBottom = bottom;
+    }
+
+    /**
+     * Builds a ROI from the JSON config layout.
+     * @param roi [left, right, top, bottom]
+     * @return The ROI
+     */
+    public static MicrRoi fromList(final List<Float> roi) {
+        if (roi == null || roi.size() != 4) {
+            throw new IllegalArgumentException("ROI must have 4 elements: [left, right, top, bottom]");
+        }
+        return new MicrRoi(
+                (int)Math.floor(roi.get(0)),
+                (int)Math.ceil(roi.get(1)),
+                (int)Math.floor(roi.get(2)),
+                (int)Math.ceil(roi.get(3))
+        );
+    }
+
+    public int getLeft() { return mLeft; }
+    public int getRight() { return mRight; }
+    public int getTop() { return mTop; }
+    public int getBottom() { return mBottom; }
+    public int getWidth() { return mRight - mLeft; }
+    public int getHeight() { return mBottom - mTop; }
+    public boolean isEmpty() { return mRight <= mLeft || mBottom <= mTop; }
+
+    /**
+     * Clips the ROI to the image bounds.
+     * @return The clipped ROI or {@link #EMPTY} if there is no intersection.
+     */
+    public MicrRoi clip(final int imageWidth, final int imageHeight) {
+        final int left = Math.min(Math.max(mLeft, 0), imageWidth);
+        final int right = Math.min(Math.max(mRight, 0), imageWidth);
+        final int top = Math.min(Math.max(mTop, 0), imageHeight);
+        final int bottom = Math.min(Math.max(mBottom, 0), imageHeight);
+        return (right <= left || bottom <= top) ? EMPTY : new MicrRoi(left, right, top, bottom);
+    }
+
+    /**
+     * Same layout as the "roi" JSON configuration entry.
+     * @return [left, right, top, bottom]
+     */
+    public List<Float> toList() {
+        return Arrays.asList((float)mLeft, (float)mRight, (float)mTop, (float)mBottom);
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof MicrRoi)) {
+            return false;
+        }
+        final MicrRoi other = (MicrRoi)o;
+        return mLeft == other.mLeft && mRight == other.mRight && mTop == other.mTop && mBottom == other.mBottom;
+    }
+
+    @Override
+    public int hashCode() {
+        return ((mLeft * 31 + mRight) * 31 + mTop) * 31 + mBottom;
+    }
+
+    @Override
+    public String toString() {
+        return "[" + mLeft + ", " + mRight + ", " + mTop + ", " + mBottom + "]";
+    }
+}
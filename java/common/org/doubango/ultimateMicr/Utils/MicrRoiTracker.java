@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2016-2020 Doubango AI <https://www.doubango.org>
+ * License: For non-commercial use only
+ * Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+ * WebSite: https://www.doubango.org/webapps/micr/
+ */
+package org.doubango.ultimateMicr.Utils;
+
+/**
+ * Narrows the detection to a padded region around the MICR line found in the previous frames
+ * and follows its small motion (video streams).
+ *
+ * Usage, for each frame: {@link #getRoi(MicrFrame)} to get the region to process (empty means the full
+ * frame) then {@link #update(MicrFrame, MicrResultParser)} with the result. After a hit the region is
+ * the bounding box of the zones, moved by the last displacement and padded proportionally to the line
+ * height. After a miss the padding grows and after {@link #setMaxMisses(int)} misses in a row the
+ * tracker falls back to the full frame until the line is found again.
+ *
+ * Plain Java, no engine call. Not thread-safe.
+ */
+public final class MicrRoiTracker {
+
+    private int mMaxMisses = 3;
+    private float mPadX = 2.f; // times the line height
+    private float mPadY = 1.5f; // times the line height
+    private float mMissGrowth = 1.5f;
+
+    private boolean mTracking;
+    private float mLeft, mRight, mTop, mBottom; // Last zones bounding box, frame coordinates
+    private float mDx, mDy; // Last displacement of the box center
+    private int mMisses;
+    private long mNumHits;
+    private long mNumMisses;
+    private long mNumResets;
+    private final float mPoint[] = new float[2];
+
+    /**
+     * Number of misses in a row before falling back to the full frame. Default: 3.
+     */
+    public MicrRoiTracker setMaxMisses(final int maxMisses) {
+        if (maxMisses < 1) {
+            throw new IllegalArgumentException("maxMisses must be >= 1");
+        }
+        mMaxMisses = maxMisses;
+        return this;
+    }
+
+    /**
+     * Padding around the line, relative to its height. Default: 2 (horizontal), 1.5 (vertical).
+     */
+    public MicrRoiTracker setPadding(final float padX, final float padY) {
+        if (padX < 0.f || padY < 0.f) {
+            throw new IllegalArgumentException("Padding must be >= 0");
+        }
+        mPadX = padX;
+        mPadY = padY;
+        return this;
+    }
+
+    /**
+     * Factor applied to the padding after each miss. Default: 1.5.
+     */
+    public MicrRoiTracker setMissGrowth(final float missGrowth) {
+        if (missGrowth < 1.f) {
+            throw new IllegalArgumentException("missGrowth must be >= 1");
+        }
+        mMissGrowth = missGrowth;
+        return this;
+    }
+
+    /**
+     * Region to process for the next frame, in the frame's coordinates (not oriented).
+     * @return The region or {@link MicrRoi#EMPTY} for the full frame.
+     */
+    public MicrRoi getRoi(final MicrFrame frame) {
+        if (!mTracking) {
+            return MicrRoi.EMPTY;
+        }
+        final float lineHeight = Math.min(mRight - mLeft, mBottom - mTop);
+        float growth = 1.f;
+        for (int i = 0; i < mMisses; ++i) {
+            growth *= mMissGrowth;
+        }
+        // The line is horizontal in the oriented image, the padding follows the orientation
+        final boolean swap = frame.getExifOrientation() >= 5;
+        final float padX = lineHeight * (swap ? mPadY : mPadX) * growth + Math.abs(mDx);
+        final float padY = lineHeight * (swap ? mPadX : mPadY) * growth + Math.abs(mDy);
+        final int width = frame.getRootWidth();
+        final int height = frame.getRootHeight();
+        final int left = Math.max(0, Math.min(width, (int)Math.floor(mLeft + mDx - padX)));
+        final int top = Math.max(0, Math.min(height, (int)Math.floor(mTop + mDy - padY)));
+        final MicrRoi roi = new MicrRoi(
+                left,
+                Math.max(left, Math.min(width, (int)Math.ceil(mRight + mDx + padX))),
+                top,
+                Math.max(top, Math.min(height, (int)Math.ceil(mBottom + mDy + padY)))
+        );
+        return roi.isEmpty() ? MicrRoi.EMPTY : roi;
+    }
+
+    /**
+     * Updates the tracker with the result of the frame.
+     * @param frame The frame as passed to {@link #getRoi(MicrFrame)} (not cropped).
+     * @param result The parsed result, coordinates relative to the frame (e.g. from {@link MicrFrame#process(MicrProcessOptions)}).
+     */
+    public void update(final MicrFrame frame, final MicrResultParser result) {
+        final int numZones = result.getNumZones();
+        if (numZones == 0) {
+            ++mNumMisses;
+            if (mTracking && ++mMisses >= mMaxMisses) {
+                reset();
+                ++mNumResets;
+            }
+            return;
+        }
+        ++mNumHits;
+        float left = Float.MAX_VALUE, right = -Float.MAX_VALUE, top = Float.MAX_VALUE, bottom = -Float.MAX_VALUE;
+        final float point[] = mPoint;
+        for (int i = 0; i < numZones; ++i) {
+            final float box[] = result.getZone(i).getWarpedBox();
+            for (int j = 0; j < 8; j += 2) {
+                toFrame(box[j], box[j + 1], frame.getExifOrientation(), frame.getRootWidth(), frame.getRootHeight(), point);
+                left = Math.min(left, point[0]);
+                right = Math.max(right, point[0]);
+                top = Math.min(top, point[1]);
+                bottom = Math.max(bottom, point[1]);
+            }
+        }
+        if (mTracking) {
+            mDx = ((left + right) - (mLeft + mRight)) * 0.5f;
+            mDy = ((top + bottom) - (mTop + mBottom)) * 0.5f;
+        }
+        else {
+            mDx = mDy = 0.f;
+        }
+        mLeft = left;
+        mRight = right;
+        mTop = top;
+        mBottom = bottom;
+        mMisses = 0;
+        mTracking = true;
+    }
+
+    /**
+     * Back to the full frame.
+     */
+    public void reset() {
+        mTracking = false;
+        mMisses = 0;
+        mDx = mDy = 0.f;
+    }
+
+    /**
+     * Whether the next frames are narrowed to the tracked region.
+     */
+    public boolean isTracking() { return mTracking; }
+    public long getNumHits() { return mNumHits; }
+    public long getNumMisses() { return mNumMisses; }
+    /** Number of fallbacks to the full frame after too many misses. */
+    public long getNumResets() { return mNumResets; }
+
+    /**
+     * Maps a point returned by the engine (oriented image) to the frame coordinates. Inverse of the
+     * transformation used by {@link MicrFrame#getResultOffsetX()} / {@link MicrFrame#getResultOffsetY()}.
+     */
+    static void toFrame(final float x, final float y, final int exifOrientation, final int width, final int height, final float out[]) {
+        switch (exifOrientation) {
+            case 2: out[0] = width - x; out[1] = y; break;
+            case 3: out[0] = width - x; out[1] = height - y; break;
+            case 4: out[0] = x; out[1] = height - y; break;
+            case 5: out[0] = y; out[1] = x; break;
+            case 6: out[0] = y; out[1] = height - x; break;
+            case 7: out[0] = width - y; out[1] = height - x; break;
+            case 8: out[0] = width - y; out[1] = x; break;
+            case 1: default: out[0] = x; out[1] = y; break;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2016-2020 Doubango AI <https://www.doubango.org>
+ * License: For non-commercial use only
+ * Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+ * WebSite: https://www.doubango.org/webapps/micr/
+ */
+package org.doubango.ultimateMicr.Utils;
+
+/**
+ * MICR zone (line) of a result, filled by {@link MicrResultParser}.
+ *
+ * Flyweight: the instances are pooled by the parser and overwritten by the next call to
+ * {@link MicrResultParser#parse(String)}, copy what you need to keep. The strings (text, description,
+ * CMC-7 fields) are kept as offsets in the JSON document and only built when requested.
+ */
+public final class MicrZone {
+
+    private String mJson;
+    int mKlass;
+    float mSkew;
+    float mRecognitionConfidence;
+    float mDetectionConfidence;
+    final float mWarpedBox[] = new float[8];
+    int mTextBegin;
+    int mTextEnd;
+    int mDescriptionBegin;
+    int mDescriptionEnd;
+    int mFields[] = new int[4 * 10]; // nameBegin, nameEnd, valueBegin, valueEnd
+    int mNumFields;
+    private String mText;
+    private String mDescription;
+
+    MicrZone() { }
+
+    void reset(final String json) {
+        mJson = json;
+        mKlass = 0;
+        mSkew = 0.f;
+        mRecognitionConfidence = 0.f;
+        mDetectionConfidence = 0.f;
+        for (int i = 0; i < 8; ++i) {
+            mWarpedBox[i] = 0.f;
+        }
+        mTextBegin = mTextEnd = 0;
+        mDescriptionBegin = mDescriptionEnd = 0;
+        mNumFields = 0;
+        mText = null;
+        mDescription = null;
+    }
+
+    void addField(final int nameBegin, final int nameEnd, final int valueBegin, final int valueEnd) {
+        final int index = mNumFields << 2;
+        if (index + 4 > mFields.length) {
+            final int fields[] = new int[mFields.length << 1];
+            System.arraycopy(mFields, 0, fields, 0, mFields.length);
+            mFields = fields;
+        }
+        mFields[index] = nameBegin;
+        mFields[index + 1] = nameEnd;
+        mFields[index + 2] = valueBegin;
+        mFields[index + 3] = valueEnd;
+        ++mNumFields;
+    }
+
+    /**
+     * {@link MicrResultJson#KLASS_E13B} or {@link MicrResultJson#KLASS_CMC7}.
+     */
+    public int getKlass() { return mKlass; }
+    public float getSkew() { return mSkew; }
+    /** Recognition confidence, percent. */
+    public float getRecognitionConfidence() { return mRecognitionConfidence; }
+    /** Detection confidence, percent. */
+    public float getDetectionConfidence() { return mDetectionConfidence; }
+
+    /**
+     * The 4 corners (x, y) of the zone. The array is owned by the zone, don't modify it.
+     */
+    public float[] getWarpedBox() { return mWarpedBox; }
+
+    /**
+     * The recognized text, built on the first call.
+     */
+    public String getText() {
+        if (mText == null) {
+            mText = MicrResultParser.decode(mJson, mTextBegin, mTextEnd);
+        }
+        return mText;
+    }
+
+    /**
+     * Appends the recognized text without allocating a String.
+     */
+    public StringBuilder appendText(final StringBuilder builder) {
+        return MicrResultParser.appendDecoded(builder, mJson, mTextBegin, mTextEnd);
+    }
+
+    /**
+     * Format name (e.g. "E-13B", "CMC-7"), built on the first call.
+     */
+    public String getDescription() {
+        if (mDescription == null) {
+            mDescription = MicrResultParser.decode(mJson, mDescriptionBegin, mDescriptionEnd);
+        }
+        return mDescription;
+    }
+
+    /**
+     * Number of decoded fields (CMC-7 only, e.g. "Bank", "Agency", "Account").
+     */
+    public int getNumFields() { return mNumFields; }
+
+    public String getFieldName(final int index) {
+        checkField(index);
+        return MicrResultParser.decode(mJson, mFields[index << 2], mFields[(index << 2) + 1]);
+    }
+
+    public String getFieldValue(final int index) {
+        checkField(index);
+        return MicrResultParser.decode(mJson, mFields[(index << 2) + 2], mFields[(index << 2) + 3]);
+    }
+
+    /**
+     * Value of the first field named "name" or null if none.
+     */
+    public String getFieldValue(final String name) {
+        for (int i = 0; i < mNumFields; ++i) {
+            final int begin = mFields[i << 2];
+            final int end = mFields[(i << 2) + 1];
+            if (end - begin == name.length() && mJson.regionMatches(begin, name, 0, name.length())) {
+                return getFieldValue(i);
+            }
+        }
+        return null;
+    }
+
+    private void checkField(final int index) {
+        if (index < 0 || index >= mNumFields) {
+            throw new IndexOutOfBoundsException("Field index: " + index + ", count: " + mNumFields);
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2016-2020 Doubango AI <https://www.doubango.org>
+ * License: For non-commercial use only
+ * Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+ * WebSite: https://www.doubango.org/webapps/micr/
+ */
+package org.doubango.ultimateMicr.Service;
+
+import org.doubango.ultimateMicr.Sdk.ULTMICR_SDK_IMAGE_TYPE;
+import org.doubango.ultimateMicr.Utils.MicrFrame;
+import org.doubango.ultimateMicr.Utils.MicrFrameHash;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Asynchronous facade over an engine: {@link #submit(MicrFrame)} returns immediately, the frame is processed
+ * by a pool of calling threads.
+ *
+ * Single-flight: identical requests (same pixels, see {@link MicrFrameHash#hash(MicrFrame)}, and same config)
+ * submitted while one of them is still being processed are attached to the running computation and all
+ * receive its result, instead of running the inference again (e.g. retries from upstream gateways).
+ * {@link #process(MicrFrame)} goes through the same path, synchronous callers are coalesced too. Each caller gets
+ * its own future: cancelling or completing it doesn't affect the other callers nor the running computation.
+ *
+ * The frame of a request must not be modified until its future completes.
+ */
+public final class MicrAsyncEngine implements MicrEngine {
+
+    private final MicrEngine mEngine;
+    private final long mConfigHash;
+    private final ExecutorService mExecutor;
+    private final ConcurrentHashMap<MicrContentKey, CompletableFuture<MicrResult>> mInFlight = new ConcurrentHashMap<>();
+    private final AtomicLong mNumSubmitted = new AtomicLong();
+    private final AtomicLong mNumCoalesced = new AtomicLong();
+
+    /**
+     * @param engine The engine, closed by {@link #close()}.
+     * @param numThreads Number of calling threads, i.e. frames processed at the same time. One is enough for a
+     *                   {@link MicrLocalEngine}, use workers x slots for a {@link MicrWorkerPool}.
+     */
+    public MicrAsyncEngine(final MicrEngine engine, final int numThreads) {
+        if (engine == null) {
+            throw new IllegalArgumentException("engine is null");
+        }
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("numThreads must be >= 1");
+        }
+        mEngine = engine;
+        mConfigHash = MicrFrameHash.hash(engine.getConfig());
+        final AtomicInteger index = new AtomicInteger();
+        mExecutor = Executors.newFixedThreadPool(numThreads, r -> {
+            final Thread thread = new Thread(r, "MicrAsyncEngine-" + index.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Queues the frame, or attaches to the identical request already in flight.
+     * @return The result, a future of its own. Completes exceptionally with an {@link IOException} if the engine
+     * isn't reachable.
+     */
+    public CompletableFuture<MicrResult> submit(final MicrFrame frame) {
+        mNumSubmitted.incrementAndGet();
+        final MicrContentKey key = MicrContentKey.of(frame, mConfigHash);
+        final CompletableFuture<MicrResult> future = new CompletableFuture<>();
+        final CompletableFuture<MicrResult> running = mInFlight.putIfAbsent(key, future);
+        if (running != null) {
+            mNumCoalesced.incrementAndGet();
+            return copy(running);
+        }
+        try {
+            mExecutor.execute(() -> {
+                try {
+                    complete(key, future, mEngine.process(frame), null);
+                }
+                catch (final IOException | RuntimeException e) {
+                    complete(key, future, null, e);
+                }
+            });
+        }
+        catch (final RejectedExecutionException e) {
+            complete(key, future, null, new IOException("Engine closed"));
+        }
+        return copy(future);
+    }
+
+    /**
+     * Dependent future completed the same way as the shared one (same exception, not wrapped).
+     */
+    private static CompletableFuture<MicrResult> copy(final CompletableFuture<MicrResult> shared) {
+        final CompletableFuture<MicrResult> copy = new CompletableFuture<>();
+        shared.whenComplete((result, error) -> {
+            if (error != null) {
+                copy.completeExceptionally(error);
+            }
+            else {
+                copy.complete(result);
+            }
+        });
+        return copy;
+    }
+
+    private void complete(final MicrContentKey key, final CompletableFuture<MicrResult> future, final MicrResult result, final Exception error) {
+        // Detach first: a request arriving from now on starts a new computation (e.g. retry after an error)
+        mInFlight.remove(key, future);
+        if (error != null) {
+            future.completeExceptionally(error);
+        }
+        else {
+            future.complete(result);
+        }
+    }
+
+    /**
+     * Same as {@link #submit(MicrFrame)}, waiting for the result.
+     */
+    @Override
+    public MicrResult process(final MicrFrame frame) throws IOException {
+        try {
+            return submit(frame).get();
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the result");
+        }
+        catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    @Override
+    public MicrResult warmUp(final ULTMICR_SDK_IMAGE_TYPE imageType) throws IOException {
+        return mEngine.warmUp(imageType);
+    }
+
+    @Override
+    public String getConfig() {
+        return mEngine.getConfig();
+    }
+
+    @Override
+    public boolean isAlive() {
+        return !mExecutor.isShutdown() && mEngine.isAlive();
+    }
+
+    public MicrEngine getEngine() {
+        return mEngine;
+    }
+
+    /** Number of requests passed to {@link #submit(MicrFrame)} or {@link #process(MicrFrame)}. */
+    public long getNumSubmitted() { return mNumSubmitted.get(); }
+    /** Number of requests attached to an identical request in flight instead of being processed. */
+    public long getNumCoalesced() { return mNumCoalesced.get(); }
+    /** Number of distinct computations queued or running. */
+    public int getNumInFlight() { return mInFlight.size(); }
+
+    @Override
+    public String toString() {
+        return String.format("submitted=%d, coalesced=%d, in flight=%d", getNumSubmitted(), getNumCoalesced(), getNumInFlight());
+    }
+
+    /**
+     * Waits for the queued requests then closes the engine.
+     */
+    @Override
+    public void close() {
+        mExecutor.shutdown();
+        try {
+            mExecutor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mEngine.close();
+    }
+}
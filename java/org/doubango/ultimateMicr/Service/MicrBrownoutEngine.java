@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2016-2020 Doubango AI <https://www.doubango.org>
+ * License: For non-commercial use only
+ * Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+ * WebSite: https://www.doubango.org/webapps/micr/
+ */
+package org.doubango.ultimateMicr.Service;
+
+import org.doubango.ultimateMicr.Sdk.ULTMICR_SDK_IMAGE_TYPE;
+import org.doubango.ultimateMicr.Utils.MicrFrame;
+import org.doubango.ultimateMicr.Utils.MicrResultJson;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Brownout: under overload the requests are sent to progressively cheaper profiles instead of queuing, e.g.
+ * 0: full quality, 1: "segmenter_accuracy": "low" and "interpolation": "nearest",
+ * 2: "backpropagation_enabled" and "ielcd_enabled" off, 3: narrower "roi".
+ * Each profile has its own engine, initialized and warmed up beforehand (standby), switching costs no init.
+ * As only one {@link MicrLocalEngine} can be open, the others are {@link MicrProcessEngine} workers or {@link MicrWorkerPool}s.
+ *
+ * The load is the number of requests in the engine (queued or running) and the moving average of the latency:
+ * - overloaded (depth above {@link #setMaxDepth(int)} or latency above {@link #setTargetLatency(long)}): one
+ *   level cheaper, at most every {@link #setMinStepInterval(long)}.
+ * - underloaded (depth at most 1/4 of the maximum and latency below half the target) for {@link #setRestoreDelay(long)}:
+ *   one level better.
+ * The name of the profile used is added to each result ("profile" member of the JSON).
+ *
+ * Thread-safe.
+ */
+public final class MicrBrownoutEngine implements MicrEngine {
+
+    public static final String KEY_PROFILE = "profile";
+
+    private static final float LATENCY_ALPHA = 0.2f;
+
+    private final String mNames[];
+    private final MicrEngine mEngines[];
+    private volatile int mMaxDepth = 4;
+    private volatile long mTargetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(500);
+    private volatile long mMinStepIntervalNanos = TimeUnit.MILLISECONDS.toNanos(200);
+    private volatile long mRestoreDelayNanos = TimeUnit.SECONDS.toNanos(2);
+
+    private final AtomicInteger mDepth = new AtomicInteger();
+    private volatile int mLevel;
+    private double mLatencyNanos; // Guarded by this
+    private long mLastStepNanos; // Guarded by this
+    private long mUnderloadedSinceNanos = -1; // Guarded by this
+    private long mLevelSinceNanos; // Guarded by this
+    private long mNumSwitches; // Guarded by this
+    private final AtomicLongArray mNumProcessed;
+    private final AtomicLongArray mLevelNanos;
+
+    /**
+     * @param names Name of each profile, from the best quality to the cheapest.
+     * @param engines Engine of each profile, ready to process (see {@link #warmUp(ULTMICR_SDK_IMAGE_TYPE)}).
+     */
+    public MicrBrownoutEngine(final String names[], final MicrEngine engines[]) {
+        if (names == null || engines == null || names.length == 0 || names.length != engines.length) {
+            throw new IllegalArgumentException("One name per engine is required");
+        }
+        for (int i = 0; i < engines.length; ++i) {
+            if (names[i] == null || engines[i] == null) {
+                throw new IllegalArgumentException("Null profile at level " + i);
+            }
+        }
+        mNames = names.clone();
+        mEngines = engines.clone();
+        mNumProcessed = new AtomicLongArray(engines.length);
+        mLevelNanos = new AtomicLongArray(engines.length);
+        mLevelSinceNanos = mLastStepNanos = System.nanoTime();
+    }
+
+    /**
+     * Number of requests in the engine (queued or running) above which it's overloaded. Default: 4.
+     */
+    public MicrBrownoutEngine setMaxDepth(final int maxDepth) {
+        if (maxDepth < 1) {
+            throw new IllegalArgumentException("maxDepth must be >= 1");
+        }
+        mMaxDepth = maxDepth;
+        return this;
+    }
+
+    /**
+     * Moving average of the latency above which the engine is overloaded. Default: 500 millis.
+     */
+    public MicrBrownoutEngine setTargetLatency(final long targetLatencyMillis) {
+        if (targetLatencyMillis < 1) {
+            throw new IllegalArgumentException("targetLatencyMillis must be >= 1");
+        }
+        mTargetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(targetLatencyMillis);
+        return this;
+    }
+
+    /**
+     * Minimum time between two downgrades, to let the queue drain. Default: 200 millis.
+     */
+    public MicrBrownoutEngine setMinStepInterval(final long minStepIntervalMillis) {
+        if (minStepIntervalMillis < 0) {
+            throw new IllegalArgumentException("minStepIntervalMillis must be >= 0");
+        }
+        mMinStepIntervalNanos = TimeUnit.MILLISECONDS.toNanos(minStepIntervalMillis);
+        return this;
+    }
+
+    /**
+     * Time the engine must stay underloaded before restoring a better profile. Default: 2 seconds.
+     */
+    public MicrBrownoutEngine setRestoreDelay(final long restoreDelayMillis) {
+        if (restoreDelayMillis < 0) {
+            throw new IllegalArgumentException("restoreDelayMillis must be >= 0");
+        }
+        mRestoreDelayNanos = TimeUnit.MILLISECONDS.toNanos(restoreDelayMillis);
+        return this;
+    }
+
+    @Override
+    public MicrResult process(final MicrFrame frame) throws IOException {
+        final long start = System.nanoTime();
+        final int depth = mDepth.incrementAndGet();
+        try {
+            final int level = adjust(start, depth);
+            final MicrResult result = mEngines[level].process(frame);
+            mNumProcessed.incrementAndGet(level);
+            updateLatency(System.nanoTime() - start);
+            return new MicrResult(result.code(), result.phrase(), MicrResultJson.addString(result.json(), KEY_PROFILE, mNames[level]), result.numZones());
+        }
+        finally {
+            mDepth.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return The level to use for a new request.
+     */
+    private synchronized int adjust(final long now, final int depth) {
+        final int maxDepth = mMaxDepth;
+        final long target = mTargetLatencyNanos;
+        int level = mLevel;
+        if (depth > maxDepth || mLatencyNanos > target) {
+            mUnderloadedSinceNanos = -1;
+            if (level < mEngines.length - 1 && now - mLastStepNanos >= mMinStepIntervalNanos) {
+                setLevel(level + 1, now);
+            }
+        }
+        else if (depth <= Math.max(1, maxDepth / 4) && mLatencyNanos < target / 2) {
+            if (mUnderloadedSinceNanos < 0) {
+                mUnderloadedSinceNanos = now;
+            }
+            else if (level > 0 && now - mUnderloadedSinceNanos >= mRestoreDelayNanos) {
+                setLevel(level - 1, now);
+                mUnderloadedSinceNanos = now; // One level per delay
+            }
+        }
+        else {
+            mUnderloadedSinceNanos = -1;
+        }
+        return mLevel;
+    }
+
+    private void setLevel(final int level, final long now) {
+        mLevelNanos.addAndGet(mLevel, now - mLevelSinceNanos);
+        mLevelSinceNanos = mLastStepNanos = now;
+        mLevel = level;
+        ++mNumSwitches;
+    }
+
+    private synchronized void updateLatency(final long nanos) {
+        mLatencyNanos = (mLatencyNanos == 0) ? nanos : mLatencyNanos + (LATENCY_ALPHA * (nanos - mLatencyNanos));
+    }
+
+    /**
+     * Warms up the engines of all the profiles.
+     */
+    @Override
+    public MicrResult warmUp(final ULTMICR_SDK_IMAGE_TYPE imageType) throws IOException {
+        MicrResult result = null;
+        for (MicrEngine engine : mEngines) {
+            result = engine.warmUp(imageType);
+            if (!result.isOK()) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The configuration of the current profile.
+     */
+    @Override
+    public String getConfig() {
+        return mEngines[mLevel].getConfig();
+    }
+
+    @Override
+    public boolean isAlive() {
+        for (MicrEngine engine : mEngines) {
+            if (!engine.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Current level, 0 being the best quality. */
+    public int getLevel() { return mLevel; }
+    public String getProfile() { return mNames[mLevel]; }
+    public int getNumLevels() { return mEngines.length; }
+    /** Number of requests in the engine. */
+    public int getDepth() { return mDepth.get(); }
+    public synchronized double getLatencyNanos() { return mLatencyNanos; }
+    public synchronized long getNumSwitches() { return mNumSwitches; }
+    public long getNumProcessed(final int level) { return mNumProcessed.get(level); }
+
+    /**
+     * Time spent at the level, in nanoseconds.
+     */
+    public synchronized long getLevelNanos(final int level) {
+        return mLevelNanos.get(level) + (level == mLevel ? System.nanoTime() - mLevelSinceNanos : 0);
+    }
+
+    public synchronized void resetStats() {
+        for (int i = 0; i < mEngines.length; ++i) {
+            mNumProcessed.set(i, 0);
+            mLevelNanos.set(i, 0);
+        }
+        mLevelSinceNanos = System.nanoTime();
+        mNumSwitches = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        final StringBuilder builder = new StringBuilder(String.format("profile=%s, depth=%d, latency=%.2f millis, switches=%d",
+                getProfile(), getDepth(), mLatencyNanos / 1e6, mNumSwitches));
+        for (int i = 0; i < mEngines.length; ++i) {
+            builder.append(String.format(", %s: %d (%.1f s)", mNames[i], getNumProcessed(i), getLevelNanos(i) / 1e9));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Closes the engines of all the profiles.
+     */
+    @Override
+    public void close() {
+        RuntimeException error = null;
+        for (MicrEngine engine : mEngines) {
+            try {
+                engine.close();
+            }
+            catch (final RuntimeException e) {
+                error = (error == null) ? e : error;
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2016-2020 Doubango AI <https://www.doubango.org>
+ * License: For non-commercial use only
+ * Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+ * WebSite: https://www.doubango.org/webapps/micr/
+ */
+package org.doubango.ultimateMicr.Service;
+
+import org.doubango.ultimateMicr.Sdk.ULTMICR_SDK_IMAGE_TYPE;
+import org.doubango.ultimateMicr.Utils.MicrFrame;
+import org.doubango.ultimateMicr.Utils.MicrFrameHash;
+
+import java.io.IOException;
+
+/**
+ * Engine answering from a {@link MicrResultCache} when the same pixels were already processed with the
+ * same configuration (retries, re-scans, duplicate uploads, batch reprocessing), forwarding to another
+ * engine otherwise. Only the successful results are cached.
+ *
+ * The key is {@link MicrFrameHash#hash(MicrFrame)} plus the hash of {@link MicrEngine#getConfig()}, a cache
+ * can be shared by engines with different configurations. The cached results keep the "duration" and
+ * "frame_id" of the first call.
+ */
+public final class MicrCachingEngine implements MicrEngine {
+
+    private final MicrEngine mEngine;
+    private final MicrResultCache mCache;
+    private final long mConfigHash;
+
+    /**
+     * @param engine The engine processing the cache misses, closed by {@link #close()}.
+     * @param cache The cache, not closed by {@link #close()}.
+     */
+    public MicrCachingEngine(final MicrEngine engine, final MicrResultCache cache) {
+        if (engine == null || cache == null) {
+            throw new IllegalArgumentException("engine and cache are required");
+        }
+        mEngine = engine;
+        mCache = cache;
+        mConfigHash = MicrFrameHash.hash(engine.getConfig());
+    }
+
+    @Override
+    public MicrResult process(final MicrFrame frame) throws IOException {
+        final long frameHash = MicrFrameHash.hash(frame);
+        MicrResult result = mCache.get(frameHash, mConfigHash);
+        if (result == null) {
+            result = mEngine.process(frame);
+            if (result.isOK()) {
+                mCache.put(frameHash, mConfigHash, result);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public MicrResult warmUp(final ULTMICR_SDK_IMAGE_TYPE imageType) throws IOException {
+        return mEngine.warmUp(imageType);
+    }
+
+    @Override
+    public String getConfig() {
+        return mEngine.getConfig();
+    }
+
+    @Override
+    public boolean isAlive() {
+        return mEngine.isAlive();
+    }
+
+    public MicrEngine getEngine() {
+        return mEngine;
+    }
+
+    public MicrResultCache getCache() {
+        return mCache;
+    }
+
+    @Override
+    public void close() {
+        mEngine.close();
+    }
+}
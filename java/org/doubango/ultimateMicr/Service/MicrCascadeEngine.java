@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2016-2020 Doubango AI <https://www.doubango.org>
+ * License: For non-commercial use only
+ * Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+ * WebSite: https://www.doubango.org/webapps/micr/
+ */
+package org.doubango.ultimateMicr.Service;
+
+import org.doubango.ultimateMicr.Sdk.ULTMICR_SDK_IMAGE_TYPE;
+import org.doubango.ultimateMicr.Utils.MicrChecksum;
+import org.doubango.ultimateMicr.Utils.MicrFrame;
+import org.doubango.ultimateMicr.Utils.MicrResultParser;
+import org.doubango.ultimateMicr.Utils.MicrZone;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Two-stage cascade: a cheap configuration (e.g. "segmenter_accuracy": "low", no backpropagation, no IELCD)
+ * processes every frame and only the doubtful reads are processed again by an expensive configuration
+ * (e.g. "segmenter_accuracy": "veryhigh", "backpropagation_enabled" and "ielcd_enabled" set), initialized
+ * separately: a {@link MicrProcessEngine} or {@link MicrWorkerPool} as only one {@link MicrLocalEngine} can be open.
+ *
+ * A read is escalated when there is no zone ({@link #setEscalateOnNoZone(boolean)}), when a zone's recognition
+ * confidence is below {@link #setMinConfidence(float)} or when a check digit doesn't match ({@link MicrChecksum}).
+ * The escalation result is returned unless it's worse (error, or no zone while the cheap stage found some). An
+ * escalation failing ({@link IOException}) doesn't fail the request: it's counted and the cheap result returned.
+ *
+ * Thread-safe if both engines are.
+ */
+public final class MicrCascadeEngine implements MicrEngine {
+
+    private final MicrEngine mFast;
+    private final MicrEngine mEscalation;
+    private volatile float mMinConfidence = 80.f;
+    private volatile boolean mEscalateOnNoZone = true;
+    private volatile boolean mValidateChecksums = true;
+
+    private final ThreadLocal<MicrResultParser> mParser = ThreadLocal.withInitial(MicrResultParser::new);
+    private final AtomicLong mNumProcessed = new AtomicLong();
+    private final AtomicLong mNumEscalatedNoZone = new AtomicLong();
+    private final AtomicLong mNumEscalatedConfidence = new AtomicLong();
+    private final AtomicLong mNumEscalatedChecksum = new AtomicLong();
+    private final AtomicLong mNumImproved = new AtomicLong();
+    private final AtomicLong mNumEscalationFailures = new AtomicLong();
+    private final AtomicLong mFastNanos = new AtomicLong();
+    private final AtomicLong mEscalationNanos = new AtomicLong();
+
+    /**
+     * @param fast The cheap engine, processing every frame.
+     * @param escalation The expensive engine, processing the doubtful reads.
+     */
+    public MicrCascadeEngine(final MicrEngine fast, final MicrEngine escalation) {
+        if (fast == null || escalation == null) {
+            throw new IllegalArgumentException("Both engines are required");
+        }
+        mFast = fast;
+        mEscalation = escalation;
+    }
+
+    /**
+     * Recognition confidence (percent) below which a zone is escalated. Default: 80.
+     */
+    public MicrCascadeEngine setMinConfidence(final float minConfidence) {
+        if (minConfidence < 0.f || minConfidence > 100.f) {
+            throw new IllegalArgumentException("minConfidence must be within [0, 100]");
+        }
+        mMinConfidence = minConfidence;
+        return this;
+    }
+
+    /**
+     * Whether the frames without zone are escalated. Disable when most frames have no MICR line (video). Default: true.
+     */
+    public MicrCascadeEngine setEscalateOnNoZone(final boolean escalateOnNoZone) {
+        mEscalateOnNoZone = escalateOnNoZone;
+        return this;
+    }
+
+    /**
+     * Whether the zones with a wrong check digit are escalated. Default: true.
+     */
+    public MicrCascadeEngine setValidateChecksums(final boolean validateChecksums) {
+        mValidateChecksums = validateChecksums;
+        return this;
+    }
+
+    @Override
+    public MicrResult process(final MicrFrame frame) throws IOException {
+        final long start = System.nanoTime();
+        final MicrResult fast = mFast.process(frame);
+        final long middle = System.nanoTime();
+        mFastNanos.addAndGet(middle - start);
+        mNumProcessed.incrementAndGet();
+        if (!fast.isOK()) {
+            return fast;
+        }
+
+        final AtomicLong reason = escalationReason(fast);
+        if (reason == null) {
+            return fast;
+        }
+        reason.incrementAndGet();
+        final MicrResult escalated;
+        try {
+            escalated = mEscalation.process(frame);
+        }
+        catch (final IOException e) {
+            mNumEscalationFailures.incrementAndGet();
+            return fast;
+        }
+        finally {
+            mEscalationNanos.addAndGet(System.nanoTime() - middle);
+        }
+        if (!escalated.isOK()) {
+            mNumEscalationFailures.incrementAndGet();
+            return fast;
+        }
+        if (escalated.numZones() == 0 && fast.numZones() > 0) {
+            return fast;
+        }
+        if (escalationReason(escalated) == null) {
+            mNumImproved.incrementAndGet();
+        }
+        return escalated;
+    }
+
+    /**
+     * @return The counter of the reason to escalate or null if the result is good enough.
+     */
+    private AtomicLong escalationReason(final MicrResult result) {
+        final MicrResultParser parser = mParser.get().parse(result.json());
+        final int numZones = parser.getNumZones();
+        if (numZones == 0) {
+            return mEscalateOnNoZone ? mNumEscalatedNoZone : null;
+        }
+        for (int i = 0; i < numZones; ++i) {
+            if (parser.getZone(i).getRecognitionConfidence() < mMinConfidence) {
+                return mNumEscalatedConfidence;
+            }
+        }
+        if (mValidateChecksums) {
+            for (int i = 0; i < numZones; ++i) {
+                final MicrZone zone = parser.getZone(i);
+                if (MicrChecksum.validate(zone) == MicrChecksum.INVALID) {
+                    return mNumEscalatedChecksum;
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public MicrResult warmUp(final ULTMICR_SDK_IMAGE_TYPE imageType) throws IOException {
+        final MicrResult result = mFast.warmUp(imageType);
+        return result.isOK() ? mEscalation.warmUp(imageType) : result;
+    }
+
+    /**
+     * The configuration of the cheap engine.
+     */
+    @Override
+    public String getConfig() {
+        return mFast.getConfig();
+    }
+
+    @Override
+    public boolean isAlive() {
+        return mFast.isAlive() && mEscalation.isAlive();
+    }
+
+    public MicrEngine getFastEngine() { return mFast; }
+    public MicrEngine getEscalationEngine() { return mEscalation; }
+
+    public long getNumProcessed() { return mNumProcessed.get(); }
+    public long getNumEscalated() { return mNumEscalatedNoZone.get() + mNumEscalatedConfidence.get() + mNumEscalatedChecksum.get(); }
+    public long getNumEscalatedNoZone() { return mNumEscalatedNoZone.get(); }
+    public long getNumEscalatedConfidence() { return mNumEscalatedConfidence.get(); }
+    public long getNumEscalatedChecksum() { return mNumEscalatedChecksum.get(); }
+    /** Number of escalations whose result passed all the checks. */
+    public long getNumImproved() { return mNumImproved.get(); }
+    /** Number of escalations that failed (error result or exception), answered with the cheap result. */
+    public long getNumEscalationFailures() { return mNumEscalationFailures.get(); }
+
+    /**
+     * Share of the frames processed twice, [0, 1].
+     */
+    public float getEscalatedFraction() {
+        final long processed = getNumProcessed();
+        return processed == 0 ? 0.f : getNumEscalated() / (float)processed;
+    }
+
+    /**
+     * Mean time per frame, both stages included (blended cost).
+     */
+    public long getMeanNanos() {
+        final long processed = getNumProcessed();
+        return processed == 0 ? 0 : (mFastNanos.get() + mEscalationNanos.get()) / processed;
+    }
+
+    /**
+     * Frames per second for one caller, from {@link #getMeanNanos()}.
+     */
+    public double getBlendedThroughput() {
+        final long mean = getMeanNanos();
+        return mean == 0 ? 0.0 : 1e9 / mean;
+    }
+
+    public void resetStats() {
+        mNumProcessed.set(0);
+        mNumEscalatedNoZone.set(0);
+        mNumEscalatedConfidence.set(0);
+        mNumEscalatedChecksum.set(0);
+        mNumImproved.set(0);
+        mNumEscalationFailures.set(0);
+        mFastNanos.set(0);
+        mEscalationNanos.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("processed=%d, escalated=%d (%.1f%%: no zone=%d, confidence=%d, checksum=%d), improved=%d, failed=%d, blended=%.2f millis (%.2f fps)",
+                getNumProcessed(), getNumEscalated(), getEscalatedFraction() * 100.f, getNumEscalatedNoZone(), getNumEscalatedConfidence(),
+                getNumEscalatedChecksum(), getNumImproved(), getNumEscalationFailures(), getMeanNanos() / 1e6, getBlendedThroughput());
+    }
+
+    /**
+     * Closes both engines.
+     */
+    @Override
+    public void close() {
+        try {
+            mFast.close();
+        }
+        finally {
+            mEscalation.close();
+        }
+    }
+}
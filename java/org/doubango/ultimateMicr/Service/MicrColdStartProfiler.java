@@ -0,0 +1,436 @@
+/*
+ * Copyright (C) 2016-2020 Doubango AI <https://www.doubango.org>
+ * License: For non-commercial use only
+ * Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+ * WebSite: https://www.doubango.org/webapps/micr/
+ */
+package org.doubango.ultimateMicr.Service;
+
+import org.doubango.ultimateMicr.Sdk.ULTMICR_SDK_IMAGE_TYPE;
+import org.doubango.ultimateMicr.Utils.MicrFrame;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Cold start profile of a config: how long init takes and where it goes, and what the first frame of each sample
+ * image type and size costs with and without {@link MicrEngine#warmUp(ULTMICR_SDK_IMAGE_TYPE)}. Then recommends a
+ * {@link MicrWarmUpPlan} covering only what the recorded traffic ({@link MicrTrafficProfile}) uses.
+ *
+ * Init is a single native call, its phases are estimated from the outside on warm inits (median): the license check
+ * is the init time difference without "license_token_data" and the GPU setup the difference with "gpgpu_enabled"
+ * set to false, the remainder (model loading from the page cache, model decoding, network setup) is "other".
+ * The disk is reported apart: the first init is timed alone (cold start penalty = first - median) and the model
+ * files ("assets_folder/models") are read and timed last. Both are only cold disk figures when the page cache
+ * was dropped before ({@link #setDropCaches(boolean)}), otherwise the report says the cache may be warm.
+ *
+ * Every measure starts a new engine with the factory, the profiler must run alone: with the default
+ * {@link MicrLocalEngine} factory, no other in-process engine may be open. Run it at build or staging time,
+ * not on the serving instances.
+ */
+public final class MicrColdStartProfiler {
+
+    private static final class ShapeProfile {
+        final ULTMICR_SDK_IMAGE_TYPE mType;
+        final int mWidth;
+        final int mHeight;
+        double mColdFirst; // First process after init, no warm-up
+        double mSteady; // Process once warm
+        double mWarmUp; // warmUp(type) right after init
+        double mWarmFirst; // First process after warmUp(type)
+
+        ShapeProfile(final ULTMICR_SDK_IMAGE_TYPE type, final int width, final int height) {
+            mType = type;
+            mWidth = width;
+            mHeight = height;
+        }
+
+        /** First frame overhead left after warmUp(type), due to the size. */
+        double getSizePenalty() { return Math.max(0, mWarmFirst - mSteady); }
+        double getWarmUpGain() { return mColdFirst - mWarmFirst; }
+    }
+
+    private final String mConfig;
+    private final MicrReloadableEngine.Factory mFactory;
+    private final List<MicrFrame> mSamples = new ArrayList<>();
+    private int mRepeats = 3;
+    private double mMinGainMillis = 1;
+    private boolean mDropCaches;
+
+    // Results, set by profile()
+    private boolean mProfiled;
+    private double mFirstInit;
+    private boolean mFirstInitCold;
+    private double mInit;
+    private double mDeInit;
+    private double mInitWithoutGpu = Double.NaN;
+    private double mInitWithoutLicense = Double.NaN;
+    private double mModelRead = Double.NaN;
+    private boolean mModelReadCold;
+    private long mModelBytes;
+    private int mNumModelFiles;
+    private final List<ShapeProfile> mShapes = new ArrayList<>();
+
+    /**
+     * Profiles the in-process engine ({@link MicrLocalEngine}).
+     * @param jsonConfig The JSON config. More info at https://www.doubango.org/SDKs/micr/docs/Configuration_options.html
+     */
+    public MicrColdStartProfiler(final String jsonConfig) {
+        this(jsonConfig, MicrLocalEngine::open);
+    }
+
+    /**
+     * @param jsonConfig The JSON config. More info at https://www.doubango.org/SDKs/micr/docs/Configuration_options.html
+     * @param factory Engine to profile, e.g. {@link MicrProcessEngine#start(String)} to include the worker startup.
+     */
+    public MicrColdStartProfiler(final String jsonConfig, final MicrReloadableEngine.Factory factory) {
+        if (jsonConfig == null || factory == null) {
+            throw new IllegalArgumentException("jsonConfig and factory are required");
+        }
+        mConfig = jsonConfig;
+        mFactory = factory;
+    }
+
+    /**
+     * Sample frame, one per image type and size to profile (the later ones with the same type and size are ignored).
+     * Real images give the most accurate steady times.
+     */
+    public MicrColdStartProfiler addSample(final MicrFrame frame) {
+        if (frame == null) {
+            throw new IllegalArgumentException("frame is required");
+        }
+        mSamples.add(frame);
+        return this;
+    }
+
+    /**
+     * Number of runs per measure, the median is kept. Each run of each sample starts two engines. Default 3.
+     */
+    public MicrColdStartProfiler setRepeats(final int repeats) {
+        if (repeats < 1) {
+            throw new IllegalArgumentException("repeats must be >= 1");
+        }
+        mRepeats = repeats;
+        return this;
+    }
+
+    /**
+     * First frame saving below which a warm-up or a prime isn't recommended. Default 1 millisecond.
+     */
+    public MicrColdStartProfiler setMinGain(final double millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("millis must be >= 0");
+        }
+        mMinGainMillis = millis;
+        return this;
+    }
+
+    /**
+     * Whether to drop the page cache (Linux "/proc/sys/vm/drop_caches", root only) before the first init and the
+     * model files read, for cold disk figures. Drops the cache of the whole machine. Default: false.
+     */
+    public MicrColdStartProfiler setDropCaches(final boolean dropCaches) {
+        mDropCaches = dropCaches;
+        return this;
+    }
+
+    /**
+     * Runs the measures, can take several times the init time x (repeats x (2 x samples + 3) + 1).
+     * @throws IOException if the engine can't be started with the config or a sample fails.
+     */
+    public void profile() throws IOException {
+        mShapes.clear();
+
+        mFirstInitCold = mDropCaches && dropCaches();
+        final long start = System.nanoTime();
+        mFactory.start(mConfig).close();
+        mFirstInit = (System.nanoTime() - start) / 1e6;
+        final double init[] = timeInit(mConfig);
+        mInit = init[0];
+        mDeInit = init[1];
+        mInitWithoutGpu = Double.NaN;
+        if (!Boolean.FALSE.equals(getBoolean(mConfig, "gpgpu_enabled"))) { // Enabled by default
+            mInitWithoutGpu = timeInitOrNaN(withValue(mConfig, "gpgpu_enabled", "false"));
+        }
+        mInitWithoutLicense = Double.NaN;
+        final String license = getString(mConfig, "license_token_data");
+        if (license != null && !license.isEmpty()) {
+            mInitWithoutLicense = timeInitOrNaN(withValue(mConfig, "license_token_data", "\"\""));
+        }
+
+        for (MicrFrame frame : mSamples) {
+            if (find(frame.getType(), frame.getWidth(), frame.getHeight()) == null) {
+                mShapes.add(profileShape(frame));
+            }
+        }
+
+        // Last, the inits above load the models into the page cache
+        mModelReadCold = mDropCaches && dropCaches();
+        readModels();
+        mProfiled = true;
+    }
+
+    private ShapeProfile profileShape(final MicrFrame frame) throws IOException {
+        final ShapeProfile shape = new ShapeProfile(frame.getType(), frame.getWidth(), frame.getHeight());
+        final double coldFirst[] = new double[mRepeats];
+        final double steady[] = new double[mRepeats];
+        final double warmUp[] = new double[mRepeats];
+        final double warmFirst[] = new double[mRepeats];
+        for (int i = 0; i < mRepeats; ++i) {
+            try (MicrEngine engine = mFactory.start(mConfig)) {
+                coldFirst[i] = timeProcess(engine, frame);
+                timeProcess(engine, frame);
+                steady[i] = timeProcess(engine, frame);
+            }
+            try (MicrEngine engine = mFactory.start(mConfig)) {
+                final long start = System.nanoTime();
+                final MicrResult result = engine.warmUp(frame.getType());
+                warmUp[i] = (System.nanoTime() - start) / 1e6;
+                if (!result.isOK()) {
+                    throw new IOException("warmUp(" + frame.getType() + ") failed: " + result.phrase());
+                }
+                warmFirst[i] = timeProcess(engine, frame);
+            }
+        }
+        shape.mColdFirst = median(coldFirst);
+        shape.mSteady = median(steady);
+        shape.mWarmUp = median(warmUp);
+        shape.mWarmFirst = median(warmFirst);
+        return shape;
+    }
+
+    private static double timeProcess(final MicrEngine engine, final MicrFrame frame) throws IOException {
+        final long start = System.nanoTime();
+        final MicrResult result = engine.process(frame);
+        final double millis = (System.nanoTime() - start) / 1e6;
+        if (!result.isOK()) {
+            throw new IOException("Process failed: " + result.phrase());
+        }
+        return millis;
+    }
+
+    /**
+     * @return { median init, median deInit } in milliseconds.
+     */
+    private double[] timeInit(final String jsonConfig) throws IOException {
+        final double init[] = new double[mRepeats];
+        final double deInit[] = new double[mRepeats];
+        for (int i = 0; i < mRepeats; ++i) {
+            final long start = System.nanoTime();
+            final MicrEngine engine = mFactory.start(jsonConfig);
+            final long started = System.nanoTime();
+            engine.close();
+            init[i] = (started - start) / 1e6;
+            deInit[i] = (System.nanoTime() - started) / 1e6;
+        }
+        return new double[] { median(init), median(deInit) };
+    }
+
+    private double timeInitOrNaN(final String jsonConfig) {
+        try {
+            return timeInit(jsonConfig)[0];
+        }
+        catch (final IOException e) {
+            return Double.NaN; // e.g. GPU required by the build, license required by the platform
+        }
+    }
+
+    /**
+     * @return false if not allowed (not root) or not Linux.
+     */
+    private static boolean dropCaches() {
+        try {
+            Files.write(Paths.get("/proc/sys/vm/drop_caches"), "1".getBytes(StandardCharsets.US_ASCII));
+            return true;
+        }
+        catch (final IOException | SecurityException e) {
+            return false;
+        }
+    }
+
+    private void readModels() throws IOException {
+        mModelRead = Double.NaN;
+        mModelBytes = 0;
+        mNumModelFiles = 0;
+        final String assets = getString(mConfig, "assets_folder");
+        if (assets == null) {
+            return;
+        }
+        final Path models = Paths.get(assets.replace("\\\\", "\\").replace("\\/", "/"), "models");
+        if (!Files.isDirectory(models)) {
+            return;
+        }
+        final List<Path> files;
+        try (Stream<Path> paths = Files.walk(models)) {
+            files = paths.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+        final long start = System.nanoTime();
+        for (Path file : files) {
+            mModelBytes += Files.readAllBytes(file).length;
+        }
+        mModelRead = (System.nanoTime() - start) / 1e6;
+        mNumModelFiles = files.size();
+    }
+
+    private ShapeProfile find(final ULTMICR_SDK_IMAGE_TYPE type, final int width, final int height) {
+        for (ShapeProfile shape : mShapes) {
+            if (shape.mType == type && shape.mWidth == width && shape.mHeight == height) {
+                return shape;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Warm-up plan for the traffic: warmUp for the types making at least "minShare" of the frames when it saves
+     * {@link #setMinGain(double) enough} on the first frame (or wasn't profiled), then one prime per size making at
+     * least "minShare" of the frames when the first frame of this size is still slow after the warm-up (or wasn't
+     * profiled, the sizes of the same type are used as an estimate). Types and sizes below "minShare" are left cold.
+     * @param traffic Recorded traffic.
+     * @param minShare Fraction of the frames, in [0, 1].
+     * @throws IllegalStateException if {@link #profile()} wasn't called.
+     */
+    public MicrWarmUpPlan recommend(final MicrTrafficProfile traffic, final double minShare) {
+        if (!mProfiled) {
+            throw new IllegalStateException("profile() must be called first");
+        }
+        if (minShare < 0 || minShare > 1) {
+            throw new IllegalArgumentException("minShare must be within [0, 1]");
+        }
+        final MicrWarmUpPlan plan = new MicrWarmUpPlan();
+        final long total = traffic.getTotal();
+        if (total == 0) {
+            return plan;
+        }
+        final List<MicrTrafficProfile.Entry> entries = traffic.getEntries();
+        for (MicrTrafficProfile.Entry entry : entries) {
+            final ULTMICR_SDK_IMAGE_TYPE type = entry.getType();
+            final double share = traffic.getShare(type);
+            if (share < minShare || plan.getWarmUps().contains(type)) {
+                continue;
+            }
+            double gain = Double.NaN;
+            for (ShapeProfile shape : mShapes) {
+                if (shape.mType == type) {
+                    gain = Double.isNaN(gain) ? shape.getWarmUpGain() : Math.max(gain, shape.getWarmUpGain());
+                }
+            }
+            if (Double.isNaN(gain)) {
+                plan.addWarmUp(type, String.format("%.0f%% of the frames, not profiled", share * 100));
+            }
+            else if (gain >= mMinGainMillis) {
+                plan.addWarmUp(type, String.format("%.0f%% of the frames, saves %.1f millis on the first frame", share * 100, gain));
+            }
+        }
+        for (MicrTrafficProfile.Entry entry : entries) {
+            final double share = (double) entry.getCount() / total;
+            if (share < minShare) {
+                continue;
+            }
+            final ShapeProfile exact = find(entry.getType(), entry.getWidth(), entry.getHeight());
+            double penalty = Double.NaN;
+            if (exact != null) {
+                penalty = plan.getWarmUps().contains(exact.mType) ? exact.getSizePenalty() : Math.max(0, exact.mColdFirst - exact.mSteady);
+            }
+            else {
+                for (ShapeProfile shape : mShapes) {
+                    if (shape.mType == entry.getType()) {
+                        penalty = Double.isNaN(penalty) ? shape.getSizePenalty() : Math.max(penalty, shape.getSizePenalty());
+                    }
+                }
+            }
+            if (Double.isNaN(penalty)) {
+                plan.addPrime(entry.getType(), entry.getWidth(), entry.getHeight(), String.format("%.0f%% of the frames, not profiled", share * 100));
+            }
+            else if (penalty >= mMinGainMillis) {
+                plan.addPrime(entry.getType(), entry.getWidth(), entry.getHeight(),
+                        String.format("%.0f%% of the frames, first frame %.1f millis slower%s", share * 100, penalty, exact == null ? " (estimated)" : ""));
+            }
+        }
+        return plan;
+    }
+
+    /** Median init time in milliseconds, NaN before {@link #profile()}. */
+    public double getInitMillis() { return mProfiled ? mInit : Double.NaN; }
+
+    /**
+     * Init breakdown then the first frame costs per type and size, one line each.
+     */
+    public String getReport() {
+        if (!mProfiled) {
+            return "(not profiled)\n";
+        }
+        final StringBuilder builder = new StringBuilder();
+        builder.append(String.format("first init %.1f millis (%s), cold start penalty %.1f millis\n",
+                mFirstInit, mFirstInitCold ? "page cache dropped" : "page cache may be warm", Math.max(0, mFirstInit - mInit)));
+        if (Double.isNaN(mModelRead)) {
+            builder.append("model files read: n/a (no assets_folder/models)\n");
+        }
+        else {
+            builder.append(String.format("model files read: %.1f millis (%d files, %.1f MB, %s)\n",
+                    mModelRead, mNumModelFiles, mModelBytes / 1e6, mModelReadCold ? "cold disk" : "page cache warm"));
+        }
+        builder.append(String.format("warm init %.1f millis (median of %d), deInit %.1f millis\n", mInit, mRepeats, mDeInit));
+        double other = mInit;
+        if (Double.isNaN(mInitWithoutLicense)) {
+            builder.append("  license: n/a (no license_token_data or init failed without it)\n");
+        }
+        else {
+            builder.append(String.format("  license: %.1f millis (init without license_token_data %.1f millis)\n", Math.max(0, mInit - mInitWithoutLicense), mInitWithoutLicense));
+            other -= Math.max(0, mInit - mInitWithoutLicense);
+        }
+        if (Double.isNaN(mInitWithoutGpu)) {
+            builder.append("  GPU setup: n/a (gpgpu_enabled is false or init failed without GPU)\n");
+        }
+        else {
+            builder.append(String.format("  GPU setup: %.1f millis (init with gpgpu_enabled=false %.1f millis)\n", Math.max(0, mInit - mInitWithoutGpu), mInitWithoutGpu));
+            other -= Math.max(0, mInit - mInitWithoutGpu);
+        }
+        builder.append(String.format("  other (model loading and decoding, network setup): %.1f millis\n", Math.max(0, other)));
+        for (ShapeProfile shape : mShapes) {
+            builder.append(String.format("%s %dx%d: cold first frame %.1f millis, steady %.1f millis, warmUp %.1f millis then first frame %.1f millis (saves %.1f)\n",
+                    shape.mType.name(), shape.mWidth, shape.mHeight, shape.mColdFirst, shape.mSteady, shape.mWarmUp, shape.mWarmFirst, shape.getWarmUpGain()));
+        }
+        return builder.toString();
+    }
+
+    private static double median(final double values[]) {
+        final double sorted[] = Arrays.copyOf(values, values.length);
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    // Minimal access to the top-level string and boolean values of the JSON config, no JSON library in this package
+
+    private static String getString(final String json, final String key) {
+        final Matcher matcher = Pattern.compile("\"" + Pattern.quote(key) + "\"\\s*:\\s*\"((?:[^\"\\\\]|\\\\.)*)\"").matcher(json);
+        return matcher.find() ? matcher.group(1) : null;
+    }
+
+    private static Boolean getBoolean(final String json, final String key) {
+        final Matcher matcher = Pattern.compile("\"" + Pattern.quote(key) + "\"\\s*:\\s*(true|false)").matcher(json);
+        return matcher.find() ? Boolean.valueOf(matcher.group(1)) : null;
+    }
+
+    /**
+     * Config with the value of "key" replaced by the JSON literal "value", the key is added when missing.
+     */
+    private static String withValue(final String json, final String key, final String value) {
+        final Matcher matcher = Pattern.compile("(\"" + Pattern.quote(key) + "\"\\s*:\\s*)(\"(?:[^\"\\\\]|\\\\.)*\"|true|false|-?[0-9.eE+-]+)").matcher(json);
+        if (matcher.find()) {
+            return json.substring(0, matcher.start(2)) + value + json.substring(matcher.end(2));
+        }
+        final int brace = json.indexOf('{');
+        return json.substring(0, brace + 1) + "\"" + key + "\": " + value + (json.substring(brace + 1).trim().startsWith("}") ? "" : ",") + json.substring(brace + 1);
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2016-2020 Doubango AI <https://www.doubango.org>
+ * License: For non-commercial use only
+ * Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+ * WebSite: https://www.doubango.org/webapps/micr/
+ */
+package org.doubango.ultimateMicr.Service;
+
+import org.doubango.ultimateMicr.Utils.MicrFrame;
+import org.doubango.ultimateMicr.Utils.MicrFrameHash;
+
+/**
+ * Identity of a request: hash of the pixels ({@link MicrFrameHash#hash(MicrFrame)}) and hash of the JSON config.
+ */
+final class MicrContentKey {
+
+    final long mFrameHash;
+    final long mConfigHash;
+
+    MicrContentKey(final long frameHash, final long configHash) {
+        mFrameHash = frameHash;
+        mConfigHash = configHash;
+    }
+
+    static MicrContentKey of(final MicrFrame frame, final long configHash) {
+        return new MicrContentKey(MicrFrameHash.hash(frame), configHash);
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (!(o instanceof MicrContentKey)) {
+            return false;
+        }
+        final MicrContentKey other = (MicrContentKey)o;
+        return other.mFrameHash == mFrameHash && other.mConfigHash == mConfigHash;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(mFrameHash * 31 + mConfigHash);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%016x:%016x", mFrameHash, mConfigHash);
+    }
+}
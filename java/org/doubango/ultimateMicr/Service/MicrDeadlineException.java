@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2016-2020 Doubango AI <https://www.doubango.org>
+ * License: For non-commercial use only
+ * Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+ * WebSite: https://www.doubango.org/webapps/micr/
+ */
+package org.doubango.ultimateMicr.Service;
+
+import java.io.IOException;
+
+/**
+ * A request was not processed because it couldn't meet its deadline. The engine was not used.
+ * Not an {@link java.io.InterruptedIOException}: the calling thread was not interrupted.
+ */
+public final class MicrDeadlineException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final boolean mShed;
+
+    MicrDeadlineException(final String message, final boolean shed) {
+        super(message);
+        mShed = shed;
+    }
+
+    /**
+     * @return true if the request was rejected when submitted (the estimated completion time was past the deadline),
+     * false if it expired while queued.
+     */
+    public boolean isShed() {
+        return mShed;
+    }
+}
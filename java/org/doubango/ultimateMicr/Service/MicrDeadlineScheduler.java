@@ -0,0 +1,383 @@
+/*
+ * Copyright (C) 2016-2020 Doubango AI <https://www.doubango.org>
+ * License: For non-commercial use only
+ * Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+ * WebSite: https://www.doubango.org/webapps/micr/
+ */
+package org.doubango.ultimateMicr.Service;
+
+import org.doubango.ultimateMicr.Sdk.ULTMICR_SDK_IMAGE_TYPE;
+import org.doubango.ultimateMicr.Utils.MicrFrame;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Deadline-aware front of an engine: each request has an absolute deadline ({@link System#nanoTime()} clock)
+ * and the queue is served earliest deadline first. As the clock may wrap, deadlines are only compared by
+ * subtraction and capped to about 146 years from now, which stands for "no deadline".
+ *
+ * Admission control: the completion time of a new request is estimated from the work queued ahead of it and
+ * the recent processing time of the frames of the same size (power-of-two buckets of pixels). A request that
+ * can't meet its deadline is rejected right away ("shed") instead of occupying the engine for nothing, and a
+ * queued request that can no longer meet its deadline is dropped before reaching the engine ("expired").
+ * Both complete with a {@link MicrDeadlineException}.
+ */
+public final class MicrDeadlineScheduler implements MicrEngine {
+
+    private static final int NUM_BUCKETS = 32;
+    private static final double SERVICE_ALPHA = 0.2;
+    private static final long MAX_TIMEOUT_NANOS = Long.MAX_VALUE >> 1; // Keeps the differences of deadlines in range
+
+    private final MicrEngine mEngine;
+    private final int mNumThreads;
+    private final Thread mThreads[];
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mNotEmpty = mLock.newCondition();
+    private final PriorityQueue<Request> mQueue = new PriorityQueue<>();
+    private final double mServiceNanos[] = new double[NUM_BUCKETS]; // Guarded by mLock, 0 if unknown
+    private long mRunningNanos; // Guarded by mLock: estimated work of the running requests
+    private boolean mClosed; // Guarded by mLock
+    private volatile long mDefaultTimeoutNanos = Long.MAX_VALUE;
+
+    private final AtomicLong mNumSubmitted = new AtomicLong();
+    private final AtomicLong mNumShed = new AtomicLong();
+    private final AtomicLong mNumExpired = new AtomicLong();
+    private final AtomicLong mNumMet = new AtomicLong();
+    private final AtomicLong mNumMissed = new AtomicLong();
+
+    /**
+     * @param engine The engine, closed by {@link #close()}.
+     * @param numThreads Number of calling threads. One is enough for a {@link MicrLocalEngine}, use workers x slots
+     *                   for a {@link MicrWorkerPool}.
+     */
+    public MicrDeadlineScheduler(final MicrEngine engine, final int numThreads) {
+        if (engine == null) {
+            throw new IllegalArgumentException("engine is null");
+        }
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("numThreads must be >= 1");
+        }
+        mEngine = engine;
+        mNumThreads = numThreads;
+        mThreads = new Thread[numThreads];
+        for (int i = 0; i < numThreads; ++i) {
+            mThreads[i] = new Thread(this::serve, "MicrDeadlineScheduler-" + (i + 1));
+            mThreads[i].setDaemon(true);
+            mThreads[i].start();
+        }
+    }
+
+    /**
+     * Timeout of the requests submitted using {@link #process(MicrFrame)}. Default: none.
+     */
+    public MicrDeadlineScheduler setDefaultTimeout(final long timeoutMillis) {
+        if (timeoutMillis < 1) {
+            throw new IllegalArgumentException("timeoutMillis must be >= 1");
+        }
+        mDefaultTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        return this;
+    }
+
+    /**
+     * Queues the frame.
+     * @param deadlineNanos Absolute deadline, {@link System#nanoTime()} clock, Long.MAX_VALUE for none.
+     * @return The result. Completes exceptionally with a {@link MicrDeadlineException} if the deadline can't be met
+     * or an {@link IOException} if the engine isn't reachable.
+     */
+    public CompletableFuture<MicrResult> submit(final MicrFrame frame, final long deadlineNanos) {
+        final long now = System.nanoTime();
+        return submit(frame, now, deadlineNanos == Long.MAX_VALUE ? deadline(now, Long.MAX_VALUE) : deadlineNanos);
+    }
+
+    private CompletableFuture<MicrResult> submit(final MicrFrame frame, final long now, final long deadlineNanos) {
+        mNumSubmitted.incrementAndGet();
+        final Request request = new Request(frame, deadlineNanos);
+        mLock.lock();
+        try {
+            if (mClosed) {
+                request.mFuture.completeExceptionally(new IOException("Engine closed"));
+                return request.mFuture;
+            }
+            request.mEstimatedNanos = (long)estimate(bucket(frame));
+            // Work ahead: the running requests and the queued ones with an earlier deadline
+            long ahead = mRunningNanos;
+            for (Request queued : mQueue) {
+                if (queued.mDeadlineNanos - deadlineNanos <= 0) {
+                    ahead += queued.mEstimatedNanos;
+                }
+            }
+            final long completion = now + (ahead / mNumThreads) + request.mEstimatedNanos;
+            if (completion - deadlineNanos > 0) {
+                mNumShed.incrementAndGet();
+                request.mFuture.completeExceptionally(new MicrDeadlineException(String.format("Estimated completion %.2f millis after the deadline",
+                        (completion - deadlineNanos) / 1e6), true));
+                return request.mFuture;
+            }
+            mQueue.add(request);
+            mNotEmpty.signal();
+        }
+        finally {
+            mLock.unlock();
+        }
+        return request.mFuture;
+    }
+
+    /**
+     * Same as {@link #submit(MicrFrame, long)} with a timeout relative to now.
+     */
+    public CompletableFuture<MicrResult> submitWithTimeout(final MicrFrame frame, final long timeoutMillis) {
+        final long now = System.nanoTime();
+        return submit(frame, now, deadline(now, TimeUnit.MILLISECONDS.toNanos(timeoutMillis)));
+    }
+
+    /**
+     * Deadline "timeoutNanos" after "now", the timeout capped (the sum may wrap).
+     */
+    private static long deadline(final long now, final long timeoutNanos) {
+        return now + Math.min(Math.max(0, timeoutNanos), MAX_TIMEOUT_NANOS);
+    }
+
+    private void serve() {
+        final List<Request> expired = new ArrayList<>();
+        while (true) {
+            Request request;
+            boolean closed = false;
+            mLock.lock();
+            try {
+                while ((request = mQueue.poll()) != null) {
+                    if ((System.nanoTime() + request.mEstimatedNanos) - request.mDeadlineNanos <= 0) {
+                        break;
+                    }
+                    mNumExpired.incrementAndGet();
+                    expired.add(request);
+                }
+                if (request == null && expired.isEmpty()) {
+                    if (mClosed) {
+                        closed = true;
+                    }
+                    else {
+                        mNotEmpty.awaitUninterruptibly();
+                    }
+                }
+                if (request != null) {
+                    mRunningNanos += request.mEstimatedNanos;
+                }
+            }
+            finally {
+                mLock.unlock();
+            }
+            // Completed outside of the lock, the callbacks may run on this thread
+            for (Request dropped : expired) {
+                dropped.mFuture.completeExceptionally(new MicrDeadlineException("Expired while queued", false));
+            }
+            expired.clear();
+            if (closed) {
+                return;
+            }
+            if (request == null) {
+                continue;
+            }
+
+            final long start = System.nanoTime();
+            MicrResult result = null;
+            Exception error = null;
+            try {
+                result = mEngine.process(request.mFrame);
+            }
+            catch (final IOException | RuntimeException e) {
+                error = e;
+            }
+            final long end = System.nanoTime();
+            mLock.lock();
+            try {
+                mRunningNanos -= request.mEstimatedNanos;
+                if (error == null) {
+                    final int bucket = bucket(request.mFrame);
+                    final double previous = mServiceNanos[bucket];
+                    mServiceNanos[bucket] = (previous == 0) ? (end - start) : previous + (SERVICE_ALPHA * ((end - start) - previous));
+                }
+            }
+            finally {
+                mLock.unlock();
+            }
+            if (error != null) {
+                request.mFuture.completeExceptionally(error);
+            }
+            else {
+                (end - request.mDeadlineNanos <= 0 ? mNumMet : mNumMissed).incrementAndGet();
+                request.mFuture.complete(result);
+            }
+        }
+    }
+
+    /**
+     * Log2 of the number of pixels.
+     */
+    private static int bucket(final MicrFrame frame) {
+        return 63 - Long.numberOfLeadingZeros(Math.max(1L, (long)frame.getWidth() * frame.getHeight()));
+    }
+
+    /**
+     * Estimated processing time of a bucket: measured, or extrapolated from the nearest measured smaller bucket
+     * (linear in the number of pixels), 0 if nothing was measured yet.
+     */
+    private double estimate(final int bucket) {
+        for (int b = bucket; b >= 0; --b) {
+            if (mServiceNanos[b] > 0) {
+                return mServiceNanos[b] * (1L << (bucket - b));
+            }
+        }
+        for (int b = bucket + 1; b < NUM_BUCKETS; ++b) {
+            if (mServiceNanos[b] > 0) {
+                return mServiceNanos[b] / (1L << (b - bucket));
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Estimated processing time of the frame, in nanoseconds (0 if unknown).
+     */
+    public long getEstimatedNanos(final MicrFrame frame) {
+        mLock.lock();
+        try {
+            return (long)estimate(bucket(frame));
+        }
+        finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Submits the frame with the default timeout and waits for the result.
+     */
+    @Override
+    public MicrResult process(final MicrFrame frame) throws IOException {
+        final long now = System.nanoTime();
+        final CompletableFuture<MicrResult> future = submit(frame, now, deadline(now, mDefaultTimeoutNanos));
+        try {
+            return future.get();
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the result");
+        }
+        catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    @Override
+    public MicrResult warmUp(final ULTMICR_SDK_IMAGE_TYPE imageType) throws IOException {
+        return mEngine.warmUp(imageType);
+    }
+
+    @Override
+    public String getConfig() {
+        return mEngine.getConfig();
+    }
+
+    @Override
+    public boolean isAlive() {
+        mLock.lock();
+        try {
+            return !mClosed && mEngine.isAlive();
+        }
+        finally {
+            mLock.unlock();
+        }
+    }
+
+    public int getQueueDepth() {
+        mLock.lock();
+        try {
+            return mQueue.size();
+        }
+        finally {
+            mLock.unlock();
+        }
+    }
+
+    public long getNumSubmitted() { return mNumSubmitted.get(); }
+    /** Number of requests rejected when submitted. */
+    public long getNumShed() { return mNumShed.get(); }
+    /** Number of requests dropped from the queue. */
+    public long getNumExpired() { return mNumExpired.get(); }
+    /** Number of requests processed before their deadline. */
+    public long getNumMet() { return mNumMet.get(); }
+    /** Number of requests processed after their deadline (underestimated processing time). */
+    public long getNumMissed() { return mNumMissed.get(); }
+
+    public void resetStats() {
+        mNumSubmitted.set(0);
+        mNumShed.set(0);
+        mNumExpired.set(0);
+        mNumMet.set(0);
+        mNumMissed.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("submitted=%d, met=%d, missed=%d, shed=%d, expired=%d, queued=%d",
+                getNumSubmitted(), getNumMet(), getNumMissed(), getNumShed(), getNumExpired(), getQueueDepth());
+    }
+
+    /**
+     * Processes the queued requests then closes the engine.
+     */
+    @Override
+    public void close() {
+        mLock.lock();
+        try {
+            mClosed = true;
+            mNotEmpty.signalAll();
+        }
+        finally {
+            mLock.unlock();
+        }
+        for (Thread thread : mThreads) {
+            try {
+                thread.join(TimeUnit.MINUTES.toMillis(1));
+            }
+            catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        mEngine.close();
+    }
+
+    private static final class Request implements Comparable<Request> {
+        final MicrFrame mFrame;
+        final long mDeadlineNanos;
+        final CompletableFuture<MicrResult> mFuture = new CompletableFuture<>();
+        long mEstimatedNanos;
+
+        Request(final MicrFrame frame, final long deadlineNanos) {
+            mFrame = frame;
+            mDeadlineNanos = deadlineNanos;
+        }
+
+        @Override
+        public int compareTo(final Request other) {
+            return Long.compare(mDeadlineNanos - other.mDeadlineNanos, 0);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2016-2020 Doubango AI <https://www.doubango.org>
+ * License: For non-commercial use only
+ * Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+ * WebSite: https://www.doubango.org/webapps/micr/
+ */
+package org.doubango.ultimateMicr.Service;
+
+import org.doubango.ultimateMicr.Sdk.ULTMICR_SDK_IMAGE_TYPE;
+import org.doubango.ultimateMicr.Utils.MicrFrame;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * An initialized engine with its own configuration.
+ *
+ * Engine errors (e.g. invalid image, license) are reported using {@link MicrResult#code()}.
+ * {@link IOException} is only thrown when the engine itself is not reachable (e.g. crashed worker process).
+ *
+ * Implementations are thread-safe: {@link #process(MicrFrame)} can be called from any number of threads.
+ * How the concurrent calls are executed depends on the implementation: one at a time in arrival order
+ * for {@link MicrLocalEngine}, queued on the worker for {@link MicrProcessEngine}, in parallel across the
+ * workers for {@link MicrWorkerPool}. The frame must not be modified before the call returns.
+ */
+public interface MicrEngine extends Closeable {
+
+    /**
+     * Performs MICR detection and recognition.
+     * @param frame The frame to process.
+     * @return The result.
+     */
+    MicrResult process(MicrFrame frame) throws IOException;
+
+    /**
+     * Performs CPU/GPU warm up for the image type.
+     */
+    MicrResult warmUp(ULTMICR_SDK_IMAGE_TYPE imageType) throws IOException;
+
+    /**
+     * The JSON configuration used to initialize the engine.
+     */
+    String getConfig();
+
+    /**
+     * Whether the engine can process frames.
+     */
+    boolean isAlive();
+
+    /**
+     * DeInitializes the engine and releases its resources.
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2016-2020 Doubango AI <https://www.doubango.org>
+ * License: For non-commercial use only
+ * Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+ * WebSite: https://www.doubango.org/webapps/micr/
+ */
+package org.doubango.ultimateMicr.Service;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Lets one caller at a time into the engine, in arrival order (FIFO), and measures how long the
+ * callers wait for their turn (queue time) and how long they hold the gate (busy time).
+ *
+ * Usage: {@code gate.enter(); try { ... } finally { gate.exit(); }}
+ */
+public final class MicrFairGate {
+
+    private final ReentrantLock mLock = new ReentrantLock(true);
+    private final AtomicInteger mWaiting = new AtomicInteger();
+    private final AtomicLong mEntries = new AtomicLong();
+    private final AtomicLong mQueueNanos = new AtomicLong();
+    private final AtomicLong mMaxQueueNanos = new AtomicLong();
+    private final AtomicLong mBusyNanos = new AtomicLong();
+    private long mEnteredAt; // Guarded by mLock
+
+    /**
+     * Waits for the turn of the calling thread.
+     * @return The time spent waiting, in nanoseconds.
+     * @throws InterruptedIOException if interrupted while waiting.
+     */
+    public long enter() throws InterruptedIOException {
+        final long start = System.nanoTime();
+        mWaiting.incrementAndGet();
+        try {
+            mLock.lockInterruptibly();
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the engine");
+        }
+        finally {
+            mWaiting.decrementAndGet();
+        }
+        return entered(start);
+    }
+
+    /**
+     * Same as {@link #enter()}, ignoring interrupts (e.g. for the cleanup).
+     */
+    public long enterUninterruptibly() {
+        final long start = System.nanoTime();
+        mWaiting.incrementAndGet();
+        try {
+            mLock.lock();
+        }
+        finally {
+            mWaiting.decrementAndGet();
+        }
+        return entered(start);
+    }
+
+    /**
+     * Lets the next caller in. Must be called by the thread that entered.
+     */
+    public void exit() {
+        mBusyNanos.addAndGet(System.nanoTime() - mEnteredAt);
+        mLock.unlock();
+    }
+
+    /**
+     * Number of callers waiting for their turn.
+     */
+    public int getWaiting() {
+        return mWaiting.get();
+    }
+
+    /**
+     * Number of callers let in since created or last {@link #resetStats()}.
+     */
+    public long getEntries() {
+        return mEntries.get();
+    }
+
+    public long getTotalQueueNanos() {
+        return mQueueNanos.get();
+    }
+
+    public long getMaxQueueNanos() {
+        return mMaxQueueNanos.get();
+    }
+
+    public double getMeanQueueNanos() {
+        final long entries = mEntries.get();
+        return entries == 0 ? 0 : mQueueNanos.get() / (double)entries;
+    }
+
+    /**
+     * Total time callers spent inside the gate, in nanoseconds.
+     */
+    public long getBusyNanos() {
+        return mBusyNanos.get();
+    }
+
+    public void resetStats() {
+        mEntries.set(0);
+        mQueueNanos.set(0);
+        mMaxQueueNanos.set(0);
+        mBusyNanos.set(0);
+    }
+
+    private long entered(final long start) {
+        mEnteredAt = System.nanoTime();
+        final long queueNanos = mEnteredAt - start;
+        mEntries.incrementAndGet();
+        mQueueNanos.addAndGet(queueNanos);
+        long max;
+        while (queueNanos > (max = mMaxQueueNanos.get()) && !mMaxQueueNanos.compareAndSet(max, queueNanos)) {
+            // Retry
+        }
+        return queueNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("entries: %d, waiting: %d, mean queue: %.2f millis, max queue: %.2f millis, busy: %.1f millis",
+                getEntries(), getWaiting(), getMeanQueueNanos() / 1e6, getMaxQueueNanos() / 1e6, getBusyNanos() / 1e6);
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2016-2020 Doubango AI <https://www.doubango.org>
+ * License: For non-commercial use only
+ * Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+ * WebSite: https://www.doubango.org/webapps/micr/
+ */
+package org.doubango.ultimateMicr.Service;
+
+import org.doubango.ultimateMicr.Sdk.ULTMICR_SDK_IMAGE_TYPE;
+import org.doubango.ultimateMicr.Utils.MicrFormatHistory;
+import org.doubango.ultimateMicr.Utils.MicrFrame;
+import org.doubango.ultimateMicr.Utils.MicrGlyphClassifier;
+import org.doubango.ultimateMicr.Utils.MicrResultJson;
+import org.doubango.ultimateMicr.Utils.MicrResultParser;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Routes each frame to an engine configured with a single format ("format": "e13b" or "cmc7") instead of
+ * the slower "e13b+cmc7" mode. The font is predicted, in this order, from:
+ * - the metadata supplied by the caller (e.g. the country of the deposit), see {@link #process(MicrFrame, String, int)}.
+ * - the client's history of recognized fonts ({@link MicrFormatHistory}), fed by the results.
+ * - the glyph shapes in the MICR band ({@link MicrGlyphClassifier}, under 1 millisecond for 720p).
+ * The combined engine is only used when all of them are uncertain. A predicted (not supplied) format
+ * returning no zone is retried with the combined engine, which also corrects the client's history.
+ *
+ * Only one {@link MicrLocalEngine} can be open: at least two engines must be {@link MicrProcessEngine}
+ * workers or {@link MicrWorkerPool}s.
+ *
+ * Thread-safe if the engines are.
+ */
+public final class MicrFormatRouter implements MicrEngine {
+
+    private final MicrEngine mE13b;
+    private final MicrEngine mCmc7;
+    private final MicrEngine mCombined;
+    private final MicrFormatHistory mHistory;
+    private volatile boolean mGlyphClassifierEnabled = true;
+    private volatile boolean mRetryOnMiss = true;
+
+    private final ThreadLocal<MicrGlyphClassifier> mGlyphClassifier = ThreadLocal.withInitial(MicrGlyphClassifier::new);
+    private final ThreadLocal<MicrResultParser> mParser = ThreadLocal.withInitial(MicrResultParser::new);
+    private final AtomicLong mNumE13b = new AtomicLong();
+    private final AtomicLong mNumCmc7 = new AtomicLong();
+    private final AtomicLong mNumCombined = new AtomicLong();
+    private final AtomicLong mNumFromMetadata = new AtomicLong();
+    private final AtomicLong mNumFromHistory = new AtomicLong();
+    private final AtomicLong mNumFromGlyphs = new AtomicLong();
+    private final AtomicLong mNumRetries = new AtomicLong();
+
+    /**
+     * @param e13b Engine configured with "format": "e13b".
+     * @param cmc7 Engine configured with "format": "cmc7".
+     * @param combined Engine configured with "format": "e13b+cmc7", used when the font is uncertain.
+     * @param history The clients' history or null to ignore the clients.
+     */
+    public MicrFormatRouter(final MicrEngine e13b, final MicrEngine cmc7, final MicrEngine combined, final MicrFormatHistory history) {
+        if (e13b == null || cmc7 == null || combined == null) {
+            throw new IllegalArgumentException("The three engines are required");
+        }
+        mE13b = e13b;
+        mCmc7 = cmc7;
+        mCombined = combined;
+        mHistory = history;
+    }
+
+    /**
+     * Whether the glyph shapes are used when there is no metadata nor history. Default: true.
+     */
+    public MicrFormatRouter setGlyphClassifierEnabled(final boolean glyphClassifierEnabled) {
+        mGlyphClassifierEnabled = glyphClassifierEnabled;
+        return this;
+    }
+
+    /**
+     * Whether a predicted format returning no zone is retried with the combined engine. Disable for video
+     * streams where most frames have no MICR line. Default: true.
+     */
+    public MicrFormatRouter setRetryOnMiss(final boolean retryOnMiss) {
+        mRetryOnMiss = retryOnMiss;
+        return this;
+    }
+
+    /**
+     * Processes a frame without metadata nor client.
+     */
+    @Override
+    public MicrResult process(final MicrFrame frame) throws IOException {
+        return process(frame, null, 0);
+    }
+
+    /**
+     * @param client The client (account, branch, device...) or null if unknown.
+     * @param klass {@link MicrResultJson#KLASS_E13B} or {@link MicrResultJson#KLASS_CMC7} if known from the source metadata, 0 otherwise.
+     */
+    public MicrResult process(final MicrFrame frame, final String client, final int klass) throws IOException {
+        int predicted = klass;
+        if (predicted != 0) {
+            mNumFromMetadata.incrementAndGet();
+        }
+        else if (mHistory != null && client != null && (predicted = mHistory.predict(client)) != 0) {
+            mNumFromHistory.incrementAndGet();
+        }
+        else if (mGlyphClassifierEnabled && (predicted = mGlyphClassifier.get().classify(frame)) != MicrGlyphClassifier.UNCERTAIN) {
+            mNumFromGlyphs.incrementAndGet();
+        }
+
+        MicrResult result;
+        switch (predicted) {
+            case MicrResultJson.KLASS_E13B:
+                mNumE13b.incrementAndGet();
+                result = mE13b.process(frame);
+                break;
+            case MicrResultJson.KLASS_CMC7:
+                mNumCmc7.incrementAndGet();
+                result = mCmc7.process(frame);
+                break;
+            default:
+                mNumCombined.incrementAndGet();
+                result = mCombined.process(frame);
+                break;
+        }
+        if (predicted != 0 && klass == 0 && mRetryOnMiss && result.isOK() && result.numZones() == 0) {
+            mNumRetries.incrementAndGet();
+            result = mCombined.process(frame);
+        }
+        if (mHistory != null && client != null && result.isOK() && result.numZones() > 0) {
+            mHistory.record(client, mParser.get().parse(result.json()));
+        }
+        return result;
+    }
+
+    @Override
+    public MicrResult warmUp(final ULTMICR_SDK_IMAGE_TYPE imageType) throws IOException {
+        MicrResult result = mCombined.warmUp(imageType);
+        if (result.isOK()) {
+            result = mE13b.warmUp(imageType);
+        }
+        if (result.isOK()) {
+            result = mCmc7.warmUp(imageType);
+        }
+        return result;
+    }
+
+    /**
+     * The configuration of the combined engine.
+     */
+    @Override
+    public String getConfig() {
+        return mCombined.getConfig();
+    }
+
+    @Override
+    public boolean isAlive() {
+        return mE13b.isAlive() && mCmc7.isAlive() && mCombined.isAlive();
+    }
+
+    public MicrFormatHistory getHistory() { return mHistory; }
+
+    public long getNumE13b() { return mNumE13b.get(); }
+    public long getNumCmc7() { return mNumCmc7.get(); }
+    public long getNumCombined() { return mNumCombined.get(); }
+    public long getNumFromMetadata() { return mNumFromMetadata.get(); }
+    public long getNumFromHistory() { return mNumFromHistory.get(); }
+    public long getNumFromGlyphs() { return mNumFromGlyphs.get(); }
+    /** Number of predictions without zone processed again with the combined engine. */
+    public long getNumRetries() { return mNumRetries.get(); }
+
+    /**
+     * Share of the frames processed by a single-format engine only, [0, 1].
+     */
+    public float getRoutedFraction() {
+        final long total = mNumE13b.get() + mNumCmc7.get() + mNumCombined.get();
+        return total == 0 ? 0.f : (mNumE13b.get() + mNumCmc7.get() - mNumRetries.get()) / (float)total;
+    }
+
+    public void resetStats() {
+        mNumE13b.set(0);
+        mNumCmc7.set(0);
+        mNumCombined.set(0);
+        mNumFromMetadata.set(0);
+        mNumFromHistory.set(0);
+        mNumFromGlyphs.set(0);
+        mNumRetries.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("e13b=%d, cmc7=%d, combined=%d, routed=%.1f%% (metadata=%d, history=%d, glyphs=%d), retries=%d",
+                getNumE13b(), getNumCmc7(), getNumCombined(), getRoutedFraction() * 100.f, getNumFromMetadata(), getNumFromHistory(),
+                getNumFromGlyphs(), getNumRetries());
+    }
+
+    /**
+     * Closes the three engines.
+     */
+    @Override
+    public void close() {
+        try {
+            mE13b.close();
+        }
+        finally {
+            try {
+                mCmc7.close();
+            }
+            finally {
+                mCombined.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,433 @@
+/*
+ * Copyright (C) 2016-2020 Doubango AI <https://www.doubango.org>
+ * License: For non-commercial use only
+ * Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+ * WebSite: https://www.doubango.org/webapps/micr/
+ */
+package org.doubango.ultimateMicr.Service;
+
+import org.doubango.ultimateMicr.Sdk.ULTMICR_SDK_IMAGE_TYPE;
+import org.doubango.ultimateMicr.Utils.MicrFrame;
+import org.doubango.ultimateMicr.Utils.MicrResultParser;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hedged requests to cut the tail latency: the frame is sent to the fast engine and, if the result isn't back
+ * after a delay derived from the recent latencies (p95 by default) or comes back below the confidence target,
+ * it's also sent to the thorough engine. The first acceptable result wins. The native processing can't be
+ * interrupted: the loser runs to completion and its result is ignored.
+ *
+ * The extra load is capped by a budget ({@link #setHedgeBudget(float)}): every request earns a fraction of a
+ * hedge, the hedges are refused when the tokens are exhausted (e.g. when the fast engine is overloaded and all
+ * the requests are late, hedging would only double the load).
+ *
+ * The requests run on a bounded pool of threads per engine, a request finding the fast engine's threads and
+ * queue full fails with an {@link IOException} and a hedge finding the thorough engine's full isn't sent. As the
+ * loser keeps reading the frame after {@link #process(MicrFrame)} returns, the frame is copied first
+ * ({@link #setCopyFrames(boolean)}).
+ *
+ * The engines must be able to run at the same time: at least one of them is a {@link MicrProcessEngine} or a
+ * {@link MicrWorkerPool}. Thread-safe if both engines are.
+ */
+public final class MicrHedgedEngine implements MicrEngine {
+
+    private static final int LATENCY_WINDOW = 256;
+    private static final int MIN_LATENCY_SAMPLES = 32;
+    private static final float MAX_TOKENS = 10.f;
+
+    private final MicrEngine mFast;
+    private final MicrEngine mThorough;
+    private final ExecutorService mFastExecutor;
+    private final ExecutorService mThoroughExecutor;
+    private volatile boolean mCopyFrames = true;
+    private volatile float mDelayPercentile = 0.95f;
+    private volatile long mInitialDelayNanos = TimeUnit.MILLISECONDS.toNanos(100);
+    private volatile float mMinConfidence = 0.f;
+    private volatile boolean mHedgeOnNoZone = false;
+    private volatile float mHedgeBudget = 0.05f;
+
+    private final ThreadLocal<MicrResultParser> mParser = ThreadLocal.withInitial(MicrResultParser::new);
+    private final long mLatencies[] = new long[LATENCY_WINDOW];
+    private int mLatencyIndex;
+    private int mLatencyCount;
+    private volatile long mDelayNanos = -1;
+    private float mTokens = 1.f;
+
+    private final AtomicLong mNumProcessed = new AtomicLong();
+    private final AtomicLong mNumHedgedDelay = new AtomicLong();
+    private final AtomicLong mNumHedgedConfidence = new AtomicLong();
+    private final AtomicLong mNumThoroughWins = new AtomicLong();
+    private final AtomicLong mNumDenied = new AtomicLong();
+
+    /**
+     * As many requests in flight per engine as processors.
+     * @param fast The engine processing every frame (e.g. "segmenter_accuracy": "low").
+     * @param thorough The engine processing the hedged frames (e.g. "segmenter_accuracy": "high").
+     */
+    public MicrHedgedEngine(final MicrEngine fast, final MicrEngine thorough) {
+        this(fast, thorough, Math.max(2, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * @param fast The engine processing every frame (e.g. "segmenter_accuracy": "low").
+     * @param thorough The engine processing the hedged frames (e.g. "segmenter_accuracy": "high").
+     * @param numThreads Number of requests processed at the same time per engine, as many more can wait.
+     */
+    public MicrHedgedEngine(final MicrEngine fast, final MicrEngine thorough, final int numThreads) {
+        if (fast == null || thorough == null) {
+            throw new IllegalArgumentException("Both engines are required");
+        }
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("numThreads must be >= 1");
+        }
+        mFast = fast;
+        mThorough = thorough;
+        final AtomicInteger index = new AtomicInteger();
+        mFastExecutor = newExecutor(numThreads, index);
+        mThoroughExecutor = newExecutor(numThreads, index);
+    }
+
+    private static ExecutorService newExecutor(final int numThreads, final AtomicInteger index) {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(numThreads, numThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(numThreads), r -> {
+            final Thread thread = new Thread(r, "MicrHedgedEngine-" + index.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Percentile of the fast engine's recent latencies after which a request is hedged, (0, 1). Default: 0.95.
+     */
+    public MicrHedgedEngine setDelayPercentile(final float delayPercentile) {
+        if (delayPercentile <= 0.f || delayPercentile >= 1.f) {
+            throw new IllegalArgumentException("delayPercentile must be within (0, 1)");
+        }
+        mDelayPercentile = delayPercentile;
+        synchronized (mLatencies) {
+            mDelayNanos = -1;
+        }
+        return this;
+    }
+
+    /**
+     * Hedge delay until enough latencies were measured. Default: 100 millis.
+     */
+    public MicrHedgedEngine setInitialDelay(final long initialDelayMillis) {
+        if (initialDelayMillis < 0) {
+            throw new IllegalArgumentException("initialDelayMillis must be >= 0");
+        }
+        mInitialDelayNanos = TimeUnit.MILLISECONDS.toNanos(initialDelayMillis);
+        return this;
+    }
+
+    /**
+     * Recognition confidence (percent) below which a result from the fast engine is hedged. Default: 0 (disabled).
+     */
+    public MicrHedgedEngine setMinConfidence(final float minConfidence) {
+        if (minConfidence < 0.f || minConfidence > 100.f) {
+            throw new IllegalArgumentException("minConfidence must be within [0, 100]");
+        }
+        mMinConfidence = minConfidence;
+        return this;
+    }
+
+    /**
+     * Whether a result without zone from the fast engine is hedged. Default: false.
+     */
+    public MicrHedgedEngine setHedgeOnNoZone(final boolean hedgeOnNoZone) {
+        mHedgeOnNoZone = hedgeOnNoZone;
+        return this;
+    }
+
+    /**
+     * Maximum extra load, in hedges per request, [0, 1]. Default: 0.05 (at most 5% more inferences, bursts of 10).
+     */
+    public MicrHedgedEngine setHedgeBudget(final float hedgeBudget) {
+        if (hedgeBudget < 0.f || hedgeBudget > 1.f) {
+            throw new IllegalArgumentException("hedgeBudget must be within [0, 1]");
+        }
+        mHedgeBudget = hedgeBudget;
+        return this;
+    }
+
+    /**
+     * Whether the frames are copied ({@link MicrFrame#copy()}) before being sent to the engines: the loser of a
+     * hedge is still reading its frame when {@link #process(MicrFrame)} returns. Disable only if the caller never
+     * modifies a frame after processing it. Default: true.
+     */
+    public MicrHedgedEngine setCopyFrames(final boolean copyFrames) {
+        mCopyFrames = copyFrames;
+        return this;
+    }
+
+    @Override
+    public MicrResult process(final MicrFrame original) throws IOException {
+        mNumProcessed.incrementAndGet();
+        earnToken();
+        final MicrFrame frame = mCopyFrames ? original.copy() : original;
+        final long start = System.nanoTime();
+        final CompletableFuture<MicrResult> fast = submit(mFastExecutor, mFast, frame);
+        fast.thenRun(() -> addLatency(System.nanoTime() - start));
+
+        MicrResult fastResult;
+        try {
+            fastResult = fast.get(getDelayNanos(), TimeUnit.NANOSECONDS);
+        }
+        catch (final TimeoutException e) {
+            if (!spendToken()) {
+                return await(fast);
+            }
+            mNumHedgedDelay.incrementAndGet();
+            return race(fast, submit(mThoroughExecutor, mThorough, frame));
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the result");
+        }
+        catch (final ExecutionException e) {
+            return await(fast); // Unwraps the error
+        }
+
+        if (isAcceptable(fastResult) || !spendToken()) {
+            return fastResult;
+        }
+        mNumHedgedConfidence.incrementAndGet();
+        final MicrResult thoroughResult = mThorough.process(frame);
+        if (!thoroughResult.isOK() || (thoroughResult.numZones() == 0 && fastResult.numZones() > 0)) {
+            return fastResult;
+        }
+        mNumThoroughWins.incrementAndGet();
+        return thoroughResult;
+    }
+
+    /**
+     * First acceptable result of two running requests, the thorough one being acceptable if it succeeded.
+     */
+    private MicrResult race(final CompletableFuture<MicrResult> fast, final CompletableFuture<MicrResult> thorough) throws IOException {
+        try {
+            CompletableFuture.anyOf(fast, thorough).handle((r, e) -> null).get();
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the result");
+        }
+        catch (final ExecutionException e) {
+            throw new IllegalStateException(e); // Not reached: handle() never completes exceptionally
+        }
+        if (fast.isDone() && !fast.isCompletedExceptionally()) {
+            final MicrResult fastResult = fast.join();
+            if (isAcceptable(fastResult)) {
+                return fastResult;
+            }
+            try {
+                final MicrResult thoroughResult = await(thorough);
+                if (thoroughResult.isOK()) {
+                    mNumThoroughWins.incrementAndGet();
+                    return thoroughResult;
+                }
+            }
+            catch (final IOException e) {
+                // Use the fast result
+            }
+            return fastResult;
+        }
+        // The thorough result came first or the fast request failed
+        try {
+            final MicrResult thoroughResult = await(thorough);
+            if (thoroughResult.isOK()) {
+                mNumThoroughWins.incrementAndGet();
+                return thoroughResult;
+            }
+        }
+        catch (final IOException e) {
+            if (fast.isCompletedExceptionally()) {
+                throw e;
+            }
+        }
+        return await(fast);
+    }
+
+    private boolean isAcceptable(final MicrResult result) {
+        if (!result.isOK()) {
+            return false;
+        }
+        if (result.numZones() == 0) {
+            return !mHedgeOnNoZone;
+        }
+        final float minConfidence = mMinConfidence;
+        if (minConfidence > 0.f) {
+            final MicrResultParser parser = mParser.get().parse(result.json());
+            for (int i = 0; i < parser.getNumZones(); ++i) {
+                if (parser.getZone(i).getRecognitionConfidence() < minConfidence) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static CompletableFuture<MicrResult> submit(final ExecutorService executor, final MicrEngine engine, final MicrFrame frame) {
+        final CompletableFuture<MicrResult> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    future.complete(engine.process(frame));
+                }
+                catch (final IOException | RuntimeException e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        }
+        catch (final RejectedExecutionException e) {
+            future.completeExceptionally(new IOException(executor.isShutdown() ? "Engine closed" : "Too many requests in flight"));
+        }
+        return future;
+    }
+
+    private static MicrResult await(final CompletableFuture<MicrResult> future) throws IOException {
+        try {
+            return future.get();
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the result");
+        }
+        catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private synchronized void earnToken() {
+        mTokens = Math.min(MAX_TOKENS, mTokens + mHedgeBudget);
+    }
+
+    private synchronized boolean spendToken() {
+        if (mTokens < 1.f) {
+            mNumDenied.incrementAndGet();
+            return false;
+        }
+        mTokens -= 1.f;
+        return true;
+    }
+
+    private void addLatency(final long nanos) {
+        synchronized (mLatencies) {
+            mLatencies[mLatencyIndex] = nanos;
+            mLatencyIndex = (mLatencyIndex + 1) % LATENCY_WINDOW;
+            mLatencyCount = Math.min(mLatencyCount + 1, LATENCY_WINDOW);
+            if (mLatencyCount >= MIN_LATENCY_SAMPLES && (mDelayNanos < 0 || (mLatencyIndex & 15) == 0)) {
+                final long sorted[] = Arrays.copyOf(mLatencies, mLatencyCount);
+                Arrays.sort(sorted);
+                mDelayNanos = sorted[Math.min(mLatencyCount - 1, (int)(mDelayPercentile * mLatencyCount))];
+            }
+        }
+    }
+
+    /**
+     * Current hedge delay: the percentile of the fast engine's recent latencies or the initial delay.
+     */
+    public long getDelayNanos() {
+        final long delay = mDelayNanos;
+        return delay < 0 ? mInitialDelayNanos : delay;
+    }
+
+    @Override
+    public MicrResult warmUp(final ULTMICR_SDK_IMAGE_TYPE imageType) throws IOException {
+        final MicrResult result = mFast.warmUp(imageType);
+        return result.isOK() ? mThorough.warmUp(imageType) : result;
+    }
+
+    /**
+     * The configuration of the fast engine.
+     */
+    @Override
+    public String getConfig() {
+        return mFast.getConfig();
+    }
+
+    @Override
+    public boolean isAlive() {
+        return !mFastExecutor.isShutdown() && mFast.isAlive() && mThorough.isAlive();
+    }
+
+    public long getNumProcessed() { return mNumProcessed.get(); }
+    public long getNumHedged() { return mNumHedgedDelay.get() + mNumHedgedConfidence.get(); }
+    /** Number of requests hedged because the fast result was late. */
+    public long getNumHedgedDelay() { return mNumHedgedDelay.get(); }
+    /** Number of requests hedged because the fast result was below the confidence target. */
+    public long getNumHedgedConfidence() { return mNumHedgedConfidence.get(); }
+    /** Number of hedged requests answered by the thorough engine. */
+    public long getNumThoroughWins() { return mNumThoroughWins.get(); }
+    /** Number of hedges refused by the budget. */
+    public long getNumDenied() { return mNumDenied.get(); }
+
+    /**
+     * Extra load: hedges per request, [0, 1].
+     */
+    public float getHedgeRate() {
+        final long processed = getNumProcessed();
+        return processed == 0 ? 0.f : getNumHedged() / (float)processed;
+    }
+
+    public void resetStats() {
+        mNumProcessed.set(0);
+        mNumHedgedDelay.set(0);
+        mNumHedgedConfidence.set(0);
+        mNumThoroughWins.set(0);
+        mNumDenied.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("processed=%d, hedged=%d (%.1f%%: delay=%d, confidence=%d), thorough wins=%d, denied=%d, delay=%.2f millis",
+                getNumProcessed(), getNumHedged(), getHedgeRate() * 100.f, getNumHedgedDelay(), getNumHedgedConfidence(),
+                getNumThoroughWins(), getNumDenied(), getDelayNanos() / 1e6);
+    }
+
+    /**
+     * Waits for the running requests then closes both engines.
+     */
+    @Override
+    public void close() {
+        mFastExecutor.shutdown();
+        mThoroughExecutor.shutdown();
+        try {
+            final long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(1);
+            if (mFastExecutor.awaitTermination(1, TimeUnit.MINUTES)) {
+                mThoroughExecutor.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            }
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            mFast.close();
+        }
+        finally {
+            mThorough.close();
+        }
+    }
+}
@@ -0,0 +1,468 @@
+/*
+ * Copyright (C) 2016-2020 Doubango AI <https://www.doubango.org>
+ * License: For non-commercial use only
+ * Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+ * WebSite: https://www.doubango.org/webapps/micr/
+ */
+package org.doubango.ultimateMicr.Service;
+
+import org.doubango.ultimateMicr.Sdk.ULTMICR_SDK_IMAGE_TYPE;
+import org.doubango.ultimateMicr.Utils.MicrFrame;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Releases the engine (deInit: models, CPU/GPU buffers) after an idle period and initializes it again, with
+ * warm-up for the image types already seen, on the next request (cold start).
+ *
+ * Pre-warm (optional): the activity is recorded per slot of a cycle (by default 96 slots of 15 minutes in a day)
+ * and a slot with traffic in at least half of the cycles observed is predicted active, the quiet cycles since the
+ * engine was opened included. The engine is initialized ahead of a predicted active slot and isn't released during
+ * one. An engine found dead (e.g. crashed worker process) is released and initialized again on the next request.
+ *
+ * The cold-start time (init + warm-up) and the latency of the requests that waited for a cold start are recorded
+ * separately from the warm requests, with the fraction of the time the engine was resident: the memory/latency
+ * trade-off of the idle timeout.
+ */
+public final class MicrIdleEngine implements MicrEngine {
+
+    private static final int LATENCY_WINDOW = 1024;
+
+    private final String mConfig;
+    private final MicrReloadableEngine.Factory mFactory;
+    private final Set<ULTMICR_SDK_IMAGE_TYPE> mWarmedUp = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService mTicker;
+    private final Object mLock = new Object();
+
+    // Guarded by mLock
+    private MicrEngine mEngine; // null while released
+    private int mInFlight;
+    private long mLastActivityNanos = System.nanoTime();
+    private long mIdleTimeoutNanos = TimeUnit.MINUTES.toNanos(5);
+    private long mPrewarmLeadMillis; // 0: disabled
+    private double mMinActiveShare = 0.5;
+    private long mCycleMillis = TimeUnit.DAYS.toMillis(1);
+    private int mSlotDays[] = new int[96]; // Number of cycles with traffic in the slot
+    private long mSlotLastCycle[] = new long[96];
+    private long mObservedSinceMillis = System.currentTimeMillis(); // Start of the activity recording
+    private boolean mClosed;
+
+    // Stats, guarded by mLock
+    private long mNumColdStarts;
+    private long mNumPrewarms;
+    private long mNumDeInits;
+    private long mColdStartNanos;
+    private long mMaxColdStartNanos;
+    private long mResidentNanos;
+    private long mResidentSinceNanos;
+    private long mResetNanos = System.nanoTime();
+    private final long mColdLatencies[] = new long[LATENCY_WINDOW];
+    private int mColdLatencyIndex;
+    private int mColdLatencyCount;
+    private final long mWarmLatencies[] = new long[LATENCY_WINDOW];
+    private int mWarmLatencyIndex;
+    private int mWarmLatencyCount;
+
+    private MicrIdleEngine(final String jsonConfig, final MicrReloadableEngine.Factory factory, final MicrEngine engine) {
+        mConfig = jsonConfig;
+        mFactory = factory;
+        mEngine = engine;
+        mResidentSinceNanos = System.nanoTime();
+        Arrays.fill(mSlotLastCycle, -1);
+        mTicker = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "MicrIdleEngine-ticker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduleTick();
+    }
+
+    /**
+     * Initializes the in-process engine ({@link MicrLocalEngine}) right away, to report the config errors early.
+     * @param jsonConfig The JSON config. More info at https://www.doubango.org/SDKs/micr/docs/Configuration_options.html
+     */
+    public static MicrIdleEngine open(final String jsonConfig) throws IOException {
+        return open(jsonConfig, MicrLocalEngine::open);
+    }
+
+    /**
+     * Initializes the engine right away, to report the config errors early.
+     * @param jsonConfig The JSON config. More info at https://www.doubango.org/SDKs/micr/docs/Configuration_options.html
+     * @param factory Creates the engine on each (re-)init.
+     */
+    public static MicrIdleEngine open(final String jsonConfig, final MicrReloadableEngine.Factory factory) throws IOException {
+        if (factory == null) {
+            throw new IllegalArgumentException("factory is null");
+        }
+        return new MicrIdleEngine(jsonConfig, factory, factory.start(jsonConfig));
+    }
+
+    /**
+     * Time without request after which the engine is released. Default: 5 minutes.
+     */
+    public MicrIdleEngine setIdleTimeout(final long timeoutMillis) {
+        if (timeoutMillis < 1) {
+            throw new IllegalArgumentException("timeoutMillis must be >= 1");
+        }
+        synchronized (mLock) {
+            mIdleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        }
+        return this;
+    }
+
+    /**
+     * Enables the pre-warm: how long before a predicted active slot the engine is initialized. Default: 0 (disabled).
+     */
+    public MicrIdleEngine setPrewarmLead(final long leadMillis) {
+        if (leadMillis < 0) {
+            throw new IllegalArgumentException("leadMillis must be >= 0");
+        }
+        synchronized (mLock) {
+            mPrewarmLeadMillis = leadMillis;
+        }
+        return this;
+    }
+
+    /**
+     * Fraction of the observed cycles a slot must have had traffic in to be predicted active. Default: 0.5.
+     */
+    public MicrIdleEngine setMinActiveShare(final double minActiveShare) {
+        if (minActiveShare <= 0 || minActiveShare > 1) {
+            throw new IllegalArgumentException("minActiveShare must be within ]0, 1]");
+        }
+        synchronized (mLock) {
+            mMinActiveShare = minActiveShare;
+        }
+        return this;
+    }
+
+    /**
+     * Activity cycle, wall clock. Default: a day of 96 slots (15 minutes). Resets the recorded activity.
+     */
+    public MicrIdleEngine setActivityCycle(final long cycleMillis, final int numSlots) {
+        if (numSlots < 1 || cycleMillis < numSlots) {
+            throw new IllegalArgumentException("numSlots must be >= 1 and cycleMillis >= numSlots");
+        }
+        synchronized (mLock) {
+            mCycleMillis = cycleMillis;
+            mSlotDays = new int[numSlots];
+            mSlotLastCycle = new long[numSlots];
+            Arrays.fill(mSlotLastCycle, -1);
+            mObservedSinceMillis = System.currentTimeMillis();
+        }
+        return this;
+    }
+
+    @Override
+    public MicrResult process(final MicrFrame frame) throws IOException {
+        mWarmedUp.add(frame.getType());
+        final long start = System.nanoTime();
+        final boolean cold[] = new boolean[1];
+        final MicrEngine engine = acquire(cold);
+        try {
+            return engine.process(frame);
+        }
+        finally {
+            release(System.nanoTime() - start, cold[0]);
+        }
+    }
+
+    /**
+     * Initializes the engine if released. Image types warmed up are warmed up again on each re-init.
+     */
+    @Override
+    public MicrResult warmUp(final ULTMICR_SDK_IMAGE_TYPE imageType) throws IOException {
+        mWarmedUp.add(imageType);
+        final MicrEngine engine = acquire(new boolean[1]);
+        try {
+            return engine.warmUp(imageType);
+        }
+        finally {
+            synchronized (mLock) {
+                --mInFlight;
+                mLastActivityNanos = System.nanoTime();
+            }
+        }
+    }
+
+    /**
+     * The engine, initialized if released or dead, counted as in use until released.
+     * @param cold Set to true if initialized by this call.
+     */
+    private MicrEngine acquire(final boolean cold[]) throws IOException {
+        synchronized (mLock) {
+            if (mClosed) {
+                throw new IOException("Engine closed");
+            }
+            recordActivity(System.currentTimeMillis());
+            if (mEngine != null && !mEngine.isAlive()) {
+                stop(); // The requests still holding it fail anyway
+            }
+            if (mEngine == null) {
+                start();
+                ++mNumColdStarts;
+                cold[0] = true;
+            }
+            ++mInFlight;
+            mLastActivityNanos = System.nanoTime();
+            return mEngine;
+        }
+    }
+
+    private void release(final long latencyNanos, final boolean cold) {
+        synchronized (mLock) {
+            --mInFlight;
+            mLastActivityNanos = System.nanoTime();
+            if (cold) {
+                mColdLatencies[mColdLatencyIndex] = latencyNanos;
+                mColdLatencyIndex = (mColdLatencyIndex + 1) % LATENCY_WINDOW;
+                mColdLatencyCount = Math.min(mColdLatencyCount + 1, LATENCY_WINDOW);
+            }
+            else {
+                mWarmLatencies[mWarmLatencyIndex] = latencyNanos;
+                mWarmLatencyIndex = (mWarmLatencyIndex + 1) % LATENCY_WINDOW;
+                mWarmLatencyCount = Math.min(mWarmLatencyCount + 1, LATENCY_WINDOW);
+            }
+        }
+    }
+
+    /**
+     * Init + warm-up. Called with the lock held: the requests arriving meanwhile wait for the engine.
+     */
+    private void start() throws IOException {
+        final long start = System.nanoTime();
+        final MicrEngine engine = mFactory.start(mConfig);
+        try {
+            for (ULTMICR_SDK_IMAGE_TYPE imageType : mWarmedUp) {
+                engine.warmUp(imageType);
+            }
+        }
+        catch (final IOException | RuntimeException e) {
+            engine.close();
+            throw e;
+        }
+        final long end = System.nanoTime();
+        mEngine = engine;
+        mResidentSinceNanos = end;
+        mColdStartNanos += end - start;
+        mMaxColdStartNanos = Math.max(mMaxColdStartNanos, end - start);
+    }
+
+    /**
+     * Called with the lock held.
+     */
+    private void stop() {
+        mEngine.close();
+        mEngine = null;
+        mResidentNanos += System.nanoTime() - Math.max(mResidentSinceNanos, mResetNanos);
+    }
+
+    private void scheduleTick() {
+        final long tickMillis;
+        synchronized (mLock) {
+            final long slotMillis = mCycleMillis / mSlotDays.length;
+            tickMillis = Math.max(10L, Math.min(1000L, Math.min(TimeUnit.NANOSECONDS.toMillis(mIdleTimeoutNanos), slotMillis) / 4));
+        }
+        try {
+            mTicker.schedule(this::tick, tickMillis, TimeUnit.MILLISECONDS);
+        }
+        catch (final RejectedExecutionException e) {
+            // Closed
+        }
+    }
+
+    private void tick() {
+        synchronized (mLock) {
+            if (mClosed) {
+                return;
+            }
+            final long now = System.currentTimeMillis();
+            final boolean predicted = mPrewarmLeadMillis > 0 && (isPredictedActive(now) || isPredictedActive(now + mPrewarmLeadMillis));
+            if (mEngine != null && mInFlight == 0 && !mEngine.isAlive()) {
+                stop(); // Dead, initialized again below if predicted active or on the next request
+            }
+            if (mEngine != null) {
+                if (mInFlight == 0 && !predicted && System.nanoTime() - mLastActivityNanos >= mIdleTimeoutNanos) {
+                    stop();
+                    ++mNumDeInits;
+                }
+            }
+            else if (predicted) {
+                try {
+                    start();
+                    ++mNumPrewarms;
+                    mLastActivityNanos = System.nanoTime();
+                }
+                catch (final IOException | RuntimeException e) {
+                    // Lazy init on the next request
+                }
+            }
+        }
+        scheduleTick();
+    }
+
+    /**
+     * Called with the lock held.
+     */
+    private void recordActivity(final long epochMillis) {
+        final long cycle = epochMillis / mCycleMillis;
+        final int slot = slot(epochMillis);
+        if (mSlotLastCycle[slot] != cycle) {
+            mSlotLastCycle[slot] = cycle;
+            ++mSlotDays[slot];
+        }
+    }
+
+    private int slot(final long epochMillis) {
+        return (int)((epochMillis % mCycleMillis) * mSlotDays.length / mCycleMillis);
+    }
+
+    /**
+     * Called with the lock held.
+     */
+    private boolean isPredictedActive(final long epochMillis) {
+        final int slot = slot(epochMillis);
+        final int days = mSlotDays[slot];
+        return days > 0 && days >= mMinActiveShare * getNumObservedCycles(slot, System.currentTimeMillis());
+    }
+
+    /**
+     * Number of cycles whose slot was observed, with or without traffic: from the start of the recording to now,
+     * without the first cycle if the slot had already passed and the current one if it's yet to come.
+     * Called with the lock held.
+     */
+    private long getNumObservedCycles(final int slot, final long nowMillis) {
+        final long first = mObservedSinceMillis / mCycleMillis;
+        final long current = nowMillis / mCycleMillis;
+        long cycles = current - first + 1;
+        if (slot < slot(mObservedSinceMillis)) {
+            --cycles;
+        }
+        if (slot > slot(nowMillis)) {
+            --cycles;
+        }
+        return Math.max(1, cycles);
+    }
+
+    @Override
+    public String getConfig() {
+        return mConfig;
+    }
+
+    /**
+     * Whether the engine can process frames, initialized or not: a dead engine is initialized again.
+     */
+    @Override
+    public boolean isAlive() {
+        synchronized (mLock) {
+            return !mClosed;
+        }
+    }
+
+    /**
+     * Whether the engine is currently initialized.
+     */
+    public boolean isResident() {
+        synchronized (mLock) {
+            return mEngine != null;
+        }
+    }
+
+    /** Number of inits triggered by a request. */
+    public long getNumColdStarts() { synchronized (mLock) { return mNumColdStarts; } }
+    /** Number of inits ahead of a predicted active slot. */
+    public long getNumPrewarms() { synchronized (mLock) { return mNumPrewarms; } }
+    /** Number of releases after the idle timeout. */
+    public long getNumDeInits() { synchronized (mLock) { return mNumDeInits; } }
+
+    /**
+     * Mean init + warm-up time, cold starts and pre-warms, in nanoseconds.
+     */
+    public double getMeanColdStartNanos() {
+        synchronized (mLock) {
+            final long starts = mNumColdStarts + mNumPrewarms;
+            return starts == 0 ? 0 : mColdStartNanos / (double)starts;
+        }
+    }
+
+    public long getMaxColdStartNanos() { synchronized (mLock) { return mMaxColdStartNanos; } }
+
+    /**
+     * Fraction of the time the engine was initialized since the stats were reset, within [0, 1].
+     */
+    public double getResidentFraction() {
+        synchronized (mLock) {
+            final long now = System.nanoTime();
+            final long resident = mResidentNanos + (mEngine != null ? now - Math.max(mResidentSinceNanos, mResetNanos) : 0);
+            return now <= mResetNanos ? 0 : Math.min(1.0, resident / (double)(now - mResetNanos));
+        }
+    }
+
+    /**
+     * Percentile of the latency of the last 1024 requests that waited for a cold start, in nanoseconds.
+     * @param percentile Within [0, 1].
+     */
+    public long getColdLatencyPercentile(final float percentile) {
+        final long sorted[];
+        synchronized (mLock) {
+            sorted = Arrays.copyOf(mColdLatencies, mColdLatencyCount);
+        }
+        return percentile(sorted, percentile);
+    }
+
+    /**
+     * Percentile of the latency of the last 1024 requests served by an initialized engine, in nanoseconds.
+     * @param percentile Within [0, 1].
+     */
+    public long getWarmLatencyPercentile(final float percentile) {
+        final long sorted[];
+        synchronized (mLock) {
+            sorted = Arrays.copyOf(mWarmLatencies, mWarmLatencyCount);
+        }
+        return percentile(sorted, percentile);
+    }
+
+    private static long percentile(final long sorted[], final float percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        Arrays.sort(sorted);
+        return sorted[Math.min(sorted.length - 1, (int)(percentile * sorted.length))];
+    }
+
+    public void resetStats() {
+        synchronized (mLock) {
+            mNumColdStarts = mNumPrewarms = mNumDeInits = mColdStartNanos = mMaxColdStartNanos = mResidentNanos = 0;
+            mResetNanos = System.nanoTime();
+            mColdLatencyIndex = mColdLatencyCount = mWarmLatencyIndex = mWarmLatencyCount = 0;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("resident=%.1f%%, cold starts=%d, pre-warms=%d, deInits=%d, mean cold start=%.2f millis, p99 cold=%.2f millis, p99 warm=%.2f millis",
+                getResidentFraction() * 100, getNumColdStarts(), getNumPrewarms(), getNumDeInits(), getMeanColdStartNanos() / 1e6,
+                getColdLatencyPercentile(0.99f) / 1e6, getWarmLatencyPercentile(0.99f) / 1e6);
+    }
+
+    @Override
+    public void close() {
+        mTicker.shutdownNow();
+        synchronized (mLock) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            if (mEngine != null) {
+                stop();
+            }
+        }
+    }
+}
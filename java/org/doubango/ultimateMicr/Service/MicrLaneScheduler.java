@@ -0,0 +1,486 @@
+/*
+ * Copyright (C) 2016-2020 Doubango AI <https://www.doubango.org>
+ * License: For non-commercial use only
+ * Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+ * WebSite: https://www.doubango.org/webapps/micr/
+ */
+package org.doubango.ultimateMicr.Service;
+
+import org.doubango.ultimateMicr.Sdk.ULTMICR_SDK_IMAGE_TYPE;
+import org.doubango.ultimateMicr.Utils.MicrFrame;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Request queue with priority lanes, e.g. "interactive" (mobile deposits) and "bulk" (archive reprocessing),
+ * in front of an engine.
+ *
+ * - Strict priority (default): a lane is only served when all the lanes before it are empty. With a
+ *   {@link #setMaxInFlight(int, int) limit} on the bulk lane's running requests, bulk work only fills the idle
+ *   capacity: an interactive request waits at most for the bulk requests already running.
+ * - Weighted: the lanes with queued requests share the engine according to their weights (smooth weighted
+ *   round-robin), no lane starves.
+ * Each lane has its own queue limit, a full lane rejects the new requests ({@link RejectedExecutionException}).
+ *
+ * The lanes are configured before submitting. Thread-safe.
+ */
+public final class MicrLaneScheduler implements MicrEngine {
+
+    private static final int LATENCY_WINDOW = 1024;
+
+    private final MicrEngine mEngine;
+    private final Lane mLanes[];
+    private final Thread mThreads[];
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mReady = mLock.newCondition();
+    private boolean mWeighted; // Guarded by mLock
+    private boolean mClosed; // Guarded by mLock
+
+    /**
+     * @param engine The engine, closed by {@link #close()}.
+     * @param numThreads Number of calling threads. One is enough for a {@link MicrLocalEngine}, use workers x slots
+     *                   for a {@link MicrWorkerPool}.
+     * @param lanes Names of the lanes, from the highest priority to the lowest. A lane is identified by its index.
+     */
+    public MicrLaneScheduler(final MicrEngine engine, final int numThreads, final String... lanes) {
+        if (engine == null) {
+            throw new IllegalArgumentException("engine is null");
+        }
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("numThreads must be >= 1");
+        }
+        if (lanes == null || lanes.length == 0) {
+            throw new IllegalArgumentException("At least one lane is required");
+        }
+        mEngine = engine;
+        mLanes = new Lane[lanes.length];
+        for (int i = 0; i < lanes.length; ++i) {
+            mLanes[i] = new Lane(lanes[i], numThreads);
+        }
+        mThreads = new Thread[numThreads];
+        for (int i = 0; i < numThreads; ++i) {
+            mThreads[i] = new Thread(this::serve, "MicrLaneScheduler-" + (i + 1));
+            mThreads[i].setDaemon(true);
+            mThreads[i].start();
+        }
+    }
+
+    /**
+     * Weighted (true) or strict (false) priority. Default: strict.
+     */
+    public MicrLaneScheduler setWeighted(final boolean weighted) {
+        mLock.lock();
+        try {
+            mWeighted = weighted;
+        }
+        finally {
+            mLock.unlock();
+        }
+        return this;
+    }
+
+    /**
+     * Share of the lane in weighted mode. Default: 1.
+     */
+    public MicrLaneScheduler setWeight(final int lane, final int weight) {
+        if (weight < 1) {
+            throw new IllegalArgumentException("weight must be >= 1");
+        }
+        mLock.lock();
+        try {
+            mLanes[lane].mWeight = weight;
+        }
+        finally {
+            mLock.unlock();
+        }
+        return this;
+    }
+
+    /**
+     * Maximum number of queued requests in the lane. Default: unbounded.
+     */
+    public MicrLaneScheduler setMaxQueue(final int lane, final int maxQueue) {
+        if (maxQueue < 1) {
+            throw new IllegalArgumentException("maxQueue must be >= 1");
+        }
+        mLock.lock();
+        try {
+            mLanes[lane].mMaxQueue = maxQueue;
+        }
+        finally {
+            mLock.unlock();
+        }
+        return this;
+    }
+
+    /**
+     * Maximum number of requests of the lane processed at the same time. Default: the number of threads.
+     */
+    public MicrLaneScheduler setMaxInFlight(final int lane, final int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be >= 1");
+        }
+        mLock.lock();
+        try {
+            mLanes[lane].mMaxInFlight = maxInFlight;
+            mReady.signalAll();
+        }
+        finally {
+            mLock.unlock();
+        }
+        return this;
+    }
+
+    /**
+     * Queues the frame in the lane.
+     * @return The result. Completes exceptionally with a {@link RejectedExecutionException} if the lane is full or
+     * an {@link IOException} if the engine isn't reachable.
+     */
+    public CompletableFuture<MicrResult> submit(final int lane, final MicrFrame frame) {
+        final Lane target = mLanes[lane];
+        final Request request = new Request(frame);
+        mLock.lock();
+        try {
+            ++target.mNumSubmitted;
+            if (mClosed) {
+                request.mFuture.completeExceptionally(new IOException("Engine closed"));
+            }
+            else if (target.mQueue.size() >= target.mMaxQueue) {
+                ++target.mNumRejected;
+                request.mFuture.completeExceptionally(new RejectedExecutionException("Lane '" + target.mName + "' is full"));
+            }
+            else {
+                target.mQueue.add(request);
+                mReady.signal();
+            }
+        }
+        finally {
+            mLock.unlock();
+        }
+        return request.mFuture;
+    }
+
+    private void serve() {
+        while (true) {
+            Lane lane;
+            Request request;
+            mLock.lock();
+            try {
+                while ((lane = next()) == null) {
+                    if (mClosed && isEmpty()) {
+                        mReady.signalAll();
+                        return;
+                    }
+                    mReady.awaitUninterruptibly();
+                }
+                request = lane.mQueue.poll();
+                ++lane.mInFlight;
+                lane.addQueueTime(System.nanoTime() - request.mSubmittedNanos);
+            }
+            finally {
+                mLock.unlock();
+            }
+
+            MicrResult result = null;
+            Exception error = null;
+            try {
+                result = mEngine.process(request.mFrame);
+            }
+            catch (final IOException | RuntimeException e) {
+                error = e;
+            }
+            mLock.lock();
+            try {
+                --lane.mInFlight;
+                lane.addLatency(System.nanoTime() - request.mSubmittedNanos);
+                mReady.signal(); // The lane may have been at its in-flight limit
+            }
+            finally {
+                mLock.unlock();
+            }
+            if (error != null) {
+                request.mFuture.completeExceptionally(error);
+            }
+            else {
+                request.mFuture.complete(result);
+            }
+        }
+    }
+
+    /**
+     * @return The lane to serve or null if none is eligible. Called with the lock held.
+     */
+    private Lane next() {
+        if (!mWeighted) {
+            for (Lane lane : mLanes) {
+                if (!lane.mQueue.isEmpty()) {
+                    // Strict: a lower lane never overtakes a waiting higher one, even when the latter is at its limit
+                    return lane.mInFlight < lane.mMaxInFlight ? lane : null;
+                }
+            }
+            return null;
+        }
+        // Smooth weighted round-robin among the eligible lanes
+        Lane best = null;
+        int total = 0;
+        for (Lane lane : mLanes) {
+            if (!lane.mQueue.isEmpty() && lane.mInFlight < lane.mMaxInFlight) {
+                lane.mCurrentWeight += lane.mWeight;
+                total += lane.mWeight;
+                if (best == null || lane.mCurrentWeight > best.mCurrentWeight) {
+                    best = lane;
+                }
+            }
+        }
+        if (best != null) {
+            best.mCurrentWeight -= total;
+        }
+        return best;
+    }
+
+    private boolean isEmpty() {
+        for (Lane lane : mLanes) {
+            if (!lane.mQueue.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Processes the frame in the highest priority lane.
+     */
+    @Override
+    public MicrResult process(final MicrFrame frame) throws IOException {
+        return process(0, frame);
+    }
+
+    /**
+     * Same as {@link #submit(int, MicrFrame)}, waiting for the result.
+     */
+    public MicrResult process(final int lane, final MicrFrame frame) throws IOException {
+        try {
+            return submit(lane, frame).get();
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the result");
+        }
+        catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    @Override
+    public MicrResult warmUp(final ULTMICR_SDK_IMAGE_TYPE imageType) throws IOException {
+        return mEngine.warmUp(imageType);
+    }
+
+    @Override
+    public String getConfig() {
+        return mEngine.getConfig();
+    }
+
+    @Override
+    public boolean isAlive() {
+        mLock.lock();
+        try {
+            return !mClosed && mEngine.isAlive();
+        }
+        finally {
+            mLock.unlock();
+        }
+    }
+
+    public int getNumLanes() { return mLanes.length; }
+    public String getLaneName(final int lane) { return mLanes[lane].mName; }
+
+    public int getQueueDepth(final int lane) {
+        mLock.lock();
+        try {
+            return mLanes[lane].mQueue.size();
+        }
+        finally {
+            mLock.unlock();
+        }
+    }
+
+    public long getNumSubmitted(final int lane) {
+        mLock.lock();
+        try {
+            return mLanes[lane].mNumSubmitted;
+        }
+        finally {
+            mLock.unlock();
+        }
+    }
+
+    /** Number of requests rejected because the lane was full. */
+    public long getNumRejected(final int lane) {
+        mLock.lock();
+        try {
+            return mLanes[lane].mNumRejected;
+        }
+        finally {
+            mLock.unlock();
+        }
+    }
+
+    public long getNumCompleted(final int lane) {
+        mLock.lock();
+        try {
+            return mLanes[lane].mNumCompleted;
+        }
+        finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Mean time spent queued, in nanoseconds.
+     */
+    public double getMeanQueueNanos(final int lane) {
+        mLock.lock();
+        try {
+            final Lane l = mLanes[lane];
+            return l.mNumStarted == 0 ? 0 : l.mQueueNanos / (double)l.mNumStarted;
+        }
+        finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Percentile of the latency (queue + processing) of the last 1024 requests of the lane, in nanoseconds.
+     * @param percentile Within [0, 1].
+     */
+    public long getLatencyPercentile(final int lane, final float percentile) {
+        final long sorted[];
+        mLock.lock();
+        try {
+            final Lane l = mLanes[lane];
+            sorted = Arrays.copyOf(l.mLatencies, l.mLatencyCount);
+        }
+        finally {
+            mLock.unlock();
+        }
+        if (sorted.length == 0) {
+            return 0;
+        }
+        Arrays.sort(sorted);
+        return sorted[Math.min(sorted.length - 1, (int)(percentile * sorted.length))];
+    }
+
+    public void resetStats() {
+        mLock.lock();
+        try {
+            for (Lane lane : mLanes) {
+                lane.mNumSubmitted = lane.mNumRejected = lane.mNumStarted = lane.mNumCompleted = lane.mQueueNanos = 0;
+                lane.mLatencyCount = lane.mLatencyIndex = 0;
+            }
+        }
+        finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < mLanes.length; ++i) {
+            builder.append(String.format("%s%s: queued=%d, completed=%d, rejected=%d, mean queue=%.2f millis, p50=%.2f millis, p99=%.2f millis",
+                    i == 0 ? "" : "; ", mLanes[i].mName, getQueueDepth(i), getNumCompleted(i), getNumRejected(i), getMeanQueueNanos(i) / 1e6,
+                    getLatencyPercentile(i, 0.50f) / 1e6, getLatencyPercentile(i, 0.99f) / 1e6));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Processes the queued requests then closes the engine.
+     */
+    @Override
+    public void close() {
+        mLock.lock();
+        try {
+            mClosed = true;
+            mReady.signalAll();
+        }
+        finally {
+            mLock.unlock();
+        }
+        for (Thread thread : mThreads) {
+            try {
+                thread.join(TimeUnit.MINUTES.toMillis(1));
+            }
+            catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        mEngine.close();
+    }
+
+    /**
+     * Guarded by mLock.
+     */
+    private static final class Lane {
+        final String mName;
+        final ArrayDeque<Request> mQueue = new ArrayDeque<>();
+        int mWeight = 1;
+        int mCurrentWeight;
+        int mMaxQueue = Integer.MAX_VALUE;
+        int mMaxInFlight;
+        int mInFlight;
+        long mNumSubmitted;
+        long mNumRejected;
+        long mNumStarted;
+        long mNumCompleted;
+        long mQueueNanos;
+        final long mLatencies[] = new long[LATENCY_WINDOW];
+        int mLatencyIndex;
+        int mLatencyCount;
+
+        Lane(final String name, final int maxInFlight) {
+            mName = name;
+            mMaxInFlight = maxInFlight;
+        }
+
+        void addQueueTime(final long nanos) {
+            ++mNumStarted;
+            mQueueNanos += nanos;
+        }
+
+        void addLatency(final long nanos) {
+            ++mNumCompleted;
+            mLatencies[mLatencyIndex] = nanos;
+            mLatencyIndex = (mLatencyIndex + 1) % LATENCY_WINDOW;
+            mLatencyCount = Math.min(mLatencyCount + 1, LATENCY_WINDOW);
+        }
+    }
+
+    private static final class Request {
+        final MicrFrame mFrame;
+        final long mSubmittedNanos = System.nanoTime();
+        final CompletableFuture<MicrResult> mFuture = new CompletableFuture<>();
+
+        Request(final MicrFrame frame) {
+            mFrame = frame;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2016-2020 Doubango AI <https://www.doubango.org>
+ * License: For non-commercial use only
+ * Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+ * WebSite: https://www.doubango.org/webapps/micr/
+ */
+package org.doubango.ultimateMicr.Service;
+
+import org.doubango.ultimateMicr.Sdk.ULTMICR_SDK_IMAGE_TYPE;
+import org.doubango.ultimateMicr.Sdk.UltMicrSdkEngine;
+import org.doubango.ultimateMicr.Utils.MicrFrame;
+
+import java.io.IOException;
+
+/**
+ * Engine running in the current process.
+ *
+ * The native engine is a process-wide singleton (static "init", "process" and "deInit"): at most one
+ * {@link MicrLocalEngine} can be open at a time. Use {@link MicrProcessEngine} to run several
+ * engines with different configurations side by side.
+ *
+ * Concurrency contract: this class is thread-safe but the native engine is not re-entrant, the calls
+ * go through a fair gate ({@link #getGate()}) letting one caller in at a time, in arrival order. The
+ * engine already uses all the cores for a single frame ("num_threads"), the callers only add queue time.
+ * Use a {@link MicrWorkerPool} to process several frames in parallel.
+ */
+public final class MicrLocalEngine implements MicrEngine {
+
+    private static final MicrFairGate sGate = new MicrFairGate();
+    private static MicrLocalEngine sOwner; // Guarded by sGate
+
+    private final String mConfig;
+    private volatile boolean mAlive = true;
+
+    private MicrLocalEngine(final String jsonConfig) {
+        mConfig = jsonConfig;
+    }
+
+    /**
+     * Loads the native library. Safe to call several times.
+     */
+    public static void loadLibrary() {
+        System.loadLibrary(System.getProperty("os.name").toLowerCase().contains("win") ? "ultimateMICR-SDK" : "ultimate_micr-sdk");
+    }
+
+    /**
+     * Initializes the in-process engine.
+     * @param jsonConfig The JSON config. More info at https://www.doubango.org/SDKs/micr/docs/Configuration_options.html
+     * @return The engine. Must be closed to allow opening a new one.
+     * @throws IOException if the initialization failed.
+     * @throws IllegalStateException if another in-process engine is already open.
+     */
+    public static MicrLocalEngine open(final String jsonConfig) throws IOException {
+        sGate.enter();
+        try {
+            if (sOwner != null) {
+                throw new IllegalStateException("The in-process engine is already open, use MicrProcessEngine for additional engines");
+            }
+            final MicrResult result = MicrResult.from(UltMicrSdkEngine.init(jsonConfig));
+            if (!result.isOK()) {
+                throw new IOException("Init failed: " + result.phrase());
+            }
+            sOwner = new MicrLocalEngine(jsonConfig);
+            return sOwner;
+        }
+        finally {
+            sGate.exit();
+        }
+    }
+
+    /**
+     * The gate serializing the calls to the native engine, with its queue-time statistics.
+     */
+    public static MicrFairGate getGate() {
+        return sGate;
+    }
+
+    @Override
+    public MicrResult process(final MicrFrame frame) throws IOException {
+        sGate.enter();
+        try {
+            checkAlive();
+            return MicrResult.from(frame.process());
+        }
+        finally {
+            sGate.exit();
+        }
+    }
+
+    @Override
+    public MicrResult warmUp(final ULTMICR_SDK_IMAGE_TYPE imageType) throws IOException {
+        sGate.enter();
+        try {
+            checkAlive();
+            return MicrResult.from(UltMicrSdkEngine.warmUp(imageType));
+        }
+        finally {
+            sGate.exit();
+        }
+    }
+
+    @Override
+    public String getConfig() {
+        return mConfig;
+    }
+
+    @Override
+    public boolean isAlive() {
+        return mAlive;
+    }
+
+    /**
+     * Waits for the calls already queued then deInitializes the engine.
+     */
+    @Override
+    public void close() {
+        sGate.enterUninterruptibly();
+        try {
+            if (!mAlive) {
+                return;
+            }
+            mAlive = false;
+            sOwner = null;
+            UltMicrSdkEngine.deInit().delete();
+        }
+        finally {
+            sGate.exit();
+        }
+    }
+
+    private void checkAlive() throws IOException {
+        if (!mAlive) {
+            throw new IOException("Engine closed");
+        }
+    }
+}
@@ -0,0 +1,385 @@
+/*
+ * Copyright (C) 2016-2020 Doubango AI <https://www.doubango.org>
+ * License: For non-commercial use only
+ * Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+ * WebSite: https://www.doubango.org/webapps/micr/
+ */
+package org.doubango.ultimateMicr.Service;
+
+import org.doubango.ultimateMicr.Sdk.ULTMICR_SDK_IMAGE_TYPE;
+import org.doubango.ultimateMicr.Utils.MicrFrame;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Engine running in a dedicated child JVM ({@link MicrWorker}).
+ *
+ * The native engine is a process-wide singleton, running it in a child process is the only way to
+ * have several engines with their own configuration, thread budget ("num_threads") and models used
+ * concurrently.
+ *
+ * The frames are copied once into a memory-mapped file shared with the worker ({@link MicrSharedRing})
+ * which hands the mapped pixels to the engine and writes the result back next to them. Up to
+ * {@link MicrWorkerOptions#getSlots()} frames can be queued: the worker processes them one at a time but
+ * the copy of the next frame overlaps the processing of the current one. This class is thread-safe.
+ *
+ * The child JVM uses the same classpath and "java.library.path" as the current one.
+ */
+public final class MicrProcessEngine implements MicrEngine {
+
+    static final int CONNECT_TIMEOUT_MILLIS = 60000;
+    static final int SHUTDOWN_TIMEOUT_MILLIS = 5000;
+
+    private final String mConfig;
+    private final Process mProcess;
+    private final Socket mSocket;
+    private final DataInputStream mIn;
+    private final DataOutputStream mOut;
+    private final MicrSharedRing mRing;
+    private final Semaphore mSlotPermits;
+    private final ArrayDeque<Integer> mFreeSlots = new ArrayDeque<>();
+    private final ConcurrentLinkedQueue<Call> mPending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger mInFlight = new AtomicInteger();
+    private byte mScratch[];
+    private volatile boolean mAlive = true;
+
+    private interface Payload {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Request waiting for its reply. Completed by the reader thread.
+     */
+    private static final class Call {
+        final int mSlot;
+        private MicrResult mResult;
+        private IOException mError;
+        private boolean mDone;
+
+        Call(final int slot) {
+            mSlot = slot;
+        }
+
+        synchronized void complete(final MicrResult result, final IOException error) {
+            mResult = result;
+            mError = error;
+            mDone = true;
+            notifyAll();
+        }
+
+        /**
+         * Not interruptible: the slot can't be reused before the worker is done with it.
+         */
+        synchronized MicrResult await() throws IOException {
+            boolean interrupted = false;
+            while (!mDone) {
+                try {
+                    wait();
+                }
+                catch (final InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (mError != null) {
+                throw new IOException(mError.getMessage(), mError);
+            }
+            return mResult;
+        }
+    }
+
+    private MicrProcessEngine(final String jsonConfig, final Process process, final Socket socket, final MicrSharedRing ring) throws IOException {
+        mConfig = jsonConfig;
+        mProcess = process;
+        mSocket = socket;
+        mRing = ring;
+        mIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        mOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        mSlotPermits = new Semaphore(ring.getSlots());
+        for (int i = 0; i < ring.getSlots(); ++i) {
+            mFreeSlots.add(i);
+        }
+        final Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readReplies();
+            }
+        }, "MicrProcessEngine-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Starts a worker process and initializes its engine.
+     * @param jsonConfig The JSON config. More info at https://www.doubango.org/SDKs/micr/docs/Configuration_options.html
+     */
+    public static MicrProcessEngine start(final String jsonConfig) throws IOException {
+        return start(jsonConfig, new MicrWorkerOptions());
+    }
+
+    /**
+     * Starts a worker process and initializes its engine.
+     * @param jsonConfig The JSON config. More info at https://www.doubango.org/SDKs/micr/docs/Configuration_options.html
+     * @param jvmArgs Extra arguments for the child JVM (e.g. "-Xmx256m").
+     */
+    public static MicrProcessEngine start(final String jsonConfig, final List<String> jvmArgs) throws IOException {
+        return start(jsonConfig, new MicrWorkerOptions().setJvmArgs(jvmArgs));
+    }
+
+    /**
+     * Starts a worker process and initializes its engine.
+     * @param jsonConfig The JSON config. More info at https://www.doubango.org/SDKs/micr/docs/Configuration_options.html
+     * @param options Shared memory and child JVM options.
+     */
+    public static MicrProcessEngine start(final String jsonConfig, final MicrWorkerOptions options) throws IOException {
+        final MicrSharedRing ring = MicrSharedRing.create(options.getSlots(), options.getPixelCapacity(), options.getResultCapacity());
+        final ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        Process process = null;
+        try {
+            server.setSoTimeout(CONNECT_TIMEOUT_MILLIS);
+            final List<String> command = new ArrayList<>();
+            command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+            command.addAll(options.getJvmArgs());
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add("-Djava.library.path=" + System.getProperty("java.library.path"));
+            command.add(MicrWorker.class.getName());
+            command.add(Integer.toString(server.getLocalPort()));
+            process = new ProcessBuilder(command).inheritIO().start();
+
+            final Socket socket = server.accept();
+            socket.setTcpNoDelay(true);
+            final MicrProcessEngine engine = new MicrProcessEngine(jsonConfig, process, socket, ring);
+            MicrResult result = engine.call(MicrWorkerProtocol.OP_INIT, -1, new Payload() {
+                @Override
+                public void write(final DataOutputStream out) throws IOException {
+                    MicrWorkerProtocol.writeString(out, jsonConfig);
+                }
+            });
+            if (result.isOK()) {
+                result = engine.call(MicrWorkerProtocol.OP_MAP, -1, new Payload() {
+                    @Override
+                    public void write(final DataOutputStream out) throws IOException {
+                        MicrWorkerProtocol.writeString(out, ring.getPath());
+                        out.writeInt(ring.getSlots());
+                        out.writeInt(ring.getPixelCapacity());
+                        out.writeInt(ring.getResultCapacity());
+                    }
+                });
+            }
+            if (!result.isOK()) {
+                engine.close();
+                throw new IOException("Init failed: " + result.phrase());
+            }
+            return engine;
+        }
+        catch (final IOException e) {
+            if (process != null) {
+                process.destroyForcibly();
+            }
+            ring.close();
+            throw e;
+        }
+        finally {
+            server.close();
+        }
+    }
+
+    @Override
+    public MicrResult process(final MicrFrame frame) throws IOException {
+        checkAlive();
+        mInFlight.incrementAndGet();
+        try {
+            if (!mRing.fits(frame)) {
+                // Too large for the shared memory: pixels sent over the socket
+                return call(MicrWorkerProtocol.OP_PROCESS, -1, new Payload() {
+                    @Override
+                    public void write(final DataOutputStream out) throws IOException {
+                        mScratch = MicrWorkerProtocol.writeFrame(out, frame, mScratch);
+                    }
+                });
+            }
+            final int slot = acquireSlot();
+            try {
+                mRing.writeFrame(slot, frame);
+                return call(MicrWorkerProtocol.OP_PROCESS_SHARED, slot, new Payload() {
+                    @Override
+                    public void write(final DataOutputStream out) throws IOException {
+                        out.writeInt(slot);
+                    }
+                });
+            }
+            finally {
+                releaseSlot(slot);
+            }
+        }
+        finally {
+            mInFlight.decrementAndGet();
+        }
+    }
+
+    @Override
+    public MicrResult warmUp(final ULTMICR_SDK_IMAGE_TYPE imageType) throws IOException {
+        checkAlive();
+        return call(MicrWorkerProtocol.OP_WARMUP, -1, new Payload() {
+            @Override
+            public void write(final DataOutputStream out) throws IOException {
+                out.writeInt(imageType.swigValue());
+            }
+        });
+    }
+
+    @Override
+    public String getConfig() {
+        return mConfig;
+    }
+
+    @Override
+    public boolean isAlive() {
+        return mAlive && mProcess.isAlive();
+    }
+
+    /**
+     * Number of {@link #process(MicrFrame)} calls not completed yet (queued or running).
+     */
+    public int getInFlight() {
+        return mInFlight.get();
+    }
+
+    @Override
+    public void close() {
+        if (!mAlive) {
+            return;
+        }
+        try {
+            if (mProcess.isAlive()) {
+                call(MicrWorkerProtocol.OP_SHUTDOWN, -1, null);
+                mProcess.waitFor(SHUTDOWN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+        catch (final IOException e) {
+            // Worker already gone
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        kill();
+    }
+
+    /**
+     * Kills the worker process without deInitializing its engine. The pending calls fail.
+     */
+    void kill() {
+        mAlive = false;
+        try {
+            mSocket.close();
+        }
+        catch (final IOException e) {
+            // Ignore
+        }
+        mProcess.destroyForcibly();
+        try {
+            mRing.close();
+        }
+        catch (final IOException e) {
+            // Ignore
+        }
+    }
+
+    /**
+     * Sends a request and waits for its reply. The request is queued and written under the same lock
+     * so that the pending calls are in the order of the replies.
+     */
+    private MicrResult call(final int op, final int slot, final Payload payload) throws IOException {
+        final Call call = new Call(slot);
+        synchronized (mOut) {
+            checkAlive();
+            mPending.add(call);
+            try {
+                mOut.writeInt(op);
+                if (payload != null) {
+                    payload.write(mOut);
+                }
+                mOut.flush();
+            }
+            catch (final IOException e) {
+                kill();
+                throw e;
+            }
+        }
+        return call.await();
+    }
+
+    private void readReplies() {
+        IOException error;
+        try {
+            while (true) {
+                final int reply = mIn.readInt();
+                final Call call = mPending.poll();
+                if (call == null) {
+                    throw new IOException("Unexpected reply");
+                }
+                call.complete(reply == MicrWorkerProtocol.REPLY_SHARED ? mRing.readResult(call.mSlot) : MicrWorkerProtocol.readResult(mIn), null);
+            }
+        }
+        catch (final IOException e) {
+            error = e;
+        }
+        catch (final RuntimeException e) {
+            error = new IOException(e);
+        }
+        if (mAlive) {
+            kill();
+        }
+        final IOException exited = new IOException("Worker process exited", error);
+        Call call;
+        while ((call = mPending.poll()) != null) {
+            call.complete(null, exited);
+        }
+    }
+
+    private int acquireSlot() throws IOException {
+        try {
+            mSlotPermits.acquire();
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a slot");
+        }
+        synchronized (mFreeSlots) {
+            return mFreeSlots.poll();
+        }
+    }
+
+    private void releaseSlot(final int slot) {
+        synchronized (mFreeSlots) {
+            mFreeSlots.add(slot);
+        }
+        mSlotPermits.release();
+    }
+
+    private void checkAlive() throws IOException {
+        if (!mAlive || !mProcess.isAlive()) {
+            mAlive = false;
+            throw new IOException("Worker process is not running");
+        }
+    }
+}
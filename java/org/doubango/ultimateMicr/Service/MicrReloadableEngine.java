@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2016-2020 Doubango AI <https://www.doubango.org>
+ * License: For non-commercial use only
+ * Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+ * WebSite: https://www.doubango.org/webapps/micr/
+ */
+package org.doubango.ultimateMicr.Service;
+
+import org.doubango.ultimateMicr.Sdk.ULTMICR_SDK_IMAGE_TYPE;
+import org.doubango.ultimateMicr.Utils.MicrFrame;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Engine whose config can be changed without downtime (blue/green): {@link #reload(String)} starts a new engine
+ * with the new config next to the current one, warms it up for the image types seen in the recent traffic, switches
+ * the new requests to it atomically then waits for the requests still running on the old engine before closing it.
+ * The requests are served by the old engine during the whole init and warm-up, none fails or waits for the switch.
+ *
+ * The engines are created by a {@link Factory}, {@link MicrProcessEngine worker processes} by default: the native
+ * engine being a process-wide singleton, two {@link MicrLocalEngine}s can't coexist.
+ */
+public final class MicrReloadableEngine implements MicrEngine {
+
+    /**
+     * Creates an initialized engine.
+     */
+    public interface Factory {
+        MicrEngine start(String jsonConfig) throws IOException;
+    }
+
+    private final Factory mFactory;
+    private final AtomicReference<Generation> mCurrent = new AtomicReference<>();
+    private final Map<ULTMICR_SDK_IMAGE_TYPE, Long> mLastSeen = new ConcurrentHashMap<>(); // Image type -> nanoTime
+    private final Object mReloadLock = new Object();
+    private volatile long mRecentWindowNanos = TimeUnit.MINUTES.toNanos(10);
+    private volatile long mDrainTimeoutMillis = TimeUnit.MINUTES.toMillis(1);
+    private volatile boolean mClosed;
+
+    private final AtomicInteger mNumReloads = new AtomicInteger();
+    private final AtomicInteger mNumFailedReloads = new AtomicInteger();
+    private final AtomicLong mLastWarmUpNanos = new AtomicLong();
+    private final AtomicLong mLastDrainNanos = new AtomicLong();
+
+    private MicrReloadableEngine(final Factory factory, final MicrEngine engine) {
+        mFactory = factory;
+        mCurrent.set(new Generation(engine));
+    }
+
+    /**
+     * Starts the first engine, in a worker process.
+     * @param jsonConfig The JSON config. More info at https://www.doubango.org/SDKs/micr/docs/Configuration_options.html
+     */
+    public static MicrReloadableEngine start(final String jsonConfig) throws IOException {
+        return start(jsonConfig, MicrProcessEngine::start);
+    }
+
+    /**
+     * Starts the first engine.
+     * @param jsonConfig The JSON config. More info at https://www.doubango.org/SDKs/micr/docs/Configuration_options.html
+     * @param factory Creates the engines, e.g. {@code config -> MicrWorkerPool.start(config, 2, options)}.
+     */
+    public static MicrReloadableEngine start(final String jsonConfig, final Factory factory) throws IOException {
+        if (factory == null) {
+            throw new IllegalArgumentException("factory is null");
+        }
+        return new MicrReloadableEngine(factory, factory.start(jsonConfig));
+    }
+
+    /**
+     * How long an image type is considered part of the recent traffic, to be warmed up on reload. Default: 10 minutes.
+     */
+    public MicrReloadableEngine setRecentWindow(final long windowMillis) {
+        if (windowMillis < 1) {
+            throw new IllegalArgumentException("windowMillis must be >= 1");
+        }
+        mRecentWindowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        return this;
+    }
+
+    /**
+     * Maximum time to wait for the requests running on the old engine before closing it anyway (they then fail).
+     * Default: 1 minute.
+     */
+    public MicrReloadableEngine setDrainTimeout(final long timeoutMillis) {
+        if (timeoutMillis < 1) {
+            throw new IllegalArgumentException("timeoutMillis must be >= 1");
+        }
+        mDrainTimeoutMillis = timeoutMillis;
+        return this;
+    }
+
+    /**
+     * Switches to a new config. Returns once the old engine is closed. One reload at a time, the concurrent calls
+     * wait for their turn.
+     * @param jsonConfig The new JSON config.
+     * @throws IOException if the new engine can't be started or warmed up, the current engine is kept.
+     */
+    public void reload(final String jsonConfig) throws IOException {
+        synchronized (mReloadLock) {
+            if (mClosed) {
+                throw new IOException("Engine closed");
+            }
+            // Blue: the current engine keeps serving while green starts
+            final long start = System.nanoTime();
+            final MicrEngine engine;
+            try {
+                engine = mFactory.start(jsonConfig);
+            }
+            catch (final IOException | RuntimeException e) {
+                mNumFailedReloads.incrementAndGet();
+                throw e;
+            }
+            try {
+                for (ULTMICR_SDK_IMAGE_TYPE imageType : getRecentImageTypes()) {
+                    final MicrResult result = engine.warmUp(imageType);
+                    if (!result.isOK()) {
+                        throw new IOException("Warm-up failed for " + imageType + ": " + result.phrase());
+                    }
+                }
+            }
+            catch (final IOException | RuntimeException e) {
+                mNumFailedReloads.incrementAndGet();
+                engine.close();
+                throw e;
+            }
+            mLastWarmUpNanos.set(System.nanoTime() - start);
+
+            // Switch, then drain
+            final Generation old = mCurrent.getAndSet(new Generation(engine));
+            final long drainStart = System.nanoTime();
+            try {
+                old.drain(mDrainTimeoutMillis);
+            }
+            finally {
+                mLastDrainNanos.set(System.nanoTime() - drainStart);
+                old.mEngine.close();
+            }
+            mNumReloads.incrementAndGet();
+        }
+    }
+
+    /**
+     * The image types processed or warmed up within the recent window.
+     */
+    public List<ULTMICR_SDK_IMAGE_TYPE> getRecentImageTypes() {
+        final long now = System.nanoTime();
+        final List<ULTMICR_SDK_IMAGE_TYPE> imageTypes = new ArrayList<>();
+        for (Map.Entry<ULTMICR_SDK_IMAGE_TYPE, Long> entry : mLastSeen.entrySet()) {
+            if (now - entry.getValue() <= mRecentWindowNanos) {
+                imageTypes.add(entry.getKey());
+            }
+        }
+        return imageTypes;
+    }
+
+    @Override
+    public MicrResult process(final MicrFrame frame) throws IOException {
+        mLastSeen.put(frame.getType(), System.nanoTime());
+        final Generation generation = acquire();
+        try {
+            return generation.mEngine.process(frame);
+        }
+        finally {
+            generation.release();
+        }
+    }
+
+    @Override
+    public MicrResult warmUp(final ULTMICR_SDK_IMAGE_TYPE imageType) throws IOException {
+        mLastSeen.put(imageType, System.nanoTime());
+        final Generation generation = acquire();
+        try {
+            return generation.mEngine.warmUp(imageType);
+        }
+        finally {
+            generation.release();
+        }
+    }
+
+    /**
+     * The config of the current engine.
+     */
+    @Override
+    public String getConfig() {
+        return mCurrent.get().mEngine.getConfig();
+    }
+
+    @Override
+    public boolean isAlive() {
+        return !mClosed && mCurrent.get().mEngine.isAlive();
+    }
+
+    /**
+     * Number of successful reloads.
+     */
+    public int getNumReloads() { return mNumReloads.get(); }
+    /** Number of reloads that failed, the engine being kept. */
+    public int getNumFailedReloads() { return mNumFailedReloads.get(); }
+
+    /**
+     * Init + warm-up time of the last successful reload, in nanoseconds (served by the old engine meanwhile).
+     */
+    public long getLastWarmUpNanos() { return mLastWarmUpNanos.get(); }
+
+    /**
+     * Time spent waiting for the old engine's requests during the last reload, in nanoseconds.
+     */
+    public long getLastDrainNanos() { return mLastDrainNanos.get(); }
+
+    @Override
+    public String toString() {
+        return String.format("reloads=%d, failed=%d, last warm-up=%.2f millis, last drain=%.2f millis, recent image types=%s",
+                getNumReloads(), getNumFailedReloads(), getLastWarmUpNanos() / 1e6, getLastDrainNanos() / 1e6, getRecentImageTypes());
+    }
+
+    /**
+     * Waits for a reload in progress then closes the engine.
+     */
+    @Override
+    public void close() {
+        synchronized (mReloadLock) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            final Generation generation = mCurrent.get();
+            try {
+                generation.drain(mDrainTimeoutMillis);
+            }
+            catch (final InterruptedIOException e) {
+                // Interrupt flag restored
+            }
+            generation.mEngine.close();
+        }
+    }
+
+    /**
+     * The current engine, counted as in use until {@link Generation#release()}.
+     */
+    private Generation acquire() throws IOException {
+        while (true) {
+            if (mClosed) {
+                throw new IOException("Engine closed");
+            }
+            final Generation generation = mCurrent.get();
+            generation.mInFlight.incrementAndGet();
+            if (mCurrent.get() == generation) {
+                return generation; // Still current: the drain of a later switch waits for this request
+            }
+            generation.release(); // Switched meanwhile
+        }
+    }
+
+    /**
+     * An engine and its requests in flight.
+     */
+    private static final class Generation {
+        final MicrEngine mEngine;
+        final AtomicInteger mInFlight = new AtomicInteger();
+
+        Generation(final MicrEngine engine) {
+            mEngine = engine;
+        }
+
+        void release() {
+            if (mInFlight.decrementAndGet() == 0) {
+                synchronized (this) {
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Waits until no request is in flight. No new request can start: the generation isn't current anymore.
+         */
+        synchronized void drain(final long timeoutMillis) throws InterruptedIOException {
+            final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            long remaining;
+            while (mInFlight.get() > 0 && (remaining = deadline - System.nanoTime()) > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                }
+                catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while draining");
+                }
+            }
+        }
+    }
+}
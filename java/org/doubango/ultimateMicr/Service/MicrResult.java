@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2016-2020 Doubango AI <https://www.doubango.org>
+ * License: For non-commercial use only
+ * Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+ * WebSite: https://www.doubango.org/webapps/micr/
+ */
+package org.doubango.ultimateMicr.Service;
+
+import org.doubango.ultimateMicr.Sdk.UltMicrSdkResult;
+
+/**
+ * Immutable copy of an {@link UltMicrSdkResult}. Doesn't hold native memory which means it can
+ * be shared between threads, cached and sent across processes.
+ */
+public final class MicrResult {
+
+    private final int mCode;
+    private final String mPhrase;
+    private final String mJson;
+    private final int mNumZones;
+
+    public MicrResult(final int code, final String phrase, final String json, final int numZones) {
+        mCode = code;
+        mPhrase = phrase == null ? "" : phrase;
+        mJson = json == null ? "" : json;
+        mNumZones = numZones;
+    }
+
+    /**
+     * Copies the native result then releases it.
+     * @param result The native result. Must not be used after this call.
+     * @return The copy
+     */
+    public static MicrResult from(final UltMicrSdkResult result) {
+        try {
+            return new MicrResult(result.code(), result.phrase(), result.json(), (int)result.numZones());
+        }
+        finally {
+            result.delete();
+        }
+    }
+
+    /**
+     * The result code. 0 if success, nonzero otherwise.
+     */
+    public int code() { return mCode; }
+    public String phrase() { return mPhrase; }
+    public String json() { return mJson; }
+    public int numZones() { return mNumZones; }
+    public boolean isOK() { return mCode == 0; }
+
+    @Override
+    public String toString() {
+        return "code: " + mCode + ", phrase: " + mPhrase + ", numZones: " + mNumZones + ", json: " + mJson;
+    }
+}
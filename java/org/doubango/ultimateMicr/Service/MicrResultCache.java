@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2016-2020 Doubango AI <https://www.doubango.org>
+ * License: For non-commercial use only
+ * Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+ * WebSite: https://www.doubango.org/webapps/micr/
+ */
+package org.doubango.ultimateMicr.Service;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Content-addressed cache of results, keyed by a hash of the pixels ({@link org.doubango.ultimateMicr.Utils.MicrFrameHash})
+ * and a hash of the configuration. Used by {@link MicrCachingEngine}.
+ *
+ * Two tiers:
+ * - memory: LRU bounded by a number of entries and an estimated size in bytes.
+ * - disk (optional): memory-mapped file of fixed-size slots, direct-mapped (a key can only live in one slot,
+ *   a new key evicts the previous one). The file outlives the process: reprocessing the same archive with the
+ *   same configuration hits the cache from the first request. Results larger than a slot are only kept in memory.
+ *   The file must only be opened by one process at a time.
+ *
+ * Thread-safe.
+ */
+public final class MicrResultCache implements Closeable {
+
+    private static final int ENTRY_OVERHEAD = 64; // Rough size of the key, entry and String headers
+
+    private final int mMaxEntries;
+    private final long mMaxBytes;
+    private final LinkedHashMap<MicrContentKey, MicrResult> mMemory = new LinkedHashMap<MicrContentKey, MicrResult>(16, 0.75f, true);
+    private final DiskTier mDisk;
+    private long mBytes;
+    private long mNumMemoryHits;
+    private long mNumDiskHits;
+    private long mNumMisses;
+    private long mNumEvictions;
+
+    private MicrResultCache(final int maxEntries, final long maxBytes, final DiskTier disk) {
+        if (maxEntries < 1 || maxBytes < 1) {
+            throw new IllegalArgumentException("maxEntries and maxBytes must be >= 1");
+        }
+        mMaxEntries = maxEntries;
+        mMaxBytes = maxBytes;
+        mDisk = disk;
+    }
+
+    /**
+     * Memory-only cache.
+     * @param maxEntries Maximum number of results.
+     * @param maxBytes Maximum estimated size of the results, in bytes.
+     */
+    public static MicrResultCache inMemory(final int maxEntries, final long maxBytes) {
+        return new MicrResultCache(maxEntries, maxBytes, null);
+    }
+
+    /**
+     * Memory cache backed by a memory-mapped file. The file is reused if it was created with the same
+     * geometry, otherwise it's reset.
+     * @param maxEntries Maximum number of results in memory.
+     * @param maxBytes Maximum estimated size of the results in memory, in bytes.
+     * @param file The file.
+     * @param diskSlots Number of results on disk.
+     * @param diskSlotSize Size of a slot, in bytes (e.g. 4096). Larger results aren't written to disk.
+     */
+    public static MicrResultCache withDisk(final int maxEntries, final long maxBytes, final File file, final int diskSlots, final int diskSlotSize) throws IOException {
+        return new MicrResultCache(maxEntries, maxBytes, new DiskTier(file, diskSlots, diskSlotSize));
+    }
+
+    /**
+     * @return The result or null if not cached.
+     */
+    public synchronized MicrResult get(final long frameHash, final long configHash) {
+        final MicrContentKey key = new MicrContentKey(frameHash, configHash);
+        MicrResult result = mMemory.get(key);
+        if (result != null) {
+            ++mNumMemoryHits;
+            return result;
+        }
+        if (mDisk != null && (result = mDisk.read(frameHash, configHash)) != null) {
+            ++mNumDiskHits;
+            putMemory(key, result);
+            return result;
+        }
+        ++mNumMisses;
+        return null;
+    }
+
+    public synchronized void put(final long frameHash, final long configHash, final MicrResult result) {
+        putMemory(new MicrContentKey(frameHash, configHash), result);
+        if (mDisk != null) {
+            mDisk.write(frameHash, configHash, result);
+        }
+    }
+
+    private void putMemory(final MicrContentKey key, final MicrResult result) {
+        final MicrResult previous = mMemory.put(key, result);
+        if (previous != null) {
+            mBytes -= sizeOf(previous);
+        }
+        mBytes += sizeOf(result);
+        final Iterator<MicrResult> it = mMemory.values().iterator();
+        while ((mMemory.size() > mMaxEntries || mBytes > mMaxBytes) && it.hasNext()) {
+            final MicrResult eldest = it.next();
+            if (eldest == result) {
+                break; // Never evict the entry just added
+            }
+            mBytes -= sizeOf(eldest);
+            it.remove();
+            ++mNumEvictions;
+        }
+    }
+
+    private static long sizeOf(final MicrResult result) {
+        return ENTRY_OVERHEAD + ((long)(result.phrase().length() + result.json().length()) << 1);
+    }
+
+    /**
+     * Empties the memory tier. The disk tier is kept.
+     */
+    public synchronized void clearMemory() {
+        mMemory.clear();
+        mBytes = 0;
+    }
+
+    public synchronized int getNumEntries() { return mMemory.size(); }
+    /** Estimated size of the memory tier, in bytes. */
+    public synchronized long getBytes() { return mBytes; }
+    public synchronized long getNumHits() { return mNumMemoryHits + mNumDiskHits; }
+    public synchronized long getNumMemoryHits() { return mNumMemoryHits; }
+    public synchronized long getNumDiskHits() { return mNumDiskHits; }
+    public synchronized long getNumMisses() { return mNumMisses; }
+    /** Number of results evicted from the memory tier. */
+    public synchronized long getNumEvictions() { return mNumEvictions; }
+    /** Number of results overwritten in the disk tier. */
+    public synchronized long getNumDiskEvictions() { return mDisk == null ? 0 : mDisk.mNumEvictions; }
+
+    public synchronized float getHitRate() {
+        final long total = mNumMemoryHits + mNumDiskHits + mNumMisses;
+        return total == 0 ? 0.f : (mNumMemoryHits + mNumDiskHits) / (float)total;
+    }
+
+    public synchronized void resetStats() {
+        mNumMemoryHits = mNumDiskHits = mNumMisses = mNumEvictions = 0;
+        if (mDisk != null) {
+            mDisk.mNumEvictions = 0;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("entries=%d (%d bytes), hits=%d (memory=%d, disk=%d), misses=%d, hit rate=%.1f%%, evictions=%d (disk=%d)",
+                mMemory.size(), mBytes, mNumMemoryHits + mNumDiskHits, mNumMemoryHits, mNumDiskHits, mNumMisses, getHitRate() * 100.f,
+                mNumEvictions, getNumDiskEvictions());
+    }
+
+    /**
+     * Unmaps the disk tier (flushed by the OS). The memory tier is emptied.
+     */
+    @Override
+    public synchronized void close() {
+        clearMemory();
+        if (mDisk != null) {
+            mDisk.close();
+        }
+    }
+
+    /**
+     * File layout: [header (64 bytes)][slot]...
+     * Header: magic, version, slots, slot size.
+     * Slot: used, frame hash, config hash, code, numZones, phrase length + UTF-8 bytes, json length + UTF-8 bytes.
+     */
+    private static final class DiskTier {
+        static final int MAGIC = 0x4D494352; // "MICR"
+        static final int VERSION = 1;
+        static final int HEADER_SIZE = 64;
+        static final int SLOT_HEADER_SIZE = 4 + 8 + 8 + 4 + 4 + 4 + 4;
+
+        final RandomAccessFile mRaf;
+        final MappedByteBuffer mBuffer;
+        final int mSlots;
+        final int mSlotSize;
+        long mNumEvictions;
+
+        DiskTier(final File file, final int slots, final int slotSize) throws IOException {
+            if (slots < 1 || slotSize < SLOT_HEADER_SIZE + 64) {
+                throw new IllegalArgumentException("Invalid disk tier geometry: " + slots + " x " + slotSize);
+            }
+            final long size = HEADER_SIZE + ((long)slots * slotSize);
+            if (size > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Disk tier too large: " + size);
+            }
+            mSlots = slots;
+            mSlotSize = slotSize;
+            mRaf = new RandomAccessFile(file, "rw");
+            try {
+                final boolean reuse = mRaf.length() == size && mRaf.readInt() == MAGIC && mRaf.readInt() == VERSION
+                        && mRaf.readInt() == slots && mRaf.readInt() == slotSize;
+                if (!reuse) {
+                    mRaf.setLength(0);
+                    mRaf.setLength(size);
+                }
+                mBuffer = mRaf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+                if (!reuse) {
+                    mBuffer.putInt(0, MAGIC);
+                    mBuffer.putInt(4, VERSION);
+                    mBuffer.putInt(8, slots);
+                    mBuffer.putInt(12, slotSize);
+                }
+            }
+            catch (final IOException | RuntimeException e) {
+                mRaf.close();
+                throw e;
+            }
+        }
+
+        int base(final long frameHash, final long configHash) {
+            final long index = ((frameHash ^ (configHash * 0x9E3779B97F4A7C15L)) >>> 1) % mSlots;
+            return HEADER_SIZE + ((int)index * mSlotSize);
+        }
+
+        MicrResult read(final long frameHash, final long configHash) {
+            final int base = base(frameHash, configHash);
+            if (mBuffer.getInt(base) != 1 || mBuffer.getLong(base + 4) != frameHash || mBuffer.getLong(base + 12) != configHash) {
+                return null;
+            }
+            final int code = mBuffer.getInt(base + 20);
+            final int numZones = mBuffer.getInt(base + 24);
+            final int phraseLength = mBuffer.getInt(base + 28);
+            final int jsonLength = mBuffer.getInt(base + 32 + phraseLength);
+            final ByteBuffer buffer = mBuffer.duplicate();
+            final byte[] phrase = new byte[phraseLength];
+            buffer.position(base + 32);
+            buffer.get(phrase);
+            final byte[] json = new byte[jsonLength];
+            buffer.position(base + 36 + phraseLength);
+            buffer.get(json);
+            return new MicrResult(code, new String(phrase, StandardCharsets.UTF_8), new String(json, StandardCharsets.UTF_8), numZones);
+        }
+
+        void write(final long frameHash, final long configHash, final MicrResult result) {
+            final byte[] phrase = result.phrase().getBytes(StandardCharsets.UTF_8);
+            final byte[] json = result.json().getBytes(StandardCharsets.UTF_8);
+            if (SLOT_HEADER_SIZE + phrase.length + json.length > mSlotSize) {
+                return; // Memory only
+            }
+            final int base = base(frameHash, configHash);
+            if (mBuffer.getInt(base) == 1 && (mBuffer.getLong(base + 4) != frameHash || mBuffer.getLong(base + 12) != configHash)) {
+                ++mNumEvictions;
+            }
+            mBuffer.putInt(base, 0); // Invalid while writing
+            mBuffer.putLong(base + 4, frameHash);
+            mBuffer.putLong(base + 12, configHash);
+            mBuffer.putInt(base + 20, result.code());
+            mBuffer.putInt(base + 24, result.numZones());
+            mBuffer.putInt(base + 28, phrase.length);
+            final ByteBuffer buffer = mBuffer.duplicate();
+            buffer.position(base + 32);
+            buffer.put(phrase);
+            buffer.putInt(json.length);
+            buffer.put(json);
+            mBuffer.putInt(base, 1);
+        }
+
+        void close() {
+            try {
+                mBuffer.force();
+                mRaf.close();
+            }
+            catch (final IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,396 @@
+/*
+ * Copyright (C) 2016-2020 Doubango AI <https://www.doubango.org>
+ * License: For non-commercial use only
+ * Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+ * WebSite: https://www.doubango.org/webapps/micr/
+ */
+package org.doubango.ultimateMicr.Service;
+
+import org.doubango.ultimateMicr.Sdk.ULTMICR_SDK_IMAGE_TYPE;
+import org.doubango.ultimateMicr.Utils.MicrFrame;
+import org.doubango.ultimateMicr.Utils.MicrResultParser;
+import org.doubango.ultimateMicr.Utils.MicrZone;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shadow evaluation of a candidate engine (e.g. new "segmenter_accuracy" or SDK build, in a worker process) on live
+ * traffic: the results come from the primary engine, a sampled fraction of the frames is also processed by the
+ * shadow engine on a background thread and the two results are compared. The caller never waits for the shadow
+ * engine: the mirrored frames are dropped when the shadow backlog is full and the shadow errors are only counted.
+ *
+ * Comparison, on the mirrored frames: latency distributions of both engines, zone agreement (same zones and texts,
+ * same zones with different texts, different number of zones), character edit distance between the texts and the
+ * most recent text differences.
+ */
+public final class MicrShadowEngine implements MicrEngine {
+
+    private static final int LATENCY_WINDOW = 1024;
+    private static final int MAX_DIFFS = 32;
+
+    private final MicrEngine mPrimary;
+    private final MicrEngine mShadow;
+    private final ExecutorService mExecutor;
+    private final AtomicInteger mPending = new AtomicInteger();
+    private volatile double mSampleRate = 0.05;
+    private volatile int mMaxPending = 2;
+    private volatile boolean mCopyFrames = true;
+
+    private final AtomicLong mNumProcessed = new AtomicLong();
+    private final AtomicLong mNumMirrored = new AtomicLong();
+    private final AtomicLong mNumDropped = new AtomicLong();
+    private final AtomicLong mNumShadowErrors = new AtomicLong();
+
+    // Comparison, guarded by "this" (written by the shadow thread)
+    private final MicrResultParser mPrimaryParser = new MicrResultParser();
+    private final MicrResultParser mShadowParser = new MicrResultParser();
+    private final long mPrimaryLatencies[] = new long[LATENCY_WINDOW];
+    private final long mShadowLatencies[] = new long[LATENCY_WINDOW];
+    private int mLatencyIndex;
+    private int mLatencyCount;
+    private long mNumCompared;
+    private long mNumAgreed;
+    private long mNumTextDiffs;
+    private long mNumZoneDiffs;
+    private long mNumChars;
+    private long mNumEdits;
+    private final ArrayList<String> mDiffs = new ArrayList<>();
+    private int mDiffIndex;
+
+    /**
+     * @param primary Engine producing the results.
+     * @param shadow Candidate engine, its results are only compared. A {@link MicrProcessEngine} keeps it from
+     *               competing with the primary for the native engine.
+     * Both are closed by {@link #close()}.
+     */
+    public MicrShadowEngine(final MicrEngine primary, final MicrEngine shadow) {
+        if (primary == null || shadow == null) {
+            throw new IllegalArgumentException("primary and shadow are required");
+        }
+        mPrimary = primary;
+        mShadow = shadow;
+        mExecutor = Executors.newSingleThreadExecutor(r -> {
+            final Thread thread = new Thread(r, "MicrShadowEngine-shadow");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Fraction of the frames mirrored to the shadow engine, within [0, 1]. Default: 0.05.
+     */
+    public MicrShadowEngine setSampleRate(final double sampleRate) {
+        if (sampleRate < 0 || sampleRate > 1) {
+            throw new IllegalArgumentException("sampleRate must be within [0, 1]");
+        }
+        mSampleRate = sampleRate;
+        return this;
+    }
+
+    /**
+     * Maximum number of mirrored frames waiting for or being processed by the shadow engine, the next sampled
+     * frames are dropped. Default: 2.
+     */
+    public MicrShadowEngine setMaxPending(final int maxPending) {
+        if (maxPending < 1) {
+            throw new IllegalArgumentException("maxPending must be >= 1");
+        }
+        mMaxPending = maxPending;
+        return this;
+    }
+
+    /**
+     * Whether the mirrored frames are copied ({@link MicrFrame#copy()}) before {@link #process(MicrFrame)} returns.
+     * Disable only if the caller never modifies a frame after processing it. Default: true.
+     */
+    public MicrShadowEngine setCopyFrames(final boolean copyFrames) {
+        mCopyFrames = copyFrames;
+        return this;
+    }
+
+    @Override
+    public MicrResult process(final MicrFrame frame) throws IOException {
+        mNumProcessed.incrementAndGet();
+        final long start = System.nanoTime();
+        final MicrResult result = mPrimary.process(frame);
+        final long primaryNanos = System.nanoTime() - start;
+        if (mSampleRate > 0 && ThreadLocalRandom.current().nextDouble() < mSampleRate) {
+            mirror(frame, result, primaryNanos);
+        }
+        return result;
+    }
+
+    private void mirror(final MicrFrame frame, final MicrResult primary, final long primaryNanos) {
+        if (mPending.incrementAndGet() > mMaxPending) {
+            mPending.decrementAndGet();
+            mNumDropped.incrementAndGet();
+            return;
+        }
+        final MicrFrame mirrored = mCopyFrames ? frame.copy() : frame;
+        try {
+            mExecutor.execute(() -> {
+                try {
+                    final long start = System.nanoTime();
+                    final MicrResult shadow = mShadow.process(mirrored);
+                    final long shadowNanos = System.nanoTime() - start;
+                    if (!shadow.isOK()) {
+                        mNumShadowErrors.incrementAndGet();
+                    }
+                    else if (primary.isOK()) {
+                        compare(primary, primaryNanos, shadow, shadowNanos);
+                    }
+                }
+                catch (final IOException | RuntimeException e) {
+                    mNumShadowErrors.incrementAndGet();
+                }
+                finally {
+                    mPending.decrementAndGet();
+                }
+            });
+            mNumMirrored.incrementAndGet();
+        }
+        catch (final RejectedExecutionException e) {
+            mPending.decrementAndGet(); // Closing
+        }
+    }
+
+    private synchronized void compare(final MicrResult primary, final long primaryNanos, final MicrResult shadow, final long shadowNanos) {
+        mPrimaryLatencies[mLatencyIndex] = primaryNanos;
+        mShadowLatencies[mLatencyIndex] = shadowNanos;
+        mLatencyIndex = (mLatencyIndex + 1) % LATENCY_WINDOW;
+        mLatencyCount = Math.min(mLatencyCount + 1, LATENCY_WINDOW);
+        ++mNumCompared;
+
+        mPrimaryParser.parse(primary.json());
+        mShadowParser.parse(shadow.json());
+        final int primaryZones = mPrimaryParser.getNumZones();
+        final int shadowZones = mShadowParser.getNumZones();
+        boolean textDiff = false;
+        for (int i = 0; i < Math.max(primaryZones, shadowZones); ++i) {
+            final String primaryText = i < primaryZones ? mPrimaryParser.getZone(i).getText() : "";
+            final String shadowText = i < shadowZones ? mShadowParser.getZone(i).getText() : "";
+            mNumChars += Math.max(primaryText.length(), shadowText.length());
+            if (!primaryText.equals(shadowText)) {
+                textDiff = true;
+                mNumEdits += distance(primaryText, shadowText);
+                addDiff(String.format("primary='%s' (%s), shadow='%s' (%s)", primaryText, describe(mPrimaryParser, i, primaryZones),
+                        shadowText, describe(mShadowParser, i, shadowZones)));
+            }
+        }
+        if (primaryZones != shadowZones) {
+            ++mNumZoneDiffs;
+        }
+        else if (textDiff) {
+            ++mNumTextDiffs;
+        }
+        else {
+            ++mNumAgreed;
+        }
+    }
+
+    private static String describe(final MicrResultParser parser, final int index, final int numZones) {
+        if (index >= numZones) {
+            return "no zone";
+        }
+        final MicrZone zone = parser.getZone(index);
+        return String.format("klass %d, %.1f%%", zone.getKlass(), zone.getRecognitionConfidence());
+    }
+
+    private void addDiff(final String diff) {
+        if (mDiffs.size() < MAX_DIFFS) {
+            mDiffs.add(diff);
+        }
+        else {
+            mDiffs.set(mDiffIndex, diff);
+        }
+        mDiffIndex = (mDiffIndex + 1) % MAX_DIFFS;
+    }
+
+    /**
+     * Levenshtein distance.
+     */
+    private static int distance(final String a, final String b) {
+        int previous[] = new int[b.length() + 1];
+        int current[] = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); ++j) {
+            previous[j] = j;
+        }
+        for (int i = 1; i <= a.length(); ++i) {
+            current[0] = i;
+            for (int j = 1; j <= b.length(); ++j) {
+                current[j] = Math.min(Math.min(current[j - 1], previous[j]) + 1, previous[j - 1] + (a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1));
+            }
+            final int swap[] = previous;
+            previous = current;
+            current = swap;
+        }
+        return previous[b.length()];
+    }
+
+    /**
+     * Warms up both engines.
+     */
+    @Override
+    public MicrResult warmUp(final ULTMICR_SDK_IMAGE_TYPE imageType) throws IOException {
+        final MicrResult result = mPrimary.warmUp(imageType);
+        try {
+            mShadow.warmUp(imageType);
+        }
+        catch (final IOException e) {
+            mNumShadowErrors.incrementAndGet();
+        }
+        return result;
+    }
+
+    /**
+     * The config of the primary engine.
+     */
+    @Override
+    public String getConfig() {
+        return mPrimary.getConfig();
+    }
+
+    @Override
+    public boolean isAlive() {
+        return mPrimary.isAlive();
+    }
+
+    public long getNumProcessed() { return mNumProcessed.get(); }
+    /** Number of frames sent to the shadow engine. */
+    public long getNumMirrored() { return mNumMirrored.get(); }
+    /** Number of sampled frames not mirrored because the shadow backlog was full. */
+    public long getNumDropped() { return mNumDropped.get(); }
+    /** Number of mirrored frames the shadow engine failed to process (exception or result not OK). */
+    public long getNumShadowErrors() { return mNumShadowErrors.get(); }
+
+    /** Number of mirrored frames compared (both results OK). */
+    public synchronized long getNumCompared() { return mNumCompared; }
+    /** Number of comparisons with the same zones and texts. */
+    public synchronized long getNumAgreed() { return mNumAgreed; }
+    /** Number of comparisons with the same number of zones and different texts. */
+    public synchronized long getNumTextDiffs() { return mNumTextDiffs; }
+    /** Number of comparisons with a different number of zones. */
+    public synchronized long getNumZoneDiffs() { return mNumZoneDiffs; }
+
+    /**
+     * Fraction of the comparisons with the same zones and texts, within [0, 1].
+     */
+    public synchronized double getAgreement() {
+        return mNumCompared == 0 ? 0 : mNumAgreed / (double)mNumCompared;
+    }
+
+    /**
+     * Edit distance between the primary and shadow texts, per character, within [0, 1].
+     */
+    public synchronized double getCharDisagreement() {
+        return mNumChars == 0 ? 0 : mNumEdits / (double)mNumChars;
+    }
+
+    /**
+     * Percentile of the primary engine's latency on the last 1024 compared frames, in nanoseconds.
+     * @param percentile Within [0, 1].
+     */
+    public long getPrimaryLatencyPercentile(final float percentile) {
+        return percentile(true, percentile);
+    }
+
+    /**
+     * Percentile of the shadow engine's latency on the last 1024 compared frames, in nanoseconds.
+     * @param percentile Within [0, 1].
+     */
+    public long getShadowLatencyPercentile(final float percentile) {
+        return percentile(false, percentile);
+    }
+
+    private long percentile(final boolean primary, final float percentile) {
+        final long sorted[];
+        synchronized (this) {
+            sorted = Arrays.copyOf(primary ? mPrimaryLatencies : mShadowLatencies, mLatencyCount);
+        }
+        if (sorted.length == 0) {
+            return 0;
+        }
+        Arrays.sort(sorted);
+        return sorted[Math.min(sorted.length - 1, (int)(percentile * sorted.length))];
+    }
+
+    /**
+     * The most recent text differences (up to 32), oldest first.
+     */
+    public synchronized List<String> getRecentDiffs() {
+        final List<String> diffs = new ArrayList<>(mDiffs.size());
+        for (int i = 0; i < mDiffs.size(); ++i) {
+            diffs.add(mDiffs.get(mDiffs.size() < MAX_DIFFS ? i : (mDiffIndex + i) % MAX_DIFFS));
+        }
+        return diffs;
+    }
+
+    /**
+     * Comparison report: counters, latency distributions, agreement and recent text differences, one item per line.
+     */
+    public String getReport() {
+        final StringBuilder builder = new StringBuilder();
+        builder.append(String.format("processed=%d, mirrored=%d, dropped=%d, shadow errors=%d, compared=%d%n",
+                getNumProcessed(), getNumMirrored(), getNumDropped(), getNumShadowErrors(), getNumCompared()));
+        builder.append(String.format("primary latency: p50=%.2f, p95=%.2f, p99=%.2f millis%n",
+                getPrimaryLatencyPercentile(0.50f) / 1e6, getPrimaryLatencyPercentile(0.95f) / 1e6, getPrimaryLatencyPercentile(0.99f) / 1e6));
+        builder.append(String.format("shadow latency:  p50=%.2f, p95=%.2f, p99=%.2f millis%n",
+                getShadowLatencyPercentile(0.50f) / 1e6, getShadowLatencyPercentile(0.95f) / 1e6, getShadowLatencyPercentile(0.99f) / 1e6));
+        builder.append(String.format("agreement=%.1f%%, text diffs=%d, zone diffs=%d, char disagreement=%.2f%%%n",
+                getAgreement() * 100, getNumTextDiffs(), getNumZoneDiffs(), getCharDisagreement() * 100));
+        for (String diff : getRecentDiffs()) {
+            builder.append("  ").append(diff).append(String.format("%n"));
+        }
+        return builder.toString();
+    }
+
+    public void resetStats() {
+        mNumProcessed.set(0);
+        mNumMirrored.set(0);
+        mNumDropped.set(0);
+        mNumShadowErrors.set(0);
+        synchronized (this) {
+            mLatencyIndex = mLatencyCount = 0;
+            mNumCompared = mNumAgreed = mNumTextDiffs = mNumZoneDiffs = mNumChars = mNumEdits = 0;
+            mDiffs.clear();
+            mDiffIndex = 0;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("mirrored=%d, dropped=%d, shadow errors=%d, compared=%d, agreement=%.1f%%, p99 primary=%.2f millis, p99 shadow=%.2f millis",
+                getNumMirrored(), getNumDropped(), getNumShadowErrors(), getNumCompared(), getAgreement() * 100,
+                getPrimaryLatencyPercentile(0.99f) / 1e6, getShadowLatencyPercentile(0.99f) / 1e6);
+    }
+
+    /**
+     * Waits for the mirrored frames then closes both engines.
+     */
+    @Override
+    public void close() {
+        mExecutor.shutdown();
+        try {
+            mExecutor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            mPrimary.close();
+        }
+        finally {
+            mShadow.close();
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2016-2020 Doubango AI <https://www.doubango.org>
+ * License: For non-commercial use only
+ * Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+ * WebSite: https://www.doubango.org/webapps/micr/
+ */
+package org.doubango.ultimateMicr.Service;
+
+import org.doubango.ultimateMicr.Sdk.ULTMICR_SDK_IMAGE_TYPE;
+import org.doubango.ultimateMicr.Utils.MicrFrame;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Memory-mapped file shared between {@link MicrProcessEngine} and its {@link MicrWorker}, split into
+ * fixed-size slots. Each slot holds a frame (layout + pixels) written by the parent and the result
+ * written back by the worker. The worker hands the mapped pixels to the engine as-is (no copy), the
+ * socket only carries the slot index.
+ *
+ * Slot layout: [header (64 bytes)][pixels (pixelCapacity)][result (resultCapacity)].
+ * Header: type, width, height, exifOrientation, uvPixelStride, numPlanes, then stride/size per plane.
+ * Result: code, numZones, phrase length + UTF-8 bytes, json length + UTF-8 bytes.
+ *
+ * Slots are owned by one request at a time, the caller is responsible for the slot allocation.
+ */
+final class MicrSharedRing implements Closeable {
+
+    static final int HEADER_SIZE = 64;
+
+    private final File mFile;
+    private final boolean mOwner;
+    private final RandomAccessFile mRaf;
+    private final MappedByteBuffer mBuffer;
+    private final int mSlots;
+    private final int mPixelCapacity;
+    private final int mResultCapacity;
+    private final int mSlotSize;
+
+    private MicrSharedRing(final File file, final boolean owner, final int slots, final int pixelCapacity, final int resultCapacity) throws IOException {
+        mFile = file;
+        mOwner = owner;
+        mSlots = slots;
+        mPixelCapacity = pixelCapacity;
+        mResultCapacity = resultCapacity;
+        mSlotSize = HEADER_SIZE + pixelCapacity + resultCapacity;
+        final long size = (long)mSlotSize * slots;
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Shared memory too large: " + size);
+        }
+        mRaf = new RandomAccessFile(file, "rw");
+        try {
+            if (owner) {
+                mRaf.setLength(size);
+            }
+            mBuffer = mRaf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        catch (final IOException e) {
+            mRaf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Creates the shared file, in "/dev/shm" when available (RAM-backed), otherwise in the temp folder.
+     */
+    static MicrSharedRing create(final int slots, final int pixelCapacity, final int resultCapacity) throws IOException {
+        final File shm = new File("/dev/shm");
+        final File file = File.createTempFile("ultimateMicr-", ".ring", (shm.isDirectory() && shm.canWrite()) ? shm : null);
+        file.deleteOnExit();
+        try {
+            return new MicrSharedRing(file, true, slots, pixelCapacity, resultCapacity);
+        }
+        catch (final IOException | RuntimeException e) {
+            file.delete();
+            throw e;
+        }
+    }
+
+    /**
+     * Maps a file created by the parent using {@link #create(int, int, int)}.
+     */
+    static MicrSharedRing open(final String path, final int slots, final int pixelCapacity, final int resultCapacity) throws IOException {
+        return new MicrSharedRing(new File(path), false, slots, pixelCapacity, resultCapacity);
+    }
+
+    String getPath() { return mFile.getAbsolutePath(); }
+    int getSlots() { return mSlots; }
+    int getPixelCapacity() { return mPixelCapacity; }
+    int getResultCapacity() { return mResultCapacity; }
+
+    /**
+     * Whether the pixels of the frame fit in a slot.
+     */
+    boolean fits(final MicrFrame frame) {
+        long size = 0;
+        for (int i = 0; i < frame.getNumPlanes(); ++i) {
+            size += frame.getPlaneSize(i);
+        }
+        return size <= mPixelCapacity;
+    }
+
+    /**
+     * Copies the frame into the slot. The caller must check {@link #fits(MicrFrame)} first.
+     */
+    void writeFrame(final int slot, final MicrFrame frame) {
+        final ByteBuffer buffer = mBuffer.duplicate();
+        final int base = slot * mSlotSize;
+        buffer.putInt(base, frame.getType().swigValue());
+        buffer.putInt(base + 4, frame.getWidth());
+        buffer.putInt(base + 8, frame.getHeight());
+        buffer.putInt(base + 12, frame.getExifOrientation());
+        buffer.putInt(base + 16, frame.getUvPixelStride());
+        buffer.putInt(base + 20, frame.getNumPlanes());
+        int offset = base + HEADER_SIZE;
+        for (int i = 0; i < frame.getNumPlanes(); ++i) {
+            final int size = frame.getPlaneSize(i);
+            buffer.putInt(base + 24 + (i << 3), frame.getStride(i));
+            buffer.putInt(base + 28 + (i << 3), size);
+            final ByteBuffer plane = frame.getPlane(i).duplicate();
+            plane.clear().limit(size);
+            buffer.limit(offset + size).position(offset);
+            buffer.put(plane);
+            buffer.limit(buffer.capacity());
+            offset += size;
+        }
+    }
+
+    /**
+     * Wraps the pixels of the slot into a frame, no copy.
+     */
+    MicrFrame readFrame(final int slot) {
+        final ByteBuffer buffer = mBuffer.duplicate();
+        final int base = slot * mSlotSize;
+        final ULTMICR_SDK_IMAGE_TYPE type = ULTMICR_SDK_IMAGE_TYPE.swigToEnum(buffer.getInt(base));
+        final int numPlanes = buffer.getInt(base + 20);
+        final ByteBuffer planes[] = new ByteBuffer[3];
+        final int strides[] = new int[3];
+        int offset = base + HEADER_SIZE;
+        for (int i = 0; i < numPlanes; ++i) {
+            strides[i] = buffer.getInt(base + 24 + (i << 3));
+            final int size = buffer.getInt(base + 28 + (i << 3));
+            buffer.limit(offset + size).position(offset);
+            planes[i] = buffer.slice();
+            buffer.limit(buffer.capacity());
+            offset += size;
+        }
+        return MicrWorkerProtocol.toFrame(type, planes, buffer.getInt(base + 4), buffer.getInt(base + 8), strides,
+                buffer.getInt(base + 16), buffer.getInt(base + 12), numPlanes);
+    }
+
+    /**
+     * Writes the result into the slot.
+     * @return false if the result doesn't fit, nothing written.
+     */
+    boolean writeResult(final int slot, final MicrResult result) {
+        final byte phrase[] = result.phrase().getBytes(StandardCharsets.UTF_8);
+        final byte json[] = result.json().getBytes(StandardCharsets.UTF_8);
+        if (16 + phrase.length + json.length > mResultCapacity) {
+            return false;
+        }
+        final ByteBuffer buffer = mBuffer.duplicate();
+        buffer.position(slot * mSlotSize + HEADER_SIZE + mPixelCapacity);
+        buffer.putInt(result.code());
+        buffer.putInt(result.numZones());
+        buffer.putInt(phrase.length);
+        buffer.put(phrase);
+        buffer.putInt(json.length);
+        buffer.put(json);
+        return true;
+    }
+
+    MicrResult readResult(final int slot) {
+        final ByteBuffer buffer = mBuffer.duplicate();
+        buffer.position(slot * mSlotSize + HEADER_SIZE + mPixelCapacity);
+        final int code = buffer.getInt();
+        final int numZones = buffer.getInt();
+        final byte phrase[] = new byte[buffer.getInt()];
+        buffer.get(phrase);
+        final byte json[] = new byte[buffer.getInt()];
+        buffer.get(json);
+        return new MicrResult(code, new String(phrase, StandardCharsets.UTF_8), new String(json, StandardCharsets.UTF_8), numZones);
+    }
+
+    /**
+     * Closes the file, deleted if created by this instance. The mapping is released when garbage collected.
+     */
+    @Override
+    public void close() throws IOException {
+        mRaf.close();
+        if (mOwner) {
+            mFile.delete();
+        }
+    }
+}
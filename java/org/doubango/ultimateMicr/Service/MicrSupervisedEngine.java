@@ -0,0 +1,555 @@
+/*
+ * Copyright (C) 2016-2020 Doubango AI <https://www.doubango.org>
+ * License: For non-commercial use only
+ * Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+ * WebSite: https://www.doubango.org/webapps/micr/
+ */
+package org.doubango.ultimateMicr.Service;
+
+import org.doubango.ultimateMicr.Sdk.ULTMICR_SDK_IMAGE_TYPE;
+import org.doubango.ultimateMicr.Utils.MicrFrame;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Supervised worker processes ({@link MicrProcessEngine}) sharing the same config, for native calls that may hang
+ * or crash: a native call can't be interrupted from Java, only its process can be killed.
+ *
+ * The requests are queued here and each worker is given one at a time, under a per-request timeout (processing
+ * time, the queue time isn't counted). A worker that overruns the timeout is killed and the request fails with a
+ * {@link MicrTimeoutException}; a worker that crashes fails the request it was processing with an
+ * {@link IOException}. Either way, the worker is restarted (init + warm-up for the image types already seen) while
+ * the queued requests go to the healthy workers. The requests wait in the queue while no worker is healthy.
+ */
+public final class MicrSupervisedEngine implements MicrEngine {
+
+    private static final long RESTART_BACKOFF_MILLIS = 1000;
+
+    private final String mConfig;
+    private final MicrWorkerOptions mOptions;
+    private final Supervisor mSupervisors[];
+    private final Set<ULTMICR_SDK_IMAGE_TYPE> mWarmedUp = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService mWatchdog;
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mNotEmpty = mLock.newCondition();
+    private final ArrayDeque<Request> mQueue = new ArrayDeque<>(); // Guarded by mLock
+    private boolean mClosed; // Guarded by mLock
+    private volatile long mDefaultTimeoutNanos = TimeUnit.SECONDS.toNanos(30);
+    private volatile long mWarmUpTimeoutNanos = TimeUnit.SECONDS.toNanos(60);
+
+    private final AtomicLong mNumSubmitted = new AtomicLong();
+    private final AtomicLong mNumCompleted = new AtomicLong();
+    private final AtomicLong mNumTimeouts = new AtomicLong();
+    private final AtomicLong mNumCrashes = new AtomicLong();
+    private final AtomicLong mNumRestarts = new AtomicLong();
+    private final AtomicLong mRestartNanos = new AtomicLong();
+
+    private MicrSupervisedEngine(final String jsonConfig, final int numWorkers, final MicrWorkerOptions options) {
+        mConfig = jsonConfig;
+        mOptions = options;
+        mSupervisors = new Supervisor[numWorkers];
+        mWatchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "MicrSupervisedEngine-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts the workers (in parallel) and initializes their engines.
+     * @param jsonConfig The JSON config. More info at https://www.doubango.org/SDKs/micr/docs/Configuration_options.html
+     * @param numWorkers Number of worker processes, at least 2 for the requests to be served while a worker restarts.
+     * @param options Shared memory and child JVM options, same for all the workers.
+     */
+    public static MicrSupervisedEngine start(final String jsonConfig, final int numWorkers, final MicrWorkerOptions options) throws IOException {
+        if (numWorkers < 1) {
+            throw new IllegalArgumentException("numWorkers must be >= 1");
+        }
+        final MicrSupervisedEngine engine = new MicrSupervisedEngine(jsonConfig, numWorkers, options);
+        final MicrProcessEngine workers[] = new MicrProcessEngine[numWorkers]; // Guarded by "workers"
+        final boolean aborted[] = new boolean[1]; // Guarded by "workers", the launchers still running close their worker
+        final IOException errors[] = new IOException[numWorkers];
+        final Thread threads[] = new Thread[numWorkers];
+        for (int i = 0; i < numWorkers; ++i) {
+            final int index = i;
+            threads[i] = new Thread(() -> {
+                try {
+                    final MicrProcessEngine worker = MicrProcessEngine.start(jsonConfig, options);
+                    synchronized (workers) {
+                        if (aborted[0]) {
+                            worker.close();
+                        }
+                        else {
+                            workers[index] = worker;
+                        }
+                    }
+                }
+                catch (final IOException e) {
+                    errors[index] = e;
+                }
+            });
+            threads[i].start();
+        }
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abort(engine, workers, aborted);
+            throw new InterruptedIOException("Interrupted while starting the workers");
+        }
+        for (IOException error : errors) {
+            if (error != null) {
+                abort(engine, workers, aborted);
+                throw error;
+            }
+        }
+        for (int i = 0; i < numWorkers; ++i) {
+            engine.mSupervisors[i] = engine.new Supervisor(workers[i], i + 1);
+        }
+        return engine;
+    }
+
+    private static void abort(final MicrSupervisedEngine engine, final MicrProcessEngine workers[], final boolean aborted[]) {
+        synchronized (workers) {
+            aborted[0] = true;
+            for (MicrProcessEngine worker : workers) {
+                if (worker != null) {
+                    worker.close();
+                }
+            }
+        }
+        engine.mWatchdog.shutdownNow();
+    }
+
+    /**
+     * Timeout of the requests submitted without one. Default: 30 seconds.
+     */
+    public MicrSupervisedEngine setDefaultTimeout(final long timeoutMillis) {
+        if (timeoutMillis < 1) {
+            throw new IllegalArgumentException("timeoutMillis must be >= 1");
+        }
+        mDefaultTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        return this;
+    }
+
+    /**
+     * Timeout of a warm-up call, on start or restart. Default: 60 seconds.
+     */
+    public MicrSupervisedEngine setWarmUpTimeout(final long timeoutMillis) {
+        if (timeoutMillis < 1) {
+            throw new IllegalArgumentException("timeoutMillis must be >= 1");
+        }
+        mWarmUpTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        return this;
+    }
+
+    /**
+     * Queues the frame.
+     * @param timeoutMillis Maximum processing time.
+     * @return The result. Completes exceptionally with a {@link MicrTimeoutException} if the processing overran the
+     * timeout or an {@link IOException} if the worker crashed or the engine is closed.
+     */
+    public CompletableFuture<MicrResult> submit(final MicrFrame frame, final long timeoutMillis) {
+        if (timeoutMillis < 1) {
+            throw new IllegalArgumentException("timeoutMillis must be >= 1");
+        }
+        return submitNanos(frame, TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+    }
+
+    /**
+     * Same as {@link #submit(MicrFrame, long)} with the default timeout.
+     */
+    public CompletableFuture<MicrResult> submit(final MicrFrame frame) {
+        return submitNanos(frame, mDefaultTimeoutNanos);
+    }
+
+    private CompletableFuture<MicrResult> submitNanos(final MicrFrame frame, final long timeoutNanos) {
+        mNumSubmitted.incrementAndGet();
+        final Request request = new Request(frame, timeoutNanos);
+        mLock.lock();
+        try {
+            if (mClosed) {
+                request.mFuture.completeExceptionally(new IOException("Engine closed"));
+            }
+            else {
+                mQueue.add(request);
+                mNotEmpty.signal();
+            }
+        }
+        finally {
+            mLock.unlock();
+        }
+        return request.mFuture;
+    }
+
+    /**
+     * Submits the frame with the default timeout and waits for the result.
+     */
+    @Override
+    public MicrResult process(final MicrFrame frame) throws IOException {
+        try {
+            return submit(frame).get();
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the result");
+        }
+        catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Warms up the healthy workers, under the warm-up timeout. Workers restarted later are warmed up for the same
+     * image types.
+     */
+    @Override
+    public MicrResult warmUp(final ULTMICR_SDK_IMAGE_TYPE imageType) throws IOException {
+        mWarmedUp.add(imageType);
+        MicrResult result = null;
+        for (Supervisor supervisor : mSupervisors) {
+            final MicrProcessEngine worker = supervisor.mWorker;
+            if (worker != null && worker.isAlive()) {
+                result = warmUp(worker, imageType);
+                if (!result.isOK()) {
+                    return result;
+                }
+            }
+        }
+        if (result == null) {
+            throw new IOException("No worker running");
+        }
+        return result;
+    }
+
+    private MicrResult warmUp(final MicrProcessEngine worker, final ULTMICR_SDK_IMAGE_TYPE imageType) throws IOException {
+        final AtomicBoolean timedOut = new AtomicBoolean();
+        final ScheduledFuture<?> watchdog = watch(worker, mWarmUpTimeoutNanos, timedOut);
+        try {
+            return worker.warmUp(imageType);
+        }
+        catch (final IOException e) {
+            if (timedOut.get()) {
+                mNumTimeouts.incrementAndGet();
+                throw new MicrTimeoutException("Warm-up overran " + TimeUnit.NANOSECONDS.toMillis(mWarmUpTimeoutNanos) + " millis");
+            }
+            throw e;
+        }
+        finally {
+            watchdog.cancel(false);
+        }
+    }
+
+    /**
+     * Kills the worker when the timeout expires.
+     */
+    private ScheduledFuture<?> watch(final MicrProcessEngine worker, final long timeoutNanos, final AtomicBoolean timedOut) {
+        return mWatchdog.schedule(() -> {
+            timedOut.set(true);
+            worker.kill();
+        }, timeoutNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public String getConfig() {
+        return mConfig;
+    }
+
+    /**
+     * Whether at least one worker is healthy.
+     */
+    @Override
+    public boolean isAlive() {
+        return getNumHealthy() > 0;
+    }
+
+    public int getNumWorkers() {
+        return mSupervisors.length;
+    }
+
+    /**
+     * Number of workers running and not restarting.
+     */
+    public int getNumHealthy() {
+        int healthy = 0;
+        for (Supervisor supervisor : mSupervisors) {
+            final MicrProcessEngine worker = supervisor.mWorker;
+            if (worker != null && worker.isAlive()) {
+                ++healthy;
+            }
+        }
+        return healthy;
+    }
+
+    public int getQueueDepth() {
+        mLock.lock();
+        try {
+            return mQueue.size();
+        }
+        finally {
+            mLock.unlock();
+        }
+    }
+
+    public long getNumSubmitted() { return mNumSubmitted.get(); }
+    /** Number of requests processed (including the ones with a result not OK). */
+    public long getNumCompleted() { return mNumCompleted.get(); }
+    /** Number of requests and warm-ups that overran their timeout. */
+    public long getNumTimeouts() { return mNumTimeouts.get(); }
+    /** Number of requests that failed because their worker crashed. */
+    public long getNumCrashes() { return mNumCrashes.get(); }
+    /** Number of workers restarted. */
+    public long getNumRestarts() { return mNumRestarts.get(); }
+
+    /**
+     * Mean time to restart a worker (init + warm-up), in nanoseconds.
+     */
+    public double getMeanRestartNanos() {
+        final long restarts = mNumRestarts.get();
+        return restarts == 0 ? 0 : mRestartNanos.get() / (double)restarts;
+    }
+
+    public void resetStats() {
+        mNumSubmitted.set(0);
+        mNumCompleted.set(0);
+        mNumTimeouts.set(0);
+        mNumCrashes.set(0);
+        mNumRestarts.set(0);
+        mRestartNanos.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("submitted=%d, completed=%d, timeouts=%d, crashes=%d, restarts=%d, mean restart=%.2f millis, healthy=%d/%d, queued=%d",
+                getNumSubmitted(), getNumCompleted(), getNumTimeouts(), getNumCrashes(), getNumRestarts(), getMeanRestartNanos() / 1e6,
+                getNumHealthy(), getNumWorkers(), getQueueDepth());
+    }
+
+    /**
+     * Processes the queued requests then closes the workers.
+     */
+    @Override
+    public void close() {
+        mLock.lock();
+        try {
+            mClosed = true;
+            mNotEmpty.signalAll();
+        }
+        finally {
+            mLock.unlock();
+        }
+        for (Supervisor supervisor : mSupervisors) {
+            if (supervisor == null) {
+                continue;
+            }
+            try {
+                supervisor.mThread.join(TimeUnit.MINUTES.toMillis(1));
+            }
+            catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        mWatchdog.shutdownNow();
+        // Left by workers stopped while restarting
+        mLock.lock();
+        try {
+            Request request;
+            while ((request = mQueue.poll()) != null) {
+                request.mFuture.completeExceptionally(new IOException("Engine closed"));
+            }
+        }
+        finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * @return The next request, null if closed and the queue is empty.
+     */
+    private Request take() {
+        mLock.lock();
+        try {
+            while (mQueue.isEmpty()) {
+                if (mClosed) {
+                    return null;
+                }
+                mNotEmpty.awaitUninterruptibly();
+            }
+            return mQueue.poll();
+        }
+        finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Puts back a request not started, for another worker.
+     */
+    private void requeue(final Request request) {
+        mLock.lock();
+        try {
+            mQueue.addFirst(request);
+            mNotEmpty.signal();
+        }
+        finally {
+            mLock.unlock();
+        }
+    }
+
+    private boolean isClosed() {
+        mLock.lock();
+        try {
+            return mClosed;
+        }
+        finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Owns a worker: feeds it one request at a time and restarts it when it dies.
+     */
+    private final class Supervisor {
+        final Thread mThread;
+        volatile MicrProcessEngine mWorker; // null while restarting
+
+        Supervisor(final MicrProcessEngine worker, final int index) {
+            mWorker = worker;
+            mThread = new Thread(this::run, "MicrSupervisedEngine-" + index);
+            mThread.setDaemon(true);
+            mThread.start();
+        }
+
+        private void run() {
+            try {
+                while (true) {
+                    if (!mWorker.isAlive() && !restart()) {
+                        return;
+                    }
+                    final Request request = take();
+                    if (request == null) {
+                        return;
+                    }
+                    final MicrProcessEngine worker = mWorker;
+                    if (!worker.isAlive()) {
+                        requeue(request); // Died while idle
+                        continue;
+                    }
+                    execute(worker, request);
+                }
+            }
+            finally {
+                final MicrProcessEngine worker = mWorker;
+                if (worker != null) {
+                    worker.close();
+                }
+            }
+        }
+
+        private void execute(final MicrProcessEngine worker, final Request request) {
+            final AtomicBoolean timedOut = new AtomicBoolean();
+            final ScheduledFuture<?> watchdog = watch(worker, request.mTimeoutNanos, timedOut);
+            MicrResult result = null;
+            Exception error = null;
+            try {
+                result = worker.process(request.mFrame);
+            }
+            catch (final IOException | RuntimeException e) {
+                error = e;
+            }
+            finally {
+                watchdog.cancel(false);
+            }
+            if (result != null) {
+                mNumCompleted.incrementAndGet();
+                request.mFuture.complete(result);
+            }
+            else if (timedOut.get()) {
+                mNumTimeouts.incrementAndGet();
+                request.mFuture.completeExceptionally(new MicrTimeoutException("Processing overran "
+                        + TimeUnit.NANOSECONDS.toMillis(request.mTimeoutNanos) + " millis, worker killed"));
+            }
+            else {
+                if (!worker.isAlive()) {
+                    mNumCrashes.incrementAndGet();
+                }
+                request.mFuture.completeExceptionally(error);
+            }
+        }
+
+        /**
+         * Replaces the dead worker, retrying until it succeeds or the engine is closed.
+         * @return false if closed.
+         */
+        private boolean restart() {
+            final MicrProcessEngine dead = mWorker;
+            mWorker = null;
+            dead.kill();
+            final long start = System.nanoTime();
+            while (!isClosed()) {
+                MicrProcessEngine worker = null;
+                try {
+                    worker = MicrProcessEngine.start(mConfig, mOptions);
+                    for (ULTMICR_SDK_IMAGE_TYPE imageType : mWarmedUp) {
+                        final MicrResult result = warmUp(worker, imageType);
+                        if (!result.isOK()) {
+                            throw new IOException("Warm-up failed: " + result.phrase()); // Retried as a failed start
+                        }
+                    }
+                    mWorker = worker;
+                    mNumRestarts.incrementAndGet();
+                    mRestartNanos.addAndGet(System.nanoTime() - start);
+                    return true;
+                }
+                catch (final IOException | RuntimeException e) { // Retried: the supervisor must keep running
+                    if (worker != null) {
+                        worker.kill();
+                    }
+                    try {
+                        Thread.sleep(RESTART_BACKOFF_MILLIS);
+                    }
+                    catch (final InterruptedException ie) {
+                        // Daemon thread, only stopped by close()
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+    private static final class Request {
+        final MicrFrame mFrame;
+        final long mTimeoutNanos;
+        final CompletableFuture<MicrResult> mFuture = new CompletableFuture<>();
+
+        Request(final MicrFrame frame, final long timeoutNanos) {
+            mFrame = frame;
+            mTimeoutNanos = timeoutNanos;
+        }
+    }
+}
@@ -0,0 +1,701 @@
+/*
+ * Copyright (C) 2016-2020 Doubango AI <https://www.doubango.org>
+ * License: For non-commercial use only
+ * Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+ * WebSite: https://www.doubango.org/webapps/micr/
+ */
+package org.doubango.ultimateMicr.Service;
+
+import org.doubango.ultimateMicr.Sdk.ULTMICR_SDK_IMAGE_TYPE;
+import org.doubango.ultimateMicr.Utils.MicrFrame;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Weighted fair queuing across tenants (e.g. business units sharing a service) in front of an engine: deficit
+ * round robin over the tenants with queued requests, the cost of a request being its number of pixels. A tenant
+ * uploading a batch gets its share of the engine (weight / sum of the active weights) and no more while the others
+ * have queued requests, and all of it when they don't: the engine never idles while an eligible request is queued.
+ *
+ * Quotas, per tenant: maximum number of requests processed at the same time, maximum rate (token bucket, one second
+ * of burst) and maximum queue length ({@link RejectedExecutionException} when full). A capped tenant's requests stay
+ * queued, the others are served meanwhile.
+ *
+ * The tenants are created when first used. Those configured with a setter are kept, the others are evicted (least
+ * recently used first, stats lost) when idle with an empty queue to make room for a new one beyond
+ * {@link #setMaxTenants(int)}: the scheduler accepts caller-supplied ids without growing without bound. A new tenant
+ * finding no room is rejected ({@link RejectedExecutionException}). Thread-safe.
+ */
+public final class MicrTenantScheduler implements MicrEngine {
+
+    /**
+     * Tenant of the requests submitted using {@link #process(MicrFrame)}.
+     */
+    public static final String DEFAULT_TENANT = "default";
+
+    private static final int LATENCY_WINDOW = 1024;
+
+    private final MicrEngine mEngine;
+    private final int mNumThreads;
+    private final Thread mThreads[];
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mReady = mLock.newCondition();
+    private final Map<String, Tenant> mTenants = new LinkedHashMap<>(16, 0.75f, true); // Guarded by mLock, least recently used first
+    private int mMaxTenants = 1024; // Guarded by mLock
+    private long mNumEvicted; // Guarded by mLock
+    private final ArrayDeque<Tenant> mActive = new ArrayDeque<>(); // Guarded by mLock: tenants with queued requests
+    private long mQuantum = 1; // Guarded by mLock: largest cost seen
+    private long mBusyNanos; // Guarded by mLock
+    private long mResetNanos = System.nanoTime(); // Guarded by mLock
+    private boolean mClosed; // Guarded by mLock
+
+    /**
+     * @param engine The engine, closed by {@link #close()}.
+     * @param numThreads Number of calling threads. One is enough for a {@link MicrLocalEngine}, use workers x slots
+     *                   for a {@link MicrWorkerPool}.
+     */
+    public MicrTenantScheduler(final MicrEngine engine, final int numThreads) {
+        if (engine == null) {
+            throw new IllegalArgumentException("engine is null");
+        }
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("numThreads must be >= 1");
+        }
+        mEngine = engine;
+        mNumThreads = numThreads;
+        mThreads = new Thread[numThreads];
+        for (int i = 0; i < numThreads; ++i) {
+            mThreads[i] = new Thread(this::serve, "MicrTenantScheduler-" + (i + 1));
+            mThreads[i].setDaemon(true);
+            mThreads[i].start();
+        }
+    }
+
+    /**
+     * Share of the tenant. Default: 1.
+     */
+    public MicrTenantScheduler setWeight(final String tenant, final int weight) {
+        if (weight < 1) {
+            throw new IllegalArgumentException("weight must be >= 1");
+        }
+        mLock.lock();
+        try {
+            register(tenant).mWeight = weight;
+        }
+        finally {
+            mLock.unlock();
+        }
+        return this;
+    }
+
+    /**
+     * Maximum number of requests of the tenant processed at the same time. Default: unlimited.
+     */
+    public MicrTenantScheduler setMaxConcurrency(final String tenant, final int maxConcurrency) {
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("maxConcurrency must be >= 1");
+        }
+        mLock.lock();
+        try {
+            register(tenant).mMaxConcurrency = maxConcurrency;
+            mReady.signalAll();
+        }
+        finally {
+            mLock.unlock();
+        }
+        return this;
+    }
+
+    /**
+     * Maximum number of requests of the tenant started per second. Default: 0 (unlimited).
+     */
+    public MicrTenantScheduler setMaxRate(final String tenant, final double requestsPerSecond) {
+        if (requestsPerSecond < 0) {
+            throw new IllegalArgumentException("requestsPerSecond must be >= 0");
+        }
+        mLock.lock();
+        try {
+            final Tenant t = register(tenant);
+            t.mMaxRate = requestsPerSecond;
+            t.mTokens = Math.max(1.0, requestsPerSecond);
+            t.mRefilledNanos = System.nanoTime();
+            mReady.signalAll();
+        }
+        finally {
+            mLock.unlock();
+        }
+        return this;
+    }
+
+    /**
+     * Maximum number of queued requests of the tenant. Default: unbounded.
+     */
+    public MicrTenantScheduler setMaxQueue(final String tenant, final int maxQueue) {
+        if (maxQueue < 1) {
+            throw new IllegalArgumentException("maxQueue must be >= 1");
+        }
+        mLock.lock();
+        try {
+            register(tenant).mMaxQueue = maxQueue;
+        }
+        finally {
+            mLock.unlock();
+        }
+        return this;
+    }
+
+    /**
+     * Maximum number of tenants, beyond which the idle unconfigured ones are evicted. Default: 1024.
+     */
+    public MicrTenantScheduler setMaxTenants(final int maxTenants) {
+        if (maxTenants < 1) {
+            throw new IllegalArgumentException("maxTenants must be >= 1");
+        }
+        mLock.lock();
+        try {
+            mMaxTenants = maxTenants;
+        }
+        finally {
+            mLock.unlock();
+        }
+        return this;
+    }
+
+    /**
+     * Queues the frame for the tenant.
+     * @return The result. Completes exceptionally with a {@link RejectedExecutionException} if the tenant's queue is
+     * full or the tenant is new and there are too many tenants, or an {@link IOException} if the engine isn't
+     * reachable.
+     */
+    public CompletableFuture<MicrResult> submit(final String tenant, final MicrFrame frame) {
+        mLock.lock();
+        try {
+            final Tenant t = tenant(tenant);
+            if (t == null) {
+                final CompletableFuture<MicrResult> future = new CompletableFuture<>();
+                future.completeExceptionally(new RejectedExecutionException("Too many tenants, no room for '" + tenant + "'"));
+                return future;
+            }
+            final Request request = new Request(t, frame);
+            ++t.mNumSubmitted;
+            if (mClosed) {
+                request.mFuture.completeExceptionally(new IOException("Engine closed"));
+            }
+            else if (t.mQueue.size() >= t.mMaxQueue) {
+                ++t.mNumRejected;
+                request.mFuture.completeExceptionally(new RejectedExecutionException("Queue of tenant '" + tenant + "' is full"));
+            }
+            else {
+                mQuantum = Math.max(mQuantum, request.mCost);
+                if (t.mQueue.isEmpty()) {
+                    mActive.add(t);
+                }
+                t.mQueue.add(request);
+                mReady.signal();
+            }
+            return request.mFuture;
+        }
+        finally {
+            mLock.unlock();
+        }
+    }
+
+    private void serve() {
+        final long wait[] = new long[1];
+        while (true) {
+            Tenant tenant;
+            Request request;
+            mLock.lock();
+            try {
+                while ((request = next(wait)) == null) {
+                    if (mClosed && mActive.isEmpty()) {
+                        mReady.signalAll();
+                        return;
+                    }
+                    if (wait[0] == Long.MAX_VALUE) {
+                        mReady.awaitUninterruptibly();
+                    }
+                    else {
+                        try {
+                            mReady.awaitNanos(wait[0]); // Rate-capped tenants: next token
+                        }
+                        catch (final InterruptedException e) {
+                            // Daemon thread, only stopped by close()
+                        }
+                    }
+                }
+                tenant = request.mTenant;
+                ++tenant.mInFlight;
+                ++tenant.mNumStarted;
+                tenant.mQueueNanos += System.nanoTime() - request.mSubmittedNanos;
+            }
+            finally {
+                mLock.unlock();
+            }
+
+            final long start = System.nanoTime();
+            MicrResult result = null;
+            Exception error = null;
+            try {
+                result = mEngine.process(request.mFrame);
+            }
+            catch (final IOException | RuntimeException e) {
+                error = e;
+            }
+            final long end = System.nanoTime();
+            mLock.lock();
+            try {
+                --tenant.mInFlight;
+                mBusyNanos += end - start;
+                if (error == null) {
+                    tenant.addLatency(end - request.mSubmittedNanos);
+                }
+                else {
+                    ++tenant.mNumFailed;
+                }
+                mReady.signal(); // The tenant may have been at its concurrency cap
+            }
+            finally {
+                mLock.unlock();
+            }
+            if (error != null) {
+                request.mFuture.completeExceptionally(error);
+            }
+            else {
+                request.mFuture.complete(result);
+            }
+        }
+    }
+
+    /**
+     * Deficit round robin. The quantum being the largest cost seen, an eligible tenant is served at the latest
+     * on its second visit.
+     * Called with the lock held.
+     * @param wait Set to the time until a rate-capped tenant gets a token, Long.MAX_VALUE if none.
+     * @return The request to process, removed from its tenant's queue, null if no tenant is eligible.
+     */
+    private Request next(final long wait[]) {
+        wait[0] = Long.MAX_VALUE;
+        final long now = System.nanoTime();
+        for (int i = 0, visits = 2 * mActive.size(); i < visits; ++i) {
+            final Tenant tenant = mActive.peek();
+            final long tokenWait = tenant.tokenWait(now);
+            if (tenant.mInFlight >= tenant.mMaxConcurrency || tokenWait > 0) {
+                if (tokenWait > 0) {
+                    wait[0] = Math.min(wait[0], tokenWait);
+                }
+                mActive.add(mActive.poll()); // Capped: skipped without quantum
+                continue;
+            }
+            final Request request = tenant.mQueue.peek();
+            if (tenant.mDeficit < request.mCost) {
+                tenant.mDeficit += mQuantum * tenant.mWeight;
+                mActive.add(mActive.poll());
+                continue;
+            }
+            tenant.mDeficit -= request.mCost;
+            tenant.mQueue.poll();
+            if (tenant.mMaxRate > 0) {
+                tenant.mTokens -= 1.0;
+            }
+            if (tenant.mQueue.isEmpty()) {
+                tenant.mDeficit = 0; // No credit saved while idle
+                mActive.poll();
+            }
+            return request;
+        }
+        return null;
+    }
+
+    /**
+     * Called with the lock held.
+     * @return The tenant, created if needed, null if new and no room was made.
+     */
+    private Tenant tenant(final String id) {
+        if (id == null) {
+            throw new IllegalArgumentException("tenant is null");
+        }
+        Tenant tenant = mTenants.get(id);
+        if (tenant == null) {
+            if (mTenants.size() >= mMaxTenants && !evictIdle()) {
+                return null;
+            }
+            tenant = new Tenant();
+            mTenants.put(id, tenant);
+        }
+        return tenant;
+    }
+
+    /**
+     * Tenant configured by the application, never evicted and not counted against the limit when created.
+     * Called with the lock held.
+     */
+    private Tenant register(final String id) {
+        if (id == null) {
+            throw new IllegalArgumentException("tenant is null");
+        }
+        Tenant tenant = mTenants.get(id);
+        if (tenant == null) {
+            tenant = new Tenant();
+            mTenants.put(id, tenant);
+        }
+        tenant.mRegistered = true;
+        return tenant;
+    }
+
+    /**
+     * Removes the least recently used unconfigured tenant without queued or running requests.
+     * Called with the lock held.
+     * @return false if none.
+     */
+    private boolean evictIdle() {
+        for (Iterator<Tenant> it = mTenants.values().iterator(); it.hasNext(); ) {
+            final Tenant tenant = it.next();
+            if (!tenant.mRegistered && tenant.mQueue.isEmpty() && tenant.mInFlight == 0) {
+                it.remove();
+                ++mNumEvicted;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Processes the frame for the {@link #DEFAULT_TENANT default tenant}.
+     */
+    @Override
+    public MicrResult process(final MicrFrame frame) throws IOException {
+        return process(DEFAULT_TENANT, frame);
+    }
+
+    /**
+     * Same as {@link #submit(String, MicrFrame)}, waiting for the result.
+     */
+    public MicrResult process(final String tenant, final MicrFrame frame) throws IOException {
+        try {
+            return submit(tenant, frame).get();
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the result");
+        }
+        catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    @Override
+    public MicrResult warmUp(final ULTMICR_SDK_IMAGE_TYPE imageType) throws IOException {
+        return mEngine.warmUp(imageType);
+    }
+
+    @Override
+    public String getConfig() {
+        return mEngine.getConfig();
+    }
+
+    @Override
+    public boolean isAlive() {
+        mLock.lock();
+        try {
+            return !mClosed && mEngine.isAlive();
+        }
+        finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * @return The ids of the current tenants (evicted ones excluded), sorted.
+     */
+    public Set<String> getTenants() {
+        mLock.lock();
+        try {
+            return new TreeSet<>(mTenants.keySet());
+        }
+        finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Number of idle tenants evicted to make room for new ones.
+     */
+    public long getNumEvicted() {
+        mLock.lock();
+        try {
+            return mNumEvicted;
+        }
+        finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Fraction of the time the calling threads spent in the engine since the stats were reset, within [0, 1].
+     */
+    public double getUtilization() {
+        mLock.lock();
+        try {
+            final long elapsed = System.nanoTime() - mResetNanos;
+            return elapsed <= 0 ? 0 : Math.min(1.0, mBusyNanos / ((double)elapsed * mNumThreads));
+        }
+        finally {
+            mLock.unlock();
+        }
+    }
+
+    public int getQueueDepth(final String tenant) {
+        mLock.lock();
+        try {
+            final Tenant t = mTenants.get(tenant);
+            return t == null ? 0 : t.mQueue.size();
+        }
+        finally {
+            mLock.unlock();
+        }
+    }
+
+    public int getInFlight(final String tenant) {
+        mLock.lock();
+        try {
+            final Tenant t = mTenants.get(tenant);
+            return t == null ? 0 : t.mInFlight;
+        }
+        finally {
+            mLock.unlock();
+        }
+    }
+
+    public long getNumSubmitted(final String tenant) {
+        mLock.lock();
+        try {
+            final Tenant t = mTenants.get(tenant);
+            return t == null ? 0 : t.mNumSubmitted;
+        }
+        finally {
+            mLock.unlock();
+        }
+    }
+
+    /** Number of requests rejected because the tenant's queue was full. */
+    public long getNumRejected(final String tenant) {
+        mLock.lock();
+        try {
+            final Tenant t = mTenants.get(tenant);
+            return t == null ? 0 : t.mNumRejected;
+        }
+        finally {
+            mLock.unlock();
+        }
+    }
+
+    /** Number of requests processed successfully. */
+    public long getNumCompleted(final String tenant) {
+        mLock.lock();
+        try {
+            final Tenant t = mTenants.get(tenant);
+            return t == null ? 0 : t.mNumCompleted;
+        }
+        finally {
+            mLock.unlock();
+        }
+    }
+
+    /** Number of requests that failed in the engine. */
+    public long getNumFailed(final String tenant) {
+        mLock.lock();
+        try {
+            final Tenant t = mTenants.get(tenant);
+            return t == null ? 0 : t.mNumFailed;
+        }
+        finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Requests of the tenant processed successfully per second since the stats were reset.
+     */
+    public double getThroughput(final String tenant) {
+        mLock.lock();
+        try {
+            final Tenant t = mTenants.get(tenant);
+            final long elapsed = System.nanoTime() - mResetNanos;
+            return (t == null || elapsed <= 0) ? 0 : t.mNumCompleted * 1e9 / elapsed;
+        }
+        finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Mean time spent queued, in nanoseconds.
+     */
+    public double getMeanQueueNanos(final String tenant) {
+        mLock.lock();
+        try {
+            final Tenant t = mTenants.get(tenant);
+            return (t == null || t.mNumStarted == 0) ? 0 : t.mQueueNanos / (double)t.mNumStarted;
+        }
+        finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Percentile of the latency (queue + processing) of the last 1024 requests of the tenant processed successfully,
+     * in nanoseconds.
+     * @param percentile Within [0, 1].
+     */
+    public long getLatencyPercentile(final String tenant, final float percentile) {
+        final long sorted[];
+        mLock.lock();
+        try {
+            final Tenant t = mTenants.get(tenant);
+            if (t == null) {
+                return 0;
+            }
+            sorted = Arrays.copyOf(t.mLatencies, t.mLatencyCount);
+        }
+        finally {
+            mLock.unlock();
+        }
+        if (sorted.length == 0) {
+            return 0;
+        }
+        Arrays.sort(sorted);
+        return sorted[Math.min(sorted.length - 1, (int)(percentile * sorted.length))];
+    }
+
+    public void resetStats() {
+        mLock.lock();
+        try {
+            for (Tenant tenant : mTenants.values()) {
+                tenant.mNumSubmitted = tenant.mNumRejected = tenant.mNumStarted = tenant.mNumCompleted = tenant.mNumFailed = tenant.mQueueNanos = 0;
+                tenant.mLatencyCount = tenant.mLatencyIndex = 0;
+            }
+            mBusyNanos = 0;
+            mResetNanos = System.nanoTime();
+        }
+        finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder(String.format("utilization=%.1f%%", getUtilization() * 100));
+        for (String tenant : getTenants()) {
+            builder.append(String.format("; %s: %.1f fps, queued=%d, completed=%d, rejected=%d, mean queue=%.2f millis, p50=%.2f millis, p99=%.2f millis",
+                    tenant, getThroughput(tenant), getQueueDepth(tenant), getNumCompleted(tenant), getNumRejected(tenant), getMeanQueueNanos(tenant) / 1e6,
+                    getLatencyPercentile(tenant, 0.50f) / 1e6, getLatencyPercentile(tenant, 0.99f) / 1e6));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Processes the queued requests then closes the engine.
+     */
+    @Override
+    public void close() {
+        mLock.lock();
+        try {
+            mClosed = true;
+            mReady.signalAll();
+        }
+        finally {
+            mLock.unlock();
+        }
+        for (Thread thread : mThreads) {
+            try {
+                thread.join(TimeUnit.MINUTES.toMillis(1));
+            }
+            catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        mEngine.close();
+    }
+
+    /**
+     * Guarded by mLock.
+     */
+    private static final class Tenant {
+        final ArrayDeque<Request> mQueue = new ArrayDeque<>();
+        boolean mRegistered; // Configured with a setter, never evicted
+        int mWeight = 1;
+        long mDeficit;
+        int mMaxConcurrency = Integer.MAX_VALUE;
+        int mMaxQueue = Integer.MAX_VALUE;
+        double mMaxRate; // 0: unlimited
+        double mTokens;
+        long mRefilledNanos;
+        int mInFlight;
+        long mNumSubmitted;
+        long mNumRejected;
+        long mNumStarted;
+        long mNumCompleted;
+        long mNumFailed;
+        long mQueueNanos;
+        final long mLatencies[] = new long[LATENCY_WINDOW];
+        int mLatencyIndex;
+        int mLatencyCount;
+
+        /**
+         * Refills the token bucket.
+         * @return The time until a token is available, 0 if available now or not rate-capped.
+         */
+        long tokenWait(final long now) {
+            if (mMaxRate <= 0) {
+                return 0;
+            }
+            mTokens = Math.min(Math.max(1.0, mMaxRate), mTokens + ((now - mRefilledNanos) * mMaxRate / 1e9));
+            mRefilledNanos = now;
+            return mTokens >= 1.0 ? 0 : Math.max(1L, (long)((1.0 - mTokens) * 1e9 / mMaxRate));
+        }
+
+        void addLatency(final long nanos) {
+            ++mNumCompleted;
+            mLatencies[mLatencyIndex] = nanos;
+            mLatencyIndex = (mLatencyIndex + 1) % LATENCY_WINDOW;
+            mLatencyCount = Math.min(mLatencyCount + 1, LATENCY_WINDOW);
+        }
+    }
+
+    private static final class Request {
+        final Tenant mTenant;
+        final MicrFrame mFrame;
+        final long mCost;
+        final long mSubmittedNanos = System.nanoTime();
+        final CompletableFuture<MicrResult> mFuture = new CompletableFuture<>();
+
+        Request(final Tenant tenant, final MicrFrame frame) {
+            mTenant = tenant;
+            mFrame = frame;
+            mCost = Math.max(1L, (long)frame.getWidth() * frame.getHeight());
+        }
+    }
+}
@@ -0,0 +1,22 @@
+/*
+ * Copyright (C) 2016-2020 Doubango AI <https://www.doubango.org>
+ * License: For non-commercial use only
+ * Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+ * WebSite: https://www.doubango.org/webapps/micr/
+ */
+package org.doubango.ultimateMicr.Service;
+
+import java.io.IOException;
+
+/**
+ * A request overran its timeout in a worker process. The worker was killed and is being restarted.
+ * Not an {@link java.io.InterruptedIOException}: the calling thread was not interrupted.
+ */
+public final class MicrTimeoutException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    MicrTimeoutException(final String message) {
+        super(message);
+    }
+}
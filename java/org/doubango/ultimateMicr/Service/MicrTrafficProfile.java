@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2016-2020 Doubango AI <https://www.doubango.org>
+ * License: For non-commercial use only
+ * Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+ * WebSite: https://www.doubango.org/webapps/micr/
+ */
+package org.doubango.ultimateMicr.Service;
+
+import org.doubango.ultimateMicr.Sdk.ULTMICR_SDK_IMAGE_TYPE;
+import org.doubango.ultimateMicr.Utils.MicrFrame;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Image types and sizes seen in the traffic, with their counts. Recorded in production ({@link #record(MicrFrame)}
+ * or {@link #wrap(MicrEngine)}), saved and loaded back at deploy time to build a {@link MicrWarmUpPlan}.
+ *
+ * File format: one "type width height count" line per shape, e.g. "ULTMICR_SDK_IMAGE_TYPE_BGR24 1280 720 42",
+ * blank lines and lines starting with '#' are ignored.
+ */
+public final class MicrTrafficProfile {
+
+    /**
+     * Image type and size with the number of frames seen.
+     */
+    public static final class Entry {
+        private final ULTMICR_SDK_IMAGE_TYPE mType;
+        private final int mWidth;
+        private final int mHeight;
+        private final long mCount;
+
+        Entry(final ULTMICR_SDK_IMAGE_TYPE type, final int width, final int height, final long count) {
+            mType = type;
+            mWidth = width;
+            mHeight = height;
+            mCount = count;
+        }
+
+        public ULTMICR_SDK_IMAGE_TYPE getType() { return mType; }
+        public int getWidth() { return mWidth; }
+        public int getHeight() { return mHeight; }
+        public long getCount() { return mCount; }
+
+        @Override
+        public String toString() {
+            return String.format("%s %d %d %d", mType.name(), mWidth, mHeight, mCount);
+        }
+    }
+
+    private static final class Shape {
+        final ULTMICR_SDK_IMAGE_TYPE mType;
+        final int mWidth;
+        final int mHeight;
+
+        Shape(final ULTMICR_SDK_IMAGE_TYPE type, final int width, final int height) {
+            mType = type;
+            mWidth = width;
+            mHeight = height;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof Shape)) {
+                return false;
+            }
+            final Shape other = (Shape) o;
+            return mType == other.mType && mWidth == other.mWidth && mHeight == other.mHeight;
+        }
+
+        @Override
+        public int hashCode() {
+            return (mType.hashCode() * 31 + mWidth) * 31 + mHeight;
+        }
+    }
+
+    private final Map<Shape, AtomicLong> mCounts = new ConcurrentHashMap<>();
+
+    public void record(final MicrFrame frame) {
+        record(frame.getType(), frame.getWidth(), frame.getHeight(), 1);
+    }
+
+    public void record(final ULTMICR_SDK_IMAGE_TYPE type, final int width, final int height, final long count) {
+        if (type == null || width <= 0 || height <= 0 || count < 0) {
+            throw new IllegalArgumentException("Invalid shape: " + type + " " + width + "x" + height + " x" + count);
+        }
+        mCounts.computeIfAbsent(new Shape(type, width, height), k -> new AtomicLong()).addAndGet(count);
+    }
+
+    /**
+     * Engine recording the frames it processes into this profile then delegating to "engine".
+     * Closing it closes "engine".
+     */
+    public MicrEngine wrap(final MicrEngine engine) {
+        return new MicrEngine() {
+            @Override
+            public MicrResult process(final MicrFrame frame) throws IOException {
+                record(frame);
+                return engine.process(frame);
+            }
+
+            @Override
+            public MicrResult warmUp(final ULTMICR_SDK_IMAGE_TYPE imageType) throws IOException {
+                return engine.warmUp(imageType);
+            }
+
+            @Override
+            public String getConfig() {
+                return engine.getConfig();
+            }
+
+            @Override
+            public boolean isAlive() {
+                return engine.isAlive();
+            }
+
+            @Override
+            public void close() {
+                engine.close();
+            }
+        };
+    }
+
+    public long getTotal() {
+        long total = 0;
+        for (AtomicLong count : mCounts.values()) {
+            total += count.get();
+        }
+        return total;
+    }
+
+    /**
+     * Fraction of the frames with the given type, 0 when nothing was recorded.
+     */
+    public double getShare(final ULTMICR_SDK_IMAGE_TYPE type) {
+        long count = 0;
+        for (Map.Entry<Shape, AtomicLong> entry : mCounts.entrySet()) {
+            if (entry.getKey().mType == type) {
+                count += entry.getValue().get();
+            }
+        }
+        final long total = getTotal();
+        return total == 0 ? 0 : (double) count / total;
+    }
+
+    /**
+     * Snapshot of the shapes, most frequent first.
+     */
+    public List<Entry> getEntries() {
+        final List<Entry> entries = new ArrayList<>();
+        for (Map.Entry<Shape, AtomicLong> entry : mCounts.entrySet()) {
+            final Shape shape = entry.getKey();
+            entries.add(new Entry(shape.mType, shape.mWidth, shape.mHeight, entry.getValue().get()));
+        }
+        Collections.sort(entries, (a, b) -> Long.compare(b.mCount, a.mCount));
+        return entries;
+    }
+
+    public void reset() {
+        mCounts.clear();
+    }
+
+    public void save(final Path path) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            writer.write("# type width height count\n");
+            for (Entry entry : getEntries()) {
+                writer.write(entry + "\n");
+            }
+        }
+    }
+
+    /**
+     * @throws IOException if the file can't be read or a line is malformed.
+     */
+    public static MicrTrafficProfile load(final Path path) throws IOException {
+        final MicrTrafficProfile profile = new MicrTrafficProfile();
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                ++lineNumber;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                final String fields[] = line.split("\\s+");
+                try {
+                    if (fields.length != 4) {
+                        throw new IllegalArgumentException("4 fields expected");
+                    }
+                    profile.record(ULTMICR_SDK_IMAGE_TYPE.valueOf(fields[0]), Integer.parseInt(fields[1]), Integer.parseInt(fields[2]), Long.parseLong(fields[3]));
+                }
+                catch (final IllegalArgumentException e) {
+                    throw new IOException(path + ":" + lineNumber + ": " + e.getMessage(), e);
+                }
+            }
+        }
+        return profile;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("frames=%d, shapes=%d", getTotal(), mCounts.size());
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2016-2020 Doubango AI <https://www.doubango.org>
+ * License: For non-commercial use only
+ * Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+ * WebSite: https://www.doubango.org/webapps/micr/
+ */
+package org.doubango.ultimateMicr.Service;
+
+import org.doubango.ultimateMicr.Sdk.ULTMICR_SDK_IMAGE_TYPE;
+import org.doubango.ultimateMicr.Utils.MicrFrame;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Steps making an engine ready after init: {@link MicrEngine#warmUp(ULTMICR_SDK_IMAGE_TYPE)} for some image types
+ * and "primes" processing a blank frame of some sizes (buffers allocated on the first frame of a size).
+ * Usually built by {@link MicrColdStartProfiler#recommend(MicrTrafficProfile, double)} from the recorded traffic,
+ * can also be built by hand.
+ */
+public final class MicrWarmUpPlan {
+
+    private static final AtomicInteger sThreadCount = new AtomicInteger();
+
+    private static final class Prime {
+        final ULTMICR_SDK_IMAGE_TYPE mType;
+        final int mWidth;
+        final int mHeight;
+
+        Prime(final ULTMICR_SDK_IMAGE_TYPE type, final int width, final int height) {
+            mType = type;
+            mWidth = width;
+            mHeight = height;
+        }
+    }
+
+    private final List<ULTMICR_SDK_IMAGE_TYPE> mWarmUps = new ArrayList<>();
+    private final List<Prime> mPrimes = new ArrayList<>();
+    private final List<String> mReasons = new ArrayList<>();
+
+    public MicrWarmUpPlan addWarmUp(final ULTMICR_SDK_IMAGE_TYPE type) {
+        return addWarmUp(type, null);
+    }
+
+    public MicrWarmUpPlan addPrime(final ULTMICR_SDK_IMAGE_TYPE type, final int width, final int height) {
+        return addPrime(type, width, height, null);
+    }
+
+    MicrWarmUpPlan addWarmUp(final ULTMICR_SDK_IMAGE_TYPE type, final String reason) {
+        if (type == null) {
+            throw new IllegalArgumentException("type is required");
+        }
+        if (!mWarmUps.contains(type)) {
+            mWarmUps.add(type);
+            mReasons.add(String.format("warmUp %s%s", type.name(), reason == null ? "" : " (" + reason + ")"));
+        }
+        return this;
+    }
+
+    MicrWarmUpPlan addPrime(final ULTMICR_SDK_IMAGE_TYPE type, final int width, final int height, final String reason) {
+        if (type == null || width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Invalid shape: " + type + " " + width + "x" + height);
+        }
+        mPrimes.add(new Prime(type, width, height));
+        mReasons.add(String.format("prime %s %dx%d%s", type.name(), width, height, reason == null ? "" : " (" + reason + ")"));
+        return this;
+    }
+
+    public List<ULTMICR_SDK_IMAGE_TYPE> getWarmUps() { return new ArrayList<>(mWarmUps); }
+    public int getNumPrimes() { return mPrimes.size(); }
+    public boolean isEmpty() { return mWarmUps.isEmpty() && mPrimes.isEmpty(); }
+
+    /**
+     * Runs the plan: one task per image type (warm-up then primes of this type), "parallelism" tasks at a time.
+     * Each prime is processed "parallelism" times at once so that a {@link MicrWorkerPool} with as many workers
+     * primes all of them (least loaded routing), the pool also warms up its workers in parallel. The in-process
+     * engine serializes the calls whatever "parallelism".
+     * @return Elapsed time in milliseconds.
+     * @throws IOException on the first failed step (warm-up or prime not OK included), the other tasks are still
+     * awaited. A RuntimeException from a step is rethrown as is, once the other tasks are done too.
+     */
+    public long apply(final MicrEngine engine, final int parallelism) throws IOException {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be >= 1");
+        }
+        final long start = System.nanoTime();
+        final Map<ULTMICR_SDK_IMAGE_TYPE, List<Prime>> tasks = new LinkedHashMap<>();
+        for (ULTMICR_SDK_IMAGE_TYPE type : mWarmUps) {
+            tasks.put(type, new ArrayList<>());
+        }
+        for (Prime prime : mPrimes) {
+            tasks.computeIfAbsent(prime.mType, k -> new ArrayList<>()).add(prime);
+        }
+        if (tasks.isEmpty()) {
+            return 0;
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(parallelism, r -> {
+            final Thread thread = new Thread(r, "MicrWarmUpPlan-" + sThreadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            final List<Future<Void>> futures = new ArrayList<>();
+            for (Map.Entry<ULTMICR_SDK_IMAGE_TYPE, List<Prime>> task : tasks.entrySet()) {
+                futures.add(executor.submit(() -> {
+                    runTask(engine, task.getKey(), task.getValue(), parallelism);
+                    return null;
+                }));
+            }
+            Exception error = null; // IOException or RuntimeException
+            for (Future<Void> future : futures) {
+                try {
+                    await(future);
+                }
+                catch (final IOException | RuntimeException e) {
+                    if (error == null || e instanceof InterruptedIOException) {
+                        error = e;
+                    }
+                    if (e instanceof InterruptedIOException) {
+                        break;
+                    }
+                }
+            }
+            if (error instanceof IOException) {
+                throw (IOException) error;
+            }
+            if (error != null) {
+                throw (RuntimeException) error;
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        return (System.nanoTime() - start) / 1000000L;
+    }
+
+    private void runTask(final MicrEngine engine, final ULTMICR_SDK_IMAGE_TYPE type, final List<Prime> primes, final int parallelism) throws IOException {
+        if (mWarmUps.contains(type)) {
+            final MicrResult result = engine.warmUp(type);
+            if (!result.isOK()) {
+                throw new IOException("warmUp(" + type + ") failed: " + result.phrase());
+            }
+        }
+        for (Prime prime : primes) {
+            if (parallelism == 1) {
+                checkPrime(prime, engine.process(MicrFrame.newBlank(type, prime.mWidth, prime.mHeight)));
+                continue;
+            }
+            final Thread threads[] = new Thread[parallelism];
+            final Exception errors[] = new Exception[parallelism]; // IOException or RuntimeException
+            for (int i = 0; i < parallelism; ++i) {
+                final int index = i;
+                threads[i] = new Thread(() -> {
+                    try {
+                        checkPrime(prime, engine.process(MicrFrame.newBlank(type, prime.mWidth, prime.mHeight)));
+                    }
+                    catch (final IOException | RuntimeException e) {
+                        errors[index] = e;
+                    }
+                });
+                threads[i].start();
+            }
+            try {
+                for (Thread thread : threads) {
+                    thread.join();
+                }
+            }
+            catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while priming");
+            }
+            for (Exception error : errors) {
+                if (error instanceof IOException) {
+                    throw (IOException) error;
+                }
+                if (error != null) {
+                    throw (RuntimeException) error;
+                }
+            }
+        }
+    }
+
+    private static void checkPrime(final Prime prime, final MicrResult result) throws IOException {
+        if (!result.isOK()) {
+            throw new IOException(String.format("prime %s %dx%d failed: %s", prime.mType.name(), prime.mWidth, prime.mHeight, result.phrase()));
+        }
+    }
+
+    private static void await(final Future<Void> future) throws IOException {
+        try {
+            future.get();
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the warm-up");
+        }
+        catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * One step per line, with the reason when recommended by the profiler.
+     */
+    @Override
+    public String toString() {
+        if (isEmpty()) {
+            return "(nothing to warm up)\n";
+        }
+        final StringBuilder builder = new StringBuilder();
+        for (String reason : mReasons) {
+            builder.append(reason).append('\n');
+        }
+        return builder.toString();
+    }
+}
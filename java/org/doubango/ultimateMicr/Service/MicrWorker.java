@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2016-2020 Doubango AI <https://www.doubango.org>
+ * License: For non-commercial use only
+ * Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+ * WebSite: https://www.doubango.org/webapps/micr/
+ */
+package org.doubango.ultimateMicr.Service;
+
+import org.doubango.ultimateMicr.Sdk.ULTMICR_SDK_IMAGE_TYPE;
+import org.doubango.ultimateMicr.Sdk.UltMicrSdkEngine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+/**
+ * Entry point of the worker processes started by {@link MicrProcessEngine}.
+ * Each worker owns the native engine of its process. The requests are received over a loopback
+ * socket rather than stdin/stdout because the native code writes its logs to stdout. When the
+ * parent shares memory ({@link MicrSharedRing}) the pixels are read from the mapped file and the
+ * results written back to it, the socket only carrying the slot indices.
+ *
+ * Usage: MicrWorker &lt;port&gt;
+ */
+public final class MicrWorker {
+
+    private MicrWorker() { }
+
+    public static void main(final String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: MicrWorker <port>");
+            System.exit(1);
+        }
+        MicrLocalEngine.loadLibrary();
+
+        final Socket socket = new Socket(InetAddress.getLoopbackAddress(), Integer.parseInt(args[0]));
+        socket.setTcpNoDelay(true);
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+        final ByteBuffer planes[] = new ByteBuffer[3];
+        final byte scratch[][] = new byte[1][];
+        MicrSharedRing ring = null;
+        try {
+            while (true) {
+                final int op = in.readInt();
+                switch (op) {
+                    case MicrWorkerProtocol.OP_INIT:
+                        reply(out, MicrResult.from(UltMicrSdkEngine.init(MicrWorkerProtocol.readString(in))));
+                        break;
+                    case MicrWorkerProtocol.OP_MAP: {
+                        final String path = MicrWorkerProtocol.readString(in);
+                        final int slots = in.readInt();
+                        final int pixelCapacity = in.readInt();
+                        final int resultCapacity = in.readInt();
+                        try {
+                            ring = MicrSharedRing.open(path, slots, pixelCapacity, resultCapacity);
+                            reply(out, new MicrResult(0, "OK", "{}", 0));
+                        }
+                        catch (final IOException e) {
+                            reply(out, new MicrResult(-1, "Failed to map " + path + ": " + e.getMessage(), "{}", 0));
+                        }
+                        break;
+                    }
+                    case MicrWorkerProtocol.OP_PROCESS:
+                        reply(out, MicrResult.from(MicrWorkerProtocol.readFrame(in, planes, scratch).process()));
+                        break;
+                    case MicrWorkerProtocol.OP_PROCESS_SHARED: {
+                        final int slot = in.readInt();
+                        if (ring == null) {
+                            throw new IOException("Shared memory not mapped");
+                        }
+                        final MicrResult result = MicrResult.from(ring.readFrame(slot).process());
+                        if (ring.writeResult(slot, result)) {
+                            out.writeInt(MicrWorkerProtocol.REPLY_SHARED);
+                        }
+                        else {
+                            reply(out, result);
+                        }
+                        break;
+                    }
+                    case MicrWorkerProtocol.OP_WARMUP:
+                        reply(out, MicrResult.from(UltMicrSdkEngine.warmUp(ULTMICR_SDK_IMAGE_TYPE.swigToEnum(in.readInt()))));
+                        break;
+                    case MicrWorkerProtocol.OP_SHUTDOWN:
+                        reply(out, MicrResult.from(UltMicrSdkEngine.deInit()));
+                        out.flush();
+                        return;
+                    default:
+                        throw new IOException("Unexpected opcode: " + op);
+                }
+                out.flush();
+            }
+        }
+        catch (final EOFException e) {
+            // Parent is gone
+            UltMicrSdkEngine.deInit().delete();
+        }
+        finally {
+            if (ring != null) {
+                ring.close();
+            }
+            socket.close();
+        }
+    }
+
+    private static void reply(final DataOutputStream out, final MicrResult result) throws IOException {
+        out.writeInt(MicrWorkerProtocol.REPLY_INLINE);
+        MicrWorkerProtocol.writeResult(out, result);
+    }
+}
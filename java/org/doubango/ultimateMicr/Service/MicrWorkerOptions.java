@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2016-2020 Doubango AI <https://www.doubango.org>
+ * License: For non-commercial use only
+ * Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+ * WebSite: https://www.doubango.org/webapps/micr/
+ */
+package org.doubango.ultimateMicr.Service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Options for the worker processes ({@link MicrProcessEngine}, {@link MicrWorkerPool}).
+ */
+public final class MicrWorkerOptions {
+
+    private int mSlots = 2;
+    private int mPixelCapacity = 1920 * 1080 * 4;
+    private int mResultCapacity = 256 * 1024;
+    private List<String> mJvmArgs = Collections.emptyList();
+
+    /**
+     * Number of frames that can be queued on a worker (shared memory ring slots). Default: 2.
+     */
+    public MicrWorkerOptions setSlots(final int slots) {
+        if (slots < 1) {
+            throw new IllegalArgumentException("slots must be >= 1");
+        }
+        mSlots = slots;
+        return this;
+    }
+
+    /**
+     * Maximum size (in bytes) of the pixels for a frame to go through shared memory. Larger frames are
+     * sent over the socket. Default: 1920x1080x4.
+     */
+    public MicrWorkerOptions setPixelCapacity(final int pixelCapacity) {
+        mPixelCapacity = pixelCapacity;
+        return this;
+    }
+
+    /**
+     * Maximum size (in bytes) of the JSON result written to shared memory. Larger results are
+     * sent over the socket. Default: 256KB.
+     */
+    public MicrWorkerOptions setResultCapacity(final int resultCapacity) {
+        mResultCapacity = resultCapacity;
+        return this;
+    }
+
+    /**
+     * Extra arguments for the child JVM (e.g. "-Xmx256m").
+     */
+    public MicrWorkerOptions setJvmArgs(final List<String> jvmArgs) {
+        mJvmArgs = new ArrayList<>(jvmArgs);
+        return this;
+    }
+
+    public int getSlots() { return mSlots; }
+    public int getPixelCapacity() { return mPixelCapacity; }
+    public int getResultCapacity() { return mResultCapacity; }
+    public List<String> getJvmArgs() { return Collections.unmodifiableList(mJvmArgs); }
+}
@@ -0,0 +1,343 @@
+/*
+ * Copyright (C) 2016-2020 Doubango AI <https://www.doubango.org>
+ * License: For non-commercial use only
+ * Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+ * WebSite: https://www.doubango.org/webapps/micr/
+ */
+package org.doubango.ultimateMicr.Service;
+
+import org.doubango.ultimateMicr.Sdk.ULTMICR_SDK_IMAGE_TYPE;
+import org.doubango.ultimateMicr.Utils.MicrFrame;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Pool of worker processes ({@link MicrProcessEngine}) sharing the same config.
+ *
+ * Each frame goes to the live worker with the fewest frames in flight. A worker that crashes fails the
+ * frames it was holding (IOException) and is restarted in the background, warmed up for the image types
+ * already seen. Use one calling thread per queued frame wanted (e.g. workers x slots) to keep all the
+ * workers busy.
+ */
+public final class MicrWorkerPool implements MicrEngine {
+
+    private final String mConfig;
+    private final MicrWorkerOptions mOptions;
+    private final AtomicReferenceArray<MicrProcessEngine> mWorkers;
+    private final boolean mRestarting[];
+    private final Set<ULTMICR_SDK_IMAGE_TYPE> mWarmedUp = ConcurrentHashMap.newKeySet();
+    private final ExecutorService mRestarter;
+    private final AtomicInteger mNumRestarts = new AtomicInteger();
+    private volatile boolean mClosed;
+
+    private MicrWorkerPool(final String jsonConfig, final int numWorkers, final MicrWorkerOptions options) {
+        mConfig = jsonConfig;
+        mOptions = options;
+        mWorkers = new AtomicReferenceArray<>(numWorkers);
+        mRestarting = new boolean[numWorkers];
+        mRestarter = Executors.newSingleThreadExecutor(r -> {
+            final Thread thread = new Thread(r, "MicrWorkerPool-restarter");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts the workers (in parallel) and initializes their engines.
+     * @param jsonConfig The JSON config. More info at https://www.doubango.org/SDKs/micr/docs/Configuration_options.html
+     * @param numWorkers Number of worker processes. Set "num_threads" in the config to share the cores between them.
+     * @param options Shared memory and child JVM options, same for all the workers.
+     */
+    public static MicrWorkerPool start(final String jsonConfig, final int numWorkers, final MicrWorkerOptions options) throws IOException {
+        if (numWorkers < 1) {
+            throw new IllegalArgumentException("numWorkers must be >= 1");
+        }
+        final MicrWorkerPool pool = new MicrWorkerPool(jsonConfig, numWorkers, options);
+        final Exception errors[] = new Exception[numWorkers]; // IOException or RuntimeException
+        final Thread threads[] = new Thread[numWorkers];
+        for (int i = 0; i < numWorkers; ++i) {
+            final int index = i;
+            threads[i] = new Thread(() -> {
+                try {
+                    final MicrProcessEngine worker = MicrProcessEngine.start(jsonConfig, options);
+                    synchronized (pool.mWorkers) {
+                        if (pool.mClosed) {
+                            worker.close(); // Start aborted
+                        }
+                        else {
+                            pool.mWorkers.set(index, worker);
+                        }
+                    }
+                }
+                catch (final IOException | RuntimeException e) {
+                    errors[index] = e;
+                }
+            });
+            threads[i].start();
+        }
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            pool.abort();
+            throw new InterruptedIOException("Interrupted while starting the workers");
+        }
+        for (Exception error : errors) {
+            if (error != null) {
+                pool.abort();
+                if (error instanceof IOException) {
+                    throw (IOException) error;
+                }
+                throw (RuntimeException) error;
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * Closes the pool during start(), the launchers still running close their worker.
+     */
+    private void abort() {
+        synchronized (mWorkers) {
+            mClosed = true;
+        }
+        close();
+    }
+
+    @Override
+    public MicrResult process(final MicrFrame frame) throws IOException {
+        final MicrProcessEngine worker = pick();
+        try {
+            return worker.process(frame);
+        }
+        catch (final IOException e) {
+            scheduleRestart(worker);
+            throw e;
+        }
+    }
+
+    /**
+     * Warms up all the workers, in parallel. Workers restarted later are warmed up for the same image types.
+     */
+    @Override
+    public MicrResult warmUp(final ULTMICR_SDK_IMAGE_TYPE imageType) throws IOException {
+        mWarmedUp.add(imageType);
+        final int numWorkers = mWorkers.length();
+        final MicrResult results[] = new MicrResult[numWorkers];
+        final Exception errors[] = new Exception[numWorkers]; // IOException or RuntimeException
+        final Thread threads[] = new Thread[numWorkers];
+        for (int i = 0; i < numWorkers; ++i) {
+            final MicrProcessEngine worker = mWorkers.get(i);
+            if (worker != null && worker.isAlive()) {
+                final int index = i;
+                threads[i] = new Thread(() -> {
+                    try {
+                        results[index] = worker.warmUp(imageType);
+                    }
+                    catch (final IOException | RuntimeException e) {
+                        errors[index] = e;
+                    }
+                });
+                threads[i].start();
+            }
+        }
+        try {
+            for (Thread thread : threads) {
+                if (thread != null) {
+                    thread.join();
+                }
+            }
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while warming up");
+        }
+        MicrResult result = null;
+        for (int i = 0; i < numWorkers; ++i) {
+            if (errors[i] instanceof IOException) {
+                throw (IOException) errors[i];
+            }
+            if (errors[i] != null) {
+                throw (RuntimeException) errors[i];
+            }
+            if (results[i] != null) {
+                if (!results[i].isOK()) {
+                    return results[i];
+                }
+                result = results[i];
+            }
+        }
+        if (result == null) {
+            throw new IOException("No worker running");
+        }
+        return result;
+    }
+
+    @Override
+    public String getConfig() {
+        return mConfig;
+    }
+
+    /**
+     * Whether at least one worker is running.
+     */
+    @Override
+    public boolean isAlive() {
+        for (int i = 0; i < mWorkers.length(); ++i) {
+            final MicrProcessEngine worker = mWorkers.get(i);
+            if (worker != null && worker.isAlive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int getNumWorkers() {
+        return mWorkers.length();
+    }
+
+    /**
+     * Number of workers restarted after a crash since the pool started.
+     */
+    public int getNumRestarts() {
+        return mNumRestarts.get();
+    }
+
+    /**
+     * Sum of the frames in flight on all the workers.
+     */
+    public int getInFlight() {
+        int inFlight = 0;
+        for (int i = 0; i < mWorkers.length(); ++i) {
+            final MicrProcessEngine worker = mWorkers.get(i);
+            if (worker != null) {
+                inFlight += worker.getInFlight();
+            }
+        }
+        return inFlight;
+    }
+
+    @Override
+    public void close() {
+        mClosed = true;
+        mRestarter.shutdownNow();
+        try {
+            mRestarter.awaitTermination(MicrProcessEngine.CONNECT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (int i = 0; i < mWorkers.length(); ++i) {
+            final MicrProcessEngine worker = mWorkers.getAndSet(i, null);
+            if (worker != null) {
+                worker.close();
+            }
+        }
+    }
+
+    /**
+     * Least-loaded live worker. Dead workers found on the way are restarted.
+     */
+    private MicrProcessEngine pick() throws IOException {
+        if (mClosed) {
+            throw new IllegalStateException("Pool closed");
+        }
+        MicrProcessEngine best = null;
+        int bestInFlight = Integer.MAX_VALUE;
+        for (int i = 0; i < mWorkers.length(); ++i) {
+            final MicrProcessEngine worker = mWorkers.get(i);
+            if (worker == null) {
+                continue;
+            }
+            if (!worker.isAlive()) {
+                scheduleRestart(worker);
+                continue;
+            }
+            final int inFlight = worker.getInFlight();
+            if (inFlight < bestInFlight) {
+                best = worker;
+                bestInFlight = inFlight;
+            }
+        }
+        if (best == null) {
+            throw new IOException("No worker running");
+        }
+        return best;
+    }
+
+    private void scheduleRestart(final MicrProcessEngine worker) {
+        if (worker.isAlive() || mClosed) {
+            return;
+        }
+        int index = -1;
+        synchronized (mRestarting) {
+            for (int i = 0; i < mWorkers.length(); ++i) {
+                if (mWorkers.get(i) == worker && !mRestarting[i]) {
+                    index = i;
+                    mRestarting[i] = true;
+                    break;
+                }
+            }
+        }
+        if (index < 0) {
+            return;
+        }
+        final int slot = index;
+        try {
+            mRestarter.execute(() -> restart(slot, worker));
+        }
+        catch (final RejectedExecutionException e) {
+            // Closing
+        }
+    }
+
+    private void restart(final int index, final MicrProcessEngine dead) {
+        dead.kill();
+        try {
+            while (!mClosed) {
+                MicrProcessEngine worker = null;
+                try {
+                    worker = MicrProcessEngine.start(mConfig, mOptions);
+                    for (ULTMICR_SDK_IMAGE_TYPE imageType : mWarmedUp) {
+                        final MicrResult result = worker.warmUp(imageType);
+                        if (!result.isOK()) {
+                            throw new IOException("Warm-up failed: " + result.phrase()); // Retried as a failed start
+                        }
+                    }
+                    if (!mWorkers.compareAndSet(index, dead, worker)) {
+                        worker.close(); // Pool closed
+                        return;
+                    }
+                    mNumRestarts.incrementAndGet();
+                    return;
+                }
+                catch (final IOException | RuntimeException e) {
+                    if (worker != null) {
+                        worker.kill();
+                    }
+                    Thread.sleep(1000);
+                }
+            }
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            synchronized (mRestarting) {
+                mRestarting[index] = false;
+            }
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2016-2020 Doubango AI <https://www.doubango.org>
+ * License: For non-commercial use only
+ * Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+ * WebSite: https://www.doubango.org/webapps/micr/
+ */
+package org.doubango.ultimateMicr.Service;
+
+import org.doubango.ultimateMicr.Sdk.ULTMICR_SDK_IMAGE_TYPE;
+import org.doubango.ultimateMicr.Utils.MicrFrame;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Wire format between {@link MicrProcessEngine} and {@link MicrWorker}.
+ * Every message starts with an opcode. Integers are big-endian, strings are length-prefixed UTF-8.
+ * Every reply starts with {@link #REPLY_INLINE} (the result follows) or {@link #REPLY_SHARED} (the result
+ * is in the shared memory slot of the request). Replies are sent in the order of the requests.
+ */
+final class MicrWorkerProtocol {
+
+    static final int OP_INIT = 1;
+    static final int OP_PROCESS = 2;
+    static final int OP_WARMUP = 3;
+    static final int OP_SHUTDOWN = 4;
+    /** Maps the shared memory: path, slots, pixelCapacity, resultCapacity. */
+    static final int OP_MAP = 5;
+    /** Processes the frame in a shared memory slot: slot index. */
+    static final int OP_PROCESS_SHARED = 6;
+
+    static final int REPLY_INLINE = 0;
+    static final int REPLY_SHARED = 1;
+
+    private MicrWorkerProtocol() { }
+
+    static void writeString(final DataOutputStream out, final String value) throws IOException {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(final DataInputStream in) throws IOException {
+        final byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static void writeResult(final DataOutputStream out, final MicrResult result) throws IOException {
+        out.writeInt(result.code());
+        writeString(out, result.phrase());
+        writeString(out, result.json());
+        out.writeInt(result.numZones());
+    }
+
+    static MicrResult readResult(final DataInputStream in) throws IOException {
+        final int code = in.readInt();
+        final String phrase = readString(in);
+        final String json = readString(in);
+        return new MicrResult(code, phrase, json, in.readInt());
+    }
+
+    /**
+     * Writes the frame layout followed by the pixels.
+     * @param scratch Reusable copy buffer, grown if needed. Returns the buffer to reuse next time.
+     */
+    static byte[] writeFrame(final DataOutputStream out, final MicrFrame frame, byte[] scratch) throws IOException {
+        writeFrameHeader(out, frame);
+        for (int i = 0; i < frame.getNumPlanes(); ++i) {
+            final int size = frame.getPlaneSize(i);
+            if (scratch == null || scratch.length < size) {
+                scratch = new byte[size];
+            }
+            final ByteBuffer plane = frame.getPlane(i).duplicate();
+            plane.clear();
+            plane.get(scratch, 0, size);
+            out.writeInt(frame.getStride(i));
+            out.writeInt(size);
+            out.write(scratch, 0, size);
+        }
+        return scratch;
+    }
+
+    static void writeFrameHeader(final DataOutputStream out, final MicrFrame frame) throws IOException {
+        out.writeInt(frame.getType().swigValue());
+        out.writeInt(frame.getWidth());
+        out.writeInt(frame.getHeight());
+        out.writeInt(frame.getExifOrientation());
+        out.writeInt(frame.getUvPixelStride());
+        out.writeInt(frame.getNumPlanes());
+    }
+
+    /**
+     * Reads a frame written using {@link #writeFrame(DataOutputStream, MicrFrame, byte[])}.
+     * @param planes Reusable direct buffers (3 entries), grown if needed.
+     * @param scratch Reusable copy buffer (1 entry), grown if needed.
+     */
+    static MicrFrame readFrame(final DataInputStream in, final ByteBuffer planes[], final byte[][] scratch) throws IOException {
+        final ULTMICR_SDK_IMAGE_TYPE type = ULTMICR_SDK_IMAGE_TYPE.swigToEnum(in.readInt());
+        final int width = in.readInt();
+        final int height = in.readInt();
+        final int exifOrientation = in.readInt();
+        final int uvPixelStride = in.readInt();
+        final int numPlanes = in.readInt();
+        final int strides[] = new int[3];
+        for (int i = 0; i < numPlanes; ++i) {
+            strides[i] = in.readInt();
+            final int size = in.readInt();
+            if (scratch[0] == null || scratch[0].length < size) {
+                scratch[0] = new byte[size];
+            }
+            in.readFully(scratch[0], 0, size);
+            if (planes[i] == null || planes[i].capacity() < size) {
+                planes[i] = ByteBuffer.allocateDirect(size);
+            }
+            planes[i].clear();
+            planes[i].put(scratch[0], 0, size);
+            planes[i].rewind();
+        }
+        return toFrame(type, planes, width, height, strides, uvPixelStride, exifOrientation, numPlanes);
+    }
+
+    static MicrFrame toFrame(final ULTMICR_SDK_IMAGE_TYPE type, final ByteBuffer planes[], final int width, final int height, final int strides[],
+                             final int uvPixelStride, final int exifOrientation, final int numPlanes) {
+        return numPlanes == 1
+                ? MicrFrame.newPacked(type, planes[0], width, height, strides[0], exifOrientation)
+                : MicrFrame.newYuv(type, planes[0], planes[1], planes[2], width, height, strides[0], strides[1], strides[2], uvPixelStride, exifOrientation);
+    }
+}
@@ -23,6 +23,15 @@ import androidx.appcompat.app.AppCompatActivity;
 import org.doubango.ultimateMicr.Sdk.ULTMICR_SDK_IMAGE_TYPE;
 import org.doubango.ultimateMicr.Sdk.UltMicrSdkEngine;
 import org.doubango.ultimateMicr.Sdk.UltMicrSdkResult;
+import org.doubango.ultimateMicr.Utils.MicrConsensus;
+import org.doubango.ultimateMicr.Utils.MicrDuplicateFilter;
+import org.doubango.ultimateMicr.Utils.MicrFrame;
+import org.doubango.ultimateMicr.Utils.MicrFramePipeline;
+import org.doubango.ultimateMicr.Utils.MicrProcessOptions;
+import org.doubango.ultimateMicr.Utils.MicrQualityGate;
+import org.doubango.ultimateMicr.Utils.MicrResultParser;
+import org.doubango.ultimateMicr.Utils.MicrRoi;
+import org.doubango.ultimateMicr.Utils.MicrRoiTracker;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -38,13 +47,18 @@ public abstract class MICRActivity extends AppCompatActivity implements MICRCame
 
     private String mDebugInternalDataPath = null;
 
-    private boolean mIsProcessing = false;
-
     private boolean mIsPaused = true;
 
     private MICRView mMICRView;
 
-    private final MICRBackgroundTask mBackgroundTaskInference = new MICRBackgroundTask();
+    // Only accessed on the inference thread
+    private final MicrRoiTracker mRoiTracker = new MicrRoiTracker();
+    private final MicrProcessOptions mProcessOptions = new MicrProcessOptions();
+    private final MicrResultParser mResultParser = new MicrResultParser();
+    private final MicrConsensus mConsensus = new MicrConsensus();
+    private final MicrQualityGate mQualityGate = new MicrQualityGate();
+    private final MicrDuplicateFilter<InferenceResult> mDuplicateFilter = new MicrDuplicateFilter<InferenceResult>();
+    private MicrRoi mDuplicateRoi = MicrRoi.EMPTY; // ROI of the result stored in the duplicate filter
 
     @Override
     protected void onCreate(final Bundle savedInstanceState) {
@@ -120,13 +134,16 @@ public abstract class MICRActivity extends AppCompatActivity implements MICRCame
         super.onResume();
 
         mIsPaused = false;
-        mBackgroundTaskInference.start("mBackgroundTaskInference");
+        mPipeline.start("MICRPipeline");
     }
 
     @Override
     public synchronized void onPause() {
         mIsPaused = true;
-        mBackgroundTaskInference.stop();
+        mPipeline.stop();
+        Log.i(TAG, "Pipeline: " + mPipeline);
+        Log.i(TAG, "Quality gate: " + mQualityGate);
+        Log.i(TAG, "Duplicate filter: " + mDuplicateFilter);
 
         super.onPause();
     }
@@ -148,73 +165,162 @@ public abstract class MICRActivity extends AppCompatActivity implements MICRCame
 
     @Override
     public void setImage(@NonNull final Image image, final int jpegOrientation) {
-
-        if (mIsProcessing || !mBackgroundTaskInference.isRunning() || mIsPaused) {
+        if (mIsPaused) {
             image.close();
             return;
         }
+        // Never blocks: replaces the frame waiting for the inference thread, if any
+        mPipeline.offer(new CapturedImage(image, jpegOrientation));
+    }
 
-        // Mark as processing
-        mIsProcessing = true;
-
-        // Schedule processing
-        mBackgroundTaskInference.post(new Runnable() {
-            @Override
-            public void run() {
-                final Size imageSize = new Size(image.getWidth(), image.getHeight());
-
-                // Orientation
-                // Convert from degree to real EXIF orientation
-                int exifOrientation;
-                switch (jpegOrientation) {
-                    case 90: exifOrientation = ExifInterface.ORIENTATION_ROTATE_90; break;
-                    case 180: exifOrientation = ExifInterface.ORIENTATION_ROTATE_180; break;
-                    case 270: exifOrientation = ExifInterface.ORIENTATION_ROTATE_270; break;
-                    case 0: default: exifOrientation = ExifInterface.ORIENTATION_NORMAL; break;
-                }
+    /**
+     * Frame waiting for the inference.
+     */
+    private static final class CapturedImage {
+        final Image mImage;
+        final int mJpegOrientation;
 
-                // The actual deep learning inference is done here
-                final Image.Plane[] planes = image.getPlanes();
-                final long startTimeInMillis = SystemClock.uptimeMillis();
-                final UltMicrSdkResult result = /*MICRUtils.assertIsOk*/(UltMicrSdkEngine.process(
-                        ULTMICR_SDK_IMAGE_TYPE.ULTMICR_SDK_IMAGE_TYPE_YUV420P,
-                        planes[0].getBuffer(),
-                        planes[1].getBuffer(),
-                        planes[2].getBuffer(),
-                        imageSize.getWidth(),
-                        imageSize.getHeight(),
-                        planes[0].getRowStride(),
-                        planes[1].getRowStride(),
-                        planes[2].getRowStride(),
-                        planes[1].getPixelStride(),
-                        exifOrientation
-                ));
-                final long durationInMillis = SystemClock.uptimeMillis() - startTimeInMillis;
+        CapturedImage(final Image image, final int jpegOrientation) {
+            mImage = image;
+            mJpegOrientation = jpegOrientation;
+        }
+    }
 
-                // Release the image and signal the inference process is finished
-                image.close();
+    /**
+     * Result waiting to be displayed.
+     */
+    private static final class InferenceResult {
+        final UltMicrSdkResult mResult;
+        final Size mImageSize;
+        final long mDurationInMillis;
+
+        InferenceResult(final UltMicrSdkResult result, final Size imageSize, final long durationInMillis) {
+            mResult = result;
+            mImageSize = imageSize;
+            mDurationInMillis = durationInMillis;
+        }
+    }
 
-                // Mark as no longer processing
-                mIsProcessing = false;
+    private final MicrFramePipeline.Handler<CapturedImage, InferenceResult> mPipelineHandler = new MicrFramePipeline.Handler<CapturedImage, InferenceResult>() {
+        @Override
+        public InferenceResult process(final CapturedImage captured) {
+            final Image image = captured.mImage;
+            final int jpegOrientation = captured.mJpegOrientation;
+            final Size imageSize = new Size(image.getWidth(), image.getHeight());
+
+            // Orientation
+            // Convert from degree to real EXIF orientation
+            int exifOrientation;
+            switch (jpegOrientation) {
+                case 90: exifOrientation = ExifInterface.ORIENTATION_ROTATE_90; break;
+                case 180: exifOrientation = ExifInterface.ORIENTATION_ROTATE_180; break;
+                case 270: exifOrientation = ExifInterface.ORIENTATION_ROTATE_270; break;
+                case 0: default: exifOrientation = ExifInterface.ORIENTATION_NORMAL; break;
+            }
 
-                // Display the result to the console
-                if (result.isOK()) {
-                    Log.d(TAG, MICRUtils.resultToString(result));
-                } else {
-                    Log.e(TAG, MICRUtils.resultToString(result));
+            // The actual deep learning inference is done here
+            // When tracking, only the region around the line found in the previous frames is processed
+            final Image.Plane[] planes = image.getPlanes();
+            final MicrFrame frame = MicrFrame.newYuv(
+                    ULTMICR_SDK_IMAGE_TYPE.ULTMICR_SDK_IMAGE_TYPE_YUV420P,
+                    planes[0].getBuffer(),
+                    planes[1].getBuffer(),
+                    planes[2].getBuffer(),
+                    imageSize.getWidth(),
+                    imageSize.getHeight(),
+                    planes[0].getRowStride(),
+                    planes[1].getRowStride(),
+                    planes[2].getRowStride(),
+                    planes[1].getPixelStride(),
+                    exifOrientation
+            );
+
+            // Once the text is final there is no need to process the frames until the scene changes
+            final boolean consensus = isConsensusEnabled();
+            if (consensus && !mConsensus.shouldProcess(frame)) {
+                return null;
+            }
+
+            final boolean tracking = isRoiTrackingEnabled();
+            final MicrRoi roi = tracking ? mRoiTracker.getRoi(frame) : MicrRoi.EMPTY;
+
+            // Near-identical to the last processed frame (document sitting still): reuse its result.
+            // Not with the consensus: it needs new reads to become final (a reused result is not one) and
+            // already skips the unchanged scenes once final. The stored result must have been computed on
+            // the same ROI and the tracker still sees the reused results (misses included, to fall back to
+            // the full frame in time)
+            final boolean deduplication = isDuplicateSuppressionEnabled() && !consensus;
+            if (deduplication) {
+                if (!roi.equals(mDuplicateRoi)) {
+                    mDuplicateFilter.reset();
+                    mDuplicateRoi = roi;
+                }
+                final InferenceResult previous = mDuplicateFilter.lookup(frame);
+                if (previous != null) {
+                    if (tracking) {
+                        mResultParser.parse(previous.mResult.isOK() ? previous.mResult.json() : null);
+                        mRoiTracker.update(frame, mResultParser);
+                    }
+                    return previous;
                 }
+            }
 
-                // Draw the result to the view
-                if (mMICRView != null) {
-                    mMICRView.setResult(
-                            result, (
-                                    jpegOrientation % 180) == 0 ? imageSize : new Size(imageSize.getHeight(), imageSize.getWidth()),
-                            durationInMillis
-                    );
+            // Skip the blurry and badly exposed frames, they'd never produce a read
+            if (isQualityGateEnabled() && !mQualityGate.accept(frame, roi)) {
+                return null;
+            }
+
+            final long startTimeInMillis = SystemClock.uptimeMillis();
+            final UltMicrSdkResult result = /*MICRUtils.assertIsOk*/(frame.process(mProcessOptions.setRoi(roi)));
+            final long durationInMillis = SystemClock.uptimeMillis() - startTimeInMillis;
+
+            // Follow the line and vote (the image is released after this function, the pixels are read when the text becomes final)
+            if (tracking || consensus) {
+                mResultParser.parse(result.isOK() ? result.json() : null);
+                if (tracking) {
+                    mRoiTracker.update(frame, mResultParser);
+                }
+                if (consensus && !mConsensus.isFinal() && mConsensus.update(frame, mResultParser)) {
+                    for (int i = 0; i < mConsensus.getNumLines(); ++i) {
+                        Log.i(TAG, "Final text #" + i + ": " + mConsensus.getText(i));
+                    }
                 }
             }
-        });
-    }
+
+            final InferenceResult inference = new InferenceResult(
+                    result,
+                    (jpegOrientation % 180) == 0 ? imageSize : new Size(imageSize.getHeight(), imageSize.getWidth()),
+                    durationInMillis
+            );
+            if (deduplication) {
+                mDuplicateFilter.store(inference);
+            }
+            return inference;
+        }
+
+        @Override
+        public void onResult(final InferenceResult inference, final long latencyNanos) {
+            // Display the result to the console
+            if (inference.mResult.isOK()) {
+                Log.d(TAG, MICRUtils.resultToString(inference.mResult));
+            } else {
+                Log.e(TAG, MICRUtils.resultToString(inference.mResult));
+            }
+
+            // Draw the result to the view
+            if (mMICRView != null) {
+                mMICRView.setResult(inference.mResult, inference.mImageSize, inference.mDurationInMillis);
+            }
+        }
+
+        @Override
+        public void releaseFrame(final CapturedImage captured) {
+            captured.mImage.close();
+        }
+    };
+
+    // Capture -> inference -> result handling, the frames arriving while busy only keep the latest one
+    private final MicrFramePipeline<CapturedImage, InferenceResult> mPipeline = new MicrFramePipeline<CapturedImage, InferenceResult>(mPipelineHandler);
 
     /**
      * Gets the base folder defining a path where the application can write private
@@ -258,4 +364,58 @@ public abstract class MICRActivity extends AppCompatActivity implements MICRCame
     protected abstract JSONObject getJsonConfig();
 
     protected abstract List<Float> getDetectROI();
+
+    /**
+     * Whether to narrow the detection to the region around the MICR line found in the previous frames
+     * ({@link MicrRoiTracker}). Disabled when a static ROI is defined ({@link #getDetectROI()}) as its
+     * coordinates are relative to the full frame.
+     * @return true to enable the tracking.
+     */
+    protected boolean isRoiTrackingEnabled() {
+        return MicrRoi.fromList(getDetectROI()).isEmpty();
+    }
+
+    /**
+     * Whether to vote over consecutive frames ({@link MicrConsensus}) and pause the inference once the
+     * text is final, until the scene changes.
+     * @return true to enable the consensus.
+     */
+    protected boolean isConsensusEnabled() {
+        return true;
+    }
+
+    /**
+     * Whether to skip the blurry and badly exposed frames ({@link MicrQualityGate}) before the inference.
+     * @return true to enable the quality gate.
+     */
+    protected boolean isQualityGateEnabled() {
+        return true;
+    }
+
+    /**
+     * Whether to reuse the previous result for the frames nearly identical to the last processed one
+     * ({@link MicrDuplicateFilter}, perceptual hash of the luma plane). Only applies when the consensus
+     * ({@link #isConsensusEnabled()}) is disabled: it needs new reads to become final, then skips the
+     * unchanged scenes by itself.
+     * @return true to enable the duplicate suppression.
+     */
+    protected boolean isDuplicateSuppressionEnabled() {
+        return true;
+    }
+
+    /**
+     * The duplicate filter, to tune the Hamming threshold or read the hit rate. Only access it from the
+     * inference thread or while paused.
+     */
+    protected MicrDuplicateFilter<?> getDuplicateFilter() {
+        return mDuplicateFilter;
+    }
+
+    /**
+     * The quality gate, to tune the thresholds or read the skipped/submitted counters. Only access it
+     * from the inference thread or while paused.
+     */
+    protected MicrQualityGate getQualityGate() {
+        return mQualityGate;
+    }
 }
\ No newline at end of file
@@ -25,8 +25,8 @@ import android.view.View;
 import androidx.annotation.NonNull;
 
 import org.doubango.ultimateMicr.Sdk.UltMicrSdkResult;
-
-import java.util.List;
+import org.doubango.ultimateMicr.Utils.MicrResultParser;
+import org.doubango.ultimateMicr.Utils.MicrZone;
 
 public class MICRView extends View {
 
@@ -55,7 +55,7 @@ public class MICRView extends View {
     long mProcessingTimeMillis;
 
     private Size mImageSize;
-    private List<MICRUtils.Zone> mZones = null;
+    private final MicrResultParser mResultParser = new MicrResultParser();
     private RectF mDetectROI;
 
     /**
@@ -160,7 +160,7 @@ public class MICRView extends View {
      * @param processingTimeMillis
      */
     public synchronized void setResult(@NonNull final UltMicrSdkResult result, @NonNull final Size imageSize, final long processingTimeMillis) {
-        mZones = MICRUtils.extractZones(result);
+        mResultParser.parse(result.isOK() ? result.json() : null);
         mImageSize = imageSize;
         mProcessingTimeMillis = processingTimeMillis;
         postInvalidate();
@@ -199,12 +199,14 @@ public class MICRView extends View {
         }
 
         // Zones
-        if (mZones != null && !mZones.isEmpty()) {
+        final int numZones = mResultParser.getNumZones();
+        if (numZones > 0) {
 
             // We want the stoke to be outside of the text and this is why we use half-stroke width offset
             final float borderWidth = (mPaintBorder.getStrokeWidth() * 0.5f) * 3.f; // times 3.f to have nice visual effect
 
-            for (final MICRUtils.Zone zone : mZones) {
+            for (int i = 0; i < numZones; ++i) {
+                final MicrZone zone = mResultParser.getZone(i);
                 // Set typeface
                 mPaintText.setTypeface(Typeface.create(
                         zone.getKlass() == MICRUtils.KLASS_CMC7 ? mFontCMC7 : mFontE13B,
@@ -0,0 +1,288 @@
+/* Copyright (C) 2011-2021 Doubango Telecom <https://www.doubango.org>
+* File author: Mamadou DIOP (Doubango Telecom, France).
+* License: For non commercial use only.
+* Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+* WebSite: https://www.doubango.org/webapps/micr/
+*/
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.lang.IllegalArgumentException;
+
+import java.nio.ByteBuffer;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import javax.imageio.ImageIO;
+
+import org.doubango.ultimateMicr.Sdk.ULTMICR_SDK_IMAGE_TYPE;
+import org.doubango.ultimateMicr.Sdk.UltMicrSdkResult;
+import org.doubango.ultimateMicr.Utils.MicrFrame;
+
+/**
+ * Command line benchmarks for the Java API. Each scenario is implemented in its own file
+ * and selected using "--scenario".
+ */
+public class Benchmark {
+
+   /**
+   * Defines the debug level to output on the console. You should use "verbose" for diagnostic, "info" in development stage and "warn" on production.
+   * JSON name: "debug_level"
+   * More info: https://www.doubango.org/SDKs/micr/docs/Configuration_options.html#debug-level
+   */
+   static final String CONFIG_DEBUG_LEVEL = "warn";
+
+   /**
+   * Defines the maximum number of threads to use. Set to -1 to let the SDK choose the right value.
+   * JSON name: "num_threads"
+   * More info: https://www.doubango.org/SDKs/micr/docs/Configuration_options.html#num-threads
+   */
+   static final int CONFIG_NUM_THREADS = -1;
+
+   /**
+   * Whether to enable GPGPU computing.
+   * JSON name: "gpgpu_enabled"
+   * More info: https://www.doubango.org/SDKs/micr/docs/Configuration_options.html#gpgpu-enabled
+   */
+   static final boolean CONFIG_GPGPU_ENABLED = true;
+
+   /**
+   * Defines how low the segmenter thresholding values should be.
+   * JSON name: "segmenter_accuracy"
+   * More info: https://www.doubango.org/SDKs/micr/docs/Configuration_options.html#segmenter-accuracy
+   */
+   static final String CONFIG_SEGMENTER_ACCURACY = "high";
+
+   /**
+   * Defines the interpolation method to use when pixels are scaled, deskewed or deslanted.
+   * JSON name: "interpolation"
+   * More info: https://www.doubango.org/SDKs/micr/docs/Configuration_options.html#interpolation
+   */
+   static final String CONFIG_INTERPOLATION = "bilinear";
+
+   /**
+   * Defines the MICR format to enable for the detection. For performance reasons you should not use "e13b+cmc7" unless
+   * you really expect the document to contain both E-13B and CMC7 lines.
+   * JSON name: "format"
+   * More info: https://www.doubango.org/SDKs/micr/docs/Configuration_options.html#format
+   */
+   static final String CONFIG_FORMAT = "e13b+cmc7";
+
+   /**
+   * Define a threshold for the overall recognition score.
+   * JSON name: "min_score"
+   * More info: https://www.doubango.org/SDKs/micr/docs/Configuration_options.html#min-score
+   */
+   static final double CONFIG_MIN_SCORE = 0.3; // 30%
+
+   /**
+   * Defines the overall score type.
+   * JSON name: "score_type"
+   * More info: https://www.doubango.org/SDKs/micr/docs/Configuration_options.html#score-type
+   */
+   static final String CONFIG_SCORE_TYPE = "min";
+
+   /**
+   * Defines the Region Of Interest (ROI) for the detector.
+   * JSON name: "roi"
+   * More info: https://www.doubango.org/SDKs/micr/docs/Configuration_options.html#roi
+   */
+   static final List<Float> CONFIG_ROI = Arrays.asList(0.f, 0.f, 0.f, 0.f);
+
+   public static void main(String[] args) throws IllegalArgumentException, FileNotFoundException, IOException, InterruptedException {
+      // Parse arguments
+      final Hashtable<String, String> parameters = ParseArgs(args);
+      if (!parameters.containsKey("--scenario"))
+      {
+         System.err.println("--scenario required");
+         throw new IllegalArgumentException("--scenario required");
+      }
+
+      final String scenario = parameters.get("--scenario");
+
+      //!\\ This is a quick and dirty way to load the library. You should not use it:
+      // create a static block outside the main function and load the library from there.
+      if (!"parse".equals(scenario) && !"replay".equals(scenario)) { // Pure Java
+         System.loadLibrary(System.getProperty("os.name").toLowerCase().contains("win") ? "ultimateMICR-SDK" : "ultimate_micr-sdk");
+      }
+
+      switch (scenario) {
+         case "mixed": MixedTrafficBenchmark.run(parameters); break;
+         case "scaling": ScalingBenchmark.run(parameters); break;
+         case "pool": PoolBenchmark.run(parameters); break;
+         case "stress": StressBenchmark.run(parameters); break;
+         case "parse": ParseBenchmark.run(parameters); break;
+         case "pipeline": PipelineBenchmark.run(parameters); break;
+         case "cache": CacheBenchmark.run(parameters); break;
+         case "coalesce": CoalesceBenchmark.run(parameters); break;
+         case "cascade": CascadeBenchmark.run(parameters); break;
+         case "router": RouterBenchmark.run(parameters); break;
+         case "hedge": HedgeBenchmark.run(parameters); break;
+         case "brownout": BrownoutBenchmark.run(parameters); break;
+         case "deadline": DeadlineBenchmark.run(parameters); break;
+         case "lanes": LanesBenchmark.run(parameters); break;
+         case "tenants": TenantsBenchmark.run(parameters); break;
+         case "supervised": SupervisedBenchmark.run(parameters); break;
+         case "reload": ReloadBenchmark.run(parameters); break;
+         case "shadow": ShadowBenchmark.run(parameters); break;
+         case "idle": IdleBenchmark.run(parameters); break;
+         case "coldstart": ColdStartBenchmark.run(parameters); break;
+         case "replay": ReplayBenchmark.run(parameters); break;
+         default: throw new IllegalArgumentException("Unknown scenario: " + scenario);
+      }
+   }
+
+   // https://www.doubango.org/SDKs/micr/docs/Configuration_options.html
+   static Map<String, Object> DefaultConfig(Hashtable<String, String> parameters)
+   {
+      final Map<String, Object> config = new LinkedHashMap<String, Object>();
+      config.put("debug_level", CONFIG_DEBUG_LEVEL);
+      config.put("num_threads", CONFIG_NUM_THREADS);
+      config.put("gpgpu_enabled", CONFIG_GPGPU_ENABLED);
+      config.put("segmenter_accuracy", CONFIG_SEGMENTER_ACCURACY);
+      config.put("interpolation", CONFIG_INTERPOLATION);
+      config.put("format", parameters.getOrDefault("--format", CONFIG_FORMAT));
+      config.put("roi", CONFIG_ROI);
+      config.put("min_score", CONFIG_MIN_SCORE);
+      config.put("score_type", CONFIG_SCORE_TYPE);
+      config.put("assets_folder", parameters.getOrDefault("--assets", ""));
+      config.put("license_token_data", parameters.getOrDefault("--tokendata", ""));
+      return config;
+   }
+
+   static String BuildJSON(Map<String, Object> config)
+   {
+      return config.entrySet().stream()
+         .map(e -> "\"" + e.getKey() + "\": " + ToJSONValue(e.getValue()))
+         .collect(Collectors.joining(",", "{", "}"));
+   }
+
+   static String ToJSONValue(Object value)
+   {
+      if (value instanceof String) {
+         return "\"" + ((String)value).replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+      }
+      if (value instanceof List) {
+         return ((List<?>)value).stream().map(Benchmark::ToJSONValue).collect(Collectors.joining(",", "[", "]"));
+      }
+      return String.valueOf(value);
+   }
+
+   static int GetInt(Hashtable<String, String> parameters, String key, int defaultValue)
+   {
+      return parameters.containsKey(key) ? Integer.parseInt(parameters.get(key)) : defaultValue;
+   }
+
+   static double GetDouble(Hashtable<String, String> parameters, String key, double defaultValue)
+   {
+      return parameters.containsKey(key) ? Double.parseDouble(parameters.get(key)) : defaultValue;
+   }
+
+   /**
+   * Decodes a JPEG/PNG/BMP file to a frame backed by a direct buffer.
+   */
+   static MicrFrame ReadFrame(Hashtable<String, String> parameters, String name) throws IOException
+   {
+      final File file = new File(parameters.getOrDefault("--images", "../../../assets/images"), name);
+      if (!file.exists())
+      {
+         throw new FileNotFoundException("File not found: " + file.getAbsolutePath());
+      }
+      final BufferedImage image = ImageIO.read(file);
+      final int bytesPerPixel = image.getColorModel().getPixelSize() >> 3;
+      final DataBuffer dataBuffer = image.getRaster().getDataBuffer();
+      if ((bytesPerPixel != 1 && bytesPerPixel != 3 && bytesPerPixel != 4) || !(dataBuffer instanceof DataBufferByte))
+      {
+         throw new IOException("Unsupported image: " + file.getAbsolutePath());
+      }
+      final byte[] pixelData = ((DataBufferByte) dataBuffer).getData();
+      final ByteBuffer nativeBuffer = ByteBuffer.allocateDirect(pixelData.length);
+      nativeBuffer.put(pixelData);
+      nativeBuffer.rewind();
+      return MicrFrame.newPacked(
+         (bytesPerPixel == 1) ? ULTMICR_SDK_IMAGE_TYPE.ULTMICR_SDK_IMAGE_TYPE_Y : (bytesPerPixel == 4 ? ULTMICR_SDK_IMAGE_TYPE.ULTMICR_SDK_IMAGE_TYPE_BGRA32 : ULTMICR_SDK_IMAGE_TYPE.ULTMICR_SDK_IMAGE_TYPE_BGR24),
+         nativeBuffer,
+         image.getWidth(),
+         image.getHeight(),
+         image.getWidth(), // stride
+         1
+      );
+   }
+
+   /**
+   * Prints throughput and latency percentiles.
+   * @param label Name of the run
+   * @param latenciesNanos Per-request latencies. Sorted in place.
+   * @param elapsedNanos Wall-clock time of the run
+   */
+   static void PrintSummary(String label, long[] latenciesNanos, long elapsedNanos)
+   {
+      Arrays.sort(latenciesNanos);
+      final double seconds = elapsedNanos / 1e9;
+      System.out.println(String.format("%-40s requests: %6d, elapsed: %8.1f millis, throughput: %7.2f fps, p50: %7.2f, p95: %7.2f, p99: %7.2f, max: %7.2f millis",
+         label,
+         latenciesNanos.length,
+         elapsedNanos / 1e6,
+         latenciesNanos.length / seconds,
+         Percentile(latenciesNanos, 0.50) / 1e6,
+         Percentile(latenciesNanos, 0.95) / 1e6,
+         Percentile(latenciesNanos, 0.99) / 1e6,
+         (latenciesNanos.length == 0 ? 0 : latenciesNanos[latenciesNanos.length - 1]) / 1e6
+      ));
+   }
+
+   static long Percentile(long[] sorted, double p)
+   {
+      if (sorted.length == 0) {
+         return 0;
+      }
+      final int index = (int)Math.ceil(p * sorted.length) - 1;
+      return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+   }
+
+   static Hashtable<String, String> ParseArgs(String[] args) throws IllegalArgumentException
+   {
+      System.out.println("Args: " + String.join(" ", args) + System.lineSeparator());
+
+      if ((args.length & 1) != 0)
+      {
+            String errMessage = String.format("Number of args must be even: %d", args.length);
+            System.err.println(errMessage);
+            throw new IllegalArgumentException(errMessage);
+      }
+
+      // Parsing
+      Hashtable<String, String> values = new Hashtable<String, String>();
+      for (int index = 0; index < args.length; index += 2)
+      {
+            String key = args[index];
+            if (!key.startsWith("--"))
+            {
+               String errMessage = String.format("Invalid key: %s", key);
+               System.err.println(errMessage);
+               throw new IllegalArgumentException(errMessage);
+            }
+            values.put(key, args[index + 1].replace("$(ProjectDir)", System.getProperty("user.dir").trim()));
+      }
+      return values;
+   }
+
+   static UltMicrSdkResult CheckResult(String functionName, UltMicrSdkResult result) throws IOException
+   {
+      if (!result.isOK())
+      {
+            String errMessage = String.format("%s: Execution failed: %s", functionName, result.json());
+            System.err.println(errMessage);
+            throw new IOException(errMessage);
+      }
+      return result;
+   }
+}
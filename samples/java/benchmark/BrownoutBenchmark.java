@@ -0,0 +1,163 @@
+/* Copyright (C) 2011-2021 Doubango Telecom <https://www.doubango.org>
+* File author: Mamadou DIOP (Doubango Telecom, France).
+* License: For non commercial use only.
+* Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+* WebSite: https://www.doubango.org/webapps/micr/
+*/
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.doubango.ultimateMicr.Service.MicrBrownoutEngine;
+import org.doubango.ultimateMicr.Service.MicrEngine;
+import org.doubango.ultimateMicr.Service.MicrProcessEngine;
+import org.doubango.ultimateMicr.Service.MicrResult;
+import org.doubango.ultimateMicr.Utils.MicrFrame;
+
+/**
+ * Brownout (MicrBrownoutEngine) during a deposit peak: open-loop arrivals at half the full-quality capacity,
+ * then 1.5x the capacity, then half again. Compares the full-quality engine alone with the brownout ladder
+ * (full, low accuracy + nearest interpolation, no backpropagation/IELCD, bottom ROI), each profile being a
+ * warmed-up worker process. Prints the latency and the profiles used per phase.
+ *
+ * Options: --phase-ms (duration of each phase, default 3000), --peak (peak rate / capacity, default 1.5),
+ * --target-ms (brownout latency target, default: 4 x the full-quality latency).
+ */
+class BrownoutBenchmark {
+
+   static void run(Hashtable<String, String> parameters) throws IOException, InterruptedException
+   {
+      final int phaseMillis = Benchmark.GetInt(parameters, "--phase-ms", 3000);
+      final double peak = Benchmark.GetDouble(parameters, "--peak", 1.5);
+
+      final MicrFrame positive = Benchmark.ReadFrame(parameters, "e13b_1280x720.jpg");
+      final MicrFrame negative = Benchmark.ReadFrame(parameters, "traffic_1280x720.jpg");
+
+      // Profiles, from the best quality to the cheapest
+      final String[] names = { "full", "fast", "faster", "roi" };
+      final String[] configs = new String[names.length];
+      final Map<String, Object> config = Benchmark.DefaultConfig(parameters);
+      config.put("segmenter_accuracy", "high");
+      config.put("backpropagation_enabled", true);
+      config.put("ielcd_enabled", true);
+      configs[0] = Benchmark.BuildJSON(config);
+      config.put("segmenter_accuracy", "low");
+      config.put("interpolation", "nearest");
+      configs[1] = Benchmark.BuildJSON(config);
+      config.put("backpropagation_enabled", false);
+      config.put("ielcd_enabled", false);
+      configs[2] = Benchmark.BuildJSON(config);
+      config.put("roi", Arrays.asList(0.f, (float)positive.getWidth(), positive.getHeight() * 0.6f, (float)positive.getHeight()));
+      configs[3] = Benchmark.BuildJSON(config);
+
+      final MicrEngine[] engines = new MicrEngine[names.length];
+      try {
+         for (int i = 0; i < names.length; ++i) {
+            engines[i] = MicrProcessEngine.start(configs[i]);
+            engines[i].warmUp(positive.getType());
+            engines[i].process(positive);
+         }
+
+         // Capacity of the full-quality profile
+         final long t = System.nanoTime();
+         for (int i = 0; i < 20; ++i) {
+            engines[0].process((i & 1) == 0 ? positive : negative);
+         }
+         final double latencyMillis = (System.nanoTime() - t) / (20 * 1e6);
+         final double capacity = 1000.0 / latencyMillis;
+         final int targetMillis = Benchmark.GetInt(parameters, "--target-ms", (int)Math.max(1, 4 * latencyMillis));
+         System.out.println(String.format("full-quality latency: %.2f millis, capacity: %.1f fps", latencyMillis, capacity));
+
+         final double[] rates = { 0.5 * capacity, peak * capacity, 0.5 * capacity };
+         runPhases("full quality only", engines[0], rates, phaseMillis, positive, negative);
+
+         final MicrBrownoutEngine brownout = new MicrBrownoutEngine(names, engines)
+            .setTargetLatency(targetMillis)
+            .setRestoreDelay(phaseMillis / 10); // Short phases
+         runPhases(String.format("brownout, target=%d millis", targetMillis), brownout, rates, phaseMillis, positive, negative);
+         System.out.println(String.format("%-40s %s", "", brownout));
+      }
+      finally {
+         for (MicrEngine engine : engines) {
+            if (engine != null) {
+               engine.close();
+            }
+         }
+      }
+   }
+
+   /**
+   * Open loop: the requests arrive at the phase's rate whatever the latency, the latency includes the queuing.
+   */
+   static void runPhases(String label, MicrEngine engine, double[] rates, int phaseMillis, MicrFrame positive, MicrFrame negative) throws InterruptedException
+   {
+      final ExecutorService executor = Executors.newCachedThreadPool();
+      final List<List<Long>> latencies = new ArrayList<>();
+      final List<Map<String, Integer>> profiles = new ArrayList<>();
+      final long start = System.nanoTime();
+      long arrival = start;
+      int index = 0;
+      for (int phase = 0; phase < rates.length; ++phase) {
+         final List<Long> phaseLatencies = new ArrayList<>();
+         final Map<String, Integer> phaseProfiles = new TreeMap<>();
+         latencies.add(phaseLatencies);
+         profiles.add(phaseProfiles);
+         final long interval = (long)(1e9 / rates[phase]);
+         final long end = start + ((phase + 1) * TimeUnit.MILLISECONDS.toNanos(phaseMillis));
+         for (; arrival < end; arrival += interval, ++index) {
+            final long delay = arrival - System.nanoTime();
+            if (delay > 0) {
+               TimeUnit.NANOSECONDS.sleep(delay);
+            }
+            final long scheduled = arrival;
+            final MicrFrame frame = (index % 5) == 0 ? positive : negative;
+            executor.execute(() -> {
+               try {
+                  final MicrResult result = engine.process(frame);
+                  final long latency = System.nanoTime() - scheduled;
+                  final String profile = Profile(result.json());
+                  synchronized (phaseLatencies) {
+                     phaseLatencies.add(latency);
+                     phaseProfiles.merge(profile, 1, Integer::sum);
+                  }
+               }
+               catch (IOException e) {
+                  e.printStackTrace();
+               }
+            });
+         }
+      }
+      executor.shutdown();
+      executor.awaitTermination(5, TimeUnit.MINUTES);
+
+      System.out.println(label);
+      final String[] phaseNames = { "before peak", "peak", "after peak" };
+      for (int phase = 0; phase < rates.length; ++phase) {
+         final List<Long> phaseLatencies = latencies.get(phase);
+         final long[] values = new long[phaseLatencies.size()];
+         for (int i = 0; i < values.length; ++i) {
+            values[i] = phaseLatencies.get(i);
+         }
+         Benchmark.PrintSummary(String.format("  %s (%.0f fps)", phaseNames[phase % phaseNames.length], rates[phase]), values, TimeUnit.MILLISECONDS.toNanos(phaseMillis));
+         System.out.println(String.format("%-40s profiles: %s", "", profiles.get(phase)));
+      }
+   }
+
+   /**
+   * Value of the "profile" tag, "-" if untagged.
+   */
+   static String Profile(String json)
+   {
+      final String key = "\"" + MicrBrownoutEngine.KEY_PROFILE + "\":\"";
+      final int begin = json.indexOf(key);
+      return begin < 0 ? "-" : json.substring(begin + key.length(), json.indexOf('"', begin + key.length()));
+   }
+}
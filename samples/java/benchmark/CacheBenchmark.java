@@ -0,0 +1,126 @@
+/* Copyright (C) 2011-2021 Doubango Telecom <https://www.doubango.org>
+* File author: Mamadou DIOP (Doubango Telecom, France).
+* License: For non commercial use only.
+* Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+* WebSite: https://www.doubango.org/webapps/micr/
+*/
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Hashtable;
+import java.util.Random;
+
+import org.doubango.ultimateMicr.Service.MicrCachingEngine;
+import org.doubango.ultimateMicr.Service.MicrEngine;
+import org.doubango.ultimateMicr.Service.MicrLocalEngine;
+import org.doubango.ultimateMicr.Service.MicrResult;
+import org.doubango.ultimateMicr.Service.MicrResultCache;
+import org.doubango.ultimateMicr.Utils.MicrFrame;
+import org.doubango.ultimateMicr.Utils.MicrFrameHash;
+
+/**
+ * Content-addressed result cache (MicrCachingEngine + MicrResultCache). An archive of distinct documents
+ * (copies of the sample images with a unique stamp) is submitted with resubmissions (retries, duplicate
+ * uploads), then reprocessed as a batch with a cold memory tier: only the memory-mapped disk tier
+ * remembers the first run. Every cached result is checked against the engine's.
+ *
+ * Options: --loops (requests, default 200), --unique (distinct documents, default 20), --duplicates
+ * (share of resubmissions, default 0.5), --cache-file (disk tier, default: temporary file).
+ */
+class CacheBenchmark {
+
+   static void run(Hashtable<String, String> parameters) throws IOException, InterruptedException
+   {
+      final int loops = Benchmark.GetInt(parameters, "--loops", 200);
+      final int unique = Benchmark.GetInt(parameters, "--unique", 20);
+      final double duplicates = Benchmark.GetDouble(parameters, "--duplicates", 0.5);
+      final File cacheFile = parameters.containsKey("--cache-file") ? new File(parameters.get("--cache-file")) : File.createTempFile("ultimateMicr-", ".cache");
+      if (!parameters.containsKey("--cache-file")) {
+         cacheFile.deleteOnExit();
+      }
+
+      // Archive
+      final String[] names = { "e13b_1280x720.jpg", "cmc7_1280x720.jpg", "traffic_1280x720.jpg" };
+      final MicrFrame[] originals = new MicrFrame[names.length];
+      for (int i = 0; i < names.length; ++i) {
+         originals[i] = Benchmark.ReadFrame(parameters, names[i]);
+      }
+      final MicrFrame[] archive = new MicrFrame[unique];
+      for (int i = 0; i < unique; ++i) {
+         archive[i] = Stamp(originals[i % originals.length], i);
+      }
+
+      // Traffic: new documents in order, resubmissions of the already seen ones
+      final Random random = new Random(0);
+      final MicrFrame[] traffic = new MicrFrame[loops];
+      int next = 0;
+      for (int i = 0; i < loops; ++i) {
+         traffic[i] = (next == 0 || (next < unique && random.nextDouble() >= duplicates)) ? archive[next++] : archive[random.nextInt(next)];
+      }
+
+      try (MicrEngine engine = MicrLocalEngine.open(Benchmark.BuildJSON(Benchmark.DefaultConfig(parameters)))) {
+         engine.warmUp(originals[0].getType());
+         engine.process(originals[0]);
+
+         runTraffic("no cache", engine, traffic);
+
+         final MicrResultCache cache = MicrResultCache.withDisk(1024, 16L << 20, cacheFile, 4096, 4096);
+         final MicrCachingEngine caching = new MicrCachingEngine(engine, cache);
+         runTraffic("cache", caching, traffic);
+         System.out.println(String.format("%-40s %s", "", cache));
+         Check(engine, caching, archive);
+         cache.close();
+
+         // Batch reprocessing, new process: cold memory tier, warm disk tier
+         final MicrResultCache reopened = MicrResultCache.withDisk(1024, 16L << 20, cacheFile, 4096, 4096);
+         final MicrCachingEngine batch = new MicrCachingEngine(engine, reopened);
+         runTraffic("batch replay, reopened cache", batch, archive);
+         System.out.println(String.format("%-40s %s", "", reopened));
+         reopened.close();
+      }
+   }
+
+   static void runTraffic(String label, MicrEngine engine, MicrFrame[] traffic) throws IOException
+   {
+      final long[] latencies = new long[traffic.length];
+      final long start = System.nanoTime();
+      for (int i = 0; i < traffic.length; ++i) {
+         final long t = System.nanoTime();
+         final MicrResult result = engine.process(traffic[i]);
+         latencies[i] = System.nanoTime() - t;
+         if (!result.isOK()) {
+            throw new IOException("process failed: " + result);
+         }
+      }
+      Benchmark.PrintSummary(label, latencies, System.nanoTime() - start);
+   }
+
+   /**
+   * The cached zones must be the engine's.
+   */
+   static void Check(MicrEngine engine, MicrCachingEngine caching, MicrFrame[] archive) throws IOException
+   {
+      for (MicrFrame frame : archive) {
+         final MicrResult expected = engine.process(frame);
+         final MicrResult cached = caching.getCache().get(MicrFrameHash.hash(frame), MicrFrameHash.hash(engine.getConfig()));
+         if (cached != null && !StressBenchmark.Normalize(cached).equals(StressBenchmark.Normalize(expected))) {
+            throw new IOException("Cached result mismatch: " + cached.json() + " != " + expected.json());
+         }
+      }
+   }
+
+   /**
+   * Copy of the frame with a unique stamp in the first pixels.
+   */
+   static MicrFrame Stamp(MicrFrame frame, int index)
+   {
+      final ByteBuffer source = frame.getPlane(0).duplicate();
+      source.rewind();
+      final ByteBuffer copy = ByteBuffer.allocateDirect(source.remaining());
+      copy.put(source);
+      copy.putInt(0, index);
+      copy.rewind();
+      return MicrFrame.newPacked(frame.getType(), copy, frame.getWidth(), frame.getHeight(), frame.getStride(0), frame.getExifOrientation());
+   }
+}
@@ -0,0 +1,86 @@
+/* Copyright (C) 2011-2021 Doubango Telecom <https://www.doubango.org>
+* File author: Mamadou DIOP (Doubango Telecom, France).
+* License: For non commercial use only.
+* Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+* WebSite: https://www.doubango.org/webapps/micr/
+*/
+
+import java.io.IOException;
+import java.util.Hashtable;
+import java.util.Map;
+
+import org.doubango.ultimateMicr.Service.MicrCascadeEngine;
+import org.doubango.ultimateMicr.Service.MicrEngine;
+import org.doubango.ultimateMicr.Service.MicrLocalEngine;
+import org.doubango.ultimateMicr.Service.MicrProcessEngine;
+import org.doubango.ultimateMicr.Service.MicrResult;
+import org.doubango.ultimateMicr.Utils.MicrFrame;
+
+/**
+ * Confidence cascade (MicrCascadeEngine): a cheap configuration ("segmenter_accuracy": "low", "interpolation": "nearest")
+ * processes every frame in-process and an expensive one ("segmenter_accuracy": "veryhigh", backpropagation and IELCD on)
+ * running in a worker process reprocesses the frames without zone, with a low confidence or a wrong check digit.
+ * Compares the cheap configuration alone, the expensive one alone and the cascade.
+ *
+ * Options: --loops (default 100), --rate (share of frames with a MICR line, default 0.8), --min-confidence (default 80).
+ */
+class CascadeBenchmark {
+
+   static void run(Hashtable<String, String> parameters) throws IOException, InterruptedException
+   {
+      final int loops = Benchmark.GetInt(parameters, "--loops", 100);
+      final double rate = Benchmark.GetDouble(parameters, "--rate", 0.8);
+      final float minConfidence = (float)Benchmark.GetDouble(parameters, "--min-confidence", 80.0);
+
+      final MicrFrame e13b = Benchmark.ReadFrame(parameters, "e13b_1280x720.jpg");
+      final MicrFrame cmc7 = Benchmark.ReadFrame(parameters, "cmc7_1280x720.jpg");
+      final MicrFrame negative = Benchmark.ReadFrame(parameters, "traffic_1280x720.jpg");
+      final MicrFrame[] traffic = new MicrFrame[loops];
+      for (int i = 0; i < loops; ++i) {
+         traffic[i] = (i % 100) < (int)(rate * 100) ? ((i & 1) == 0 ? e13b : cmc7) : negative;
+      }
+
+      final Map<String, Object> cheap = Benchmark.DefaultConfig(parameters);
+      cheap.put("segmenter_accuracy", "low");
+      cheap.put("interpolation", "nearest");
+      final Map<String, Object> expensive = Benchmark.DefaultConfig(parameters);
+      expensive.put("segmenter_accuracy", "veryhigh");
+      expensive.put("backpropagation_enabled", true);
+      expensive.put("ielcd_enabled", true);
+
+      try (MicrEngine fast = MicrLocalEngine.open(Benchmark.BuildJSON(cheap));
+            MicrEngine thorough = MicrProcessEngine.start(Benchmark.BuildJSON(expensive))) {
+         runTraffic("cheap only", fast, e13b, traffic);
+         runTraffic("expensive only", thorough, e13b, traffic);
+
+         final MicrCascadeEngine cascade = new MicrCascadeEngine(fast, thorough).setMinConfidence(minConfidence);
+         runTraffic("cascade", cascade, e13b, traffic);
+         System.out.println(String.format("%-40s %s", "", cascade));
+      }
+   }
+
+   static void runTraffic(String label, MicrEngine engine, MicrFrame warmUpFrame, MicrFrame[] traffic) throws IOException
+   {
+      engine.warmUp(warmUpFrame.getType());
+      engine.process(warmUpFrame);
+      if (engine instanceof MicrCascadeEngine) {
+         ((MicrCascadeEngine)engine).resetStats();
+      }
+      final long[] latencies = new long[traffic.length];
+      int withZones = 0;
+      final long start = System.nanoTime();
+      for (int i = 0; i < traffic.length; ++i) {
+         final long t = System.nanoTime();
+         final MicrResult result = engine.process(traffic[i]);
+         latencies[i] = System.nanoTime() - t;
+         if (!result.isOK()) {
+            throw new IOException("process failed: " + result);
+         }
+         if (result.numZones() > 0) {
+            ++withZones;
+         }
+      }
+      Benchmark.PrintSummary(label, latencies, System.nanoTime() - start);
+      System.out.println(String.format("%-40s frames with zones: %d/%d", "", withZones, traffic.length));
+   }
+}
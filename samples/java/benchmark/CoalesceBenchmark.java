@@ -0,0 +1,124 @@
+/* Copyright (C) 2011-2021 Doubango Telecom <https://www.doubango.org>
+* File author: Mamadou DIOP (Doubango Telecom, France).
+* License: For non commercial use only.
+* Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+* WebSite: https://www.doubango.org/webapps/micr/
+*/
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.doubango.ultimateMicr.Service.MicrAsyncEngine;
+import org.doubango.ultimateMicr.Service.MicrEngine;
+import org.doubango.ultimateMicr.Service.MicrLocalEngine;
+import org.doubango.ultimateMicr.Service.MicrResult;
+import org.doubango.ultimateMicr.Utils.MicrFrame;
+import org.doubango.ultimateMicr.Utils.MicrFrameHash;
+
+/**
+ * Gateway retries: each client sends a request and, like an upstream gateway with a timeout, sends it again
+ * if there is no answer after --retry-ms. Without coalescing every retry is one more inference queued behind
+ * the others (retry storm), with single-flight coalescing (MicrAsyncEngine) the retry attaches to the
+ * computation in flight. Prints the client latency and the number of inferences actually run.
+ *
+ * Options: --loops (requests, default 200), --clients (default 4), --retry-ms (default: 2 x the warm latency),
+ * --unique (distinct documents, default 16).
+ */
+class CoalesceBenchmark {
+
+   interface Submitter {
+      CompletableFuture<MicrResult> submit(MicrFrame frame);
+   }
+
+   static void run(Hashtable<String, String> parameters) throws IOException, InterruptedException
+   {
+      final int loops = Benchmark.GetInt(parameters, "--loops", 200);
+      final int clients = Benchmark.GetInt(parameters, "--clients", 4);
+      final int unique = Benchmark.GetInt(parameters, "--unique", 16);
+
+      final String[] names = { "e13b_1280x720.jpg", "cmc7_1280x720.jpg", "traffic_1280x720.jpg" };
+      final MicrFrame[] documents = new MicrFrame[unique];
+      for (int i = 0; i < unique; ++i) {
+         documents[i] = CacheBenchmark.Stamp(Benchmark.ReadFrame(parameters, names[i % names.length]), i);
+      }
+
+      try (MicrEngine engine = MicrLocalEngine.open(Benchmark.BuildJSON(Benchmark.DefaultConfig(parameters)))) {
+         engine.warmUp(documents[0].getType());
+         engine.process(documents[0]);
+         final long warm = System.nanoTime();
+         for (MicrFrame document : documents) {
+            engine.process(document);
+            MicrFrameHash.hash(document); // JIT
+         }
+         final long warmMillis = (System.nanoTime() - warm) / (documents.length * 1000000L);
+         final int retryMillis = Benchmark.GetInt(parameters, "--retry-ms", (int)Math.max(1, 2 * warmMillis));
+
+         // Without coalescing: every request and retry is processed
+         final ExecutorService executor = Executors.newSingleThreadExecutor();
+         final AtomicLong inferences = new AtomicLong();
+         runClients(String.format("no coalescing, retry after %d millis", retryMillis), frame -> CompletableFuture.supplyAsync(() -> {
+            inferences.incrementAndGet();
+            try {
+               return engine.process(frame);
+            }
+            catch (IOException e) {
+               throw new UncheckedIOException(e);
+            }
+         }, executor), documents, loops, clients, retryMillis);
+         System.out.println(String.format("%-40s inferences: %d", "", inferences.get()));
+         executor.shutdown();
+
+         // Single-flight
+         final MicrAsyncEngine async = new MicrAsyncEngine(engine, 1);
+         runClients(String.format("single-flight, retry after %d millis", retryMillis), async::submit, documents, loops, clients, retryMillis);
+         System.out.println(String.format("%-40s inferences: %d, %s", "", async.getNumSubmitted() - async.getNumCoalesced(), async));
+      }
+   }
+
+   static void runClients(String label, Submitter submitter, MicrFrame[] documents, int loops, int clients, int retryMillis) throws InterruptedException
+   {
+      final long[] latencies = new long[loops];
+      final AtomicLong next = new AtomicLong();
+      final List<Thread> threads = new ArrayList<>();
+      final long start = System.nanoTime();
+      for (int c = 0; c < clients; ++c) {
+         final Thread thread = new Thread(() -> {
+            int i;
+            while ((i = (int)next.getAndIncrement()) < loops) {
+               final MicrFrame frame = documents[i % documents.length];
+               final long t = System.nanoTime();
+               try {
+                  final CompletableFuture<MicrResult> original = submitter.submit(frame);
+                  try {
+                     original.get(retryMillis, TimeUnit.MILLISECONDS);
+                  }
+                  catch (TimeoutException e) {
+                     // Retry, the first answer wins
+                     CompletableFuture.anyOf(original, submitter.submit(frame)).get();
+                  }
+               }
+               catch (InterruptedException | ExecutionException e) {
+                  throw new IllegalStateException(e);
+               }
+               latencies[i] = System.nanoTime() - t;
+            }
+         });
+         threads.add(thread);
+         thread.start();
+      }
+      for (Thread thread : threads) {
+         thread.join();
+      }
+      Benchmark.PrintSummary(label, latencies, System.nanoTime() - start);
+   }
+}
@@ -0,0 +1,92 @@
+/* Copyright (C) 2011-2021 Doubango Telecom <https://www.doubango.org>
+* File author: Mamadou DIOP (Doubango Telecom, France).
+* License: For non commercial use only.
+* Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+* WebSite: https://www.doubango.org/webapps/micr/
+*/
+
+import java.io.IOException;
+import java.util.Hashtable;
+
+import org.doubango.ultimateMicr.Sdk.ULTMICR_SDK_IMAGE_TYPE;
+import org.doubango.ultimateMicr.Service.MicrColdStartProfiler;
+import org.doubango.ultimateMicr.Service.MicrEngine;
+import org.doubango.ultimateMicr.Service.MicrLocalEngine;
+import org.doubango.ultimateMicr.Service.MicrTrafficProfile;
+import org.doubango.ultimateMicr.Service.MicrWarmUpPlan;
+import org.doubango.ultimateMicr.Service.MicrWorkerOptions;
+import org.doubango.ultimateMicr.Service.MicrWorkerPool;
+import org.doubango.ultimateMicr.Utils.MicrFrame;
+
+/**
+ * Cold start (MicrColdStartProfiler, MicrWarmUpPlan): profiles init and the first frame per image type and size
+ * (BGR24 720p and 360p, NV21 720p), records a traffic of 70% BGR24 720p, 25% BGR24 360p and 5% NV21 720p, prints
+ * the report and the recommended plan. Then compares the time to ready and the first frame of each traffic shape
+ * after init + warmUp of every image type versus init + the plan.
+ *
+ * Options: --repeats (default 3), --min-share (default 0.1), --min-gain (millis, default 1), --workers (0 = in-process
+ * engine, otherwise a worker pool applying the plan in parallel, default 0), --drop-caches (1 to drop the page cache
+ * for cold disk figures, Linux and root only, default 0).
+ */
+class ColdStartBenchmark {
+
+   static void run(Hashtable<String, String> parameters) throws IOException, InterruptedException
+   {
+      final int repeats = Benchmark.GetInt(parameters, "--repeats", 3);
+      final double minShare = Benchmark.GetDouble(parameters, "--min-share", 0.1);
+      final double minGain = Benchmark.GetDouble(parameters, "--min-gain", 1);
+      final int workers = Benchmark.GetInt(parameters, "--workers", 0);
+      final boolean dropCaches = Benchmark.GetInt(parameters, "--drop-caches", 0) != 0;
+
+      final MicrFrame full = Benchmark.ReadFrame(parameters, "e13b_1280x720.jpg");
+      final MicrFrame half = DeadlineBenchmark.Downscale(full);
+      final MicrFrame camera = MicrFrame.newBlank(ULTMICR_SDK_IMAGE_TYPE.ULTMICR_SDK_IMAGE_TYPE_NV21, full.getWidth(), full.getHeight());
+      final MicrFrame[] shapes = { full, half, camera };
+      final String jsonConfig = Benchmark.BuildJSON(Benchmark.DefaultConfig(parameters));
+
+      final MicrTrafficProfile traffic = new MicrTrafficProfile();
+      traffic.record(full.getType(), full.getWidth(), full.getHeight(), 70);
+      traffic.record(half.getType(), half.getWidth(), half.getHeight(), 25);
+      traffic.record(camera.getType(), camera.getWidth(), camera.getHeight(), 5);
+
+      final MicrColdStartProfiler profiler = new MicrColdStartProfiler(jsonConfig).setRepeats(repeats).setMinGain(minGain).setDropCaches(dropCaches);
+      for (MicrFrame frame : shapes) {
+         profiler.addSample(frame);
+      }
+      profiler.profile();
+      System.out.print(profiler.getReport());
+      final MicrWarmUpPlan plan = profiler.recommend(traffic, minShare);
+      System.out.print("Recommended plan (" + traffic + ", min share " + minShare + "):\n" + plan);
+
+      runStartup("warm up every image type", jsonConfig, workers, null, shapes);
+      runStartup("recommended plan", jsonConfig, workers, plan, shapes);
+   }
+
+   /**
+   * Init then warm-up (every type when "plan" is null) then the first frame of each shape.
+   */
+   static void runStartup(String label, String jsonConfig, int workers, MicrWarmUpPlan plan, MicrFrame[] shapes) throws IOException
+   {
+      final long start = System.nanoTime();
+      try (MicrEngine engine = (workers > 0) ? MicrWorkerPool.start(jsonConfig, workers, new MicrWorkerOptions()) : MicrLocalEngine.open(jsonConfig)) {
+         final long started = System.nanoTime();
+         if (plan == null) {
+            for (ULTMICR_SDK_IMAGE_TYPE type : ULTMICR_SDK_IMAGE_TYPE.values()) {
+               engine.warmUp(type);
+            }
+         }
+         else {
+            plan.apply(engine, Math.max(1, workers));
+         }
+         final long ready = System.nanoTime();
+         final StringBuilder firsts = new StringBuilder();
+         for (MicrFrame frame : shapes) {
+            final long t0 = System.nanoTime();
+            engine.process(frame);
+            firsts.append(String.format(" %s %dx%d %.1f", frame.getType().name().replace("ULTMICR_SDK_IMAGE_TYPE_", ""), frame.getWidth(), frame.getHeight(), (System.nanoTime() - t0) / 1e6));
+         }
+         System.out.println(String.format("%-28s init %.1f millis, warm-up %.1f millis, ready after %.1f millis, first frames (millis):%s",
+            label, (started - start) / 1e6, (ready - started) / 1e6, (ready - start) / 1e6, firsts));
+      }
+   }
+}
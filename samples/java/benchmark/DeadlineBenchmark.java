@@ -0,0 +1,164 @@
+/* Copyright (C) 2011-2021 Doubango Telecom <https://www.doubango.org>
+* File author: Mamadou DIOP (Doubango Telecom, France).
+* License: For non commercial use only.
+* Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+* WebSite: https://www.doubango.org/webapps/micr/
+*/
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.doubango.ultimateMicr.Service.MicrDeadlineException;
+import org.doubango.ultimateMicr.Service.MicrDeadlineScheduler;
+import org.doubango.ultimateMicr.Service.MicrEngine;
+import org.doubango.ultimateMicr.Service.MicrLocalEngine;
+import org.doubango.ultimateMicr.Service.MicrResult;
+import org.doubango.ultimateMicr.Utils.MicrFrame;
+
+/**
+ * Deadline-aware scheduling (MicrDeadlineScheduler): open-loop arrivals above the engine's capacity, each
+ * request with a deadline, full size and half size frames. A FIFO queue processes every
+ * request, most of them too late. The scheduler rejects early the requests that can't meet their deadline
+ * and drops the expired ones. Prints the requests completed in time (goodput) and their latency.
+ *
+ * Options: --loops (default 500), --load (arrival rate / capacity, default 1.3), --deadline-ms (default: 8 x the
+ * full size latency).
+ */
+class DeadlineBenchmark {
+
+   interface Submitter {
+      CompletableFuture<MicrResult> submit(MicrFrame frame, long deadlineNanos);
+   }
+
+   static void run(Hashtable<String, String> parameters) throws IOException, InterruptedException
+   {
+      final int loops = Benchmark.GetInt(parameters, "--loops", 500);
+      final double load = Benchmark.GetDouble(parameters, "--load", 1.3);
+
+      final MicrFrame full = Benchmark.ReadFrame(parameters, "e13b_1280x720.jpg");
+      final MicrFrame half = Downscale(Benchmark.ReadFrame(parameters, "cmc7_1280x720.jpg"));
+      final MicrFrame[] traffic = new MicrFrame[loops];
+      for (int i = 0; i < loops; ++i) {
+         traffic[i] = (i % 3) == 0 ? full : half;
+      }
+
+      try (MicrEngine engine = MicrLocalEngine.open(Benchmark.BuildJSON(Benchmark.DefaultConfig(parameters)))) {
+         engine.warmUp(full.getType());
+         engine.process(full);
+         final long t = System.nanoTime();
+         for (int i = 0; i < 30; ++i) {
+            engine.process(traffic[i]);
+         }
+         final double meanMillis = (System.nanoTime() - t) / (30 * 1e6);
+         final long fullMillis = Math.max(1, Math.round(Measure(engine, full)));
+         final int deadlineMillis = Benchmark.GetInt(parameters, "--deadline-ms", (int)(8 * fullMillis));
+         final double rate = load * 1000.0 / meanMillis;
+         System.out.println(String.format("mean latency: %.2f millis, arrivals: %.1f fps, deadline: %d millis", meanMillis, rate, deadlineMillis));
+
+         final ExecutorService fifo = Executors.newSingleThreadExecutor();
+         runTraffic("FIFO, no shedding", (frame, deadline) -> CompletableFuture.supplyAsync(() -> {
+            try {
+               return engine.process(frame);
+            }
+            catch (IOException e) {
+               throw new UncheckedIOException(e);
+            }
+         }, fifo), traffic, rate, deadlineMillis);
+         fifo.shutdown();
+
+         final MicrDeadlineScheduler scheduler = new MicrDeadlineScheduler(engine, 1);
+         for (int i = 0; i < 30; ++i) {
+            scheduler.process(traffic[i]); // Service times
+         }
+         scheduler.resetStats();
+         runTraffic("deadline scheduler", scheduler::submit, traffic, rate, deadlineMillis);
+         System.out.println(String.format("%-40s %s", "", scheduler));
+      }
+   }
+
+   static void runTraffic(String label, Submitter submitter, MicrFrame[] traffic, double rate, int deadlineMillis) throws InterruptedException
+   {
+      final List<Long> met = new ArrayList<>();
+      final AtomicLong late = new AtomicLong();
+      final AtomicLong rejected = new AtomicLong();
+      final CountDownLatch done = new CountDownLatch(traffic.length);
+      final long interval = (long)(1e9 / rate);
+      final long start = System.nanoTime();
+      for (int i = 0; i < traffic.length; ++i) {
+         final long arrival = start + (i * interval);
+         final long delay = arrival - System.nanoTime();
+         if (delay > 0) {
+            TimeUnit.NANOSECONDS.sleep(delay);
+         }
+         final long deadline = arrival + TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+         submitter.submit(traffic[i], deadline).whenComplete((result, error) -> {
+            final long end = System.nanoTime();
+            if (error != null) {
+               if (!(error instanceof MicrDeadlineException) && !(error.getCause() instanceof MicrDeadlineException)) {
+                  error.printStackTrace();
+               }
+               rejected.incrementAndGet();
+            }
+            else if (end <= deadline) {
+               synchronized (met) {
+                  met.add(end - arrival);
+               }
+            }
+            else {
+               late.incrementAndGet();
+            }
+            done.countDown();
+         });
+      }
+      done.await();
+      final long elapsed = System.nanoTime() - start;
+      final long[] latencies = new long[met.size()];
+      for (int i = 0; i < latencies.length; ++i) {
+         latencies[i] = met.get(i);
+      }
+      Benchmark.PrintSummary(label + ", in time", latencies, elapsed);
+      System.out.println(String.format("%-40s in time: %d, late: %d, rejected: %d, goodput: %.1f fps",
+         "", latencies.length, late.get(), rejected.get(), latencies.length * 1e9 / elapsed));
+   }
+
+   static double Measure(MicrEngine engine, MicrFrame frame) throws IOException
+   {
+      final long t = System.nanoTime();
+      for (int i = 0; i < 10; ++i) {
+         engine.process(frame);
+      }
+      return (System.nanoTime() - t) / (10 * 1e6);
+   }
+
+   /**
+   * Half size copy (nearest neighbour), packed formats only.
+   */
+   static MicrFrame Downscale(MicrFrame frame)
+   {
+      final int bytesPerPixel = MicrFrame.bytesPerPixel(frame.getType());
+      final int width = frame.getWidth() >> 1;
+      final int height = frame.getHeight() >> 1;
+      final int sourceRowBytes = frame.getStride(0) * bytesPerPixel;
+      final ByteBuffer source = frame.getPlane(0);
+      final ByteBuffer copy = ByteBuffer.allocateDirect(width * height * bytesPerPixel);
+      for (int y = 0; y < height; ++y) {
+         for (int x = 0; x < width; ++x) {
+            for (int c = 0; c < bytesPerPixel; ++c) {
+               copy.put(source.get((2 * y * sourceRowBytes) + (2 * x * bytesPerPixel) + c));
+            }
+         }
+      }
+      copy.rewind();
+      return MicrFrame.newPacked(frame.getType(), copy, width, height, width, frame.getExifOrientation());
+   }
+}
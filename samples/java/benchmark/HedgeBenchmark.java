@@ -0,0 +1,118 @@
+/* Copyright (C) 2011-2021 Doubango Telecom <https://www.doubango.org>
+* File author: Mamadou DIOP (Doubango Telecom, France).
+* License: For non commercial use only.
+* Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+* WebSite: https://www.doubango.org/webapps/micr/
+*/
+
+import java.io.IOException;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.Random;
+
+import org.doubango.ultimateMicr.Service.MicrEngine;
+import org.doubango.ultimateMicr.Service.MicrHedgedEngine;
+import org.doubango.ultimateMicr.Service.MicrLocalEngine;
+import org.doubango.ultimateMicr.Service.MicrProcessEngine;
+import org.doubango.ultimateMicr.Service.MicrResult;
+import org.doubango.ultimateMicr.Utils.MicrFrame;
+
+/**
+ * Hedged requests (MicrHedgedEngine). The fast configuration runs in a worker process shared with a noisy
+ * neighbour sending bursts of requests, which creates the tail latency, the thorough configuration runs
+ * in-process. Compares the latency percentiles without and with hedging, with the same interference.
+ *
+ * Options: --loops (default 300), --budget (maximum hedges per request, default 0.05), --burst (neighbour's
+ * requests per burst, default 4), --burst-interval-ms (mean time between bursts, default 100).
+ */
+class HedgeBenchmark {
+
+   static void run(Hashtable<String, String> parameters) throws IOException, InterruptedException
+   {
+      final int loops = Benchmark.GetInt(parameters, "--loops", 300);
+      final float budget = (float)Benchmark.GetDouble(parameters, "--budget", 0.05);
+      final int burst = Benchmark.GetInt(parameters, "--burst", 4);
+      final int burstIntervalMillis = Benchmark.GetInt(parameters, "--burst-interval-ms", 100);
+
+      final MicrFrame positive = Benchmark.ReadFrame(parameters, "e13b_1280x720.jpg");
+      final MicrFrame negative = Benchmark.ReadFrame(parameters, "traffic_1280x720.jpg");
+      final MicrFrame[] traffic = new MicrFrame[loops];
+      for (int i = 0; i < loops; ++i) {
+         traffic[i] = (i % 5) == 0 ? positive : negative;
+      }
+
+      final Map<String, Object> fastConfig = Benchmark.DefaultConfig(parameters);
+      fastConfig.put("segmenter_accuracy", "low");
+      fastConfig.put("interpolation", "nearest");
+      final Map<String, Object> thoroughConfig = Benchmark.DefaultConfig(parameters);
+      thoroughConfig.put("segmenter_accuracy", "high");
+
+      try (MicrEngine fast = MicrProcessEngine.start(Benchmark.BuildJSON(fastConfig));
+            MicrEngine thorough = MicrLocalEngine.open(Benchmark.BuildJSON(thoroughConfig))) {
+         for (MicrEngine engine : new MicrEngine[] { fast, thorough }) {
+            engine.warmUp(positive.getType());
+            engine.process(positive);
+         }
+
+         runTraffic("no hedging", fast, fast, positive, traffic, burst, burstIntervalMillis);
+
+         final MicrHedgedEngine hedged = new MicrHedgedEngine(fast, thorough).setHedgeBudget(budget);
+         for (int i = 0; i < 64; ++i) {
+            hedged.process(traffic[i % traffic.length]); // Latency distribution
+         }
+         hedged.resetStats();
+         runTraffic(String.format("hedged, budget=%.2f", budget), hedged, fast, positive, traffic, burst, burstIntervalMillis);
+         System.out.println(String.format("%-40s %s", "", hedged));
+      }
+   }
+
+   static void runTraffic(String label, MicrEngine engine, MicrEngine shared, MicrFrame burstFrame, MicrFrame[] traffic, int burst, int burstIntervalMillis) throws IOException, InterruptedException
+   {
+      final Random random = new Random(0);
+      final Thread neighbour = new Thread(() -> {
+         try {
+            while (!Thread.currentThread().isInterrupted()) {
+               Thread.sleep((long)(-Math.log(1.0 - random.nextDouble()) * burstIntervalMillis));
+               // Concurrent requests, queued in front of the next ones
+               final Thread[] requests = new Thread[burst];
+               for (int i = 0; i < burst; ++i) {
+                  requests[i] = new Thread(() -> {
+                     try {
+                        shared.process(burstFrame);
+                     }
+                     catch (IOException e) {
+                        // Ignored
+                     }
+                  });
+                  requests[i].start();
+               }
+               for (Thread request : requests) {
+                  request.join();
+               }
+            }
+         }
+         catch (InterruptedException e) {
+            // Done
+         }
+      });
+      neighbour.start();
+
+      final long[] latencies = new long[traffic.length];
+      final long start = System.nanoTime();
+      try {
+         for (int i = 0; i < traffic.length; ++i) {
+            final long t = System.nanoTime();
+            final MicrResult result = engine.process(traffic[i]);
+            latencies[i] = System.nanoTime() - t;
+            if (!result.isOK()) {
+               throw new IOException("process failed: " + result);
+            }
+         }
+      }
+      finally {
+         neighbour.interrupt();
+         neighbour.join();
+      }
+      Benchmark.PrintSummary(label, latencies, System.nanoTime() - start);
+   }
+}
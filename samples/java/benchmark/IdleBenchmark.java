@@ -0,0 +1,94 @@
+/* Copyright (C) 2011-2021 Doubango Telecom <https://www.doubango.org>
+* File author: Mamadou DIOP (Doubango Telecom, France).
+* License: For non commercial use only.
+* Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+* WebSite: https://www.doubango.org/webapps/micr/
+*/
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.doubango.ultimateMicr.Service.MicrEngine;
+import org.doubango.ultimateMicr.Service.MicrIdleEngine;
+import org.doubango.ultimateMicr.Service.MicrLocalEngine;
+import org.doubango.ultimateMicr.Utils.MicrFrame;
+
+/**
+ * Idle release (MicrIdleEngine) on a compressed "day": a cycle of --cycle-ms split into 8 slots, traffic during the
+ * first two slots of each cycle then idle. Compares the engine always resident, released after --idle-ms
+ * (cold start on the first request of each burst) and released with pre-warm ahead of the slots predicted active
+ * from the previous cycles. Prints the latency, the cold starts and the fraction of the time the engine was resident.
+ *
+ * Options: --cycles (default 4), --cycle-ms (default 4000), --idle-ms (default 500), --lead-ms (pre-warm lead,
+ * default 300), --rate (requests per second during the bursts, default 50).
+ */
+class IdleBenchmark {
+
+   static final int SLOTS = 8;
+
+   static void run(Hashtable<String, String> parameters) throws IOException, InterruptedException
+   {
+      final int cycles = Benchmark.GetInt(parameters, "--cycles", 4);
+      final int cycleMillis = Benchmark.GetInt(parameters, "--cycle-ms", 4000);
+      final int idleMillis = Benchmark.GetInt(parameters, "--idle-ms", 500);
+      final int leadMillis = Benchmark.GetInt(parameters, "--lead-ms", 300);
+      final double rate = Benchmark.GetDouble(parameters, "--rate", 50);
+
+      final MicrFrame frame = Benchmark.ReadFrame(parameters, "e13b_1280x720.jpg");
+      final String jsonConfig = Benchmark.BuildJSON(Benchmark.DefaultConfig(parameters));
+
+      try (MicrEngine engine = MicrLocalEngine.open(jsonConfig)) {
+         engine.warmUp(frame.getType());
+         runTraffic("always resident", engine, frame, cycles, cycleMillis, rate);
+      }
+      try (MicrIdleEngine engine = MicrIdleEngine.open(jsonConfig)) {
+         engine.setIdleTimeout(idleMillis).setActivityCycle(cycleMillis, SLOTS);
+         engine.warmUp(frame.getType());
+         engine.resetStats();
+         runTraffic(String.format("idle release after %d millis", idleMillis), engine, frame, cycles, cycleMillis, rate);
+         System.out.println(String.format("%-40s %s", "", engine));
+      }
+      try (MicrIdleEngine engine = MicrIdleEngine.open(jsonConfig)) {
+         engine.setIdleTimeout(idleMillis).setActivityCycle(cycleMillis, SLOTS).setPrewarmLead(leadMillis);
+         engine.warmUp(frame.getType());
+         engine.resetStats();
+         runTraffic(String.format("idle release + pre-warm %d millis ahead", leadMillis), engine, frame, cycles, cycleMillis, rate);
+         System.out.println(String.format("%-40s %s", "", engine));
+      }
+   }
+
+   /**
+   * Open loop during the first two slots of each cycle, aligned on the wall clock as the activity slots.
+   */
+   static void runTraffic(String label, MicrEngine engine, MicrFrame frame, int cycles, int cycleMillis, double rate) throws IOException, InterruptedException
+   {
+      final List<Long> latencies = new ArrayList<>();
+      final long interval = (long)(1e9 / rate);
+      final long burstMillis = 2L * cycleMillis / SLOTS;
+      Thread.sleep(cycleMillis - (System.currentTimeMillis() % cycleMillis));
+      final long start = System.nanoTime();
+      for (int cycle = 0; cycle < cycles; ++cycle) {
+         final long cycleStart = start + TimeUnit.MILLISECONDS.toNanos((long)cycle * cycleMillis);
+         for (long arrival = cycleStart; arrival < cycleStart + TimeUnit.MILLISECONDS.toNanos(burstMillis); arrival += interval) {
+            final long delay = arrival - System.nanoTime();
+            if (delay > 0) {
+               TimeUnit.NANOSECONDS.sleep(delay);
+            }
+            engine.process(frame);
+            latencies.add(System.nanoTime() - arrival);
+         }
+         final long next = cycleStart + TimeUnit.MILLISECONDS.toNanos(cycleMillis) - System.nanoTime();
+         if (next > 0) {
+            TimeUnit.NANOSECONDS.sleep(next);
+         }
+      }
+      final long[] values = new long[latencies.size()];
+      for (int i = 0; i < values.length; ++i) {
+         values[i] = latencies.get(i);
+      }
+      Benchmark.PrintSummary(label, values, System.nanoTime() - start);
+   }
+}
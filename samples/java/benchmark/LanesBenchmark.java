@@ -0,0 +1,137 @@
+/* Copyright (C) 2011-2021 Doubango Telecom <https://www.doubango.org>
+* File author: Mamadou DIOP (Doubango Telecom, France).
+* License: For non commercial use only.
+* Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+* WebSite: https://www.doubango.org/webapps/micr/
+*/
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.doubango.ultimateMicr.Service.MicrEngine;
+import org.doubango.ultimateMicr.Service.MicrLaneScheduler;
+import org.doubango.ultimateMicr.Service.MicrLocalEngine;
+import org.doubango.ultimateMicr.Utils.MicrFrame;
+
+/**
+ * Priority lanes (MicrLaneScheduler): open-loop interactive captures below the engine's capacity, alone then
+ * mixed with a bulk backfill keeping the engine saturated. Compares a single FIFO queue, strict priority and
+ * weighted priority. Prints the interactive latency and the bulk throughput.
+ *
+ * Options: --loops (interactive requests per run, default 300), --load (interactive rate / capacity, default 0.5),
+ * --bulk-depth (bulk requests kept queued, default 16), --weight (interactive weight in weighted mode, default 4).
+ */
+class LanesBenchmark {
+
+   static final int INTERACTIVE = 0;
+   static final int BULK = 1;
+
+   static void run(Hashtable<String, String> parameters) throws IOException, InterruptedException
+   {
+      final int loops = Benchmark.GetInt(parameters, "--loops", 300);
+      final double load = Benchmark.GetDouble(parameters, "--load", 0.5);
+      final int bulkDepth = Benchmark.GetInt(parameters, "--bulk-depth", 16);
+      final int weight = Benchmark.GetInt(parameters, "--weight", 4);
+
+      final MicrFrame interactive = Benchmark.ReadFrame(parameters, "e13b_1280x720.jpg");
+      final MicrFrame bulk = Benchmark.ReadFrame(parameters, "cmc7_1280x720.jpg");
+
+      try (MicrEngine engine = MicrLocalEngine.open(Benchmark.BuildJSON(Benchmark.DefaultConfig(parameters)))) {
+         engine.warmUp(interactive.getType());
+         engine.process(interactive);
+         final long t = System.nanoTime();
+         for (int i = 0; i < 20; ++i) {
+            engine.process((i & 1) == 0 ? interactive : bulk);
+         }
+         final double latencyMillis = (System.nanoTime() - t) / (20 * 1e6);
+         final double rate = load * 1000.0 / latencyMillis;
+         System.out.println(String.format("latency: %.2f millis, interactive arrivals: %.1f fps, bulk depth: %d", latencyMillis, rate, bulkDepth));
+
+         // The schedulers aren't closed: it would close the shared engine
+         runTraffic("interactive only", new MicrLaneScheduler(engine, 1, "interactive", "bulk"), -1, interactive, bulk, loops, rate, bulkDepth);
+         runTraffic("bulk + interactive, FIFO", new MicrLaneScheduler(engine, 1, "all"), INTERACTIVE, interactive, bulk, loops, rate, bulkDepth);
+         runTraffic("bulk + interactive, strict", new MicrLaneScheduler(engine, 1, "interactive", "bulk"), BULK, interactive, bulk, loops, rate, bulkDepth);
+         runTraffic(String.format("bulk + interactive, weighted %d:1", weight), new MicrLaneScheduler(engine, 1, "interactive", "bulk")
+            .setWeighted(true)
+            .setWeight(INTERACTIVE, weight), BULK, interactive, bulk, loops, rate, bulkDepth);
+      }
+   }
+
+   /**
+   * Interactive: open loop, the latency includes the queuing. Bulk: closed loop, bulkDepth requests always queued.
+   * @param bulkLane Lane of the bulk requests, the interactive one for a single FIFO queue. -1: no bulk traffic.
+   */
+   static void runTraffic(String label, MicrLaneScheduler scheduler, int bulkLane, MicrFrame interactive, MicrFrame bulk, int loops, double rate, int bulkDepth) throws InterruptedException
+   {
+      final boolean withBulk = bulkLane >= 0;
+      final AtomicBoolean stop = new AtomicBoolean();
+      final AtomicLong bulkDone = new AtomicLong();
+      final CountDownLatch bulkStopped = new CountDownLatch(withBulk ? bulkDepth : 0);
+      final List<Long> latencies = new ArrayList<>();
+      final CountDownLatch done = new CountDownLatch(loops);
+      final long interval = (long)(1e9 / rate);
+      final long start = System.nanoTime();
+      for (int i = 0; withBulk && i < bulkDepth; ++i) {
+         SubmitBulk(scheduler, bulkLane, bulk, stop, bulkDone, bulkStopped);
+      }
+      for (int i = 0; i < loops; ++i) {
+         final long arrival = start + (i * interval);
+         final long delay = arrival - System.nanoTime();
+         if (delay > 0) {
+            TimeUnit.NANOSECONDS.sleep(delay);
+         }
+         scheduler.submit(INTERACTIVE, interactive).whenComplete((result, error) -> {
+            if (error != null) {
+               error.printStackTrace();
+            }
+            else {
+               synchronized (latencies) {
+                  latencies.add(System.nanoTime() - arrival);
+               }
+            }
+            done.countDown();
+         });
+      }
+      done.await();
+      final long elapsed = System.nanoTime() - start;
+      stop.set(true);
+      bulkStopped.await();
+
+      final long[] values = new long[latencies.size()];
+      for (int i = 0; i < values.length; ++i) {
+         values[i] = latencies.get(i);
+      }
+      Benchmark.PrintSummary(label + ", interactive", values, elapsed);
+      if (withBulk) {
+         System.out.println(String.format("%-40s bulk: %d frames, %.1f fps", "", bulkDone.get(), bulkDone.get() * 1e9 / elapsed));
+      }
+      System.out.println(String.format("%-40s %s", "", scheduler));
+   }
+
+   /**
+   * Resubmits the bulk frame each time it completes, until stopped.
+   */
+   static void SubmitBulk(MicrLaneScheduler scheduler, int lane, MicrFrame frame, AtomicBoolean stop, AtomicLong done, CountDownLatch stopped)
+   {
+      scheduler.submit(lane, frame).whenComplete((result, error) -> {
+         if (error != null) {
+            error.printStackTrace();
+         }
+         else {
+            done.incrementAndGet();
+         }
+         if (stop.get() || error != null) {
+            stopped.countDown();
+         }
+         else {
+            SubmitBulk(scheduler, lane, frame, stop, done, stopped);
+         }
+      });
+   }
+}
@@ -0,0 +1,91 @@
+/* Copyright (C) 2011-2021 Doubango Telecom <https://www.doubango.org>
+* File author: Mamadou DIOP (Doubango Telecom, France).
+* License: For non commercial use only.
+* Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+* WebSite: https://www.doubango.org/webapps/micr/
+*/
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.doubango.ultimateMicr.Sdk.UltMicrSdkEngine;
+import org.doubango.ultimateMicr.Sdk.UltMicrSdkResult;
+import org.doubango.ultimateMicr.Utils.MicrBandDetector;
+import org.doubango.ultimateMicr.Utils.MicrFrame;
+import org.doubango.ultimateMicr.Utils.MicrProcessOptions;
+
+/**
+ * Mixed E-13B/CMC-7 traffic served by a single engine initialized with "e13b+cmc7".
+ * Compares the full-frame calls against the per-call options (format from the source metadata,
+ * ROI from the MICR band detector).
+ *
+ * Options: --loops (default 100), --rate-cmc7 (default 0.5), --rate-negative (default 0.2).
+ */
+class MixedTrafficBenchmark {
+
+   static void run(Hashtable<String, String> parameters) throws IOException
+   {
+      final int loops = Benchmark.GetInt(parameters, "--loops", 100);
+      final double rateCmc7 = Benchmark.GetDouble(parameters, "--rate-cmc7", 0.5);
+      final double rateNegative = Benchmark.GetDouble(parameters, "--rate-negative", 0.2);
+
+      final MicrFrame e13b = Benchmark.ReadFrame(parameters, "e13b_1280x720.jpg");
+      final MicrFrame cmc7 = Benchmark.ReadFrame(parameters, "cmc7_1280x720.jpg");
+      final MicrFrame negative = Benchmark.ReadFrame(parameters, "traffic_1280x720.jpg");
+
+      // Build the traffic: source metadata tells us the expected format (e.g. the country of the branch)
+      final List<Integer> traffic = new ArrayList<>(loops);
+      for (int i = 0; i < loops; ++i) {
+         traffic.add(i < (int)(loops * rateNegative) ? 0 : (i < (int)(loops * (rateNegative + (1 - rateNegative) * rateCmc7)) ? 2 : 1));
+      }
+      Collections.shuffle(traffic, new Random(0));
+      final MicrFrame[] frames = { negative, e13b, cmc7 };
+      final String[] formats = { MicrProcessOptions.FORMAT_E13B, MicrProcessOptions.FORMAT_E13B, MicrProcessOptions.FORMAT_CMC7 };
+
+      final Map<String, Object> config = Benchmark.DefaultConfig(parameters);
+      config.put("format", MicrProcessOptions.FORMAT_E13B_CMC7);
+      Benchmark.CheckResult("Init", UltMicrSdkEngine.init(Benchmark.BuildJSON(config)));
+      Benchmark.CheckResult("WarmUp", UltMicrSdkEngine.warmUp(e13b.getType()));
+
+      // Baseline: full frame, both formats
+      long[] latencies = new long[loops];
+      int zones = 0;
+      long start = System.nanoTime();
+      for (int i = 0; i < loops; ++i) {
+         final long t0 = System.nanoTime();
+         final UltMicrSdkResult result = Benchmark.CheckResult("Process", frames[traffic.get(i)].process());
+         latencies[i] = System.nanoTime() - t0;
+         zones += result.numZones();
+         result.delete();
+      }
+      Benchmark.PrintSummary("full frame, e13b+cmc7 (zones=" + zones + ")", latencies, System.nanoTime() - start);
+
+      // Per-call options: ROI from the band detector and format from the source metadata
+      final MicrBandDetector detector = new MicrBandDetector();
+      latencies = new long[loops];
+      zones = 0;
+      long detectNanos = 0;
+      start = System.nanoTime();
+      for (int i = 0; i < loops; ++i) {
+         final int index = traffic.get(i);
+         final long t0 = System.nanoTime();
+         final MicrProcessOptions options = new MicrProcessOptions()
+            .setRoi(detector.detect(frames[index]))
+            .setFormat(formats[index]);
+         detectNanos += System.nanoTime() - t0;
+         final UltMicrSdkResult result = Benchmark.CheckResult("Process", frames[index].process(options));
+         latencies[i] = System.nanoTime() - t0;
+         zones += result.numZones();
+         result.delete();
+      }
+      Benchmark.PrintSummary("per-call roi+format (zones=" + zones + ")", latencies, System.nanoTime() - start);
+      System.out.println(String.format("band detection: %.3f millis/frame", (detectNanos / 1e6) / loops));
+
+      Benchmark.CheckResult("DeInit", UltMicrSdkEngine.deInit());
+   }
+}
@@ -0,0 +1,106 @@
+/* Copyright (C) 2011-2021 Doubango Telecom <https://www.doubango.org>
+* File author: Mamadou DIOP (Doubango Telecom, France).
+* License: For non commercial use only.
+* Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+* WebSite: https://www.doubango.org/webapps/micr/
+*/
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Hashtable;
+
+import org.doubango.ultimateMicr.Utils.MicrResultParser;
+import org.doubango.ultimateMicr.Utils.MicrZone;
+
+/**
+ * Parse time and allocations of the streaming result parser (MicrResultParser) on the sample CMC-7 payload
+ * from the Android samples (2 zones with decoded fields). Doesn't need the native library.
+ * The allocations are measured using the per-thread counters of the JVM (HotSpot only).
+ *
+ * Options: --loops (default 100000).
+ */
+class ParseBenchmark {
+
+   static final String SAMPLE_JSON = "{\"code\":200,\"duration\":332,\"phrase\":\"OK\",\"zones\":[{\"confidences\":[90.15003204345703,100],\"description\":\"CMC-7\",\"fields\":[{\"Bank\":\"001\"},{\"Agency\":\"3541\"},{\"DV2\":\"2\"},{\"Bank code\":\"016\"},{\"Check number\":\"280742\"},{\"Typification\":\"5\"},{\"DV1\":\"8\"},{\"Account\":\"1400108391\"},{\"DV3\":\"5\"}],\"klass\":2,\"skew\":-0.05488986259415382,\"text\":\"H00135412H0162807425I814001083915F\",\"warpedBox\":[71,446,484,446,484,487,71,487]},{\"confidences\":[90.15355682373047,100],\"description\":\"CMC-7\",\"fields\":[{\"Bank\":\"033\"},{\"Agency\":\"4533\"},{\"DV2\":\"9\"},{\"Bank code\":\"018\"},{\"Check number\":\"002154\"},{\"Typification\":\"5\"},{\"DV1\":\"7\"},{\"Account\":\"0101000055\"},{\"DV3\":\"0\"}],\"klass\":2,\"skew\":-0.04946456860159136,\"text\":\"H03345339H0180021545I701010000550F\",\"warpedBox\":[-1,188,422,188,422,232,-1,232]}]}";
+
+   static void run(Hashtable<String, String> parameters) throws IOException
+   {
+      final int loops = Benchmark.GetInt(parameters, "--loops", 100000);
+      final MicrResultParser parser = new MicrResultParser();
+      final StringBuilder text = new StringBuilder(64);
+
+      // Sanity check
+      parser.parse(SAMPLE_JSON);
+      for (int i = 0; i < parser.getNumZones(); ++i) {
+         final MicrZone zone = parser.getZone(i);
+         System.out.println(String.format("zone #%d: klass=%d, text=%s, description=%s, confidences=[%.2f, %.2f], skew=%.4f, fields=%d (Account=%s)",
+            i, zone.getKlass(), zone.getText(), zone.getDescription(), zone.getRecognitionConfidence(), zone.getDetectionConfidence(),
+            zone.getSkew(), zone.getNumFields(), zone.getFieldValue("Account")));
+      }
+      if (parser.isMalformed() || parser.getNumZones() != 2 || parser.getZone(1).getWarpedBox()[1] != 188.f) {
+         throw new IOException("Unexpected parsing result");
+      }
+      System.out.println();
+
+      // Flyweights only: numbers, warped box and text appended to a reused builder
+      float checksum = 0.f;
+      for (int pass = 0; pass < 2; ++pass) { // First pass is the warm up (JIT, pools)
+         final long bytes0 = AllocatedBytes();
+         final long start = System.nanoTime();
+         for (int l = 0; l < loops; ++l) {
+            parser.parse(SAMPLE_JSON);
+            for (int i = 0; i < parser.getNumZones(); ++i) {
+               final MicrZone zone = parser.getZone(i);
+               text.setLength(0);
+               zone.appendText(text);
+               checksum += zone.getKlass() + zone.getRecognitionConfidence() + zone.getWarpedBox()[0] + text.length() + zone.getNumFields();
+            }
+         }
+         if (pass == 1) {
+            PrintSummary("flyweight", loops, System.nanoTime() - start, AllocatedBytes() - bytes0);
+         }
+      }
+
+      // Same plus the strings (text, description and fields)
+      for (int pass = 0; pass < 2; ++pass) {
+         final long bytes0 = AllocatedBytes();
+         final long start = System.nanoTime();
+         for (int l = 0; l < loops; ++l) {
+            parser.parse(SAMPLE_JSON);
+            for (int i = 0; i < parser.getNumZones(); ++i) {
+               final MicrZone zone = parser.getZone(i);
+               checksum += zone.getText().length() + zone.getDescription().length();
+               for (int f = 0; f < zone.getNumFields(); ++f) {
+                  checksum += zone.getFieldName(f).length() + zone.getFieldValue(f).length();
+               }
+            }
+         }
+         if (pass == 1) {
+            PrintSummary("flyweight + strings", loops, System.nanoTime() - start, AllocatedBytes() - bytes0);
+         }
+      }
+      System.out.println(String.format("(checksum %.1f)", checksum));
+   }
+
+   static void PrintSummary(String label, int loops, long elapsedNanos, long allocatedBytes)
+   {
+      System.out.println(String.format("%-40s parses: %8d, mean: %8.3f micros, allocated: %s",
+         label,
+         loops,
+         (elapsedNanos / 1e3) / loops,
+         allocatedBytes < 0 ? "n/a" : String.format("%.1f bytes/parse", allocatedBytes / (double)loops)
+      ));
+   }
+
+   /**
+   * Bytes allocated by the current thread or -1 if not supported.
+   */
+   static long AllocatedBytes()
+   {
+      final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+      if (bean instanceof com.sun.management.ThreadMXBean) {
+         return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+      }
+      return -1;
+   }
+}
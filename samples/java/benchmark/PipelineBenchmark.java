@@ -0,0 +1,185 @@
+/* Copyright (C) 2011-2021 Doubango Telecom <https://www.doubango.org>
+* File author: Mamadou DIOP (Doubango Telecom, France).
+* License: For non commercial use only.
+* Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+* WebSite: https://www.doubango.org/webapps/micr/
+*/
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.doubango.ultimateMicr.Service.MicrEngine;
+import org.doubango.ultimateMicr.Service.MicrLocalEngine;
+import org.doubango.ultimateMicr.Service.MicrResult;
+import org.doubango.ultimateMicr.Utils.MicrFrame;
+import org.doubango.ultimateMicr.Utils.MicrFramePipeline;
+import org.doubango.ultimateMicr.Utils.MicrResultParser;
+
+/**
+ * Video replay: a source thread offers frames at a fixed rate, like a camera, and the results are
+ * parsed then "drawn" (simulated cost). Compares the previous design (busy flag: the frames arriving
+ * while busy are dropped, the result handling runs on the inference thread) with the latest-frame
+ * pipeline (MicrFramePipeline: single-slot mailbox, inference and result handling on their own threads).
+ * Prints the drop rate and the end-to-end latency (capture to end of the result handling).
+ *
+ * Options: --loops (frames, default 300), --fps (source rate, default 30), --result-ms (result handling
+ * cost, default 15), --rate (positive rate, default 0.2).
+ */
+class PipelineBenchmark {
+
+   static void run(Hashtable<String, String> parameters) throws IOException, InterruptedException
+   {
+      final int loops = Benchmark.GetInt(parameters, "--loops", 300);
+      final int fps = Benchmark.GetInt(parameters, "--fps", 30);
+      final int resultMillis = Benchmark.GetInt(parameters, "--result-ms", 15);
+      final double rate = Benchmark.GetDouble(parameters, "--rate", 0.2);
+
+      final MicrFrame positive = Benchmark.ReadFrame(parameters, "e13b_1280x720.jpg");
+      final MicrFrame negative = Benchmark.ReadFrame(parameters, "traffic_1280x720.jpg");
+      final MicrFrame[] source = new MicrFrame[loops];
+      for (int i = 0; i < loops; ++i) {
+         source[i] = (i % 100) < (int)(rate * 100) ? positive : negative;
+      }
+
+      try (MicrEngine engine = MicrLocalEngine.open(Benchmark.BuildJSON(Benchmark.DefaultConfig(parameters)))) {
+         engine.warmUp(positive.getType());
+         engine.process(positive);
+
+         runBusyFlag(String.format("busy flag, %d fps, result %d millis", fps, resultMillis), engine, source, fps, resultMillis);
+         runPipeline(String.format("pipeline, %d fps, result %d millis", fps, resultMillis), engine, source, fps, resultMillis);
+      }
+   }
+
+   /**
+   * Previous design: a frame is only accepted when idle, processing and result handling on the same thread.
+   */
+   static void runBusyFlag(String label, MicrEngine engine, MicrFrame[] source, int fps, int resultMillis) throws InterruptedException
+   {
+      final ExecutorService inference = Executors.newSingleThreadExecutor();
+      final AtomicBoolean busy = new AtomicBoolean();
+      final AtomicLong dropped = new AtomicLong();
+      final List<Long> latencies = new ArrayList<>();
+      final MicrResultParser parser = new MicrResultParser();
+
+      final long start = System.nanoTime();
+      Replay(source, fps, (frame, captureTime) -> {
+         if (!busy.compareAndSet(false, true)) {
+            dropped.incrementAndGet();
+            return;
+         }
+         inference.execute(() -> {
+            try {
+               HandleResult(parser, engine.process(frame), resultMillis);
+               synchronized (latencies) {
+                  latencies.add(System.nanoTime() - captureTime);
+               }
+            }
+            catch (IOException e) {
+               e.printStackTrace();
+            }
+            finally {
+               busy.set(false);
+            }
+         });
+      });
+      inference.shutdown();
+      inference.awaitTermination(1, TimeUnit.MINUTES);
+      final long elapsed = System.nanoTime() - start;
+
+      PrintDrops(label, source.length, dropped.get(), latencies, elapsed);
+   }
+
+   static void runPipeline(String label, MicrEngine engine, MicrFrame[] source, int fps, int resultMillis) throws InterruptedException
+   {
+      final List<Long> latencies = new ArrayList<>();
+      final MicrResultParser parser = new MicrResultParser();
+      final MicrFramePipeline<MicrFrame, MicrResult> pipeline = new MicrFramePipeline<>(new MicrFramePipeline.Handler<MicrFrame, MicrResult>() {
+         @Override
+         public MicrResult process(MicrFrame frame) {
+            try {
+               return engine.process(frame);
+            }
+            catch (IOException e) {
+               throw new IllegalStateException(e);
+            }
+         }
+
+         @Override
+         public void onResult(MicrResult result, long latencyNanos) {
+            final long begin = System.nanoTime();
+            HandleResult(parser, result, resultMillis);
+            synchronized (latencies) {
+               latencies.add(latencyNanos + (System.nanoTime() - begin)); // latencyNanos is measured before the handling
+            }
+         }
+      });
+
+      final long start = System.nanoTime();
+      pipeline.start("PipelineBenchmark");
+      Replay(source, fps, pipeline::offer);
+      // Drain
+      while (pipeline.getNumDropped() + pipeline.getNumProcessed() < source.length
+            || pipeline.getNumResults() + pipeline.getNumResultsDropped() < pipeline.getNumProcessed() - pipeline.getNumErrors()) {
+         Thread.sleep(1);
+      }
+      final long elapsed = System.nanoTime() - start;
+      pipeline.stop();
+
+      PrintDrops(label, source.length, pipeline.getNumDropped(), latencies, elapsed);
+      System.out.println(String.format("%-40s %s", "", pipeline));
+   }
+
+   interface Sink {
+      void offer(MicrFrame frame, long captureTimeNanos);
+   }
+
+   /**
+   * Offers the frames at a fixed rate from the calling thread.
+   */
+   static void Replay(MicrFrame[] source, int fps, Sink sink) throws InterruptedException
+   {
+      final long periodNanos = 1000000000L / fps;
+      final long start = System.nanoTime();
+      for (int i = 0; i < source.length; ++i) {
+         final long due = start + (i * periodNanos);
+         long now;
+         while ((now = System.nanoTime()) < due) {
+            final long sleep = due - now;
+            Thread.sleep(sleep / 1000000L, (int)(sleep % 1000000L));
+         }
+         sink.offer(source[i], now);
+      }
+   }
+
+   /**
+   * Parses the result and simulates the drawing.
+   */
+   static void HandleResult(MicrResultParser parser, MicrResult result, int resultMillis)
+   {
+      parser.parse(result.isOK() ? result.json() : null);
+      for (int i = 0; i < parser.getNumZones(); ++i) {
+         parser.getZone(i).getText();
+      }
+      final long end = System.nanoTime() + (resultMillis * 1000000L);
+      while (System.nanoTime() < end) {
+         // Busy, like drawing
+      }
+   }
+
+   static void PrintDrops(String label, int offered, long dropped, List<Long> latencies, long elapsedNanos)
+   {
+      final long[] values;
+      synchronized (latencies) {
+         values = latencies.stream().mapToLong(Long::longValue).toArray();
+      }
+      Benchmark.PrintSummary(label, values, elapsedNanos);
+      System.out.println(String.format("%-40s offered: %6d, dropped: %6d (%.1f%%)", "", offered, dropped, (dropped * 100.0) / offered));
+   }
+}
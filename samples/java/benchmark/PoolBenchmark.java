@@ -0,0 +1,104 @@
+/* Copyright (C) 2011-2021 Doubango Telecom <https://www.doubango.org>
+* File author: Mamadou DIOP (Doubango Telecom, France).
+* License: For non commercial use only.
+* Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+* WebSite: https://www.doubango.org/webapps/micr/
+*/
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.doubango.ultimateMicr.Service.MicrEngine;
+import org.doubango.ultimateMicr.Service.MicrLocalEngine;
+import org.doubango.ultimateMicr.Service.MicrWorkerOptions;
+import org.doubango.ultimateMicr.Service.MicrWorkerPool;
+import org.doubango.ultimateMicr.Utils.MicrFrame;
+
+/**
+ * Throughput of a pool of worker processes (MicrWorkerPool, frames shared through memory-mapped files)
+ * compared to the single in-process engine, both driven by the same number of client threads.
+ * The pool is measured from 1 to N workers.
+ *
+ * Options: --loops (default 100), --workers (max number of workers, default: number of cores / 4),
+ * --threads-per-worker (default: number of cores / workers), --slots (frames queued per worker, default 2),
+ * --clients (default: workers x slots), --rate (positive rate, default 0.2).
+ */
+class PoolBenchmark {
+
+   static void run(Hashtable<String, String> parameters) throws IOException, InterruptedException
+   {
+      final int cores = Runtime.getRuntime().availableProcessors();
+      final int loops = Benchmark.GetInt(parameters, "--loops", 100);
+      final int maxWorkers = Benchmark.GetInt(parameters, "--workers", Math.max(1, cores / 4));
+      final int threadsPerWorker = Benchmark.GetInt(parameters, "--threads-per-worker", Math.max(1, cores / maxWorkers));
+      final int slots = Benchmark.GetInt(parameters, "--slots", 2);
+      final int clients = Benchmark.GetInt(parameters, "--clients", maxWorkers * slots);
+      final double rate = Benchmark.GetDouble(parameters, "--rate", 0.2);
+
+      final MicrFrame positive = Benchmark.ReadFrame(parameters, "e13b_1280x720.jpg");
+      final MicrFrame negative = Benchmark.ReadFrame(parameters, "traffic_1280x720.jpg");
+      final MicrFrame[] traffic = new MicrFrame[loops];
+      for (int i = 0; i < loops; ++i) {
+         traffic[i] = (i % 100) < (int)(rate * 100) ? positive : negative;
+      }
+
+      // Baseline: single in-process engine, all cores
+      try (MicrEngine engine = MicrLocalEngine.open(Benchmark.BuildJSON(Benchmark.DefaultConfig(parameters)))) {
+         runClients(String.format("in-process, %d client(s)", clients), engine, clients, positive, traffic);
+      }
+
+      final Map<String, Object> config = Benchmark.DefaultConfig(parameters);
+      config.put("num_threads", threadsPerWorker);
+      final String jsonConfig = Benchmark.BuildJSON(config);
+      final MicrWorkerOptions options = new MicrWorkerOptions().setSlots(slots);
+      for (int n = 1; n <= maxWorkers; n = (n == maxWorkers) ? n + 1 : Math.min(n << 1, maxWorkers)) {
+         try (MicrWorkerPool pool = MicrWorkerPool.start(jsonConfig, n, options)) {
+            runClients(String.format("pool, %d worker(s) x %d slot(s), num_threads=%d, %d client(s)", n, slots, threadsPerWorker, clients), pool, clients, positive, traffic);
+            if (pool.getNumRestarts() > 0) {
+               System.out.println(String.format("   %d worker(s) restarted", pool.getNumRestarts()));
+            }
+         }
+      }
+   }
+
+   /**
+   * Client threads pulling the next frame of the traffic until done.
+   */
+   static void runClients(String label, MicrEngine engine, int clients, MicrFrame warmUpFrame, MicrFrame[] traffic) throws IOException, InterruptedException
+   {
+      engine.warmUp(warmUpFrame.getType());
+      engine.process(warmUpFrame);
+      final long[] latencies = new long[traffic.length];
+      final AtomicInteger next = new AtomicInteger();
+      final List<Thread> threads = new ArrayList<>();
+      final IOException[] error = new IOException[1];
+      final long start = System.nanoTime();
+      for (int c = 0; c < clients; ++c) {
+         final Thread thread = new Thread(() -> {
+            try {
+               for (int i = next.getAndIncrement(); i < traffic.length; i = next.getAndIncrement()) {
+                  final long t0 = System.nanoTime();
+                  engine.process(traffic[i]);
+                  latencies[i] = System.nanoTime() - t0;
+               }
+            }
+            catch (IOException ex) {
+               error[0] = ex;
+            }
+         });
+         threads.add(thread);
+         thread.start();
+      }
+      for (Thread thread : threads) {
+         thread.join();
+      }
+      if (error[0] != null) {
+         throw error[0];
+      }
+      Benchmark.PrintSummary(label, latencies, System.nanoTime() - start);
+   }
+}
@@ -0,0 +1,178 @@
+/* Copyright (C) 2011-2021 Doubango Telecom <https://www.doubango.org>
+* File author: Mamadou DIOP (Doubango Telecom, France).
+* License: For non commercial use only.
+* Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+* WebSite: https://www.doubango.org/webapps/micr/
+*/
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.doubango.ultimateMicr.Sdk.ULTMICR_SDK_IMAGE_TYPE;
+import org.doubango.ultimateMicr.Service.MicrEngine;
+import org.doubango.ultimateMicr.Service.MicrProcessEngine;
+import org.doubango.ultimateMicr.Service.MicrReloadableEngine;
+import org.doubango.ultimateMicr.Service.MicrResult;
+import org.doubango.ultimateMicr.Utils.MicrFrame;
+
+/**
+ * Config reload under traffic: open-loop arrivals below the capacity while the config ("min_score") is changed
+ * every --reload-ms. Compares stop-the-world (deInit then init + warm-up, the requests wait) with blue/green
+ * (MicrReloadableEngine: the new worker is started and warmed up next to the old one, then swapped). Prints the
+ * latency, the failed requests and the reload times.
+ *
+ * Options: --duration-ms (default 6000), --reload-ms (default 2000), --load (arrival rate / capacity, default 0.5).
+ */
+class ReloadBenchmark {
+
+   interface Reloader {
+      void reload(String jsonConfig) throws IOException;
+   }
+
+   static void run(Hashtable<String, String> parameters) throws IOException, InterruptedException
+   {
+      final int durationMillis = Benchmark.GetInt(parameters, "--duration-ms", 6000);
+      final int reloadMillis = Benchmark.GetInt(parameters, "--reload-ms", 2000);
+      final double load = Benchmark.GetDouble(parameters, "--load", 0.5);
+
+      final MicrFrame positive = Benchmark.ReadFrame(parameters, "e13b_1280x720.jpg");
+      final MicrFrame negative = Benchmark.ReadFrame(parameters, "traffic_1280x720.jpg");
+      final String[] configs = new String[2];
+      final Map<String, Object> config = Benchmark.DefaultConfig(parameters);
+      configs[0] = Benchmark.BuildJSON(config);
+      config.put("min_score", ((Number)config.get("min_score")).doubleValue() + 0.1);
+      configs[1] = Benchmark.BuildJSON(config);
+
+      // Stop-the-world: one worker, replaced while the requests wait
+      final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+      final MicrEngine[] worker = { MicrProcessEngine.start(configs[0]) };
+      worker[0].warmUp(positive.getType());
+      final double latencyMillis = DeadlineBenchmark.Measure(worker[0], positive);
+      final double rate = load * 1000.0 / latencyMillis;
+      System.out.println(String.format("latency: %.2f millis, arrivals: %.1f fps", latencyMillis, rate));
+      final MicrEngine stopTheWorld = new MicrEngine() {
+         @Override
+         public MicrResult process(MicrFrame frame) throws IOException {
+            lock.readLock().lock();
+            try {
+               return worker[0].process(frame);
+            }
+            finally {
+               lock.readLock().unlock();
+            }
+         }
+         @Override
+         public MicrResult warmUp(ULTMICR_SDK_IMAGE_TYPE imageType) throws IOException { return worker[0].warmUp(imageType); }
+         @Override
+         public String getConfig() { return worker[0].getConfig(); }
+         @Override
+         public boolean isAlive() { return worker[0].isAlive(); }
+         @Override
+         public void close() { worker[0].close(); }
+      };
+      try {
+         runTraffic("stop-the-world reload", stopTheWorld, jsonConfig -> {
+            lock.writeLock().lock();
+            try {
+               worker[0].close();
+               worker[0] = MicrProcessEngine.start(jsonConfig);
+               worker[0].warmUp(positive.getType());
+            }
+            finally {
+               lock.writeLock().unlock();
+            }
+         }, configs, durationMillis, reloadMillis, rate, positive, negative);
+      }
+      finally {
+         stopTheWorld.close();
+      }
+
+      try (MicrReloadableEngine engine = MicrReloadableEngine.start(configs[0])) {
+         engine.warmUp(positive.getType());
+         engine.process(positive);
+         runTraffic("blue/green reload", engine, engine::reload, configs, durationMillis, reloadMillis, rate, positive, negative);
+         System.out.println(String.format("%-40s %s", "", engine));
+      }
+   }
+
+   /**
+   * Open loop: the requests arrive at the rate whatever the latency, the latency includes the wait. The reloads run
+   * on their own thread.
+   */
+   static void runTraffic(String label, MicrEngine engine, Reloader reloader, String[] configs, int durationMillis, int reloadMillis, double rate,
+      MicrFrame positive, MicrFrame negative) throws InterruptedException
+   {
+      final List<Long> latencies = new ArrayList<>();
+      final List<Long> reloads = new ArrayList<>();
+      final AtomicInteger failures = new AtomicInteger();
+      final long start = System.nanoTime();
+      final long end = start + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+      final Thread reloadThread = new Thread(() -> {
+         try {
+            for (int i = 1; ; ++i) {
+               final long next = start + (i * TimeUnit.MILLISECONDS.toNanos(reloadMillis));
+               if (next >= end) {
+                  return;
+               }
+               TimeUnit.NANOSECONDS.sleep(next - System.nanoTime());
+               final long t0 = System.nanoTime();
+               reloader.reload(configs[i % configs.length]);
+               reloads.add(System.nanoTime() - t0);
+            }
+         }
+         catch (IOException e) {
+            e.printStackTrace();
+         }
+         catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+      });
+      reloadThread.start();
+
+      final ExecutorService executor = Executors.newCachedThreadPool();
+      final long interval = (long)(1e9 / rate);
+      int index = 0;
+      for (long arrival = start; arrival < end; arrival += interval, ++index) {
+         final long delay = arrival - System.nanoTime();
+         if (delay > 0) {
+            TimeUnit.NANOSECONDS.sleep(delay);
+         }
+         final long scheduled = arrival;
+         final MicrFrame frame = (index % 5) == 0 ? positive : negative;
+         executor.execute(() -> {
+            try {
+               engine.process(frame);
+               final long latency = System.nanoTime() - scheduled;
+               synchronized (latencies) {
+                  latencies.add(latency);
+               }
+            }
+            catch (IOException e) {
+               failures.incrementAndGet();
+            }
+         });
+      }
+      executor.shutdown();
+      executor.awaitTermination(5, TimeUnit.MINUTES);
+      reloadThread.join();
+
+      final long[] values = new long[latencies.size()];
+      for (int i = 0; i < values.length; ++i) {
+         values[i] = latencies.get(i);
+      }
+      Benchmark.PrintSummary(label, values, System.nanoTime() - start);
+      final StringBuilder times = new StringBuilder();
+      for (long reload : reloads) {
+         times.append(String.format(" %.0f", reload / 1e6));
+      }
+      System.out.println(String.format("%-40s failed: %d, reloads (millis):%s", "", failures.get(), times));
+   }
+}
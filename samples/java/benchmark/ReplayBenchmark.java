@@ -0,0 +1,231 @@
+/* Copyright (C) 2011-2021 Doubango Telecom <https://www.doubango.org>
+* File author: Mamadou DIOP (Doubango Telecom, France).
+* License: For non commercial use only.
+* Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+* WebSite: https://www.doubango.org/webapps/micr/
+*/
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import org.doubango.ultimateMicr.Sdk.ULTMICR_SDK_IMAGE_TYPE;
+import org.doubango.ultimateMicr.Utils.MicrConsensus;
+import org.doubango.ultimateMicr.Utils.MicrFrame;
+import org.doubango.ultimateMicr.Utils.MicrResultParser;
+import org.doubango.ultimateMicr.Utils.MicrRoi;
+import org.doubango.ultimateMicr.Utils.MicrRoiTracker;
+
+/**
+ * Replays a sequence of recorded results (one result JSON per line, --replay) or a built-in synthetic video
+ * through the ROI tracker (MicrRoiTracker) alone, then through the tracker and the temporal consensus
+ * (MicrConsensus, scene changes detected with MicrLumaThumbnail) as the video samples do: frames skipped
+ * while the consensus is final and the scene unchanged. Doesn't need the native library.
+ *
+ * The synthetic video is a CMC-7 check drifting by a few pixels per frame with a 2-frame detection blip and one
+ * character in 7 frames misread, the check removed (4 empty frames, darker scene) then an E-13B check at another
+ * place (another scene). Checks that the tracker never loses a line outside of the region it predicted, falls
+ * back to the full frame exactly once (check removed) and ends on a region containing the last line, then that
+ * the consensus becomes final once per check with the right texts and skips frames in between. Recorded
+ * sequences (all on the same blank frame, no scene change) only print the same metrics.
+ *
+ * Options: --replay (file, default: synthetic), --width and --height (frame size of the recording, default 1280x720).
+ */
+class ReplayBenchmark {
+
+   static final String TEXT_CMC7 = "H00135412H0162807425I814001083915F";
+   static final String TEXT_E13B = "C000123C A012345678A 1234567C";
+   static final int KLASS_E13B = 1;
+   static final int KLASS_CMC7 = 2;
+
+   /**
+   * One recorded frame: the result JSON and the frame it was produced on.
+   */
+   static final class Step {
+      final String mJson;
+      final MicrFrame mFrame;
+
+      Step(String json, MicrFrame frame) {
+         mJson = json;
+         mFrame = frame;
+      }
+   }
+
+   static void run(Hashtable<String, String> parameters) throws IOException
+   {
+      final boolean synthetic = !parameters.containsKey("--replay");
+      final List<Step> steps;
+      if (synthetic) {
+         steps = Synthetic();
+      }
+      else {
+         final MicrFrame frame = MicrFrame.newBlank(ULTMICR_SDK_IMAGE_TYPE.ULTMICR_SDK_IMAGE_TYPE_Y,
+            Benchmark.GetInt(parameters, "--width", 1280), Benchmark.GetInt(parameters, "--height", 720));
+         steps = new ArrayList<>();
+         for (String line : Files.readAllLines(Paths.get(parameters.get("--replay")), StandardCharsets.UTF_8)) {
+            if (!line.trim().isEmpty()) {
+               steps.add(new Step(line, frame));
+            }
+         }
+      }
+
+      final MicrRoiTracker tracker = new MicrRoiTracker();
+      final MicrResultParser parser = new MicrResultParser();
+      final float box[] = new float[4];
+      int contained = 0;
+      int escaped = 0;
+      double roiArea = 0;
+      MicrRoi roi = MicrRoi.EMPTY;
+      for (Step step : steps) {
+         roi = tracker.getRoi(step.mFrame);
+         parser.parse(step.mJson);
+         if (parser.isMalformed()) {
+            throw new IOException("Malformed result: " + step.mJson);
+         }
+         final int frameArea = step.mFrame.getWidth() * step.mFrame.getHeight();
+         roiArea += roi.isEmpty() ? frameArea : (double)(roi.getRight() - roi.getLeft()) * (roi.getBottom() - roi.getTop());
+         if (parser.getNumZones() > 0 && !roi.isEmpty()) {
+            if (Inside(BoundingBox(parser, box), roi, step.mFrame)) {
+               ++contained;
+            }
+            else {
+               ++escaped;
+            }
+         }
+         tracker.update(step.mFrame, parser);
+      }
+      roi = tracker.getRoi(steps.get(steps.size() - 1).mFrame);
+      final int frameArea = steps.get(0).mFrame.getWidth() * steps.get(0).mFrame.getHeight();
+      System.out.println(String.format(Locale.US, "tracker: %d frames, hits=%d, misses=%d, resets=%d, lines inside the predicted region=%d, outside=%d, mean region=%.1f%% of the frame, final region=%s",
+         steps.size(), tracker.getNumHits(), tracker.getNumMisses(), tracker.getNumResets(), contained, escaped, 100 * roiArea / (steps.size() * (double)frameArea), roi));
+
+      if (synthetic) {
+         parser.parse(steps.get(steps.size() - 1).mJson);
+         if (escaped != 0 || tracker.getNumResets() != 1 || !tracker.isTracking() || !Inside(BoundingBox(parser, box), roi, steps.get(steps.size() - 1).mFrame)) {
+            throw new IOException("Unexpected tracker behaviour");
+         }
+         System.out.println("tracker: OK");
+      }
+
+      // Tracker + consensus, as the video samples
+      final MicrRoiTracker videoTracker = new MicrRoiTracker();
+      final MicrConsensus consensus = new MicrConsensus();
+      final List<String> finals = new ArrayList<>();
+      Step last = null;
+      for (Step step : steps) {
+         if (!consensus.shouldProcess(step.mFrame)) {
+            continue;
+         }
+         last = step;
+         parser.parse(step.mJson);
+         videoTracker.update(step.mFrame, parser);
+         final boolean wasFinal = consensus.isFinal();
+         if (consensus.update(step.mFrame, parser) && !wasFinal) {
+            final StringBuilder texts = new StringBuilder();
+            for (int i = 0; i < consensus.getNumLines(); ++i) {
+               texts.append(i == 0 ? "" : "|").append(consensus.getText(i));
+            }
+            finals.add(texts.toString());
+         }
+      }
+      roi = videoTracker.getRoi(last.mFrame);
+      System.out.println(String.format(Locale.US, "consensus: processed=%d, skipped=%d, finals=%s, final region=%s",
+         consensus.getNumProcessed(), consensus.getNumSkipped(), finals, roi));
+
+      if (synthetic) {
+         parser.parse(last.mJson);
+         if (finals.size() != 2 || !TEXT_CMC7.equals(finals.get(0)) || !TEXT_E13B.equals(finals.get(1)) || consensus.getNumSkipped() == 0
+               || !Inside(BoundingBox(parser, box), roi, last.mFrame)) {
+            throw new IOException("Unexpected consensus behaviour");
+         }
+         System.out.println("consensus: OK");
+      }
+   }
+
+   /**
+   * Synthetic video, see the class description. Same seed, same sequence.
+   */
+   static List<Step> Synthetic()
+   {
+      final MicrFrame white = Fill(255);
+      final MicrFrame background = Fill(96);
+      final MicrFrame other = Fill(200);
+      final List<Step> steps = new ArrayList<>();
+      final Random random = new Random(42);
+      for (int i = 0; i < 40; ++i) { // CMC-7 check, detection blip on frames 15 and 16
+         steps.add(new Step((i == 15 || i == 16) ? Empty(i) : Result(i, random, TEXT_CMC7, KLASS_CMC7, 70 + 2 * i, 440 + i, 410, 40), white));
+      }
+      for (int i = 40; i < 44; ++i) { // Check removed
+         steps.add(new Step(Empty(i), background));
+      }
+      for (int i = 44; i < 74; ++i) { // E-13B check, another place
+         steps.add(new Step(Result(i, random, TEXT_E13B, KLASS_E13B, 300 - (i - 44), 200 + 2 * (i - 44), 520, 36), other));
+      }
+      return steps;
+   }
+
+   static MicrFrame Fill(int luma)
+   {
+      final MicrFrame frame = MicrFrame.newBlank(ULTMICR_SDK_IMAGE_TYPE.ULTMICR_SDK_IMAGE_TYPE_Y, 1280, 720);
+      for (int i = 0; i < 1280 * 720; ++i) {
+         frame.getPlane(0).put(i, (byte)luma);
+      }
+      return frame;
+   }
+
+   static String Empty(int frameId)
+   {
+      return String.format("{\"code\":200,\"frame_id\":%d,\"phrase\":\"OK\"}", frameId);
+   }
+
+   /**
+   * Result with one zone, one character in 7 frames misread with a lower confidence.
+   */
+   static String Result(int frameId, Random random, String text, int klass, int left, int top, int width, int height)
+   {
+      String read = text;
+      float confidence = 92.f;
+      if (random.nextInt(7) == 0) {
+         final int index = random.nextInt(text.length());
+         read = text.substring(0, index) + (char)('0' + random.nextInt(10)) + text.substring(index + 1);
+         confidence = 61.f;
+      }
+      return String.format(Locale.US,
+         "{\"code\":200,\"frame_id\":%d,\"phrase\":\"OK\",\"zones\":[{\"confidences\":[%.1f,100],\"klass\":%d,\"text\":\"%s\",\"warpedBox\":[%d,%d,%d,%d,%d,%d,%d,%d]}]}",
+         frameId, confidence, klass, read, left, top, left + width, top, left + width, top + height, left, top + height);
+   }
+
+   /**
+   * Bounding box of the zones { left, right, top, bottom }.
+   */
+   static float[] BoundingBox(MicrResultParser parser, float box[])
+   {
+      box[0] = box[2] = Float.MAX_VALUE;
+      box[1] = box[3] = -Float.MAX_VALUE;
+      for (int i = 0; i < parser.getNumZones(); ++i) {
+         final float warped[] = parser.getZone(i).getWarpedBox();
+         for (int j = 0; j < 8; j += 2) {
+            box[0] = Math.min(box[0], warped[j]);
+            box[1] = Math.max(box[1], warped[j]);
+            box[2] = Math.min(box[2], warped[j + 1]);
+            box[3] = Math.max(box[3], warped[j + 1]);
+         }
+      }
+      return box;
+   }
+
+   /**
+   * Whether the box, clamped to the frame as the region is, lies within the region.
+   */
+   static boolean Inside(float box[], MicrRoi roi, MicrFrame frame)
+   {
+      return Math.max(0, box[0]) >= roi.getLeft() && Math.min(frame.getRootWidth(), box[1]) <= roi.getRight()
+         && Math.max(0, box[2]) >= roi.getTop() && Math.min(frame.getRootHeight(), box[3]) <= roi.getBottom();
+   }
+}
@@ -0,0 +1,88 @@
+/* Copyright (C) 2011-2021 Doubango Telecom <https://www.doubango.org>
+* File author: Mamadou DIOP (Doubango Telecom, France).
+* License: For non commercial use only.
+* Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+* WebSite: https://www.doubango.org/webapps/micr/
+*/
+
+import java.io.IOException;
+import java.util.Hashtable;
+import java.util.Map;
+
+import org.doubango.ultimateMicr.Service.MicrEngine;
+import org.doubango.ultimateMicr.Service.MicrFormatRouter;
+import org.doubango.ultimateMicr.Service.MicrLocalEngine;
+import org.doubango.ultimateMicr.Service.MicrProcessEngine;
+import org.doubango.ultimateMicr.Service.MicrResult;
+import org.doubango.ultimateMicr.Utils.MicrFormatHistory;
+import org.doubango.ultimateMicr.Utils.MicrFrame;
+
+/**
+ * Format router (MicrFormatRouter): mixed portfolio of E-13B and CMC-7 checks deposited by clients who
+ * always use the same font. Compares the combined "e13b+cmc7" engine with the router using the glyph
+ * shapes only and the router using the clients' history. The single-format engines run in worker processes.
+ *
+ * Options: --loops (default 200), --clients (default 8, half of them E-13B).
+ */
+class RouterBenchmark {
+
+   static void run(Hashtable<String, String> parameters) throws IOException, InterruptedException
+   {
+      final int loops = Benchmark.GetInt(parameters, "--loops", 200);
+      final int clients = Benchmark.GetInt(parameters, "--clients", 8);
+
+      final MicrFrame e13b = Benchmark.ReadFrame(parameters, "e13b_1280x720.jpg");
+      final MicrFrame cmc7 = Benchmark.ReadFrame(parameters, "cmc7_1280x720.jpg");
+      final MicrFrame[] traffic = new MicrFrame[loops];
+      final String[] owners = new String[loops];
+      for (int i = 0; i < loops; ++i) {
+         final int client = (i * 7) % clients;
+         traffic[i] = (client < clients / 2) ? e13b : cmc7;
+         owners[i] = "client-" + client;
+      }
+
+      final Map<String, Object> config = Benchmark.DefaultConfig(parameters);
+      config.put("format", "e13b+cmc7");
+      final String combinedConfig = Benchmark.BuildJSON(config);
+      config.put("format", "e13b");
+      final String e13bConfig = Benchmark.BuildJSON(config);
+      config.put("format", "cmc7");
+      final String cmc7Config = Benchmark.BuildJSON(config);
+
+      try (MicrEngine combined = MicrLocalEngine.open(combinedConfig);
+            MicrEngine e13bEngine = MicrProcessEngine.start(e13bConfig);
+            MicrEngine cmc7Engine = MicrProcessEngine.start(cmc7Config)) {
+         final MicrFormatRouter glyphs = new MicrFormatRouter(e13bEngine, cmc7Engine, combined, null);
+         glyphs.warmUp(e13b.getType());
+         for (MicrEngine engine : new MicrEngine[] { combined, e13bEngine, cmc7Engine }) {
+            engine.process(e13b);
+            engine.process(cmc7);
+         }
+
+         runTraffic("combined (e13b+cmc7)", combined, null, traffic, owners);
+
+         runTraffic("router, glyphs", glyphs, null, traffic, owners);
+         System.out.println(String.format("%-40s %s", "", glyphs));
+
+         final MicrFormatRouter history = new MicrFormatRouter(e13bEngine, cmc7Engine, combined, new MicrFormatHistory(1024))
+            .setGlyphClassifierEnabled(false);
+         runTraffic("router, clients' history", history, history, traffic, owners);
+         System.out.println(String.format("%-40s %s", "", history));
+      }
+   }
+
+   static void runTraffic(String label, MicrEngine engine, MicrFormatRouter router, MicrFrame[] traffic, String[] owners) throws IOException
+   {
+      final long[] latencies = new long[traffic.length];
+      final long start = System.nanoTime();
+      for (int i = 0; i < traffic.length; ++i) {
+         final long t = System.nanoTime();
+         final MicrResult result = (router != null) ? router.process(traffic[i], owners[i], 0) : engine.process(traffic[i]);
+         latencies[i] = System.nanoTime() - t;
+         if (!result.isOK()) {
+            throw new IOException("process failed: " + result);
+         }
+      }
+      Benchmark.PrintSummary(label, latencies, System.nanoTime() - start);
+   }
+}
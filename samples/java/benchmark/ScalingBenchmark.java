@@ -0,0 +1,108 @@
+/* Copyright (C) 2011-2021 Doubango Telecom <https://www.doubango.org>
+* File author: Mamadou DIOP (Doubango Telecom, France).
+* License: For non commercial use only.
+* Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+* WebSite: https://www.doubango.org/webapps/micr/
+*/
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+
+import org.doubango.ultimateMicr.Service.MicrEngine;
+import org.doubango.ultimateMicr.Service.MicrLocalEngine;
+import org.doubango.ultimateMicr.Service.MicrProcessEngine;
+import org.doubango.ultimateMicr.Utils.MicrFrame;
+
+/**
+ * Throughput when scaling from 1 to N independent engines, each running in its own worker process
+ * with a narrow thread budget ("num_threads"). The first line is the in-process engine using all cores.
+ *
+ * Options: --loops (default 100), --instances (max number of engines, default: number of cores / 4),
+ * --threads-per-instance (default: number of cores / instances), --rate (positive rate, default 0.2).
+ */
+class ScalingBenchmark {
+
+   static void run(Hashtable<String, String> parameters) throws IOException, InterruptedException
+   {
+      final int cores = Runtime.getRuntime().availableProcessors();
+      final int loops = Benchmark.GetInt(parameters, "--loops", 100);
+      final int maxInstances = Benchmark.GetInt(parameters, "--instances", Math.max(1, cores / 4));
+      final int threadsPerInstance = Benchmark.GetInt(parameters, "--threads-per-instance", Math.max(1, cores / maxInstances));
+      final double rate = Benchmark.GetDouble(parameters, "--rate", 0.2);
+
+      final MicrFrame positive = Benchmark.ReadFrame(parameters, "e13b_1280x720.jpg");
+      final MicrFrame negative = Benchmark.ReadFrame(parameters, "traffic_1280x720.jpg");
+      final MicrFrame[] traffic = new MicrFrame[loops];
+      for (int i = 0; i < loops; ++i) {
+         traffic[i] = (i % 100) < (int)(rate * 100) ? positive : negative;
+      }
+
+      // Baseline: in-process engine, all cores
+      try (MicrEngine engine = MicrLocalEngine.open(Benchmark.BuildJSON(Benchmark.DefaultConfig(parameters)))) {
+         runInstances(String.format("in-process, num_threads=%d", -1), new MicrEngine[] { engine }, positive, traffic);
+      }
+
+      final Map<String, Object> config = Benchmark.DefaultConfig(parameters);
+      config.put("num_threads", threadsPerInstance);
+      final String jsonConfig = Benchmark.BuildJSON(config);
+      for (int n = 1; n <= maxInstances; n = (n == maxInstances) ? n + 1 : Math.min(n << 1, maxInstances)) {
+         final MicrEngine[] engines = new MicrEngine[n];
+         try {
+            for (int i = 0; i < n; ++i) {
+               engines[i] = MicrProcessEngine.start(jsonConfig);
+            }
+            runInstances(String.format("%d worker(s), num_threads=%d", n, threadsPerInstance), engines, positive, traffic);
+         }
+         finally {
+            for (MicrEngine engine : engines) {
+               if (engine != null) {
+                  engine.close();
+               }
+            }
+         }
+      }
+   }
+
+   /**
+   * One calling thread per engine, the traffic being split evenly.
+   */
+   static void runInstances(String label, MicrEngine[] engines, MicrFrame warmUpFrame, MicrFrame[] traffic) throws IOException, InterruptedException
+   {
+      for (MicrEngine engine : engines) {
+         engine.warmUp(warmUpFrame.getType());
+         engine.process(warmUpFrame);
+      }
+      final long[] latencies = new long[traffic.length];
+      final List<Thread> threads = new ArrayList<>();
+      final IOException[] error = new IOException[1];
+      final long start = System.nanoTime();
+      for (int e = 0; e < engines.length; ++e) {
+         final MicrEngine engine = engines[e];
+         final int first = e;
+         final Thread thread = new Thread(() -> {
+            try {
+               for (int i = first; i < traffic.length; i += engines.length) {
+                  final long t0 = System.nanoTime();
+                  engine.process(traffic[i]);
+                  latencies[i] = System.nanoTime() - t0;
+               }
+            }
+            catch (IOException ex) {
+               error[0] = ex;
+            }
+         });
+         threads.add(thread);
+         thread.start();
+      }
+      for (Thread thread : threads) {
+         thread.join();
+      }
+      if (error[0] != null) {
+         throw error[0];
+      }
+      Benchmark.PrintSummary(label, latencies, System.nanoTime() - start);
+   }
+}
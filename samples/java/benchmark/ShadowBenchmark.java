@@ -0,0 +1,75 @@
+/* Copyright (C) 2011-2021 Doubango Telecom <https://www.doubango.org>
+* File author: Mamadou DIOP (Doubango Telecom, France).
+* License: For non commercial use only.
+* Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+* WebSite: https://www.doubango.org/webapps/micr/
+*/
+
+import java.io.IOException;
+import java.util.Hashtable;
+import java.util.Map;
+
+import org.doubango.ultimateMicr.Service.MicrEngine;
+import org.doubango.ultimateMicr.Service.MicrLocalEngine;
+import org.doubango.ultimateMicr.Service.MicrProcessEngine;
+import org.doubango.ultimateMicr.Service.MicrShadowEngine;
+import org.doubango.ultimateMicr.Utils.MicrFrame;
+
+/**
+ * Shadow evaluation (MicrShadowEngine): the in-process engine serves the traffic while a sampled fraction of the
+ * frames is mirrored to a worker process running the candidate config (high segmenter accuracy, IELCD and
+ * backpropagation). Prints the primary latency without and with the shadow, then the comparison report.
+ *
+ * Options: --loops (default 400), --sample (mirrored fraction, default 0.2), --max-pending (default 2).
+ */
+class ShadowBenchmark {
+
+   static void run(Hashtable<String, String> parameters) throws IOException, InterruptedException
+   {
+      final int loops = Benchmark.GetInt(parameters, "--loops", 400);
+      final double sample = Benchmark.GetDouble(parameters, "--sample", 0.2);
+      final int maxPending = Benchmark.GetInt(parameters, "--max-pending", 2);
+
+      final MicrFrame[] frames = {
+         Benchmark.ReadFrame(parameters, "e13b_1280x720.jpg"),
+         Benchmark.ReadFrame(parameters, "cmc7_1280x720.jpg"),
+         Benchmark.ReadFrame(parameters, "traffic_1280x720.jpg")
+      };
+      final Map<String, Object> candidate = Benchmark.DefaultConfig(parameters);
+      candidate.put("segmenter_accuracy", "high");
+      candidate.put("ielcd_enabled", true);
+      candidate.put("backpropagation_enabled", true);
+
+      final MicrEngine primary = MicrLocalEngine.open(Benchmark.BuildJSON(Benchmark.DefaultConfig(parameters)));
+      final MicrEngine shadow;
+      try {
+         shadow = MicrProcessEngine.start(Benchmark.BuildJSON(candidate));
+      }
+      catch (IOException e) {
+         primary.close();
+         throw e;
+      }
+      try (MicrShadowEngine engine = new MicrShadowEngine(primary, shadow)) {
+         engine.warmUp(frames[0].getType());
+         primary.process(frames[0]);
+         shadow.process(frames[0]);
+
+         runClient("primary only", primary, frames, loops);
+         engine.setSampleRate(sample).setMaxPending(maxPending);
+         runClient(String.format("primary + shadow (%.0f%% mirrored)", sample * 100), engine, frames, loops);
+         System.out.print(engine.getReport());
+      }
+   }
+
+   static void runClient(String label, MicrEngine engine, MicrFrame[] frames, int loops) throws IOException
+   {
+      final long[] latencies = new long[loops];
+      final long start = System.nanoTime();
+      for (int i = 0; i < loops; ++i) {
+         final long t0 = System.nanoTime();
+         engine.process(frames[i % frames.length]);
+         latencies[i] = System.nanoTime() - t0;
+      }
+      Benchmark.PrintSummary(label, latencies, System.nanoTime() - start);
+   }
+}
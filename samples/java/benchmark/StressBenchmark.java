@@ -0,0 +1,228 @@
+/* Copyright (C) 2011-2021 Doubango Telecom <https://www.doubango.org>
+* File author: Mamadou DIOP (Doubango Telecom, France).
+* License: For non commercial use only.
+* Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+* WebSite: https://www.doubango.org/webapps/micr/
+*/
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.doubango.ultimateMicr.Sdk.ULTMICR_SDK_IMAGE_TYPE;
+import org.doubango.ultimateMicr.Service.MicrEngine;
+import org.doubango.ultimateMicr.Service.MicrFairGate;
+import org.doubango.ultimateMicr.Service.MicrLocalEngine;
+import org.doubango.ultimateMicr.Service.MicrResult;
+import org.doubango.ultimateMicr.Service.MicrWorkerOptions;
+import org.doubango.ultimateMicr.Service.MicrWorkerPool;
+import org.doubango.ultimateMicr.Utils.MicrFrame;
+
+/**
+ * Concurrent access stress test: 1 to N Java threads calling "process" on the same engine with mixed
+ * image types (BGR24, BGRA32, Y, YUV420P, NV21 built from the E-13B, CMC-7 and negative samples).
+ * Every result is checked against the single-threaded reference for the same frame ("duration" and
+ * "frame_id" ignored). For the in-process engine the queue time at the fair gate is printed too.
+ * The "raw" engine initializes the in-process engine then calls the static "UltMicrSdkEngine.process"
+ * (MicrFrame.process) from all the threads at once, without the gate: measures whether the native calls
+ * are re-entrant rather than assuming it.
+ *
+ * Options: --loops (requests per level, default 100), --threads (max number of threads, default: number of cores),
+ * --engine (local, raw or pool, default local), --workers (pool size, default: number of cores / 4).
+ */
+class StressBenchmark {
+
+   static void run(Hashtable<String, String> parameters) throws IOException, InterruptedException
+   {
+      final int cores = Runtime.getRuntime().availableProcessors();
+      final int loops = Benchmark.GetInt(parameters, "--loops", 100);
+      final int maxThreads = Benchmark.GetInt(parameters, "--threads", cores);
+      final String engineName = parameters.getOrDefault("--engine", "local");
+
+      final List<MicrFrame> frames = new ArrayList<>();
+      for (String name : new String[] { "e13b_1280x720.jpg", "cmc7_1280x720.jpg", "traffic_1280x720.jpg" }) {
+         final MicrFrame bgr = Benchmark.ReadFrame(parameters, name);
+         frames.add(bgr);
+         frames.add(ToBgra32(bgr));
+         frames.add(ToY(bgr));
+         frames.add(ToYuv420P(bgr));
+         frames.add(ToNv21(bgr));
+      }
+
+      final MicrEngine engine;
+      if ("pool".equals(engineName)) {
+         final int workers = Benchmark.GetInt(parameters, "--workers", Math.max(1, cores / 4));
+         final Map<String, Object> config = Benchmark.DefaultConfig(parameters);
+         config.put("num_threads", Math.max(1, cores / workers));
+         engine = MicrWorkerPool.start(Benchmark.BuildJSON(config), workers, new MicrWorkerOptions());
+      }
+      else if ("local".equals(engineName) || "raw".equals(engineName)) {
+         engine = MicrLocalEngine.open(Benchmark.BuildJSON(Benchmark.DefaultConfig(parameters)));
+      }
+      else {
+         throw new IllegalArgumentException("Unknown engine: " + engineName);
+      }
+
+      try {
+         // Single-threaded reference
+         final String[] references = new String[frames.size()];
+         for (int i = 0; i < frames.size(); ++i) {
+            final MicrFrame frame = frames.get(i);
+            engine.warmUp(frame.getType());
+            references[i] = Normalize(engine.process(frame));
+            System.out.println(String.format("reference #%d %s: %s", i, frame.getType(), references[i]));
+         }
+         System.out.println();
+
+         for (int n = 1; n <= maxThreads; n = (n == maxThreads) ? n + 1 : Math.min(n << 1, maxThreads)) {
+            final MicrFairGate gate = MicrLocalEngine.getGate();
+            gate.resetStats();
+            final long[] latencies = new long[loops];
+            final AtomicInteger next = new AtomicInteger();
+            final AtomicLong mismatches = new AtomicLong();
+            final AtomicLong failures = new AtomicLong();
+            final List<Thread> threads = new ArrayList<>();
+            final Exception[] error = new Exception[1];
+            final long start = System.nanoTime();
+            for (int t = 0; t < n; ++t) {
+               final Thread thread = new Thread(() -> {
+                  for (int i = next.getAndIncrement(); i < loops; i = next.getAndIncrement()) {
+                     final int index = i % frames.size();
+                     final long t0 = System.nanoTime();
+                     try {
+                        final MicrFrame frame = frames.get(index);
+                        final MicrResult result = "raw".equals(engineName) ? MicrResult.from(frame.process()) : engine.process(frame);
+                        if (!references[index].equals(Normalize(result))) {
+                           mismatches.incrementAndGet();
+                        }
+                     }
+                     catch (IOException | RuntimeException ex) {
+                        failures.incrementAndGet();
+                        synchronized (error) {
+                           if (error[0] == null) {
+                              error[0] = ex;
+                           }
+                        }
+                     }
+                     latencies[i] = System.nanoTime() - t0;
+                  }
+               });
+               threads.add(thread);
+               thread.start();
+            }
+            for (Thread thread : threads) {
+               thread.join();
+            }
+            Benchmark.PrintSummary(String.format("%s, %d thread(s)", engineName, n), latencies, System.nanoTime() - start);
+            System.out.println(String.format("   mismatches: %d, failures: %d%s", mismatches.get(), failures.get(), "local".equals(engineName) ? ", gate: " + gate : ""));
+            if (failures.get() > 0) {
+               throw new IOException(failures.get() + " request(s) failed", error[0]);
+            }
+            if (mismatches.get() > 0) {
+               throw new IOException(mismatches.get() + " result(s) differ from the single-threaded reference");
+            }
+         }
+      }
+      finally {
+         engine.close();
+      }
+   }
+
+   /**
+   * Result without the fields changing from one call to another.
+   */
+   static String Normalize(MicrResult result)
+   {
+      return result.code() + " " + result.json().replaceAll("\"(duration|frame_id)\":[0-9.eE+-]+,?", "");
+   }
+
+   static MicrFrame ToBgra32(MicrFrame bgr)
+   {
+      final int width = bgr.getWidth(), height = bgr.getHeight(), stride = bgr.getStride(0);
+      final ByteBuffer src = bgr.getPlane(0);
+      final ByteBuffer dst = ByteBuffer.allocateDirect(width * height * 4);
+      for (int y = 0; y < height; ++y) {
+         for (int x = 0; x < width; ++x) {
+            final int s = (y * stride + x) * 3, d = (y * width + x) * 4;
+            dst.put(d, src.get(s));
+            dst.put(d + 1, src.get(s + 1));
+            dst.put(d + 2, src.get(s + 2));
+            dst.put(d + 3, (byte)0xff);
+         }
+      }
+      return MicrFrame.newPacked(ULTMICR_SDK_IMAGE_TYPE.ULTMICR_SDK_IMAGE_TYPE_BGRA32, dst, width, height, width, bgr.getExifOrientation());
+   }
+
+   static MicrFrame ToY(MicrFrame bgr)
+   {
+      final int width = bgr.getWidth(), height = bgr.getHeight();
+      final ByteBuffer y = ByteBuffer.allocateDirect(width * height);
+      FillLuma(bgr, y, 0);
+      return MicrFrame.newPacked(ULTMICR_SDK_IMAGE_TYPE.ULTMICR_SDK_IMAGE_TYPE_Y, y, width, height, width, bgr.getExifOrientation());
+   }
+
+   static MicrFrame ToYuv420P(MicrFrame bgr)
+   {
+      final int width = bgr.getWidth(), height = bgr.getHeight();
+      final int uvWidth = (width + 1) >> 1, uvHeight = (height + 1) >> 1;
+      final ByteBuffer y = ByteBuffer.allocateDirect(width * height);
+      final ByteBuffer u = ByteBuffer.allocateDirect(uvWidth * uvHeight);
+      final ByteBuffer v = ByteBuffer.allocateDirect(uvWidth * uvHeight);
+      FillLuma(bgr, y, 0);
+      FillChroma(bgr, u, 0, v, 0, uvWidth, 1);
+      return MicrFrame.newYuv(ULTMICR_SDK_IMAGE_TYPE.ULTMICR_SDK_IMAGE_TYPE_YUV420P, y, u, v, width, height, width, uvWidth, uvWidth, 1, bgr.getExifOrientation());
+   }
+
+   static MicrFrame ToNv21(MicrFrame bgr)
+   {
+      final int width = bgr.getWidth(), height = bgr.getHeight();
+      final int uvWidth = (width + 1) >> 1, uvHeight = (height + 1) >> 1;
+      final ByteBuffer data = ByteBuffer.allocateDirect(width * height + uvWidth * uvHeight * 2);
+      FillLuma(bgr, data, 0);
+      final int vu = width * height;
+      FillChroma(bgr, data, vu + 1, data, vu, uvWidth * 2, 2);
+      final ByteBuffer y = data.duplicate();
+      y.limit(vu);
+      return MicrFrame.newYuv(ULTMICR_SDK_IMAGE_TYPE.ULTMICR_SDK_IMAGE_TYPE_NV21, y.slice(), Slice(data, vu + 1), Slice(data, vu), width, height, width, uvWidth * 2, uvWidth * 2, 2, bgr.getExifOrientation());
+   }
+
+   static ByteBuffer Slice(ByteBuffer buffer, int offset)
+   {
+      final ByteBuffer duplicate = buffer.duplicate();
+      duplicate.position(offset);
+      return duplicate.slice();
+   }
+
+   static void FillLuma(MicrFrame bgr, ByteBuffer y, int offset)
+   {
+      final int width = bgr.getWidth(), height = bgr.getHeight(), stride = bgr.getStride(0);
+      final ByteBuffer src = bgr.getPlane(0);
+      for (int j = 0; j < height; ++j) {
+         for (int i = 0; i < width; ++i) {
+            final int s = (j * stride + i) * 3;
+            final int b = src.get(s) & 0xff, g = src.get(s + 1) & 0xff, r = src.get(s + 2) & 0xff;
+            y.put(offset + j * width + i, (byte)((29 * b + 150 * g + 77 * r) >> 8));
+         }
+      }
+   }
+
+   static void FillChroma(MicrFrame bgr, ByteBuffer u, int uOffset, ByteBuffer v, int vOffset, int uvStride, int uvPixelStride)
+   {
+      final int width = bgr.getWidth(), height = bgr.getHeight(), stride = bgr.getStride(0);
+      final ByteBuffer src = bgr.getPlane(0);
+      for (int j = 0; j < height; j += 2) {
+         for (int i = 0; i < width; i += 2) {
+            final int s = (j * stride + i) * 3;
+            final int b = src.get(s) & 0xff, g = src.get(s + 1) & 0xff, r = src.get(s + 2) & 0xff;
+            final int d = (j >> 1) * uvStride + (i >> 1) * uvPixelStride;
+            u.put(uOffset + d, (byte)(((-43 * r - 85 * g + 128 * b) >> 8) + 128));
+            v.put(vOffset + d, (byte)(((128 * r - 107 * g - 21 * b) >> 8) + 128));
+         }
+      }
+   }
+}
@@ -0,0 +1,103 @@
+/* Copyright (C) 2011-2021 Doubango Telecom <https://www.doubango.org>
+* File author: Mamadou DIOP (Doubango Telecom, France).
+* License: For non commercial use only.
+* Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+* WebSite: https://www.doubango.org/webapps/micr/
+*/
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.doubango.ultimateMicr.Service.MicrResult;
+import org.doubango.ultimateMicr.Service.MicrSupervisedEngine;
+import org.doubango.ultimateMicr.Service.MicrTimeoutException;
+import org.doubango.ultimateMicr.Service.MicrWorkerOptions;
+import org.doubango.ultimateMicr.Utils.MicrFrame;
+
+/**
+ * Supervised workers (MicrSupervisedEngine) with overrunning calls: client threads submit frames, one request out
+ * of --overrun-every gets a timeout shorter than any processing time, standing for a hung native call. Each
+ * overrun kills and restarts its worker. Checks that only the overrunning requests fail and prints the latency of
+ * the others, the timeouts and the restart time.
+ *
+ * Options: --loops (default 400), --workers (default 2), --clients (default: 2 x workers), --overrun-every
+ * (default 50), --timeout-ms (timeout of the other requests, default 10000).
+ */
+class SupervisedBenchmark {
+
+   static void run(Hashtable<String, String> parameters) throws IOException, InterruptedException
+   {
+      final int loops = Benchmark.GetInt(parameters, "--loops", 400);
+      final int workers = Benchmark.GetInt(parameters, "--workers", 2);
+      final int clients = Benchmark.GetInt(parameters, "--clients", 2 * workers);
+      final int overrunEvery = Benchmark.GetInt(parameters, "--overrun-every", 50);
+      final int timeoutMillis = Benchmark.GetInt(parameters, "--timeout-ms", 10000);
+
+      final MicrFrame positive = Benchmark.ReadFrame(parameters, "e13b_1280x720.jpg");
+      final MicrFrame negative = Benchmark.ReadFrame(parameters, "traffic_1280x720.jpg");
+
+      try (MicrSupervisedEngine engine = MicrSupervisedEngine.start(Benchmark.BuildJSON(Benchmark.DefaultConfig(parameters)), workers, new MicrWorkerOptions())) {
+         engine.setDefaultTimeout(timeoutMillis);
+         engine.warmUp(positive.getType());
+         engine.process(positive);
+         engine.resetStats();
+
+         final long[] latencies = new long[loops];
+         final AtomicInteger next = new AtomicInteger();
+         final AtomicInteger timeouts = new AtomicInteger();
+         final AtomicInteger failures = new AtomicInteger();
+         final List<Thread> threads = new ArrayList<>();
+         final long start = System.nanoTime();
+         for (int c = 0; c < clients; ++c) {
+            final Thread thread = new Thread(() -> {
+               for (int i = next.getAndIncrement(); i < loops; i = next.getAndIncrement()) {
+                  final boolean overrun = (i % overrunEvery) == (overrunEvery - 1);
+                  final long t0 = System.nanoTime();
+                  final CompletableFuture<MicrResult> future = overrun
+                     ? engine.submit(positive, 1)
+                     : engine.submit((i & 1) == 0 ? positive : negative);
+                  try {
+                     future.get();
+                     latencies[i] = System.nanoTime() - t0;
+                  }
+                  catch (ExecutionException e) {
+                     if (overrun && e.getCause() instanceof MicrTimeoutException) {
+                        timeouts.incrementAndGet();
+                     }
+                     else {
+                        e.getCause().printStackTrace();
+                        failures.incrementAndGet();
+                     }
+                     latencies[i] = -1;
+                  }
+                  catch (InterruptedException e) {
+                     Thread.currentThread().interrupt();
+                     return;
+                  }
+               }
+            });
+            threads.add(thread);
+            thread.start();
+         }
+         for (Thread thread : threads) {
+            thread.join();
+         }
+         final long elapsed = System.nanoTime() - start;
+
+         final long[] completed = new long[loops - timeouts.get() - failures.get()];
+         for (int i = 0, j = 0; i < loops; ++i) {
+            if (latencies[i] >= 0) {
+               completed[j++] = latencies[i];
+            }
+         }
+         Benchmark.PrintSummary(String.format("supervised, %d worker(s), %d client(s)", workers, clients), completed, elapsed);
+         System.out.println(String.format("%-40s overruns: %d timed out, other requests failed: %d", "", timeouts.get(), failures.get()));
+         System.out.println(String.format("%-40s %s", "", engine));
+      }
+   }
+}
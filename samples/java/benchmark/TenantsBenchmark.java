@@ -0,0 +1,128 @@
+/* Copyright (C) 2011-2021 Doubango Telecom <https://www.doubango.org>
+* File author: Mamadou DIOP (Doubango Telecom, France).
+* License: For non commercial use only.
+* Source code: https://github.com/DoubangoTelecom/ultimateMICR-SDK
+* WebSite: https://www.doubango.org/webapps/micr/
+*/
+
+import java.io.IOException;
+import java.util.Hashtable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.doubango.ultimateMicr.Service.MicrEngine;
+import org.doubango.ultimateMicr.Service.MicrLocalEngine;
+import org.doubango.ultimateMicr.Service.MicrTenantScheduler;
+import org.doubango.ultimateMicr.Utils.MicrFrame;
+
+/**
+ * Per-tenant fair queuing (MicrTenantScheduler): three business units share one engine. "batch" uploads a
+ * backlog (closed loop, always --batch-depth requests queued), "retail" (half size frames) and "treasury" (weight 2)
+ * submit open-loop below the capacity. Compares a single FIFO queue, deficit round robin, and deficit round robin
+ * with a rate cap on "batch". Prints the per-tenant throughput and latency and the engine utilization.
+ *
+ * Options: --loops (open-loop requests per tenant, default 200), --load (open-loop rate per tenant / capacity,
+ * default 0.2), --batch-depth (default 32), --batch-rate (rate cap of "batch" / capacity, default 0.3).
+ */
+class TenantsBenchmark {
+
+   static final String[] TENANTS = { "batch", "retail", "treasury" };
+
+   static void run(Hashtable<String, String> parameters) throws IOException, InterruptedException
+   {
+      final int loops = Benchmark.GetInt(parameters, "--loops", 200);
+      final double load = Benchmark.GetDouble(parameters, "--load", 0.2);
+      final int batchDepth = Benchmark.GetInt(parameters, "--batch-depth", 32);
+      final double batchRate = Benchmark.GetDouble(parameters, "--batch-rate", 0.3);
+
+      final MicrFrame full = Benchmark.ReadFrame(parameters, "e13b_1280x720.jpg");
+      final MicrFrame half = DeadlineBenchmark.Downscale(Benchmark.ReadFrame(parameters, "cmc7_1280x720.jpg"));
+      final MicrFrame[] frames = { full, half, full };
+
+      try (MicrEngine engine = MicrLocalEngine.open(Benchmark.BuildJSON(Benchmark.DefaultConfig(parameters)))) {
+         engine.warmUp(full.getType());
+         engine.process(full);
+         final double latencyMillis = DeadlineBenchmark.Measure(engine, full);
+         final double capacity = 1000.0 / latencyMillis;
+         System.out.println(String.format("full size latency: %.2f millis, capacity: %.1f fps, open-loop arrivals: %.1f fps per tenant",
+            latencyMillis, capacity, load * capacity));
+
+         // The schedulers aren't closed: it would close the shared engine
+         runTraffic("FIFO", new MicrTenantScheduler(engine, 1), true, frames, loops, load * capacity, batchDepth);
+         runTraffic("deficit round robin", new MicrTenantScheduler(engine, 1)
+            .setWeight("treasury", 2), false, frames, loops, load * capacity, batchDepth);
+         runTraffic(String.format("DRR, batch capped at %.0f fps", batchRate * capacity), new MicrTenantScheduler(engine, 1)
+            .setWeight("treasury", 2)
+            .setMaxRate("batch", batchRate * capacity), false, frames, loops, load * capacity, batchDepth);
+      }
+   }
+
+   /**
+   * @param fifo Submits all the requests as the same tenant, the per-tenant latency is measured by the benchmark.
+   */
+   static void runTraffic(String label, MicrTenantScheduler scheduler, boolean fifo, MicrFrame[] frames, int loops, double rate, int batchDepth) throws InterruptedException
+   {
+      final AtomicBoolean stop = new AtomicBoolean();
+      final CountDownLatch batchStopped = new CountDownLatch(batchDepth);
+      final CountDownLatch done = new CountDownLatch(2 * loops);
+      final long[][] latencies = new long[TENANTS.length][loops];
+      final int[] counts = new int[TENANTS.length];
+      final long interval = (long)(1e9 / rate);
+      final long start = System.nanoTime();
+      for (int i = 0; i < batchDepth; ++i) {
+         SubmitBatch(scheduler, fifo ? MicrTenantScheduler.DEFAULT_TENANT : TENANTS[0], frames[0], stop, batchStopped);
+      }
+      for (int i = 0; i < loops; ++i) {
+         final long arrival = start + (i * interval);
+         final long delay = arrival - System.nanoTime();
+         if (delay > 0) {
+            TimeUnit.NANOSECONDS.sleep(delay);
+         }
+         for (int tenant = 1; tenant < TENANTS.length; ++tenant) {
+            final int index = tenant;
+            scheduler.submit(fifo ? MicrTenantScheduler.DEFAULT_TENANT : TENANTS[tenant], frames[tenant]).whenComplete((result, error) -> {
+               if (error != null) {
+                  error.printStackTrace();
+               }
+               else {
+                  synchronized (latencies) {
+                     latencies[index][counts[index]++] = System.nanoTime() - arrival;
+                  }
+               }
+               done.countDown();
+            });
+         }
+      }
+      done.await();
+      final long elapsed = System.nanoTime() - start;
+      stop.set(true);
+      batchStopped.await();
+
+      System.out.println(label);
+      for (int tenant = 1; tenant < TENANTS.length; ++tenant) {
+         final long[] values = new long[counts[tenant]];
+         System.arraycopy(latencies[tenant], 0, values, 0, values.length);
+         Benchmark.PrintSummary("  " + TENANTS[tenant], values, elapsed);
+      }
+      System.out.println(String.format("%-40s %s", "", scheduler));
+   }
+
+   /**
+   * Resubmits the frame each time it completes, until stopped.
+   */
+   static void SubmitBatch(MicrTenantScheduler scheduler, String tenant, MicrFrame frame, AtomicBoolean stop, CountDownLatch stopped)
+   {
+      scheduler.submit(tenant, frame).whenComplete((result, error) -> {
+         if (error != null) {
+            error.printStackTrace();
+         }
+         if (stop.get() || error != null) {
+            stopped.countDown();
+         }
+         else {
+            SubmitBatch(scheduler, tenant, frame, stop, stopped);
+         }
+      });
+   }
+}
@@ -29,6 +29,10 @@ import javax.imageio.ImageIO;
 import org.doubango.ultimateMicr.Sdk.ULTMICR_SDK_IMAGE_TYPE;
 import org.doubango.ultimateMicr.Sdk.UltMicrSdkEngine;
 import org.doubango.ultimateMicr.Sdk.UltMicrSdkResult;
+import org.doubango.ultimateMicr.Utils.MicrBandDetector;
+import org.doubango.ultimateMicr.Utils.MicrFrame;
+import org.doubango.ultimateMicr.Utils.MicrResultJson;
+import org.doubango.ultimateMicr.Utils.MicrRoi;
 
 public class Recognizer {
 
@@ -226,6 +230,11 @@ public class Recognizer {
       String format = parameters.containsKey("--format")
             ? parameters.get("--format") : CONFIG_FORMAT;
 
+      // Automatic ROI - Optional
+      // Locates the MICR clear band before calling the engine and only process that band
+      final boolean autoRoi = parameters.containsKey("--autoroi")
+            && Boolean.parseBoolean(parameters.get("--autoroi"));
+
       //!\\ This is a quick and dirty way to load the library. You should not use it:
       // create a static block outside the main function and load the library from there.
       // In the next version we'll make sure the library has the same name regardless the platform/OS.
@@ -264,16 +273,28 @@ public class Recognizer {
       // Processing
       // For packed formats (RGB-family): https://www.doubango.org/SDKs/micr/docs/cpp-api.html#_CPPv4N15ultimateMicrSdk16UltMicrSdkEngine7processEK22ULTMICR_SDK_IMAGE_TYPEPKvK6size_tK6size_tK6size_tKi
       // For YUV formats (data from camera): https://www.doubango.org/SDKs/micr/docs/cpp-api.html#_CPPv4N15ultimateMicrSdk16UltMicrSdkEngine7processEK22ULTMICR_SDK_IMAGE_TYPEPKvPKvPKvK6size_tK6size_tK6size_tK6size_tK6size_tK6size_tKi
-      result = CheckResult("Process", UltMicrSdkEngine.process(
+      MicrFrame frame = MicrFrame.newPacked(
             (bytesPerPixel == 1) ? ULTMICR_SDK_IMAGE_TYPE.ULTMICR_SDK_IMAGE_TYPE_Y : (bytesPerPixel == 4 ? ULTMICR_SDK_IMAGE_TYPE.ULTMICR_SDK_IMAGE_TYPE_BGRA32 : ULTMICR_SDK_IMAGE_TYPE.ULTMICR_SDK_IMAGE_TYPE_BGR24),
             nativeBuffer,
             image.getWidth(),
             image.getHeight(),
             image.getWidth(), // stride
             getExifOrientation(file)
-         ));
+         );
+      if (autoRoi) {
+         // Zero-copy crop: the engine will only see the MICR band
+         final MicrRoi band = new MicrBandDetector().detect(frame);
+         System.out.println("MICR band: " + (band.isEmpty() ? "not found, using full image" : band.toString()) + System.lineSeparator());
+         frame = frame.crop(band);
+      }
+      result = CheckResult("Process", frame.process());
+      String json = result.json();
+      if (frame.isCropped()) {
+         // Map the coordinates back to the full image
+         json = MicrResultJson.translateWarpedBoxes(json, frame.getResultOffsetX(), frame.getResultOffsetY());
+      }
       // Print result to console
-      System.out.println("Result: " + result.json() + System.lineSeparator());
+      System.out.println("Result: " + json + System.lineSeparator());
 
        // Wait until user press a key
        System.out.println("Press any key to terminate !!" + System.lineSeparator());